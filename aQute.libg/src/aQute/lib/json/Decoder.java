@@ -9,6 +9,8 @@ import java.util.zip.*;
 import aQute.lib.converter.*;
 
 public class Decoder implements Closeable {
+	final static int	BUFFER_SIZE	= 8192;
+
 	final JSONCodec		codec;
 	Reader				reader;
 	int					current;
@@ -20,6 +22,12 @@ public class Decoder implements Closeable {
 	boolean				inflate;
 	boolean				keepOpen	= false;
 
+	// Only set when the reader was created by this decoder, reading ahead
+	// from a reader of the caller would take characters that are not ours
+	char[]				buffer;
+	int					position;
+	int					limit;
+
 	Decoder(JSONCodec codec) {
 		this.codec = codec;
 	}
@@ -33,7 +41,7 @@ public class Decoder implements Closeable {
 		if (inflate)
 			in = new InflaterInputStream(in);
 
-		return from(new InputStreamReader(in, encoding));
+		return from(new InputStreamReader(in, encoding), true);
 	}
 
 	public Decoder from(byte[] data) throws Exception {
@@ -50,7 +58,13 @@ public class Decoder implements Closeable {
 	}
 
 	public Decoder from(Reader in) throws Exception {
+		return from(in, false);
+	}
+
+	private Decoder from(Reader in, boolean buffered) throws Exception {
 		reader = in;
+		buffer = buffered ? new char[BUFFER_SIZE] : null;
+		position = limit = 0;
 		read();
 		return this;
 	}
@@ -60,7 +74,7 @@ public class Decoder implements Closeable {
 	}
 
 	public Decoder from(String in) throws Exception {
-		return from(new StringReader(in));
+		return from(new StringReader(in), true);
 	}
 
 	public Decoder mark() throws NoSuchAlgorithmException {
@@ -125,7 +139,15 @@ public class Decoder implements Closeable {
 	}
 	
 	int read() throws Exception {
-		current = reader.read();
+		if (buffer == null)
+			current = reader.read();
+		else {
+			if (position == limit) {
+				position = 0;
+				limit = Math.max(reader.read(buffer, 0, buffer.length), 0);
+			}
+			current = position < limit ? buffer[position++] : -1;
+		}
 		if (digest != null) {
 			digest.update((byte) (current / 256));
 			digest.update((byte) (current % 256));
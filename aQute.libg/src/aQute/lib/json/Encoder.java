@@ -65,7 +65,7 @@ public class Encoder implements Appendable, Closeable, Flushable {
 		if (deflate)
 			out = new DeflaterOutputStream(out);
 
-		return to(new OutputStreamWriter(out, encoding));
+		return to(new BufferedWriter(new OutputStreamWriter(out, encoding)));
 	}
 
 	public Encoder to(Appendable out) throws IOException {
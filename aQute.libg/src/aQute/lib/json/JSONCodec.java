@@ -247,8 +247,14 @@ public class JSONCodec {
 	}
 
 	Object decode(Type type, Decoder isr) throws Exception {
+		return decode(type, null, isr);
+	}
+
+	/*
+	 * Decode with the handler for the type when the caller already knows it
+	 */
+	Object decode(Type type, Handler h, Decoder isr) throws Exception {
 		int c = isr.skipWs();
-		Handler h;
 
 		if (type == null || type == Object.class) {
 
@@ -297,7 +303,8 @@ public class JSONCodec {
 			}
 		}
 
-		h = getHandler(type, null);
+		if (h == null)
+			h = getHandler(type, null);
 
 		switch (c) {
 			case '{' :
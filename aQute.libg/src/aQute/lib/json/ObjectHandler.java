@@ -11,6 +11,12 @@ public class ObjectHandler extends Handler {
 	final Object	defaults[];
 	final Field		extra;
 
+	// Per field the escaped key, the index on the name and the handler of the
+	// declared type, see getHandler(JSONCodec, int)
+	final String	keys[];
+	final Map<String,Integer>	index	= new HashMap<String,Integer>();
+	final Handler	handlers[];
+
 	ObjectHandler(JSONCodec codec, Class< ? > c) throws Exception {
 		rawClass = c;
 		
@@ -32,12 +38,19 @@ public class ObjectHandler extends Handler {
 
 		types = new Type[this.fields.length];
 		defaults = new Object[this.fields.length];
+		keys = new String[this.fields.length];
+		handlers = new Handler[this.fields.length];
 
 		Field x = null;
 		for (int i = 0; i < this.fields.length; i++) {
 			if (this.fields[i].getName().equals("__extra"))
 				x = this.fields[i];
 			types[i] = this.fields[i].getGenericType();
+
+			StringBuilder sb = new StringBuilder();
+			StringHandler.string(sb, this.fields[i].getName());
+			keys[i] = sb.append(':').toString();
+			index.put(this.fields[i].getName(), i);
 		}
 		if (x != null && Map.class.isAssignableFrom(x.getType()))
 			extra = x;
@@ -76,9 +89,12 @@ public class ObjectHandler extends Handler {
 			}
 
 			app.append(del);
-			StringHandler.string(app, fields[i].getName());
-			app.append(":");
-			app.encode(value, types[i], visited);
+			app.append(keys[i]);
+			Handler h = getHandler(app.codec, i);
+			if (h == null || value == null)
+				app.encode(value, types[i], visited);
+			else
+				h.encode(app, value, visited);
 			del = ",";
 		} catch( Exception e) {
 			throw new IllegalArgumentException(fields[i].getName() +":", e);
@@ -108,10 +124,11 @@ public class ObjectHandler extends Handler {
 
 			// Get value
 
-			Field f = getField(key);
-			if (f != null) {
+			Integer i = index.get(key);
+			if (i != null) {
 				// We have a field and thus a type
-				Object value = r.codec.decode(f.getGenericType(), r);
+				Field f = fields[i];
+				Object value = r.codec.decode(types[i], getHandler(r.codec, i), r);
 				if (value != null || !r.codec.ignorenull) {
 					if ( Modifier.isFinal(f.getModifiers()))
 						throw new IllegalArgumentException("Field " + f + " is final");
@@ -156,15 +173,24 @@ public class ObjectHandler extends Handler {
 		return targetObject;
 	}
 
-	private Field getField(String key) {
-		for (int i = 0; i < fields.length; i++) {
-			int n = key.compareTo(fields[i].getName());
-			if (n == 0)
-				return fields[i];
-			if (n < 0)
+	/*
+	 * The handler of a field only depends on its declared type, unless that
+	 * type is Object or a type variable, then it depends on the value. It is
+	 * looked up once per field. A codec with local handlers looks up the
+	 * handler every time since the handlers can differ per codec.
+	 */
+	private Handler getHandler(JSONCodec codec, int i) throws Exception {
+		if (!codec.localHandlers.isEmpty())
+			return null;
+
+		Handler h = handlers[i];
+		if (h == null) {
+			if (types[i] == Object.class || types[i] instanceof TypeVariable)
 				return null;
+
+			h = handlers[i] = codec.getHandler(types[i], null);
 		}
-		return null;
+		return h;
 	}
 
 }
@@ -15,8 +15,17 @@ public class StringHandler extends Handler {
 	static void string(Appendable app, String s) throws IOException {
 
 		app.append('"');
+		int start = 0;
 		for (int i = 0; i < s.length(); i++) {
 			char c = s.charAt(i);
+			if (c >= ' ' && c != '"' && c != '\\' && c < 0x7F)
+				continue;
+
+			// Append the characters that need no escaping at once
+			if (start < i)
+				app.append(s, start, i);
+			start = i + 1;
+
 			switch (c) {
 				case '"' :
 					app.append("\\\"");
@@ -57,6 +66,8 @@ public class StringHandler extends Handler {
 						app.append(c);
 			}
 		}
+		if (start < s.length())
+			app.append(s, start, s.length());
 		app.append('"');
 	}
 
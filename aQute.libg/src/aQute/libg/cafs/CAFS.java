@@ -3,13 +3,16 @@ package aQute.libg.cafs;
 import static aQute.lib.io.IO.*;
 
 import java.io.*;
+import java.nio.*;
 import java.nio.channels.*;
+import java.nio.file.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.atomic.*;
 import java.util.zip.*;
 
 import aQute.lib.index.*;
+import aQute.lib.io.*;
 import aQute.libg.cryptography.*;
 
 /**
@@ -21,26 +24,44 @@ import aQute.libg.cryptography.*;
  * naming scheme. An added advantage is that it is always easy to verify you get
  * the right stuff. The SHA-1 Content Addressable File Store is the core
  * underlying idea in Git.
+ * <p>
+ * Files that are needed as files, like the JARs in the caches of the
+ * repositories, are stored as a segment of their own, see
+ * {@link #store(File)}. A segment is hard linked to the read only files it is
+ * exported to, see {@link #export(SHA1, File, boolean)}, so all these files
+ * share the same disk space. A segment must therefore never be modified in
+ * place.
+ * <p>
+ * A CAFS can be used by many threads. Records are written and read with
+ * positional I/O so only the index and the allocation of the space for a new
+ * record are serialized. A store can only be opened by one CAFS at a time.
  */
 public class CAFS implements Closeable, Iterable<SHA1> {
 	final static byte[]	CAFS;
 	final static byte[]	CAFE;
 	final static String	INDEXFILE		= "index.idx";
 	final static String	STOREFILE		= "store.cafs";
+	final static String	SEGMENTDIR		= "segments";
 	final static String	ALGORITHM		= "SHA-1";
 	final static int	KEYLENGTH		= 20;
 	final static int	HEADERLENGTH	= 4 // CAFS
-												+ 4 // flags
-												+ 4 // compressed length
-												+ 4 // uncompressed length
-												+ KEYLENGTH // key
-												+ 2 // header checksum
-										;
+											+ 4 // flags
+											+ 4 // compressed length
+											+ 4 // uncompressed length
+											+ KEYLENGTH // key
+											+ 2 // header checksum
+									;
+	final static int	SEGMENT			= 1;		// flag, the content is in a segment file
+	final static long	OWNER			= 0x80;	// locked by the CAFS that has opened the store
 
 	final File			home;
+	final File			segments;
 	Index				index;
+	final Object		lock			= new Object();
+	long				length;
 	RandomAccessFile	store;
 	FileChannel			channel;
+	FileLock			owner;
 
 	static {
 		try {
@@ -51,15 +72,27 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 		}
 	}
 
+	/*
+	 * The header of a record
+	 */
+	static class Header {
+		long	position;
+		int		flags;
+		int		compressedLength;
+		int		uncompressedLength;
+		SHA1	sha1;
+	}
+
 	/**
 	 * Constructor for a Content Addressable File Store
-	 * 
+	 *
 	 * @param home
 	 * @param create
 	 * @throws Exception
 	 */
 	public CAFS(File home, boolean create) throws Exception {
 		this.home = home;
+		this.segments = new File(home, SEGMENTDIR);
 		if (!home.isDirectory()) {
 			if (create) {
 				if (home.exists()) {
@@ -72,9 +105,20 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 				throw new IllegalArgumentException("CAFS requires a directory with create=false");
 		}
 
-		index = new Index(new File(home, INDEXFILE), KEYLENGTH);
 		store = new RandomAccessFile(new File(home, STOREFILE), "rw");
 		channel = store.getChannel();
+		try {
+			owner = channel.tryLock(OWNER, 1, false);
+		}
+		catch (OverlappingFileLockException e) {
+			owner = null;
+		}
+		if (owner == null) {
+			store.close();
+			throw new IOException("CAFS is in use " + home);
+		}
+
+		index = new Index(new File(home, INDEXFILE), KEYLENGTH);
 		if (store.length() < 0x100) {
 			if (create) {
 				store.write(CAFS);
@@ -83,18 +127,18 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 				channel.force(true);
 			} else
 				throw new IllegalArgumentException("Invalid store file, length is too short " + store);
-			System.err.println(store.length());
 		}
 		store.seek(0);
 		if (!verifySignature(store, CAFS))
 			throw new IllegalArgumentException("Not a valid signature: CAFS at start of file");
 
+		length = store.length();
 	}
 
 	/**
 	 * Store an input stream in the CAFS while calculating and returning the
 	 * SHA-1 code.
-	 * 
+	 *
 	 * @param in
 	 *            The input stream to store.
 	 * @return The SHA-1 code.
@@ -109,137 +153,179 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 		ByteArrayOutputStream bout = new ByteArrayOutputStream();
 		DeflaterOutputStream dout = new DeflaterOutputStream(bout, deflater);
 		copy(din, dout);
+		dout.finish();
 
-		synchronized (store) {
-			// First check if it already exists
-			SHA1 sha1 = new SHA1(md.digest());
+		SHA1 sha1 = new SHA1(md.digest());
+		if (exists(sha1.digest()))
+			return sha1;
 
-			long search = index.search(sha1.digest());
-			if (search > 0)
-				return sha1;
-
-			byte[] compressed = bout.toByteArray();
-
-			// we need to append this file to our store,
-			// which requires a lock. However, we are in a race
-			// so others can get the lock between us getting
-			// the length and someone else getting the lock.
-			// So we must verify after we get the lock that the
-			// length was unchanged.
-			FileLock lock = null;
-			try {
-				long insertPoint;
-				int recordLength = compressed.length + HEADERLENGTH;
+		append(sha1, 0, bout.toByteArray(), deflater.getTotalIn());
+		return sha1;
+	}
 
-				while (true) {
-					insertPoint = store.length();
-					lock = channel.lock(insertPoint, recordLength, false);
+	/**
+	 * Store a file as a segment of its own. The file is hard linked into the
+	 * store when the file system supports this, otherwise it is copied. The
+	 * file must therefore not be modified in place afterwards, it can be
+	 * replaced or deleted.
+	 *
+	 * @param file
+	 *            the file to store
+	 * @return The SHA-1 code.
+	 * @throws Exception
+	 *             if anything goes wrong
+	 */
+	public SHA1 store(File file) throws Exception {
+		SHA1 sha1 = SHA1.digest(file);
+		File segment = getSegment(sha1);
+		Header header = getHeader(sha1);
+		if (header != null && ((header.flags & SEGMENT) == 0 || segment.isFile()))
+			return sha1;
+
+		long size = file.length();
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("File is too large for a segment " + file);
+
+		if (!segment.isFile()) {
+			segments.mkdirs();
+			File tmp = IO.createTempFile(segments, "tmp", ".segment");
+			link(file, tmp);
+			if (!SHA1.digest(tmp).equals(sha1)) {
+				IO.delete(tmp);
+				throw new IOException("File changed while storing it " + file);
+			}
+			IO.rename(tmp, segment);
+		}
+		if (header == null)
+			append(sha1, SEGMENT, new byte[0], (int) size);
+		return sha1;
+	}
 
-					if (store.length() == insertPoint)
-						break;
+	/**
+	 * Export the contents of a sha 1 key to a file. The file is a copy. An
+	 * existing file is replaced.
+	 *
+	 * @param sha1
+	 *            The key
+	 * @param file
+	 *            The file to export to
+	 * @return false if the key is not found
+	 * @throws Exception
+	 */
+	public boolean export(SHA1 sha1, File file) throws Exception {
+		return export(sha1, file, false);
+	}
 
-					// We got the wrong lock, someone else
-					// got in between reading the length
-					// and locking
-					lock.release();
-				}
-				int totalLength = deflater.getTotalIn();
-				store.seek(insertPoint);
-				update(sha1.digest(), compressed, totalLength);
-				index.insert(sha1.digest(), insertPoint);
-				return sha1;
-			}
-			finally {
-				if (lock != null)
-					lock.release();
+	/**
+	 * Export the contents of a sha 1 key to a file. When the file is exported
+	 * read only, a segment is verified and then hard linked when the file
+	 * system supports this, and the file is made read only. Otherwise the file
+	 * is a copy. An existing file is replaced.
+	 *
+	 * @param sha1
+	 *            The key
+	 * @param file
+	 *            The file to export to
+	 * @param readOnly
+	 *            true if the file is never written to
+	 * @return false if the key is not found
+	 * @throws Exception
+	 */
+	public boolean export(SHA1 sha1, File file, boolean readOnly) throws Exception {
+		Header header = getHeader(sha1);
+		if (header == null)
+			return false;
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File tmp = IO.createTempFile(dir, "tmp", ".cafs");
+		try {
+			File segment = getSegment(sha1);
+			if (readOnly && (header.flags & SEGMENT) != 0 && segment.length() == header.uncompressedLength
+					&& SHA1.digest(segment).equals(sha1)) {
+				link(segment, tmp);
+			} else {
+				InputStream in = read(header);
+				if (in == null)
+					return false;
+				copy(in, tmp);
 			}
+			if (readOnly)
+				tmp.setReadOnly();
+			IO.rename(tmp, file);
+			return true;
+		}
+		finally {
+			IO.delete(tmp);
 		}
 	}
 
 	/**
 	 * Read the contents of a sha 1 key.
-	 * 
+	 *
 	 * @param sha1
 	 *            The key
 	 * @return An Input Stream on the content or null of key not found
 	 * @throws Exception
 	 */
 	public InputStream read(final SHA1 sha1) throws Exception {
-		synchronized (store) {
-			long offset = index.search(sha1.digest());
-			if (offset < 0)
-				return null;
+		Header header = getHeader(sha1);
+		if (header == null)
+			return null;
 
-			byte[] readSha1;
-			byte[] buffer;
-			store.seek(offset);
-			if (!verifySignature(store, CAFE))
-				throw new IllegalArgumentException("No signature");
-
-			int flags = store.readInt();
-			int compressedLength = store.readInt();
-			int uncompressedLength = store.readInt();
-			readSha1 = new byte[KEYLENGTH];
-			store.read(readSha1);
-			SHA1 rsha1 = new SHA1(readSha1);
-
-			if (!sha1.equals(rsha1))
-				throw new IOException("SHA1 read and asked mismatch: " + sha1 + " " + rsha1);
-
-			short crc = store.readShort(); // Read CRC
-			if (crc != checksum(flags, compressedLength, uncompressedLength, readSha1))
-				throw new IllegalArgumentException("Invalid header checksum: " + sha1);
-
-			buffer = new byte[compressedLength];
-			store.readFully(buffer);
-			return getSha1Stream(sha1, buffer, uncompressedLength);
-		}
+		return read(header);
 	}
 
 	public boolean exists(byte[] sha1) throws Exception {
-		return index.search(sha1) >= 0;
+		synchronized (lock) {
+			return index.search(sha1) > 0;
+		}
 	}
 
 	public void reindex() throws Exception {
 		long length;
-		synchronized (store) {
-			length = store.length();
+		synchronized (lock) {
+			length = this.length;
 			if (length < 0x100)
 				throw new IllegalArgumentException("Store file is too small, need to be at least 256 bytes: " + store);
 		}
 
-		RandomAccessFile in = new RandomAccessFile(new File(home, STOREFILE), "r");
-		try {
-			byte[] signature = new byte[4];
-			in.readFully(signature);
-			if (!Arrays.equals(CAFS, signature))
-				throw new IllegalArgumentException("Store file does not start with CAFS: " + in);
-
-			in.seek(0x100);
-			File ixf = new File(home, "index.new");
-			Index index = new Index(ixf, KEYLENGTH);
-
-			while (in.getFilePointer() < length) {
-				long entry = in.getFilePointer();
-				SHA1 sha1 = verifyEntry(in);
-				index.insert(sha1.digest(), entry);
-			}
+		byte[] signature = new byte[4];
+		readFully(ByteBuffer.wrap(signature), 0);
+		if (!Arrays.equals(CAFS, signature))
+			throw new IllegalArgumentException("Store file does not start with CAFS: " + store);
+
+		File ixf = new File(home, "index.new");
+		IO.delete(ixf);
+		Index index = new Index(ixf, KEYLENGTH);
+
+		long position = 0x100;
+		while (position < length) {
+			Header header = verifyEntry(position);
+			index.insert(header.sha1.digest(), position);
+			position += HEADERLENGTH + header.compressedLength;
+		}
 
-			synchronized (store) {
-				index.close();
-				File indexFile = new File(home, INDEXFILE);
-				ixf.renameTo(indexFile);
-				this.index = new Index(indexFile, KEYLENGTH);
+		synchronized (lock) {
+			index.close();
+			this.index.close();
+			File indexFile = new File(home, INDEXFILE);
+			IO.rename(ixf, indexFile);
+			this.index = new Index(indexFile, KEYLENGTH);
+
+			// records written during the reindex
+			while (position < this.length) {
+				Header header = readHeader(position);
+				this.index.insert(header.sha1.digest(), position);
+				position += HEADERLENGTH + header.compressedLength;
 			}
 		}
-		finally {
-			in.close();
-		}
 	}
 
 	public void close() throws IOException {
-		synchronized (store) {
+		synchronized (lock) {
 			try {
+				owner.release();
 				store.close();
 			}
 			finally {
@@ -248,26 +334,123 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 		}
 	}
 
-	private SHA1 verifyEntry(RandomAccessFile in) throws IOException, NoSuchAlgorithmException {
+	/*
+	 * Allocate the space for a record and write it. The record is added to
+	 * the index after it is written so it is never read before it is
+	 * complete.
+	 */
+	private void append(SHA1 sha1, int flags, byte[] compressed, int totalLength) throws Exception {
+		int recordLength = HEADERLENGTH + compressed.length;
+		long insertPoint;
+		synchronized (lock) {
+			insertPoint = length;
+			length += recordLength;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(recordLength);
+		record.put(CAFE); // 00-03 Signature
+		record.putInt(flags); // 04-07 Flags
+		record.putInt(compressed.length); // 08-11 Length deflated data
+		record.putInt(totalLength); // 12-15 Length
+		record.put(sha1.digest()); // 16-35
+		record.putShort(checksum(flags, compressed.length, totalLength, sha1.digest()));
+		record.put(compressed);
+		record.flip();
+		while (record.hasRemaining())
+			channel.write(record, insertPoint + record.position());
+		channel.force(false);
+
+		synchronized (lock) {
+			if (index.search(sha1.digest()) <= 0)
+				index.insert(sha1.digest(), insertPoint);
+		}
+	}
+
+	private Header getHeader(SHA1 sha1) throws Exception {
+		long offset;
+		synchronized (lock) {
+			offset = index.search(sha1.digest());
+		}
+		if (offset <= 0)
+			return null;
+
+		Header header = readHeader(offset);
+		if (!sha1.equals(header.sha1))
+			throw new IOException("SHA1 read and asked mismatch: " + sha1 + " " + header.sha1);
+		return header;
+	}
+
+	private Header readHeader(long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADERLENGTH);
+		readFully(buffer, position);
+		buffer.flip();
+
 		byte[] signature = new byte[4];
-		in.readFully(signature);
+		buffer.get(signature);
 		if (!Arrays.equals(CAFE, signature))
-			throw new IllegalArgumentException("File is corrupted: " + in);
+			throw new IllegalArgumentException("No signature");
 
-		/* int flags = */in.readInt();
-		int compressedSize = in.readInt();
-		int uncompressedSize = in.readInt();
+		Header header = new Header();
+		header.position = position;
+		header.flags = buffer.getInt();
+		header.compressedLength = buffer.getInt();
+		header.uncompressedLength = buffer.getInt();
 		byte[] key = new byte[KEYLENGTH];
-		in.readFully(key);
-		SHA1 sha1 = new SHA1(key);
+		buffer.get(key);
+		header.sha1 = new SHA1(key);
+		short crc = buffer.getShort();
+		if (crc != checksum(header.flags, header.compressedLength, header.uncompressedLength, key))
+			throw new IllegalArgumentException("Invalid header checksum: " + header.sha1);
+		return header;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Unexpected end of store " + store);
+		}
+	}
+
+	private File getSegment(SHA1 sha1) {
+		return new File(segments, sha1.asHex());
+	}
 
-		byte[] buffer = new byte[compressedSize];
-		in.readFully(buffer);
+	/*
+	 * Hard link a file, or copy it when the file system cannot link
+	 */
+	private static void link(File from, File to) throws IOException {
+		IO.delete(to);
+		try {
+			Files.createLink(to.toPath(), from.toPath());
+		}
+		catch (Exception e) {
+			copy(from, to);
+		}
+	}
 
-		InputStream xin = getSha1Stream(sha1, buffer, uncompressedSize);
-		xin.skip(uncompressedSize);
+	private Header verifyEntry(long position) throws Exception {
+		Header header = readHeader(position);
+		InputStream xin = read(header);
+		if (xin == null)
+			throw new IllegalArgumentException("Segment is missing: " + header.sha1);
+		byte[] buffer = new byte[8192];
+		while (xin.read(buffer) >= 0)
+			continue;
 		xin.close();
-		return sha1;
+		return header;
+	}
+
+	private InputStream read(Header header) throws Exception {
+		if ((header.flags & SEGMENT) != 0) {
+			File segment = getSegment(header.sha1);
+			if (!segment.isFile())
+				return null;
+			return getSha1Stream(header.sha1, new FileInputStream(segment), header.uncompressedLength);
+		}
+		byte[] buffer = new byte[header.compressedLength];
+		readFully(ByteBuffer.wrap(buffer), header.position + HEADERLENGTH);
+		return getSha1Stream(header.sha1, new InflaterInputStream(new ByteArrayInputStream(buffer)),
+				header.uncompressedLength);
 	}
 
 	private boolean verifySignature(DataInput din, byte[] org) throws IOException {
@@ -276,9 +459,9 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 		return Arrays.equals(read, org);
 	}
 
-	private InputStream getSha1Stream(final SHA1 sha1, byte[] buffer, final int total) throws NoSuchAlgorithmException {
-		ByteArrayInputStream in = new ByteArrayInputStream(buffer);
-		InflaterInputStream iin = new InflaterInputStream(in) {
+	private InputStream getSha1Stream(final SHA1 sha1, InputStream in, final int total)
+			throws NoSuchAlgorithmException {
+		return new FilterInputStream(in) {
 			int					count		= 0;
 			final MessageDigest	digestx		= MessageDigest.getInstance(ALGORITHM);
 			final AtomicBoolean	calculated	= new AtomicBoolean();
@@ -307,6 +490,19 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 				return c;
 			}
 
+			@Override
+			public long skip(long n) throws IOException {
+				byte[] buffer = new byte[8192];
+				long skipped = 0;
+				while (skipped < n) {
+					int size = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+					if (size < 0)
+						break;
+					skipped += size;
+				}
+				return skipped;
+			}
+
 			void eof() throws IOException {
 				if (calculated.getAndSet(true))
 					return;
@@ -323,36 +519,15 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 
 			@Override
 			public void close() throws IOException {
-				eof();
-				super.close();
+				try {
+					if (count == total)
+						eof();
+				}
+				finally {
+					super.close();
+				}
 			}
 		};
-		return iin;
-	}
-
-	/**
-	 * Update a record in the store, assuming the store is at the right
-	 * position.
-	 * 
-	 * @param sha1
-	 *            The checksum
-	 * @param compressed
-	 *            The compressed length
-	 * @param totalLength
-	 *            The uncompressed length
-	 * @throws IOException
-	 *             The exception
-	 */
-	private void update(byte[] sha1, byte[] compressed, int totalLength) throws IOException {
-		// System.err.println("pos: " + store.getFilePointer());
-		store.write(CAFE); // 00-03 Signature
-		store.writeInt(0); // 04-07 Flags for the future
-		store.writeInt(compressed.length); // 08-11 Length deflated data
-		store.writeInt(totalLength); // 12-15 Length
-		store.write(sha1); // 16-35
-		store.writeShort(checksum(0, compressed.length, totalLength, sha1));
-		store.write(compressed);
-		channel.force(false);
 	}
 
 	short checksum(int flags, int compressedLength, int totalLength, byte[] sha1) {
@@ -379,40 +554,19 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 			long	position	= 0x100;
 
 			public boolean hasNext() {
-				synchronized (store) {
-					try {
-						return position < store.length();
-					}
-					catch (IOException e) {
-						throw new RuntimeException(e);
-					}
+				synchronized (lock) {
+					return position < length;
 				}
 			}
 
 			public SHA1 next() {
-				synchronized (store) {
-					try {
-						store.seek(position);
-						byte[] signature = new byte[4];
-						store.readFully(signature);
-						if (!Arrays.equals(CAFE, signature))
-							throw new IllegalArgumentException("No signature");
-
-						int flags = store.readInt();
-						int compressedLength = store.readInt();
-						int totalLength = store.readInt();
-						byte[] sha1 = new byte[KEYLENGTH];
-						store.readFully(sha1);
-						short crc = store.readShort();
-						if (crc != checksum(flags, compressedLength, totalLength, sha1))
-							throw new IllegalArgumentException("Header checksum fails");
-
-						position += HEADERLENGTH + compressedLength;
-						return new SHA1(sha1);
-					}
-					catch (IOException e) {
-						throw new RuntimeException(e);
-					}
+				try {
+					Header header = readHeader(position);
+					position += HEADERLENGTH + header.compressedLength;
+					return header.sha1;
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
 				}
 			}
 
@@ -423,8 +577,8 @@ public class CAFS implements Closeable, Iterable<SHA1> {
 	}
 
 	public boolean isEmpty() throws IOException {
-		synchronized (store) {
-			return store.getFilePointer() <= 256;
+		synchronized (lock) {
+			return length <= 0x100;
 		}
 	}
 }
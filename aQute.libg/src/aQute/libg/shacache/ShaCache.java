@@ -92,6 +92,7 @@ public class ShaCache {
 						tmp.renameTo(f);
 						break;
 					}
+					IO.delete(tmp);
 				}
 				catch (Exception e) {
 					e.printStackTrace();
@@ -146,6 +147,7 @@ public class ShaCache {
 						tmp.renameTo(f);
 						break;
 					}
+					IO.delete(tmp);
 				}
 			}
 			catch (Exception e) {
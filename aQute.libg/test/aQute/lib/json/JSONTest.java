@@ -295,6 +295,46 @@ public class JSONTest extends TestCase {
 		assertEquals("\"Hello\"", new String(bout.toByteArray()));
 	}
 
+	public static class Entry {
+		public String		name;
+		public List<String>	tags	= new ArrayList<String>();
+		public long			size;
+	}
+
+	/**
+	 * Encode and decode through streams, with values that span the buffers of
+	 * the encoder and decoder. The decoder must not read ahead from a reader
+	 * that it does not own.
+	 */
+	public void testBufferedStreams() throws Exception {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int i = 0; i < 1000; i++) {
+			Entry e = new Entry();
+			e.name = "entry \"" + i + "\"\t\u00e9\u4e2d\u0001\\";
+			e.tags.add("t" + i);
+			e.size = i * 1000000000L;
+			entries.add(e);
+		}
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		codec.enc().to(bout).put(entries);
+		assertEquals(codec.enc().put(entries).toString(), new String(bout.toByteArray(), "UTF-8"));
+
+		List<Entry> read = codec.dec().from(new ByteArrayInputStream(bout.toByteArray())).get(
+				new TypeReference<List<Entry>>() {});
+		assertEquals(entries.size(), read.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEquals(entries.get(i).name, read.get(i).name);
+			assertEquals(entries.get(i).tags, read.get(i).tags);
+			assertEquals(entries.get(i).size, read.get(i).size);
+		}
+
+		StringReader reader = new StringReader("1 2 3");
+		Decoder dec = codec.dec().keepOpen().from(reader);
+		assertEquals(Integer.valueOf(1), dec.get(Integer.class));
+		assertEquals('2', reader.read());
+		assertEquals(' ', reader.read());
+	}
+
 	/**
 	 * Test maps
 	 * 
@@ -1,73 +1,171 @@
 package aQute.libg.cafs;
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import junit.framework.*;
+import aQute.lib.io.*;
+import aQute.libg.cryptography.*;
 
 public class TestCAFS extends TestCase {
 	File	tmp;
 
 	@Override
 	public void setUp() throws Exception {
-		tmp = new File(System.getProperty("java.io.tmpdir"));
-		assertTrue(tmp.isDirectory());
+		tmp = IO.getFile("tmp/" + getName());
+		IO.delete(tmp);
+		tmp.mkdirs();
 	}
 
-	public void testX() {}
-
-	// public void testSimple() throws Exception {
-	// File dir = new File(tmp, getClass().getName() +
-	// System.currentTimeMillis());
-	// CAFS cafs = new CAFS(dir, true);
-	// MessageDigest digester = MessageDigest.getInstance("SHA-1");
-	//
-	// DigestInputStream dis = new
-	// DigestInputStream(getClass().getResourceAsStream(
-	// "file1.txt"), digester);
-	// SHA1 sha1 = cafs.write(dis);
-	//
-	// assertEquals(new SHA1(digester.digest()), sha1);
-	//
-	// digester.reset();
-	// dis = new
-	// DigestInputStream(getClass().getResourceAsStream("file1-1.txt"),
-	// digester);
-	//
-	// SHA1 sha1_1 = cafs.write(dis);
-	// assertEquals(sha1, sha1_1);
-	// assertEquals( new SHA1(digester.digest()), sha1_1);
-	//
-	// SHA1 sha2 = cafs.write(getClass().getResourceAsStream("file2.txt"));
-	//
-	// assertFalse( sha1.equals(sha2));
-	//
-	// int n = 0;
-	// for (SHA1 key : cafs) {
-	// assertTrue(sha1.equals(key) || sha2.equals(key));
-	// System.err.println(n++ + ": " + key);
-	// InputStream in = cafs.read(key);
-	// assertNotNull(in);
-	// String s = IO.collect(in, "UTF-8");
-	// byte[] b = s.getBytes("UTF-8");
-	// MessageDigest md = MessageDigest.getInstance("SHA1");
-	// md.update(b);
-	// assertEquals(key, new SHA1(md.digest()));
-	// }
-	//
-	// // Close out db and reopen it again.
-	// cafs.close();
-	// cafs = new CAFS(dir, false);
-	//
-	// for (SHA1 key : cafs) {
-	// assertTrue(sha1.equals(key) || sha2.equals(key));
-	// }
-	//
-	// InputStream in = cafs.read(sha2);
-	// assertNotNull(in);
-	// SHA1 rsha2 = SHA1.getDigester().from(in);
-	//
-	// assertEquals(sha2, rsha2);
-	//
-	// cafs.close();
-	// }
+	@Override
+	public void tearDown() throws Exception {
+		IO.delete(tmp);
+	}
+
+	static byte[] data(int i) throws Exception {
+		return ("content " + i + " " + Collections.nCopies(i % 100, "x")).getBytes("UTF-8");
+	}
+
+	public void testSimple() throws Exception {
+		File dir = new File(tmp, "cafs");
+		CAFS cafs = new CAFS(dir, true);
+		assertTrue(cafs.isEmpty());
+
+		SHA1 sha1 = cafs.write(new ByteArrayInputStream(data(1)));
+		assertEquals(SHA1.digest(data(1)), sha1);
+		assertEquals(sha1, cafs.write(new ByteArrayInputStream(data(1))));
+		SHA1 sha2 = cafs.write(new ByteArrayInputStream(data(2)));
+		assertFalse(sha1.equals(sha2));
+		assertFalse(cafs.isEmpty());
+
+		List<SHA1> keys = new ArrayList<SHA1>();
+		for (SHA1 key : cafs)
+			keys.add(key);
+		assertEquals(Arrays.asList(sha1, sha2), keys);
+		assertTrue(Arrays.equals(data(2), IO.read(cafs.read(sha2))));
+		assertNull(cafs.read(SHA1.digest(data(3))));
+
+		try {
+			new CAFS(dir, false);
+			fail("a store can only be opened once");
+		}
+		catch (IOException e) {
+			// expected
+		}
+
+		// Close out db and reopen it again.
+		cafs.close();
+		cafs = new CAFS(dir, false);
+		assertTrue(Arrays.equals(data(1), IO.read(cafs.read(sha1))));
+		assertTrue(cafs.exists(sha2.digest()));
+
+		cafs.reindex();
+		assertTrue(Arrays.equals(data(2), IO.read(cafs.read(sha2))));
+		cafs.close();
+	}
+
+	/**
+	 * A stored file is a segment that is shared with the read only files it is
+	 * exported to
+	 */
+	public void testSegments() throws Exception {
+		CAFS cafs = new CAFS(new File(tmp, "cafs"), true);
+		try {
+			File a = new File(tmp, "a/file.jar");
+			a.getParentFile().mkdirs();
+			IO.copy(data(10), a);
+			SHA1 sha1 = cafs.store(a);
+			assertEquals(SHA1.digest(data(10)), sha1);
+			assertTrue(Arrays.equals(data(10), IO.read(cafs.read(sha1))));
+
+			File b = new File(tmp, "b/file.jar");
+			assertTrue(cafs.export(sha1, b, true));
+			assertTrue(Arrays.equals(data(10), IO.read(b)));
+			assertTrue(Files.isSameFile(a.toPath(), b.toPath()));
+
+			// deleting the original file does not remove the content, a
+			// writable file is a copy
+			IO.delete(a);
+			assertTrue(cafs.export(sha1, a));
+			assertTrue(Arrays.equals(data(10), IO.read(a)));
+			assertFalse(Files.isSameFile(a.toPath(), b.toPath()));
+
+			// a compressed record is inflated
+			SHA1 sha2 = cafs.write(new ByteArrayInputStream(data(11)));
+			File c = new File(tmp, "c/file.jar");
+			assertTrue(cafs.export(sha2, c));
+			assertTrue(Arrays.equals(data(11), IO.read(c)));
+
+			assertFalse(cafs.export(SHA1.digest(data(12)), new File(tmp, "d/file.jar")));
+			assertFalse(new File(tmp, "d/file.jar").exists());
+
+			// a missing segment is stored again
+			IO.delete(new File(tmp, "cafs/segments"));
+			assertNull(cafs.read(sha1));
+			assertEquals(sha1, cafs.store(b));
+			assertTrue(Arrays.equals(data(10), IO.read(cafs.read(sha1))));
+
+			cafs.reindex();
+			assertTrue(Arrays.equals(data(10), IO.read(cafs.read(sha1))));
+
+			// a segment that was modified in place is not exported
+			File segment = new File(tmp, "cafs/segments/" + sha1.asHex());
+			segment.setWritable(true);
+			byte[] modified = data(10);
+			modified[0] = 'C';
+			IO.copy(modified, segment);
+			File e = new File(tmp, "e/file.jar");
+			try {
+				cafs.export(sha1, e, true);
+				fail("modified segment exported");
+			}
+			catch (IOException ioe) {
+				// expected
+			}
+			assertFalse(e.exists());
+		}
+		finally {
+			cafs.close();
+		}
+	}
+
+	/**
+	 * Many threads can write and read at the same time
+	 */
+	public void testConcurrent() throws Exception {
+		final CAFS cafs = new CAFS(new File(tmp, "cafs"), true);
+		try {
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						for (int i = 0; i < 200; i++) {
+							// every content is written by two threads
+							byte[] data = data((thread / 2) * 1000 + i);
+							SHA1 sha1 = cafs.write(new ByteArrayInputStream(data));
+							assertTrue(Arrays.equals(data, IO.read(cafs.read(sha1))));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : futures)
+				f.get();
+			executor.shutdown();
+
+			for (int t = 0; t < 4; t++) {
+				for (int i = 0; i < 200; i++) {
+					byte[] data = data(t * 1000 + i);
+					assertTrue(Arrays.equals(data, IO.read(cafs.read(SHA1.digest(data)))));
+				}
+			}
+		}
+		finally {
+			cafs.close();
+		}
+	}
 }
@@ -760,10 +760,35 @@ public class bnd extends Processor {
 
 		@Description("Do full")
 		boolean full();
+
+		@Description("Build the project and the projects it depends on, or all projects in the workspace, with the given number of projects built in parallel")
+		int parallel();
 	}
 
 	@Description("Build a project. This will create the jars defined in the bnd.bnd and sub-builders.")
 	public void _build(final buildoptions opts) throws Exception {
+		if (opts.parallel() > 0) {
+			Collection<Project> list;
+			Project project = getProject(opts.project());
+			if (project == null) {
+				Workspace ws = Workspace.findWorkspace(getBase());
+				if (ws == null || !ws.isValid()) {
+					messages.NoValidWorkspace(getBase());
+					return;
+				}
+				list = ws.getBuildOrder();
+			} else
+				list = Arrays.asList(project);
+
+			BuildScheduler scheduler = new BuildScheduler(opts.parallel());
+			scheduler.setTest(opts.test());
+			scheduler.build(list);
+
+			// Report in build order, independent of the order of completion
+			for (Project p : BuildScheduler.getBuildOrder(list))
+				getInfo(p, p + ": ");
+			return;
+		}
 
 		perProject(opts, new PerProject() {
 			public void doit(Project p) throws Exception {
@@ -24,6 +24,117 @@ class T3 extends T2 {}
 public class AnalyzerTest extends BndTestCase {
 	static File	cwd	= new File(System.getProperty("user.dir"));
 
+	/**
+	 * Parsing the classes concurrently must result in the same manifest as
+	 * parsing them on a single thread
+	 */
+
+	public void testParallelAnalysis() throws Exception {
+		Manifest serial = analyzeWithThreads("false");
+		Manifest parallel = analyzeWithThreads("8");
+		assertEquals(serial.getMainAttributes(), parallel.getMainAttributes());
+		assertEquals(serial.getEntries(), parallel.getEntries());
+	}
+
+	private Manifest analyzeWithThreads(String threads) throws Exception {
+		Builder b = new Builder();
+		try {
+			b.setProperty(Constants.PARALLELANALYSIS, threads);
+			b.setProperty(Constants.REMOVEHEADERS, Constants.BND_LASTMODIFIED);
+			b.addClasspath(IO.getFile("jar/spring.jar"));
+			b.addClasspath(IO.getFile("jar/osgi.jar"));
+			b.setExportPackage("org.springframework.*");
+			b.build();
+			assertTrue(b.check());
+			return b.getJar().getManifest();
+		}
+		finally {
+			b.close();
+		}
+	}
+
+	/**
+	 * A class analysis cache must result in the same manifest, also when the
+	 * classes are restored from the cache
+	 */
+
+	public void testClassAnalysisCache() throws Exception {
+		File dir = IO.getFile("tmptest-classcache");
+		IO.delete(dir);
+		try {
+			Manifest parsed = analyzeWithCache(null);
+			Manifest cold = analyzeWithCache(new ClassAnalysisCache(dir));
+			assertTrue(dir.list().length > 0);
+			Manifest warm = analyzeWithCache(new ClassAnalysisCache(dir));
+			assertEquals(parsed.getMainAttributes(), cold.getMainAttributes());
+			assertEquals(parsed.getMainAttributes(), warm.getMainAttributes());
+			assertEquals(parsed.getEntries(), warm.getEntries());
+		}
+		finally {
+			IO.delete(dir);
+		}
+	}
+
+	/**
+	 * A full class analysis cache deletes the files that were not used for
+	 * the longest time, a used file is touched
+	 */
+
+	public void testClassAnalysisCachePrune() throws Exception {
+		File dir = IO.getFile("tmptest-classcache");
+		IO.delete(dir);
+		try {
+			analyzeWithCache(new ClassAnalysisCache(dir));
+			List<File> files = cacheFiles(dir);
+			int max = files.size() / 2;
+			assertTrue(max > 10);
+
+			long old = System.currentTimeMillis() - 10 * 24 * 60 * 60 * 1000L;
+			for (File file : files)
+				file.setLastModified(old);
+
+			ClassAnalysisCache cache = new ClassAnalysisCache(dir, max);
+			analyzeWithCache(cache);
+			for (File file : files)
+				assertTrue(file.lastModified() > old);
+
+			File unused = files.get(0);
+			unused.setLastModified(old);
+			cache.prune();
+			List<File> pruned = cacheFiles(dir);
+			assertEquals(max * 3 / 4, pruned.size());
+			assertFalse(unused.exists());
+		}
+		finally {
+			IO.delete(dir);
+		}
+	}
+
+	private static List<File> cacheFiles(File dir) {
+		List<File> files = new ArrayList<File>();
+		for (File subdir : dir.listFiles())
+			files.addAll(Arrays.asList(subdir.listFiles()));
+		return files;
+	}
+
+	private Manifest analyzeWithCache(ClassAnalysisCache cache) throws Exception {
+		Builder b = new Builder();
+		try {
+			if (cache != null)
+				b.addBasicPlugin(cache);
+			b.setProperty(Constants.REMOVEHEADERS, Constants.BND_LASTMODIFIED);
+			b.addClasspath(IO.getFile("jar/spring.jar"));
+			b.addClasspath(IO.getFile("jar/osgi.jar"));
+			b.setExportPackage("org.springframework.*");
+			b.build();
+			assertTrue(b.check());
+			return b.getJar().getManifest();
+		}
+		finally {
+			b.close();
+		}
+	}
+
 	/**
 	 * #525 Test if exceptions are imported
 	 */
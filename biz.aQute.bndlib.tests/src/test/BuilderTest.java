@@ -1881,6 +1881,51 @@ public class BuilderTest extends BndTestCase {
 		}
 	}
 
+	/**
+	 * Sub bundles built on several threads give the same jars and messages,
+	 * in the same order, as when they are built one after the other.
+	 */
+	public static void testParallelSub() throws Exception {
+		File tmp = IO.getFile("tmp-parallelsub");
+		IO.delete(tmp);
+		tmp.mkdirs();
+		try {
+			for (int i = 0; i < 8; i++) {
+				String packages = i % 2 == 0 ? "org.objectweb.asm.signature" : "org.objectweb.asm";
+				String extra = i == 5 ? "Private-Package: does.not.exist\n" : "";
+				IO.store("Export-Package: " + packages + "\n" + extra, new File(tmp, "sub" + i + ".bnd"));
+			}
+
+			List<String> sequential = buildSubs(tmp, "false");
+			List<String> parallel = buildSubs(tmp, "4");
+			assertEquals(sequential, parallel);
+			assertEquals(8 + 1, parallel.size());
+			assertTrue(parallel.get(8).contains("sub5: Unused Private-Package instructions"));
+		}
+		finally {
+			IO.delete(tmp);
+		}
+	}
+
+	static List<String> buildSubs(File base, String threads) throws Exception {
+		Builder b = new Builder();
+		try {
+			b.setBase(base);
+			b.setProperty(Constants.SUB, "*.bnd");
+			b.setProperty(Constants.PARALLELSUB, threads);
+			b.addClasspath(IO.getFile("jar/asm.jar"));
+			List<String> result = new ArrayList<String>();
+			for (Jar jar : b.builds()) {
+				result.add(jar.getName() + " " + jar.getBsn() + " " + new TreeSet<String>(jar.getResources().keySet()));
+			}
+			result.add(b.getErrors() + " " + b.getWarnings());
+			return result;
+		}
+		finally {
+			b.close();
+		}
+	}
+
 	/**
 	 * Export a package that was loaded with resources
 	 * 
@@ -77,6 +77,241 @@ public class ClazzTest extends TestCase {
 	}
 	
 
+	/**
+	 * Check that constants are read correctly from the constant pool, also
+	 * strings that need more than one byte per character in modified UTF-8.
+	 */
+
+	public static class Constants {
+		public static final String	STRING	= "h\u00e9llo \u20ac\u0000 \u00ff";
+		public static final long	LONG	= 0x123456789ABCDEFL;
+		public static final double	DOUBLE	= 3.14159;
+		public static final float	FLOAT	= 2.5f;
+		public static final int		INT		= -42;
+	}
+
+	public void testConstants() throws Exception {
+		Analyzer a = new Analyzer();
+		Clazz c = new Clazz(a, "", null);
+		final Map<String,Object> constants = new HashMap<String,Object>();
+		c.parseClassFile(new FileInputStream("bin/test/ClazzTest$Constants.class"), new ClassDataCollector() {
+			String	name;
+
+			@Override
+			public void field(Clazz.FieldDef defined) {
+				name = defined.getName();
+			}
+
+			@Override
+			public void constant(Object o) {
+				constants.put(name, o);
+			}
+		});
+		assertEquals(Constants.STRING, constants.get("STRING"));
+		assertEquals(Constants.LONG, constants.get("LONG"));
+		assertEquals(Constants.DOUBLE, constants.get("DOUBLE"));
+		assertEquals(Constants.FLOAT, constants.get("FLOAT"));
+		assertEquals(Constants.INT, constants.get("INT"));
+	}
+
+	/**
+	 * Parsing a class again with another collector replays the recorded events
+	 * of the first parse instead of reading the class file again.
+	 */
+
+	@Deprecated
+	public static class Annotated implements Serializable {
+		private static final long	serialVersionUID	= 1L;
+		public static final int		INT					= 42;
+
+		@Deprecated
+		public String foo(Object o) {
+			return String.valueOf(o);
+		}
+	}
+
+	static class EventLog extends ClassDataCollector {
+		final List<String>	events	= new ArrayList<String>();
+		final boolean		start;
+
+		EventLog(boolean start) {
+			this.start = start;
+		}
+
+		@Override
+		public void version(int minor, int major) {
+			events.add("version " + minor + " " + major);
+		}
+
+		@Override
+		public boolean classStart(Clazz c) {
+			events.add("classStart " + c.getClassName());
+			return start;
+		}
+
+		@Override
+		public void implementsInterfaces(Descriptors.TypeRef[] interfaces) {
+			events.add("implements " + Arrays.toString(interfaces));
+		}
+
+		@Override
+		public void annotation(Annotation annotation) {
+			events.add("annotation " + annotation);
+			annotation.put("added", true);
+		}
+
+		@Override
+		public void method(Clazz.MethodDef defined) {
+			events.add("method " + defined.getName());
+		}
+
+		@Override
+		public void field(Clazz.FieldDef defined) {
+			events.add("field " + defined.getName());
+		}
+
+		@Override
+		public void constant(Object o) {
+			events.add("constant " + o);
+		}
+
+		@Override
+		public void referTo(Descriptors.TypeRef typeRef, int modifiers) {
+			events.add("referTo " + typeRef);
+		}
+
+		@Override
+		public void classEnd() {
+			events.add("classEnd");
+		}
+	}
+
+	public void testReplay() throws Exception {
+		Analyzer a = new Analyzer();
+		final int[] opened = new int[1];
+		Resource r = new FileResource(new File("bin/test/ClazzTest$Annotated.class")) {
+			@Override
+			public InputStream openInputStream() throws FileNotFoundException {
+				opened[0]++;
+				return super.openInputStream();
+			}
+		};
+
+		EventLog direct = new EventLog(true);
+		new Clazz(a, "", null).parseClassFile(r.openInputStream(), direct);
+		assertEquals(1, opened[0]);
+		assertTrue(direct.events.contains("annotation java.lang.Deprecated:TYPE:RUNTIME:{}"));
+		assertTrue(direct.events.contains("constant 42"));
+
+		Clazz c = new Clazz(a, "", r);
+		EventLog first = new EventLog(true);
+		EventLog second = new EventLog(true);
+		Set<Descriptors.TypeRef> xref = c.parseClassFileWithCollector(first);
+		assertEquals(xref, c.parseClassFileWithCollector(second));
+		assertEquals(2, opened[0]);
+		assertEquals(direct.events, first.events);
+		assertEquals(direct.events, second.events);
+
+		EventLog stopped = new EventLog(false);
+		assertNull(c.parseClassFileWithCollector(stopped));
+		List<String> started = new ArrayList<String>(direct.events.subList(0,
+				direct.events.indexOf("classStart " + c.getClassName()) + 1));
+		started.add("classEnd");
+		assertEquals(started, stopped.events);
+		assertEquals(2, opened[0]);
+	}
+
+	/**
+	 * The parser sets the signature and constant of a member after it reported
+	 * the member, a replay must show the collector the same member values at
+	 * each event as a parse does.
+	 */
+
+	public static class Generic<T extends Comparable<T>> {
+		public static final String	NAME	= "generic";
+		public List<T>				list;
+
+		public <X extends T> Map<String,X> map(Collection< ? super X> c) {
+			return null;
+		}
+	}
+
+	public static @interface Defaults {
+		String value() default "default";
+
+		Class< ? extends Number> type() default Integer.class;
+	}
+
+	static class MemberLog extends ClassDataCollector {
+		final List<String>			events	= new ArrayList<String>();
+		final List<Clazz.FieldDef>	members	= new ArrayList<Clazz.FieldDef>();
+		Clazz.FieldDef				last;
+
+		void member(String event, Clazz.FieldDef def) {
+			events.add(event + " " + def.getName() + " " + def.getSignature() + " " + def.getConstant() + " "
+					+ def.isDeprecated());
+			// a collector may change a member, other collectors must not see it
+			def.setDeprecated(true);
+		}
+
+		@Override
+		public void method(Clazz.MethodDef defined) {
+			members.add(last = defined);
+			member("method", defined);
+		}
+
+		@Override
+		public void field(Clazz.FieldDef defined) {
+			members.add(last = defined);
+			member("field", defined);
+		}
+
+		@Override
+		public void signature(String signature) {
+			events.add("signature " + signature + " " + (last == null ? null : last.getSignature()));
+		}
+
+		@Override
+		public void constant(Object o) {
+			member("constant", last);
+		}
+
+		@Override
+		public void annotationDefault(Clazz.MethodDef defined) {
+			member("default", defined);
+		}
+
+		@Override
+		public void memberEnd() {
+			last = null;
+		}
+
+		@Override
+		public void classEnd() {
+			for (Clazz.FieldDef def : members)
+				events.add("end " + def.getName() + " " + def.getSignature() + " " + def.getConstant());
+		}
+	}
+
+	public void testReplayMembers() throws Exception {
+		Analyzer a = new Analyzer();
+		for (String name : new String[] {
+				"bin/test/ClazzTest$Generic.class", "bin/test/ClazzTest$Defaults.class"
+		}) {
+			Resource r = new FileResource(new File(name));
+			MemberLog direct = new MemberLog();
+			new Clazz(a, "", null).parseClassFile(r.openInputStream(), direct);
+
+			Clazz c = new Clazz(a, "", r);
+			MemberLog first = new MemberLog();
+			MemberLog second = new MemberLog();
+			c.parseClassFileWithCollector(first);
+			c.parseClassFileWithCollector(second);
+			assertEquals(direct.events, first.events);
+			assertEquals(direct.events, second.events);
+		}
+	}
+
 	/**
 	 * {@code java.lang.IllegalArgumentException: Expected IDENTIFIER: <S:Z>()V;}
 	 * 
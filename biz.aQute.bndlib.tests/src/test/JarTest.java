@@ -1,6 +1,7 @@
 package test;
 
 import java.io.*;
+import java.util.*;
 import java.util.jar.*;
 import java.util.zip.*;
 
@@ -87,6 +88,354 @@ public class JarTest extends TestCase {
 		assertEquals(file.lastModified(), jar.lastModified());
 	}
 
+	/**
+	 * A Jar on a file uses the index of the zip file until it is modified,
+	 * check that it looks the same as a Jar that was filled with all entries.
+	 */
+	public static void testIndexedJar() throws Exception {
+		File file = IO.getFile("jar/osgi.jar");
+		Jar indexed = new Jar(file);
+		Jar full = new Jar("full");
+		try {
+			ZipResource.build(full, file);
+
+			assertEquals(new ArrayList<String>(full.getResources().keySet()),
+					new ArrayList<String>(indexed.getResources().keySet()));
+			assertEquals(new ArrayList<String>(full.getDirectories().keySet()),
+					new ArrayList<String>(indexed.getDirectories().keySet()));
+			for (Map.Entry<String,Map<String,Resource>> e : full.getDirectories().entrySet()) {
+				Map<String,Resource> dir = indexed.getDirectories().get(e.getKey());
+				if (e.getValue() == null)
+					assertNull(dir);
+				else
+					assertEquals(e.getValue().keySet(), dir.keySet());
+			}
+			assertEquals(full.getPackages(), indexed.getPackages());
+			assertEquals(full.lastModified(), indexed.lastModified());
+			assertEquals(full.isManifestFirst(), indexed.isManifestFirst());
+			assertEquals(full.getBsn(), indexed.getBsn());
+
+			assertNull(indexed.getResource("org/osgi/framework/Missing.class"));
+			Resource r = indexed.getResource("org/osgi/framework/Bundle.class");
+			assertNotNull(r);
+			assertSame(r, indexed.getResource("org/osgi/framework/Bundle.class"));
+			assertSame(r, indexed.getResources().get("org/osgi/framework/Bundle.class"));
+			assertSame(r, indexed.getDirectories().get("org/osgi/framework").get("org/osgi/framework/Bundle.class"));
+			assertEquals(full.getResource("org/osgi/framework/Bundle.class").size(), r.size());
+			assertTrue(indexed.hasDirectory("org/osgi/framework"));
+			assertFalse(indexed.hasDirectory("org"));
+			assertTrue(indexed.getDirectories().containsKey("org"));
+
+			//
+			// Modifications must be visible in the maps returned earlier
+			//
+
+			Map<String,Resource> resources = indexed.getResources();
+			int size = resources.size();
+			indexed.putResource("a/b/c.txt", new EmbeddedResource("c".getBytes("UTF-8"), 0));
+			assertEquals(size + 1, resources.size());
+			assertTrue(indexed.getDirectories().containsKey("a"));
+			assertTrue(indexed.hasDirectory("a/b"));
+			assertSame(r, indexed.remove("org/osgi/framework/Bundle.class"));
+			assertFalse(resources.containsKey("org/osgi/framework/Bundle.class"));
+			assertEquals(size, resources.size());
+		}
+		finally {
+			indexed.close();
+			full.close();
+		}
+	}
+
+	/**
+	 * Compressing the resources on several threads must give the same entries
+	 * in the same order as the serial write
+	 */
+	public static void testParallelWrite() throws Exception {
+		Jar jar = new Jar(IO.getFile("jar/osgi.jar"));
+		try {
+			jar.putResource("a/b/c.txt", new EmbeddedResource("c".getBytes("UTF-8"), 1000000000000L));
+
+			ByteArrayOutputStream serial = new ByteArrayOutputStream();
+			jar.write(serial);
+			jar.setWriteThreads(4);
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			jar.write(parallel);
+
+			List<String> expected = entries(serial.toByteArray());
+			List<String> actual = entries(parallel.toByteArray());
+			assertEquals(expected, actual);
+			assertTrue(actual.get(0).startsWith("META-INF/MANIFEST.MF "));
+
+			JarInputStream jin = new JarInputStream(new ByteArrayInputStream(parallel.toByteArray()));
+			assertEquals(jar.getBsn(), jin.getManifest().getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME));
+			jin.close();
+		}
+		finally {
+			jar.close();
+		}
+	}
+
+	/**
+	 * Large resources are not buffered but compressed while they are written,
+	 * the output must be the same
+	 */
+	public static void testLargeParallelWrite() throws Exception {
+		Jar jar = new Jar(IO.getFile("jar/osgi.jar"));
+		File tmp = File.createTempFile("large", ".jar");
+		try {
+			byte[] large = new byte[3 * 1024 * 1024];
+			Random random = new Random(42);
+			for (int i = 0; i < large.length; i += 16)
+				large[i] = (byte) random.nextInt();
+			jar.putResource("a/large.bin", new EmbeddedResource(large, 1000000000000L));
+
+			ByteArrayOutputStream serial = new ByteArrayOutputStream();
+			jar.write(serial);
+			jar.setWriteThreads(4);
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			jar.write(parallel);
+			assertEquals(entries(serial.toByteArray()), entries(parallel.toByteArray()));
+
+			jar.setCompression(Jar.Compression.STORE);
+			ByteArrayOutputStream stored = new ByteArrayOutputStream();
+			jar.write(stored);
+			assertEquals(entries(serial.toByteArray()), entries(stored.toByteArray()));
+
+			// the central directory has the sizes of the streamed entries
+			for (ByteArrayOutputStream bout : Arrays.asList(serial, parallel, stored)) {
+				IO.copy(bout.toByteArray(), tmp);
+				ZipFile zip = new ZipFile(tmp);
+				try {
+					ZipEntry entry = zip.getEntry("a/large.bin");
+					assertEquals(large.length, entry.getSize());
+					assertTrue(Arrays.equals(large, IO.read(zip.getInputStream(entry))));
+				}
+				finally {
+					zip.close();
+				}
+			}
+		}
+		finally {
+			jar.close();
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Entries of a jar on a file are copied without decompressing them, unless
+	 * the file was changed after it was opened
+	 */
+	public static void testCompressedData() throws Exception {
+		File tmp = File.createTempFile("compressed", ".jar");
+		try {
+			IO.copy(IO.getFile("jar/asm.jar"), tmp);
+			Jar jar = new Jar(tmp);
+			try {
+				ZipResource r = (ZipResource) jar.getResource("org/objectweb/asm/AnnotationWriter.class");
+				assertEquals(ZipEntry.DEFLATED, r.getMethod());
+				byte[] data = IO.read(r.openInputStream());
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				assertTrue(r.copyCompressedData(bout));
+				byte[] compressed = bout.toByteArray();
+				assertEquals(r.getCompressedSize(), compressed.length);
+
+				Inflater inflater = new Inflater(true);
+				inflater.setInput(compressed);
+				byte[] inflated = new byte[(int) r.size()];
+				assertEquals(inflated.length, inflater.inflate(inflated));
+				inflater.end();
+				assertTrue(Arrays.equals(data, inflated));
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				assertEquals(r.getCrc(), crc.getValue());
+
+				tmp.setLastModified(tmp.lastModified() + 10000);
+				bout.reset();
+				assertFalse(r.copyCompressedData(bout));
+				assertEquals(0, bout.size());
+				assertTrue(Arrays.equals(data, IO.read(r.openInputStream())));
+			}
+			finally {
+				jar.close();
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Writing a jar that was read from a file copies the compressed data of
+	 * its entries, on one thread as well as on more threads. The entry is
+	 * stored without compression in a deflated entry, a recompressed entry
+	 * would be much smaller.
+	 */
+	public static void testWriteCopiesCompressedData() throws Exception {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 31);
+
+		File tmp = File.createTempFile("copied", ".jar");
+		try {
+			ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(tmp));
+			try {
+				zout.setLevel(Deflater.NO_COMPRESSION);
+				zout.putNextEntry(new ZipEntry("a/data.bin"));
+				zout.write(data);
+				zout.closeEntry();
+			}
+			finally {
+				zout.close();
+			}
+
+			Jar jar = new Jar(tmp);
+			try {
+				long compressedSize = ((ZipResource) jar.getResource("a/data.bin")).getCompressedSize();
+				assertTrue(compressedSize > data.length);
+
+				for (int threads : new int[] {
+						1, 4
+				}) {
+					jar.setWriteThreads(threads);
+					ByteArrayOutputStream bout = new ByteArrayOutputStream();
+					jar.write(bout);
+
+					ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bout.toByteArray()));
+					ZipEntry entry;
+					while ((entry = zin.getNextEntry()) != null && !entry.getName().equals("a/data.bin"))
+						continue;
+					assertNotNull(entry);
+					assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+					assertEquals(compressedSize, entry.getCompressedSize());
+					assertTrue(Arrays.equals(data, IO.read(zin)));
+				}
+			}
+			finally {
+				jar.close();
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * The pool shares a Jar for a file until the file changes, a shared Jar
+	 * cannot be modified and is only closed by the pool
+	 */
+	public static void testPool() throws Exception {
+		File tmp = File.createTempFile("pool", ".jar");
+		File mf = File.createTempFile("pool", ".mf");
+		JarPool pool = new JarPool();
+		try {
+			IO.store("Manifest-Version: 1.0\n", mf);
+			IO.copy(IO.getFile("jar/asm.jar"), tmp);
+			Jar a = pool.acquire(tmp);
+			Jar b = pool.acquire(new File(tmp.getParentFile(), "./" + tmp.getName()));
+			assertSame(a, b);
+			assertTrue(a.isShared());
+			assertEquals(1, pool.size());
+
+			try {
+				a.putResource("a/b", new EmbeddedResource(new byte[0], 0));
+				fail("a shared jar cannot be modified");
+			}
+			catch (UnsupportedOperationException e) {
+				// expected
+			}
+			try {
+				a.getResources().remove("org/objectweb/asm/AnnotationWriter.class");
+				fail("a shared jar cannot be modified");
+			}
+			catch (UnsupportedOperationException e) {
+				// expected
+			}
+			try {
+				a.setManifest(mf);
+				fail("a shared jar cannot be modified");
+			}
+			catch (UnsupportedOperationException e) {
+				// expected
+			}
+			a.getManifest().getMainAttributes().putValue("Foo", "bar");
+			assertNull(b.getManifest().getMainAttributes().getValue("Foo"));
+
+			a.close();
+			pool.release(a);
+			assertNotNull(b.getResource("org/objectweb/asm/AnnotationWriter.class"));
+			pool.release(b);
+			assertSame(a, pool.acquire(tmp));
+			pool.release(a);
+
+			// a changed file gets a new jar, the old jar is closed
+			tmp.setLastModified(tmp.lastModified() + 10000);
+			Jar c = pool.acquire(tmp);
+			assertNotSame(a, c);
+			assertEquals(1, pool.size());
+			try {
+				a.getResource("org/objectweb/asm/AnnotationWriter.class");
+				fail("the old jar is closed");
+			}
+			catch (RuntimeException e) {
+				// expected
+			}
+
+			// directories are not shared
+			Jar dir = pool.acquire(IO.getFile("bin"));
+			assertFalse(dir.isShared());
+			pool.release(dir);
+
+			pool.close();
+			assertFalse(c.isShared());
+		}
+		finally {
+			pool.close();
+			tmp.delete();
+			mf.delete();
+		}
+	}
+
+	public static void testStoredWrite() throws Exception {
+		Jar jar = new Jar(IO.getFile("jar/osgi.jar"));
+		try {
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+			jar.write(deflated);
+			jar.setCompression(Jar.Compression.STORE);
+			ByteArrayOutputStream stored = new ByteArrayOutputStream();
+			jar.write(stored);
+
+			assertEquals(entries(deflated.toByteArray()), entries(stored.toByteArray()));
+			ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(stored.toByteArray()));
+			ZipEntry entry;
+			while ((entry = zin.getNextEntry()) != null) {
+				if (!entry.isDirectory())
+					assertEquals(entry.getName(), ZipEntry.STORED, entry.getMethod());
+			}
+			zin.close();
+		}
+		finally {
+			jar.close();
+		}
+	}
+
+	private static List<String> entries(byte[] data) throws IOException {
+		List<String> entries = new ArrayList<String>();
+		ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(data));
+		byte[] buffer = new byte[8192];
+		ZipEntry entry;
+		while ((entry = zin.getNextEntry()) != null) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			int size;
+			while ((size = zin.read(buffer)) > 0)
+				bout.write(buffer, 0, size);
+			// directories get the current time
+			String time = entry.isDirectory() ? "" : Long.toString(entry.getTime());
+			entries.add(entry.getName() + " " + time + " " + Arrays.hashCode(bout.toByteArray()));
+		}
+		zin.close();
+		return entries;
+	}
+
 	public static void testNewLine() throws Exception {
 		Jar jar = new Jar("dot");
 		Manifest manifest = new Manifest();
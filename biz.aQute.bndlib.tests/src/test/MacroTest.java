@@ -678,6 +678,61 @@ public class MacroTest extends TestCase {
 		assertEquals("aa", macro.process("${${a}${a}}"));
 	}
 
+	/**
+	 * Lines are compiled once, the expansion must still see changed properties
+	 */
+	public static void testCompiledTemplates() {
+		Processor p = new Processor();
+		p.setProperty("a", "1");
+		Macro macro = new Macro(p);
+
+		String line = "${a}-{${a}}-\\${a}-${a x";
+		assertEquals("1-{1}-${a}-a x", macro.process(line));
+		p.setProperty("a", "2");
+		assertEquals("2-{2}-${a}-a x", macro.process(line));
+
+		assertEquals(p.getBase().getAbsolutePath() + "/x y./z", macro.process("./x y./z"));
+		assertEquals("${} $", macro.process("${} $"));
+	}
+
+	public static class Commands {
+		public String _hello(String args[]) {
+			return "hello " + args[1];
+		}
+
+		public static String _static_hello(String args[]) {
+			return "static " + args[1];
+		}
+
+		public String _fail(String args[]) {
+			throw new IllegalArgumentException("failed");
+		}
+	}
+
+	public static class MoreCommands extends Commands {
+		@Override
+		public String _hello(String args[]) {
+			return "more " + super._hello(args);
+		}
+	}
+
+	/**
+	 * The commands of the targets
+	 */
+	public static void testCommandTargets() {
+		Processor p = new Processor();
+		Macro macro = new Macro(p, new MoreCommands());
+
+		assertEquals("more hello world", macro.process("${hello;world}"));
+		assertEquals("static world", macro.process("${static-hello;world}"));
+		assertEquals("${nothello;world}", macro.process("${nothello;world}"));
+		assertEquals(0, p.getErrors().size());
+
+		macro.process("${fail}");
+		assertEquals(1, p.getErrors().size());
+		assertTrue(p.getErrors().get(0).startsWith("failed"));
+	}
+
 	public static void testVersion() throws Exception {
 		Processor proc = new Processor();
 		Macro macro = new Macro(proc);
@@ -9,6 +9,7 @@ import aQute.bnd.build.*;
 import aQute.bnd.osgi.*;
 import aQute.bnd.osgi.eclipse.*;
 import aQute.bnd.service.*;
+import aQute.bnd.service.progress.*;
 import aQute.bnd.version.*;
 import aQute.lib.deployer.*;
 import aQute.lib.io.*;
@@ -94,6 +95,52 @@ public class ProjectTest extends TestCase {
 		assertEquals( 3, testpath.size());
 	}
 	
+	/**
+	 * The repo bundles on the paths are fetched concurrently before the paths
+	 * are resolved, with one progress task for all of them
+	 */
+	public void testPrefetch() throws Exception {
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		ws.addBasicPlugin(new ProgressPlugin() {
+			public Task startTask(String name, int size) {
+				log.add("start " + size);
+				return new Task() {
+					public void worked(int units) {
+						log.add("worked " + units);
+					}
+
+					public void done(String message, Throwable e) {
+						log.add("done " + message);
+					}
+				};
+			}
+		});
+
+		Project project = ws.getProject("multipath");
+		project.prepare();
+		assertTrue(project.check());
+		assertEquals("start 6", log.get(0));
+		assertEquals(Collections.nCopies(6, "worked 1"), log.subList(1, 7));
+		assertEquals("done null", log.get(7));
+		assertEquals(8, log.size());
+		List<Container> buildpath = new ArrayList<Container>(project.getBuildpath());
+
+		log.clear();
+		project.setProperty(Constants.PREFETCH, "false");
+		project.propertiesChanged();
+		project.prepare();
+		assertTrue(log.isEmpty());
+		assertEquals(buildpath, new ArrayList<Container>(project.getBuildpath()));
+
+		project.setProperty(Constants.PREFETCH, "many");
+		project.propertiesChanged();
+		project.prepare();
+		assertTrue(log.isEmpty());
+		assertTrue(project.check("-prefetch must be a number of downloads or true/false, is many"));
+		assertEquals(buildpath, new ArrayList<Container>(project.getBuildpath()));
+	}
+
 	/**
 	 * Check if a project=version, which is illegal on -runbundles, is actually
 	 * reported as an error.
@@ -288,6 +335,142 @@ public class ProjectTest extends TestCase {
 		// assertFalse(bottom.isStale());
 	}
 
+	/**
+	 * A clean in a build bracket is reported to the journal, the cleaned
+	 * project and the projects that depend on it are stale
+	 */
+
+	public void testIsStaleAfterCleanInBracket() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		ws.setOffline(false);
+
+		// A jar gets the time of its newest input, the jar of the dependency
+		// must be older
+		long time = System.currentTimeMillis() - 20000;
+		File dep = new File(ws.getBase(), "p-stale-dep");
+		assertTrue(new File(dep, "bnd.bnd").setLastModified(time));
+		assertTrue(new File(dep, "bin").setLastModified(time));
+		File dir = new File(ws.getBase(), "p-stale");
+		assertTrue(new File(dir, "bnd.bnd").setLastModified(time + 10000));
+		assertTrue(new File(dir, "bin").setLastModified(time + 10000));
+
+		Project top = ws.getProject("p-stale");
+		top.build();
+		Project bottom = ws.getProject("p-stale-dep");
+		bottom.build();
+
+		ws.bracket(true);
+		try {
+			assertFalse(top.isStale());
+			assertFalse(bottom.isStale());
+
+			File file = bottom.getBuildFiles(false)[0];
+			bottom.clean();
+			assertFalse(file.exists());
+			assertTrue(bottom.isStale());
+			assertTrue(top.isStale());
+		}
+		finally {
+			ws.bracket(false);
+		}
+	}
+
+	/**
+	 * In a build bracket the file states are read once, changes made by bnd
+	 * are reported to the journal
+	 */
+
+	public void testIsStaleInBracket() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		ws.setOffline(false);
+		Project top = ws.getProject("p-stale");
+		top.build();
+		Project bottom = ws.getProject("p-stale-dep");
+		bottom.build();
+
+		FileJournal journal = ws.getFileJournal();
+		assertFalse(journal.isTrusted());
+
+		File file = bottom.getBuildFiles(false)[0];
+		File topFile = top.getBuildFiles(false)[0];
+		long fileModified = file.lastModified();
+		long topFileModified = topFile.lastModified();
+
+		ws.bracket(true);
+		try {
+			assertTrue(journal.isTrusted());
+			long now = System.currentTimeMillis();
+			file.setLastModified(now + 10000);
+			topFile.setLastModified(now + 20000);
+			assertFalse(top.isStale());
+
+			// not reported, the journal still has the old state
+			long lastModified = file.lastModified();
+			file.setLastModified(now + 30000);
+			assertEquals(lastModified, journal.lastModified(file));
+			assertFalse(top.isStale());
+
+			ws.changedFile(file);
+			assertEquals(file.lastModified(), journal.lastModified(file));
+			assertTrue(top.isStale());
+			assertFalse(bottom.isStale());
+		}
+		finally {
+			ws.bracket(false);
+			file.setLastModified(fileModified);
+			topFile.setLastModified(topFileModified);
+		}
+		assertFalse(journal.isTrusted());
+	}
+
+	/**
+	 * Build a project and its dependencies in parallel
+	 */
+
+	public void testParallelBuild() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+
+		// A jar gets the time of its newest input, the copy of the workspace
+		// gave the files of the projects the time they were copied
+		long copied = System.currentTimeMillis() - 10000;
+		for (String name : new String[] {
+				"p-stale-dep", "p-stale"
+		}) {
+			File dir = new File(ws.getBase(), name);
+			assertTrue(new File(dir, "bnd.bnd").setLastModified(copied));
+			assertTrue(new File(dir, "bin").setLastModified(copied));
+		}
+
+		Project top = ws.getProject("p-stale");
+		Project bottom = ws.getProject("p-stale-dep");
+
+		BuildScheduler scheduler = new BuildScheduler(4);
+		Map<Project,File[]> result = scheduler.build(Arrays.asList(top));
+		assertTrue(top.check());
+		assertTrue(bottom.check());
+		assertEquals(Arrays.asList(bottom, top), new ArrayList<Project>(result.keySet()));
+		assertTrue(result.get(bottom)[0].isFile());
+		assertTrue(result.get(top)[0].isFile());
+		assertTrue(result.get(bottom)[0].lastModified() <= result.get(top)[0].lastModified());
+	}
+
+	/**
+	 * A project is not built when one of its dependencies failed
+	 */
+
+	public void testParallelBuildFailedDependency() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		Project top = ws.getProject("p-stale");
+		Project bottom = ws.getProject("p-stale-dep");
+		bottom.setProperty("Include-Resource", "doesnotexist");
+
+		BuildScheduler scheduler = new BuildScheduler(4);
+		Map<Project,File[]> result = scheduler.build(Arrays.asList(top));
+		assertFalse(bottom.isOk());
+		assertTrue(top.check("Not built because dependency p-stale-dep failed"));
+		assertFalse(result.containsKey(top));
+	}
+
 	private  void stale(Project project, boolean b) throws Exception {
 		File file = project.getBuildFiles(false)[0];
 		if (b)
@@ -386,6 +569,36 @@ public class ProjectTest extends TestCase {
 		assertEquals("b", mb.getMainAttributes().getValue("Sub-Header"));
 	}
 
+	/**
+	 * A sub builder shares the classpath jars of its parent, closing the sub
+	 * builder must leave them open for the parent and the other subs
+	 */
+
+	public void testCloseSubKeepsParentClasspath() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		Project project = ws.getProject("p4-sub");
+		ProjectBuilder parent = project.getBuilder(null);
+		try {
+			List<Jar> classpath = parent.getClasspath();
+			assertFalse(classpath.isEmpty());
+
+			List<Builder> subs = parent.getSubBuilders();
+			assertEquals(3, subs.size());
+			Builder sub = subs.get(0);
+			assertEquals(classpath.size(), sub.getClasspath().size());
+			sub.close();
+
+			for (Jar jar : classpath) {
+				assertNotNull(jar.getResources());
+			}
+			assertEquals(classpath.size(), subs.get(1).getClasspath().size());
+		}
+		finally {
+			parent.close();
+			project.close();
+		}
+	}
+
 	public  void testOutofDate() throws Exception {
 		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
 		Project project = ws.getProject("p3");
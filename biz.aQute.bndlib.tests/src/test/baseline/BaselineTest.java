@@ -18,7 +18,9 @@ import aQute.bnd.service.*;
 import aQute.bnd.service.diff.*;
 import aQute.bnd.version.*;
 import aQute.lib.collections.*;
+import aQute.lib.deployer.*;
 import aQute.lib.io.*;
+import aQute.lib.json.*;
 import aQute.libg.reporter.*;
 
 @SuppressWarnings("resource")
@@ -322,6 +324,91 @@ public class BaselineTest extends TestCase {
 		}
 	}
 
+	/**
+	 * The tree of the baseline jar is kept in the workspace cache, a later
+	 * build only creates the tree of the new jar.
+	 */
+	public void testBaselineTreeCache() throws Exception {
+		getWorkspace().addBasicPlugin(new FileRepo("Baseline", IO.getFile(tmp, "cnf/releaserepo"), false));
+		Project p3 = getWorkspace().getProject("p3");
+		File cache = getWorkspace().getCache("baseline");
+
+		long lastModified = 0;
+		for (int i = 0; i < 3; i++) {
+			ProjectBuilder builder = (ProjectBuilder) p3.getBuilder(null).getSubBuilder();
+			builder.setBundleVersion("1.2.0");
+			builder.setProperty(Constants.BASELINE, "*");
+			builder.setProperty(Constants.BASELINEREPO, "Baseline");
+			builder.build();
+			if (!builder.check("The bundle version .* is too low, must be at least 1.3.0"))
+				fail();
+
+			File[] trees = cache.listFiles();
+			assertEquals(1, trees.length);
+			if (i == 1)
+				assertEquals("tree is taken from the cache", lastModified, trees[0].lastModified());
+			if (i == 2)
+				assertTrue("corrupt tree is replaced", trees[0].lastModified() > 0);
+
+			DiffPluginImpl differ = new DiffPluginImpl();
+			Tree cached = differ.deserialize(new JSONCodec().dec().from(trees[0]).get(Tree.Data.class));
+			Tree tree = differ.tree(IO.getFile(tmp, "cnf/releaserepo/p3/p3-1.2.0.jar"));
+			assertEquals(Delta.UNCHANGED, tree.diff(cached).getDelta());
+
+			// a corrupt tree is created again
+			if (i == 1) {
+				IO.store("{", trees[0]);
+				trees[0].setLastModified(0);
+			}
+			lastModified = trees[0].lastModified();
+			builder.close();
+		}
+	}
+
+	/**
+	 * Storing a baseline tree deletes the trees that were not used for a
+	 * month, a tree that is used is touched.
+	 */
+	public void testBaselineTreeCachePrune() throws Exception {
+		getWorkspace().addBasicPlugin(new FileRepo("Baseline", IO.getFile(tmp, "cnf/releaserepo"), false));
+		Project p3 = getWorkspace().getProject("p3");
+		File cache = getWorkspace().getCache("baseline");
+		cache.mkdirs();
+
+		long day = 24 * 60 * 60 * 1000L;
+		long now = System.currentTimeMillis();
+		File expired = IO.getFile(cache, "expired.json");
+		IO.store("{}", expired);
+		expired.setLastModified(now - 40 * day);
+		File recent = IO.getFile(cache, "recent.json");
+		IO.store("{}", recent);
+		recent.setLastModified(now - 10 * day);
+
+		File stored = null;
+		for (int i = 0; i < 2; i++) {
+			ProjectBuilder builder = (ProjectBuilder) p3.getBuilder(null).getSubBuilder();
+			builder.setBundleVersion("1.2.0");
+			builder.setProperty(Constants.BASELINE, "*");
+			builder.setProperty(Constants.BASELINEREPO, "Baseline");
+			builder.build();
+			if (!builder.check("The bundle version .* is too low, must be at least 1.3.0"))
+				fail();
+			builder.close();
+
+			assertFalse(expired.exists());
+			assertTrue(recent.exists());
+			List<String> trees = new ArrayList<String>(Arrays.asList(cache.list()));
+			assertEquals(2, trees.size());
+			trees.remove(recent.getName());
+
+			if (i == 0) {
+				stored = IO.getFile(cache, trees.get(0));
+				stored.setLastModified(now - 2 * day);
+			} else
+				assertTrue("a used tree is touched", stored.lastModified() > now - day);
+		}
+	}
+
 	/**
 	 * Check what happens when there is nothing in the repo ... We do not
 	 * generate an error when version <=1.0.0, otherwise we generate an error.
@@ -0,0 +1,140 @@
+package test.resource;
+
+import java.math.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.osgi.framework.*;
+import org.osgi.resource.*;
+
+import aQute.bnd.osgi.resource.*;
+import aQute.bnd.osgi.resource.FilterParser.Expression;
+
+public class CompiledFilterTest extends TestCase {
+
+	static final String[]	FILTERS	= {
+			"(a=b)", "( a = b )", "(a=B)", "(a~=B)", "(a~= b c )", "(a=*)", "(a= * )", "(a=b*)", "(a=*b)", "(a=*b*)",
+			"(a=b*c*d)", "(a=**)", "(a=b\\*)", "(a=\\(b\\))", "(a=)", "(a>=b)", "(a<=b)", "(a>=1.2)", "(a<=1.2.3)",
+			"(a=1.2.3)", "(a~=1.2.3)", "(a>=1)", "(a<=1)", "(a=1)", "(a= 1 )", "(a>=2147483648)", "(a=0.5)",
+			"(a<=0.5)", "(a=true)", "(a~=TRUE)", "(a>=false)", "(a=x)", "(a~=X)", "(a>=x)", "(a=xyz)", "(A=b)",
+			"(&(a=b)(c=d))", "(|(a=b)(c=d))", "(!(a=b))", "(&(a>=1.0)(!(a>=2.0)))", "( & (a=b) ( c=d ) )",
+			"(|(a=*)(!(c=*)))", "(a b=c)", "(a=1*)", "(a>=c)(b=d)", "(a=b", "a=b", "(a==b)", "(&)", "(!)", "(=b)",
+			"(a>b)", "(a<b)", "(a~b)", "(a=(b))", "()", "", "(a=b))", "(&(a=b)c)",
+			"(a>=)", "(a<=)", "(a~=)", "(a>= )"
+											};
+
+	@SuppressWarnings("unchecked")
+	static final Map<String,Object>[]	MAPS	= new Map[] {
+			map("a", "b"), map("a", " b "), map("a", "B"), map("a", "bc"), map("a", "bxcyd"), map("a", "b c"),
+			map("a", "b*"), map("a", "(b)"), map("a", ""), map("a", "c"), map("A", "b"), map("a", "b", "c", "d"),
+			map("c", "d"), map("a", new Version(1, 2, 3)), map("a", new Version(1, 5, 0)), map("a", new Version(2, 0, 0)),
+			map("a", Long.valueOf(1)), map("a", Long.valueOf(2147483648L)), map("a", Integer.valueOf(1)),
+			map("a", Integer.valueOf(2)), map("a", Short.valueOf((short) 1)), map("a", Byte.valueOf((byte) 0)),
+			map("a", Double.valueOf(0.5)), map("a", Float.valueOf(0.5f)), map("a", Boolean.TRUE),
+			map("a", Boolean.FALSE), map("a", Character.valueOf('x')), map("a", Character.valueOf('X')),
+			map("a", new BigInteger("1")), map("a", new BigDecimal("0.5")), map("a", Arrays.asList("x", "b")),
+			map("a", Arrays.asList(Long.valueOf(1), Long.valueOf(5))), map("a", new String[] {
+					"c", "bcd"
+			}), map("a", new long[] {
+					0, 1
+			}), map("a", new char[] {
+					'X'
+			}), map("a b", "c"), map("a", new Object()), map(), map("a", new aQute.bnd.version.Version("1.2.3"))
+												};
+
+	static Map<String,Object> map(Object... kv) {
+		Map<String,Object> map = new HashMap<String,Object>();
+		for (int i = 0; i < kv.length; i += 2)
+			map.put((String) kv[i], kv[i + 1]);
+		return map;
+	}
+
+	/**
+	 * A compiled filter must accept the same filters and match the same
+	 * attributes as a framework filter
+	 */
+	public static void testSameAsFramework() throws Exception {
+		for (String f : FILTERS) {
+			Filter expected;
+			try {
+				expected = FrameworkUtil.createFilter(f);
+			}
+			catch (InvalidSyntaxException e) {
+				try {
+					CompiledFilter.compile(f);
+					fail("invalid filter compiled " + f);
+				}
+				catch (InvalidSyntaxException ee) {
+					// expected
+				}
+				continue;
+			}
+
+			CompiledFilter compiled = CompiledFilter.compile(f);
+			assertEquals(expected.toString(), compiled.toString());
+
+			for (Map<String,Object> map : MAPS) {
+				assertEquals(f + " " + map, expected.matches(map), compiled.matches(map));
+
+				Capability cap = capability(map);
+				Dictionary<String,Object> dict = new Hashtable<String,Object>(map);
+				assertEquals(f + " " + map, expected.match(dict), compiled.matches(cap));
+			}
+		}
+	}
+
+	/**
+	 * The same filter string gives the same compiled filter
+	 */
+	public static void testInterned() throws Exception {
+		String f = "(&(osgi.wiring.package=" + CompiledFilterTest.class.getName() + ")(version>=1.0))";
+		CompiledFilter a = CompiledFilter.compile(f);
+		assertSame(a, CompiledFilter.compile(new String(f)));
+		assertEquals(a, CompiledFilter.compile("( & (osgi.wiring.package=" + CompiledFilterTest.class.getName()
+				+ ") (version>=1.0) )"));
+	}
+
+	public static void testRequirementFilter() throws Exception {
+		Requirement req = CapReqBuilder.createPackageRequirement("p", "[1,2)").buildSyntheticRequirement();
+		CompiledFilter filter = ResourceUtils.getFilter(req);
+		assertTrue(filter.matches(capability(map("osgi.wiring.package", "p", "version", new Version(1, 5, 0)))));
+		assertFalse(filter.matches(capability(map("osgi.wiring.package", "p", "version", new Version(2, 0, 0)))));
+		assertFalse(filter.matches(capability(map("osgi.wiring.package", "q", "version", new Version(1, 0, 0)))));
+		assertTrue(filter.matches(capability(map("OSGI.WIRING.PACKAGE", "p", "Version", new Version(1, 0, 0)))));
+
+		assertNull(ResourceUtils.getFilter(new CapReqBuilder("osgi.wiring.package").buildSyntheticRequirement()));
+	}
+
+	/**
+	 * The framework filter, the bnd filter parser, the libg filter and the
+	 * compiled filter match the same attributes for the filters of the
+	 * resolver
+	 */
+	public static void testSameMatches() throws Exception {
+		FilterParser fp = new FilterParser();
+		for (int i = 0; i < 20; i++) {
+			String f = "(&(osgi.wiring.package=p" + i + ")(version>=1.0.0)(!(version>=2.0.0)))";
+			Filter framework = FrameworkUtil.createFilter(f);
+			Expression parser = fp.parse(f);
+			aQute.lib.filter.Filter libg = new aQute.lib.filter.Filter(f);
+			CompiledFilter compiled = CompiledFilter.compile(f);
+
+			for (int j = 0; j < 20; j++) {
+				Map<String,Object> map = map("osgi.wiring.package", "p" + (j % 10), "version", new Version(j % 3, j, 0),
+						"bundle-symbolic-name", "b" + j);
+				boolean expected = framework.matches(map);
+				assertEquals(f + " " + map, expected, parser.eval(map));
+				assertEquals(f + " " + map, expected, libg.matchMap(map));
+				assertEquals(f + " " + map, expected, compiled.matches(map));
+			}
+		}
+	}
+
+	static Capability capability(Map<String,Object> map) throws Exception {
+		CapReqBuilder builder = new CapReqBuilder("test");
+		for (Map.Entry<String,Object> entry : map.entrySet())
+			builder.addAttribute(entry.getKey(), entry.getValue());
+		return builder.buildSyntheticCapability();
+	}
+}
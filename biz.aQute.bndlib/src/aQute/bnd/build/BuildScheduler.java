@@ -0,0 +1,198 @@
+package aQute.bnd.build;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import aQute.bnd.osgi.*;
+
+/**
+ * Builds projects together with the projects they depend on. A project is
+ * built when all the projects it depends on (-dependson and the projects on
+ * its paths) have been built, projects that do not depend on each other are
+ * built concurrently on at most the given number of threads. Whether a project
+ * actually needs building is left to {@link Project#build(boolean)}, which
+ * checks if it is stale.
+ * <p>
+ * Errors stay with the project that reports them. A project that depends on a
+ * project that failed is not built but gets an error instead, so the outcome
+ * does not depend on the order in which the threads finish.
+ */
+public class BuildScheduler {
+	final static Executor	INLINE	= new Executor() {
+										public void execute(Runnable command) {
+											command.run();
+										}
+									};
+	private final int		threads;
+	private boolean			test;
+
+	/**
+	 * @param threads the maximum number of projects that are built at the
+	 *            same time, 1 builds the projects one after another in the
+	 *            calling thread
+	 */
+	public BuildScheduler(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Build for test, see {@link Project#build(boolean)}
+	 */
+	public void setTest(boolean test) {
+		this.test = test;
+	}
+
+	/**
+	 * Return the given projects and the projects they depend on, where a
+	 * project always comes after the projects it depends on. Projects that
+	 * depend on each other are returned in the order they are found.
+	 */
+	public static List<Project> getBuildOrder(Collection<Project> projects) throws Exception {
+		List<Project> order = new ArrayList<Project>();
+		Set<Project> visited = new HashSet<Project>();
+		for (Project project : projects)
+			getBuildOrder(project, visited, order);
+		return order;
+	}
+
+	private static void getBuildOrder(Project project, Set<Project> visited, List<Project> order) throws Exception {
+		if (!visited.add(project))
+			return;
+
+		for (Project dependency : project.getDependson())
+			getBuildOrder(dependency, visited, order);
+
+		order.add(project);
+	}
+
+	/**
+	 * Build the given projects and the projects they depend on.
+	 *
+	 * @return the projects that were built, in build order, with their files
+	 */
+	public Map<Project,File[]> build(Collection<Project> projects) throws Exception {
+		List<Project> order = getBuildOrder(projects);
+
+		//
+		// The build is a bracket for the workspaces, the file states
+		// used to decide staleness are then only read once
+		//
+
+		Set<Workspace> workspaces = new LinkedHashSet<Workspace>();
+		for (Project project : order) {
+			if (project.getWorkspace() != null)
+				workspaces.add(project.getWorkspace());
+		}
+
+		for (Workspace workspace : workspaces)
+			workspace.bracket(true);
+		try {
+			return build(order);
+		}
+		finally {
+			for (Workspace workspace : workspaces)
+				workspace.bracket(false);
+		}
+	}
+
+	private Map<Project,File[]> build(List<Project> order) throws Exception {
+		//
+		// The projects are prepared in this thread, the dependencies
+		// are needed to schedule them anyway
+		//
+
+		Map<Project,Set<Project>> dependencies = new HashMap<Project,Set<Project>>();
+		for (Project project : order) {
+			Set<Project> set = new LinkedHashSet<Project>(project.getDependson());
+			set.remove(project);
+			dependencies.put(project, set);
+		}
+
+		CompletionService<Project> completion = new ExecutorCompletionService<Project>(threads > 1
+				? Processor.getExecutor() : INLINE);
+		final Map<Project,File[]> files = Collections.synchronizedMap(new HashMap<Project,File[]>());
+		List<Project> waiting = new LinkedList<Project>(order);
+		Set<Project> done = new HashSet<Project>();
+		Set<Project> failed = new HashSet<Project>();
+		int running = 0;
+
+		while (!waiting.isEmpty() || running > 0) {
+			for (Iterator<Project> i = waiting.iterator(); i.hasNext() && running < threads;) {
+				Project project = i.next();
+				Set<Project> set = dependencies.get(project);
+				if (!done.containsAll(set))
+					continue;
+
+				i.remove();
+				Project dependency = getFailed(set, failed);
+				if (dependency != null) {
+					project.error("Not built because dependency %s failed", dependency);
+					failed.add(project);
+					done.add(project);
+					continue;
+				}
+
+				completion.submit(build(project, files));
+				running++;
+			}
+
+			if (running == 0) {
+				if (waiting.isEmpty())
+					break;
+
+				//
+				// The remaining projects depend on each other. Build the
+				// first so that its dependents can follow, like a
+				// sequential build would do
+				//
+				Project project = waiting.remove(0);
+				project.warning("Circular dependency, building %s before %s", project,
+						getWaiting(dependencies.get(project), done));
+				completion.submit(build(project, files));
+				running++;
+			}
+
+			Project project = completion.take().get();
+			running--;
+			done.add(project);
+			if (!project.isOk())
+				failed.add(project);
+		}
+
+		Map<Project,File[]> result = new LinkedHashMap<Project,File[]>();
+		for (Project project : order) {
+			if (files.containsKey(project))
+				result.put(project, files.get(project));
+		}
+		return result;
+	}
+
+	private Callable<Project> build(final Project project, final Map<Project,File[]> files) {
+		return new Callable<Project>() {
+			public Project call() {
+				try {
+					files.put(project, project.build(test));
+				}
+				catch (Exception e) {
+					project.exception(e, "Failed to build %s", project);
+				}
+				return project;
+			}
+		};
+	}
+
+	private static Project getFailed(Set<Project> dependencies, Set<Project> failed) {
+		for (Project dependency : dependencies) {
+			if (failed.contains(dependency))
+				return dependency;
+		}
+		return null;
+	}
+
+	private static Set<Project> getWaiting(Set<Project> dependencies, Set<Project> done) {
+		Set<Project> waiting = new LinkedHashSet<Project>(dependencies);
+		waiting.removeAll(done);
+		return waiting;
+	}
+}
@@ -0,0 +1,227 @@
+package aQute.bnd.build;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Remembers the state (length and last modified time) of the files that are
+ * used to decide if a project is stale, so that these files do not have to be
+ * checked on the file system every time the question is asked.
+ * <p>
+ * A recorded state is only trusted while the journal is trusted: during a
+ * build bracket (see {@link Workspace#bracket(boolean)}), when the files are
+ * assumed to only change through bnd, which reports them with
+ * {@link Workspace#changedFile(File)}, or when the journal is watching the
+ * file system for changes (see {@link #watch()}). Otherwise the file system is
+ * asked every time.
+ * <p>
+ * Every change that can affect staleness increments the generation of the
+ * journal, a result that was calculated in a trusted journal stays valid as
+ * long as the generation is the same.
+ */
+public class FileJournal implements Closeable {
+	final static FileState				MISSING		= new FileState(0, 0);
+
+	final ConcurrentMap<File,FileState>	states		= new ConcurrentHashMap<File,FileState>();
+	final AtomicLong					generation	= new AtomicLong();
+	final AtomicInteger					brackets	= new AtomicInteger();
+	final Set<Path>						watched		= Collections.newSetFromMap(new ConcurrentHashMap<Path,Boolean>());
+	volatile WatchService				watcher;
+
+	/**
+	 * The state of a file, a file that does not exist has length 0 and last
+	 * modified 0
+	 */
+	public static class FileState {
+		public final long	length;
+		public final long	lastModified;
+
+		FileState(long length, long lastModified) {
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		public boolean exists() {
+			return lastModified != 0;
+		}
+	}
+
+	/**
+	 * Return the state of a file, from the journal when it is trusted
+	 */
+	public FileState getState(File file) {
+		if (!isTrusted())
+			return read(file);
+
+		file = file.getAbsoluteFile();
+		FileState state = states.get(file);
+		if (state == null) {
+			//
+			// Outside a bracket the state can only be recorded when the
+			// directory is watched. A change seen while reading the file
+			// may have been missed, the state is then not kept
+			//
+			boolean record = brackets.get() > 0 || register(file.getParentFile());
+			long g = generation.get();
+			state = read(file);
+			if (record) {
+				states.put(file, state);
+				if (generation.get() != g)
+					states.remove(file);
+			}
+		}
+		return state;
+	}
+
+	public long lastModified(File file) {
+		return getState(file).lastModified;
+	}
+
+	/**
+	 * A file has changed, forget its state. When it is a directory, for
+	 * example one that was deleted, also forget the states of the files in it.
+	 */
+	public void changed(File file) {
+		file = file.getAbsoluteFile();
+		states.remove(file);
+		String prefix = file.getPath() + File.separator;
+		for (Iterator<File> i = states.keySet().iterator(); i.hasNext();) {
+			if (i.next().getPath().startsWith(prefix))
+				i.remove();
+		}
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Something has changed that affects the staleness of projects, for
+	 * example the properties of a project
+	 */
+	public void changed() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Forget all recorded states
+	 */
+	public void clear() {
+		states.clear();
+		generation.incrementAndGet();
+	}
+
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Answer if the recorded states can be used
+	 */
+	public boolean isTrusted() {
+		return brackets.get() > 0 || watcher != null;
+	}
+
+	/**
+	 * Begin or end a build bracket. The states are read again at the start
+	 * of the outermost bracket and are forgotten at its end.
+	 */
+	public void bracket(boolean begin) {
+		if (begin) {
+			if (brackets.getAndIncrement() == 0)
+				clear();
+		} else {
+			if (brackets.decrementAndGet() == 0)
+				clear();
+		}
+	}
+
+	/**
+	 * Watch the directories of the recorded files for changes, so that the
+	 * states can be trusted outside a build bracket. This is intended for
+	 * long running hosts like an IDE. Changes are reported asynchronously by
+	 * the file system, so a change is only seen after a short delay.
+	 */
+	public synchronized void watch() throws IOException {
+		if (watcher != null)
+			return;
+
+		final WatchService ws = FileSystems.getDefault().newWatchService();
+		Thread thread = new Thread("bnd file journal") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = ws.take();
+						Path dir = (Path) key.watchable();
+						for (WatchEvent< ? > event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+								clear();
+							else
+								changed(dir.resolve((Path) event.context()).toFile());
+						}
+						if (!key.reset()) {
+							watched.remove(dir);
+							clear();
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					// close
+				}
+				catch (ClosedWatchServiceException e) {
+					// close
+				}
+			}
+		};
+		thread.setDaemon(true);
+
+		// the states were recorded without watching
+		clear();
+		watcher = ws;
+		thread.start();
+	}
+
+	/**
+	 * Stop watching
+	 */
+	public synchronized void close() throws IOException {
+		WatchService ws = watcher;
+		if (ws == null)
+			return;
+
+		watcher = null;
+		watched.clear();
+		clear();
+		ws.close();
+	}
+
+	private boolean register(File dir) {
+		WatchService ws = watcher;
+		if (dir == null || ws == null)
+			return false;
+
+		Path path = dir.toPath();
+		if (watched.contains(path))
+			return true;
+
+		try {
+			path.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			watched.add(path);
+			return true;
+		}
+		catch (Exception e) {
+			// cannot watch, the directory does not exist (yet) or the
+			// watcher was closed. Try again next time
+			return false;
+		}
+	}
+
+	private static FileState read(File file) {
+		long lastModified = file.lastModified();
+		if (lastModified == 0)
+			return MISSING;
+		return new FileState(file.length(), lastModified);
+	}
+}
@@ -5,6 +5,8 @@ import java.lang.reflect.*;
 import java.net.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 import java.util.jar.*;
 
@@ -16,6 +18,8 @@ import aQute.bnd.osgi.eclipse.*;
 import aQute.bnd.service.*;
 import aQute.bnd.service.RepositoryPlugin.PutResult;
 import aQute.bnd.service.action.*;
+import aQute.bnd.service.progress.*;
+import aQute.bnd.service.progress.ProgressPlugin.Task;
 import aQute.bnd.version.*;
 import aQute.lib.collections.*;
 import aQute.lib.converter.*;
@@ -27,6 +31,7 @@ import aQute.libg.generics.*;
 import aQute.libg.glob.*;
 import aQute.libg.reporter.*;
 import aQute.libg.sed.*;
+import aQute.service.reporter.Reporter;
 
 /**
  * This class is NOT threadsafe
@@ -59,6 +64,8 @@ public class Project extends Processor {
 	boolean						inPrepare;
 	int							revision;
 	File						files[];
+	long						staleGeneration			= -1;
+	boolean						stale;
 	static List<Project>		trail					= new ArrayList<Project>();
 	boolean						delayRunDependencies	= true;
 	final ProjectMessages		msgs					= ReporterMessages.base(this, ProjectMessages.class);
@@ -152,6 +159,8 @@ public class Project extends Processor {
 		preparedPaths = false;
 		files = null;
 		revision++;
+		if (workspace != null)
+			workspace.getFileJournal().changed();
 		// }
 	}
 
@@ -292,6 +301,8 @@ public class Project extends Processor {
 					// path and extracts the projects so we can build them
 					// before.
 
+					prefetch(getPrefetchThreads());
+
 					doPath(buildpath, dependencies, parseBuildpath(), bootclasspath, false, BUILDPATH);
 					doPath(testpath, dependencies, parseTestpath(), bootclasspath, false, TESTPATH);
 					if (!delayRunDependencies) {
@@ -572,6 +583,169 @@ public class Project extends Processor {
 		return result;
 	}
 
+	/**
+	 * Fetch the repo bundles on the paths of this project on several threads
+	 * before the paths are resolved. The paths resolve their entries one by
+	 * one, so a path with bundles that still have to be downloaded waits for
+	 * each download in turn. After the prefetch the repositories have the
+	 * bundles in their cache. The prefetch does not report errors, the
+	 * resolution of the paths reports the bundles that could not be fetched.
+	 *
+	 * @param threads
+	 *            the number of concurrent downloads
+	 */
+	private void prefetch(int threads) {
+		try {
+			if (threads <= 1)
+				return;
+
+			Map<String,Fetch> fetches = new LinkedHashMap<String,Fetch>();
+			addFetches(fetches, Strategy.LOWEST, mergeProperties(Constants.BUILDPATH));
+			addFetches(fetches, Strategy.HIGHEST, mergeProperties(Constants.TESTPATH));
+			if (!delayRunDependencies) {
+				addFetches(fetches, Strategy.HIGHEST, getProperty(Constants.RUNFW));
+				addFetches(fetches, Strategy.HIGHEST, mergeProperties(Constants.RUNPATH));
+				addFetches(fetches, Strategy.HIGHEST, mergeProperties(Constants.RUNBUNDLES));
+			}
+			if (fetches.size() < 2)
+				return;
+
+			final List<Fetch> list = new ArrayList<Fetch>(fetches.values());
+			final List<RepositoryPlugin> repos = getWorkspace().getRepositories();
+			final List<Task> tasks = new ArrayList<Task>();
+			for (ProgressPlugin progress : getPlugins(ProgressPlugin.class))
+				tasks.add(progress.startTask("Fetching " + list.size() + " bundles for " + getName(), list.size()));
+
+			threads = Math.min(threads, list.size());
+			trace("prefetching %s bundles on %s threads", list.size(), threads);
+
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger failed = new AtomicInteger();
+			List<FutureTask<Object>> workers = new ArrayList<FutureTask<Object>>(threads);
+			for (int t = 0; t < threads; t++) {
+				workers.add(new FutureTask<Object>(new Callable<Object>() {
+					public Object call() throws Exception {
+						int i;
+						while ((i = next.getAndIncrement()) < list.size()) {
+							try {
+								if (!fetch(repos, list.get(i)))
+									failed.incrementAndGet();
+							}
+							catch (Exception e) {
+								failed.incrementAndGet();
+							}
+							synchronized (tasks) {
+								for (Task task : tasks)
+									task.worked(1);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (FutureTask<Object> worker : workers)
+				getExecutor().execute(worker);
+			for (FutureTask<Object> worker : workers)
+				worker.get();
+
+			String message = failed.get() == 0 ? null : failed.get() + " of " + list.size()
+					+ " bundles could not be fetched";
+			for (Task task : tasks)
+				task.done(message, null);
+		}
+		catch (Exception e) {
+			trace("prefetch failed %s", e);
+		}
+	}
+
+	/**
+	 * The number of concurrent downloads of the prefetch, the
+	 * {@link Constants#PREFETCH} instruction can be set to a number, or to
+	 * true or false. Defaults to 4. An invalid value is reported as an error
+	 * on the instruction and disables the prefetch.
+	 */
+	int getPrefetchThreads() {
+		String threads = getProperty(Constants.PREFETCH);
+		if (threads == null)
+			return 4;
+
+		threads = threads.trim();
+		if (threads.isEmpty() || threads.equalsIgnoreCase("true"))
+			return 4;
+		if (threads.equalsIgnoreCase("false"))
+			return 1;
+		try {
+			return Math.max(1, Integer.parseInt(threads));
+		}
+		catch (NumberFormatException e) {
+			error("%s must be a number of downloads or true/false, is %s", Constants.PREFETCH, threads).header(
+					Constants.PREFETCH).context(threads);
+			return 1;
+		}
+	}
+
+	static class Fetch {
+		final String				bsn;
+		final String				range;
+		final Strategy				strategy;
+		final Map<String,String>	attrs;
+		final SortedSet<Version>	localVersions;
+
+		Fetch(String bsn, String range, Strategy strategy, Map<String,String> attrs, SortedSet<Version> localVersions) {
+			this.bsn = bsn;
+			this.range = range;
+			this.strategy = strategy;
+			this.attrs = attrs;
+			this.localVersions = localVersions;
+		}
+	}
+
+	/*
+	 * Add the entries of a path that come from a repository. Entries that
+	 * refer to the workspace or to a file are left to the resolution of the
+	 * path. The versions in the workspace are looked up here, on the thread
+	 * that prepares this project.
+	 */
+	private void addFetches(Map<String,Fetch> fetches, Strategy strategy, String spec) throws Exception {
+		if (spec == null)
+			return;
+
+		for (Entry<String,Attrs> entry : new Parameters(spec).entrySet()) {
+			String bsn = removeDuplicateMarker(entry.getKey());
+			Map<String,String> attrs = entry.getValue();
+			String range = attrs.get("version");
+			if (range == null)
+				range = "0";
+			else if (range.equals(VERSION_ATTR_PROJECT) || range.equals(VERSION_ATTR_LATEST)
+					|| range.equals(VERSION_ATTR_SNAPSHOT) || range.equals("file"))
+				continue;
+
+			if (getWorkspace().getProject(bsn) != null)
+				continue;
+
+			Strategy useStrategy = overrideStrategy(attrs, strategy);
+			String key = bsn + ";" + range + ";" + useStrategy;
+			if (!fetches.containsKey(key))
+				fetches.put(key, new Fetch(bsn, range, useStrategy, attrs, getLocalVersions(bsn, useStrategy)));
+		}
+	}
+
+	/*
+	 * Select the version like getBundle does and wait until it is downloaded.
+	 * A version that is built in the workspace is not fetched.
+	 */
+	boolean fetch(List<RepositoryPlugin> repos, Fetch fetch) throws Exception {
+		Container container = getRepoBundle(fetch.bsn, fetch.range, fetch.strategy, fetch.attrs, repos,
+				fetch.localVersions, null);
+		if (container == null)
+			return true;
+
+		if (container.getType() == Container.TYPE.ERROR)
+			return false;
+
+		return container.db == null || container.db.getFile() != null;
+	}
+
 	/**
 	 * Just calls a new method with a default parm.
 	 *
@@ -949,7 +1123,35 @@ public class Project extends Processor {
 
 		useStrategy = overrideStrategy(attrs, useStrategy);
 
-		List<RepositoryPlugin> plugins = workspace.getRepositories();
+		Container container = getRepoBundle(bsn, range, useStrategy, attrs, workspace.getRepositories(),
+				getLocalVersions(bsn, useStrategy), this);
+		if (container == null) {
+			// The version is built by a project in the workspace
+			return getBundleFromProject(bsn, attrs);
+		}
+		return container;
+	}
+
+	/*
+	 * The versions of a bsn that are built in the workspace, an exact version
+	 * is only searched in the repositories
+	 */
+	private SortedSet<Version> getLocalVersions(String bsn, Strategy strategy) throws Exception {
+		if (strategy == Strategy.EXACT)
+			return null;
+		return getWorkspace().getWorkspaceRepository().versions(bsn);
+	}
+
+	/*
+	 * Select the version of a bundle from the repositories and the versions
+	 * built in the workspace with a strategy that has been overridden by the
+	 * attributes. Returns null when the selected version is built in the
+	 * workspace. The downloads report to the reporter, which can be null.
+	 * This is used by getBundle and by the prefetch so they pick the same
+	 * version.
+	 */
+	private Container getRepoBundle(String bsn, String range, Strategy useStrategy, Map<String,String> attrs,
+			List<RepositoryPlugin> plugins, SortedSet<Version> localVersions, Reporter reporter) throws Exception {
 
 		if (useStrategy == Strategy.EXACT) {
 			if (!Verifier.isVersion(range))
@@ -960,7 +1162,7 @@ public class Project extends Processor {
 			// and return the first we find.
 			Version version = new Version(range);
 			for (RepositoryPlugin plugin : plugins) {
-				DownloadBlocker blocker = new DownloadBlocker(this);
+				DownloadBlocker blocker = new DownloadBlocker(reporter);
 				File result = plugin.get(bsn, version, attrs, blocker);
 				if (result != null)
 					return toContainer(bsn, range, attrs, result, blocker);
@@ -993,7 +1195,7 @@ public class Project extends Processor {
 					// To query, we must have a real version
 					if (!versions.isEmpty() && Verifier.isVersion(range)) {
 						Version version = new Version(range);
-						DownloadBlocker blocker = new DownloadBlocker(this);
+						DownloadBlocker blocker = new DownloadBlocker(reporter);
 						File file = plugin.get(bsn, version, attrs, blocker);
 						// and the entry must exist
 						// if it does, return this as a result
@@ -1009,7 +1211,6 @@ public class Project extends Processor {
 			// to indicate that it is a workspace project
 			//
 
-			SortedSet<Version> localVersions = getWorkspace().getWorkspaceRepository().versions(bsn);
 			for (Version v : localVersions) {
 				if (!versions.containsKey(v) && versionRange.includes(v))
 					versions.put(v, null);
@@ -1038,11 +1239,11 @@ public class Project extends Processor {
 					if (repo == null) {
 						// A null provider indicates that we have a local
 						// project
-						return getBundleFromProject(bsn, attrs);
+						return null;
 					}
 
 					String version = provider.toString();
-					DownloadBlocker blocker = new DownloadBlocker(this);
+					DownloadBlocker blocker = new DownloadBlocker(reporter);
 					File result = repo.get(bsn, provider, attrs, blocker);
 					if (result != null)
 						return toContainer(bsn, version, attrs, result, blocker);
@@ -1319,22 +1520,58 @@ public class Project extends Processor {
 			return true;
 		}
 
-		Set<Project> visited = new HashSet<Project>();
-		return isStale(visited);
+		//
+		// A result calculated with a trusted journal stays valid until
+		// something changes
+		//
+		FileJournal journal = workspace.getFileJournal();
+		long generation = journal.getGeneration();
+		synchronized (this) {
+			if (generation == staleGeneration && journal.isTrusted())
+				return stale;
+		}
+
+		boolean result = isStale(journal, new HashSet<Project>(), new HashMap<Project,Boolean>());
+		if (journal.isTrusted()) {
+			synchronized (this) {
+				stale = result;
+				staleGeneration = generation;
+			}
+		}
+		return result;
 	}
 
-	boolean isStale(Set<Project> visited) throws Exception {
+	/*
+	 * A project that is reached through several dependencies is only checked
+	 * once, the results holds the answers of the projects already checked
+	 */
+	boolean isStale(FileJournal journal, Set<Project> visiting, Map<Project,Boolean> results) throws Exception {
+		Boolean result = results.get(this);
+		if (result != null)
+			return result;
+
 		// When we do not generate anything ...
 		if (isNoBundles())
 			return false;
 
-		if (visited.contains(this)) {
-			msgs.CircularDependencyContext_Message_(this.getName(), visited.toString());
+		if (visiting.contains(this)) {
+			msgs.CircularDependencyContext_Message_(this.getName(), visiting.toString());
 			return false;
 		}
 
-		visited.add(this);
+		visiting.add(this);
+		try {
+			result = isStale0(journal, visiting, results);
+		}
+		finally {
+			visiting.remove(this);
+		}
+		results.put(this, result);
+		return result;
+	}
 
+	private boolean isStale0(FileJournal journal, Set<Project> visiting, Map<Project,Boolean> results)
+			throws Exception {
 		long buildTime = 0;
 
 		files = getBuildFiles(false);
@@ -1342,18 +1579,19 @@ public class Project extends Processor {
 			return true;
 
 		for (File f : files) {
-			if (f.lastModified() < lastModified())
+			long modified = journal.lastModified(f);
+			if (modified < lastModified())
 				return true;
 
-			if (buildTime < f.lastModified())
-				buildTime = f.lastModified();
+			if (buildTime < modified)
+				buildTime = modified;
 		}
 
 		for (Project dependency : getDependson()) {
 			if (dependency == this)
 				continue;
 
-			if (dependency.isStale())
+			if (dependency.isStale(journal, visiting, results))
 				return true;
 
 			if (dependency.isNoBundles())
@@ -1361,7 +1599,7 @@ public class Project extends Processor {
 
 			File[] deps = dependency.getBuildFiles();
 			for (File f : deps) {
-				if (f.lastModified() >= buildTime)
+				if (journal.lastModified(f) >= buildTime)
 					return true;
 			}
 		}
@@ -1624,6 +1862,8 @@ public class Project extends Processor {
 		super.propertiesChanged();
 		preparedPaths = false;
 		files = null;
+		if (workspace != null)
+			workspace.getFileJournal().changed();
 
 	}
 
@@ -1744,6 +1984,7 @@ public class Project extends Processor {
 		clean(getSrcOutput(), "source output");
 		clean(getTestOutput(), "test output");
 		clean(getOutput(), "output");
+		files = null;
 	}
 
 	void clean(File dir, String type) throws IOException {
@@ -1763,6 +2004,7 @@ public class Project extends Processor {
 		}
 
 		IO.delete(dir);
+		getWorkspace().changedFile(dir);
 		if (dir.exists()) {
 			error("Trying to delete %s (%s), but failed", dir, type);
 			return;
@@ -11,17 +11,38 @@ import aQute.bnd.header.*;
 import aQute.bnd.osgi.*;
 import aQute.bnd.osgi.Descriptors.TypeRef;
 import aQute.bnd.service.*;
+import aQute.bnd.service.diff.Tree;
+import aQute.bnd.service.diff.Type;
+import aQute.bnd.service.diff.Tree.Data;
 import aQute.bnd.service.repository.*;
 import aQute.bnd.service.repository.SearchableRepository.ResourceDescriptor;
 import aQute.bnd.version.*;
 import aQute.lib.collections.*;
 import aQute.lib.io.*;
+import aQute.lib.json.*;
+import aQute.libg.cryptography.SHA1;
 
 public class ProjectBuilder extends Builder {
+	private final static JSONCodec	codec	= new JSONCodec();
+
+	/*
+	 * A cached baseline tree that was not used for this time is deleted when
+	 * a new tree is stored, these are the trees of older baseline jars and of
+	 * other bnd versions. A used tree is touched at most once a day.
+	 */
+	final static long				BASELINE_TREE_EXPIRY	= 30 * 24 * 60 * 60 * 1000L;
+	final static long				BASELINE_TREE_TOUCH		= 24 * 60 * 60 * 1000L;
+
 	private final DiffPluginImpl	differ	= new DiffPluginImpl();
 	Project							project;
 	boolean							initialized;
 
+	/*
+	 * The jars of the parent on the classpath of a sub builder, they are
+	 * closed by the parent
+	 */
+	private final List<Jar>			borrowed	= new ArrayList<Jar>();
+
 	public ProjectBuilder(Project project) {
 		super(project);
 		this.project = project;
@@ -61,16 +82,29 @@ public class ProjectBuilder extends Builder {
 		try {
 			if (!initialized) {
 				initialized = true;
-				for (Container file : project.getClasspath()) {
-					addClasspath(file.getFile());
-				}
 
-				for (Container file : project.getBuildpath()) {
-					addClasspath(file.getFile());
-				}
+				//
+				// A sub builder has the same classpath as its parent, it
+				// shares the jars of the parent so they are only opened once
+				// and the sub builders can read them at the same time
+				//
+				if (getParent() instanceof ProjectBuilder) {
+					for (Jar jar : ((ProjectBuilder) getParent()).getClasspath()) {
+						borrowed.add(jar);
+						addClasspath(jar);
+					}
+				} else {
+					for (Container file : project.getClasspath()) {
+						addClasspath(file);
+					}
+
+					for (Container file : project.getBuildpath()) {
+						addClasspath(file);
+					}
 
-				for (Container file : project.getBootclasspath()) {
-					addClasspath(file.getFile());
+					for (Container file : project.getBootclasspath()) {
+						addClasspath(file);
+					}
 				}
 
 				for (File file : project.getAllsourcepath()) {
@@ -84,12 +118,43 @@ public class ProjectBuilder extends Builder {
 		}
 	}
 
+	/*
+	 * Repo JARs are taken from the pool of the workspace, the projects that
+	 * build against the same JAR then share one Jar for it
+	 */
+	private void addClasspath(Container container) throws IOException {
+		File file = container.getFile();
+		Workspace workspace = project.getWorkspace();
+		if (workspace == null || container.getType() != Container.TYPE.REPO || !file.isFile()) {
+			addClasspath(file);
+			return;
+		}
+
+		final JarPool pool = workspace.getJarPool();
+		final Jar jar = pool.acquire(file);
+		addClose(new Closeable() {
+			public void close() {
+				pool.release(jar);
+			}
+		});
+		addClasspath(jar);
+	}
+
 	@Override
 	public List<Jar> getClasspath() {
 		init();
 		return super.getClasspath();
 	}
 
+	@Override
+	public void close() {
+		if (!borrowed.isEmpty()) {
+			super.getClasspath().removeAll(borrowed);
+			borrowed.clear();
+		}
+		super.close();
+	}
+
 	@Override
 	protected void changedFile(File f) {
 		project.getWorkspace().changedFile(f);
@@ -142,7 +207,7 @@ public class ProjectBuilder extends Builder {
 		try {
 			Baseline baseliner = new Baseline(this, differ);
 
-			Set<Info> infos = baseliner.baseline(dot, fromRepo, null);
+			Set<Info> infos = baseliner.baseline(dot, fromRepo, getBaselineTree(fromRepo, diffignore), null);
 			if (infos.isEmpty())
 				trace("no deltas");
 
@@ -180,6 +245,79 @@ public class ProjectBuilder extends Builder {
 		}
 	}
 
+	/**
+	 * The baseline jar from the repository does not change, so its tree is
+	 * kept in the workspace cache. The key is the SHA-1 of the jar, the
+	 * -diffignore that was used for the tree and the bnd version. When a new
+	 * tree is stored the trees that were not used for a while are deleted.
+	 */
+	private Tree getBaselineTree(Jar fromRepo, String diffignore) throws Exception {
+		File source = fromRepo.getSource();
+		if (source == null || !source.isFile())
+			return differ.tree(fromRepo);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(SHA1.digest(source).asHex()).append('\n');
+		sb.append(diffignore).append('\n');
+		sb.append(getBndVersion()).append('\n');
+		String key = SHA1.digest(sb.toString().getBytes("UTF-8")).asHex();
+		File file = project.getWorkspace().getCache("baseline/" + key + ".json");
+
+		if (file.isFile()) {
+			try {
+				Data data = codec.dec().from(file).get(Data.class);
+				if (data.type == Type.BUNDLE) {
+					trace("baseline tree from cache %s", file);
+					long now = System.currentTimeMillis();
+					if (now - file.lastModified() > BASELINE_TREE_TOUCH)
+						file.setLastModified(now);
+					return differ.deserialize(data);
+				}
+			}
+			catch (Exception e) {
+				trace("cannot read baseline tree %s: %s", file, e);
+			}
+		}
+
+		Tree tree = differ.tree(fromRepo);
+		try {
+			file.getParentFile().mkdirs();
+			File tmp = IO.createTempFile(file.getParentFile(), "baseline", ".json");
+			try {
+				Encoder enc = codec.enc().to(tmp);
+				try {
+					enc.put(tree.serialize());
+				}
+				finally {
+					enc.close();
+				}
+				IO.rename(tmp, file);
+			}
+			finally {
+				IO.delete(tmp);
+			}
+			pruneBaselineTrees(file.getParentFile());
+		}
+		catch (Exception e) {
+			trace("cannot store baseline tree %s: %s", file, e);
+		}
+		return tree;
+	}
+
+	private void pruneBaselineTrees(File dir) {
+		File[] trees = dir.listFiles();
+		if (trees == null)
+			return;
+
+		long expired = System.currentTimeMillis() - BASELINE_TREE_EXPIRY;
+		for (File tree : trees) {
+			if (tree.getName().endsWith(".json") && tree.lastModified() < expired) {
+				trace("delete unused baseline tree %s", tree);
+				IO.delete(tree);
+			}
+		}
+	}
+
 	// *
 
 	public void fillInLocationForPackageInfo(Location location, String packageName) throws Exception {
@@ -33,6 +33,7 @@ import aQute.lib.settings.*;
 import aQute.lib.strings.*;
 import aQute.lib.utf8properties.*;
 import aQute.lib.zip.*;
+import aQute.libg.cafs.*;
 import aQute.service.reporter.*;
 
 public class Workspace extends Processor {
@@ -54,8 +55,12 @@ public class Workspace extends Processor {
 	private boolean								offline			= true;
 	Settings									settings		= new Settings();
 	WorkspaceRepository							workspaceRepo	= new WorkspaceRepository(this);
+	final FileJournal							journal			= new FileJournal();
 	static String								overallDriver	= "unset";
 	static Parameters							overallGestalt	= new Parameters();
+	CAFS										contentStore;
+	boolean										contentStoreOpened;
+	final JarPool								jarPool			= new JarPool();
 	/**
 	 * Signal a BndListener plugin. We ran an infinite bug loop :-(
 	 */
@@ -309,6 +314,7 @@ public class Workspace extends Processor {
 	 *            The changed file
 	 */
 	public void changedFile(File f) {
+		journal.changed(f);
 		List<BndListener> listeners = getPlugins(BndListener.class);
 		for (BndListener l : listeners)
 			try {
@@ -321,6 +327,7 @@ public class Workspace extends Processor {
 	}
 
 	public void bracket(boolean begin) {
+		journal.bracket(begin);
 		List<BndListener> listeners = getPlugins(BndListener.class);
 		for (BndListener l : listeners)
 			try {
@@ -489,6 +496,41 @@ public class Workspace extends Processor {
 		return getWorkspace(file);
 	}
 
+	/**
+	 * Return the content store that the caches of this workspace share for the
+	 * files they download when -contentstore is set. Files with the same SHA-1
+	 * are then only downloaded once and share their disk space. The store is
+	 * kept in ~/.bnd/caches/cafs and can only be opened by one workspace at a
+	 * time, the others get null and work without it. The store is closed when
+	 * this workspace is closed.
+	 * 
+	 * @return the content store or null if it is not enabled or cannot be
+	 *         opened
+	 */
+	public synchronized CAFS getContentStore() {
+		if (!contentStoreOpened) {
+			contentStoreOpened = true;
+			if (isTrue(getProperty(CONTENTSTORE))) {
+				try {
+					contentStore = new CAFS(IO.getFile("~/.bnd/caches/cafs"), true);
+				}
+				catch (Exception e) {
+					trace("cannot open the content store %s", e);
+				}
+			}
+		}
+		return contentStore;
+	}
+
+	/**
+	 * Return the pool of the Jars on the classpath of the projects in this
+	 * workspace. The projects share the Jars for the repo JARs they build
+	 * against.
+	 */
+	public JarPool getJarPool() {
+		return jarPool;
+	}
+
 	public Maven getMaven() {
 		return maven;
 	}
@@ -505,11 +547,20 @@ public class Workspace extends Processor {
 				list.add(new CachedFileRepo());
 			}
 
+			//
+			// The cache dir is also the root of the cache repo, a hidden
+			// name keeps the class cache out of its listing
+			//
+			if (!isTrue(getProperty(NOCLASSCACHE))) {
+				list.add(new ClassAnalysisCache(getCache(".classes")));
+			}
+
 			resourceRepositoryImpl = new ResourceRepositoryImpl();
 			resourceRepositoryImpl.setCache(IO.getFile(getProperty(CACHEDIR, "~/.bnd/caches/shas")));
 			resourceRepositoryImpl.setExecutor(getExecutor());
 			resourceRepositoryImpl.setIndexFile(getFile(buildDir, "repo.json"));
 			resourceRepositoryImpl.setURLConnector(new MultiURLConnectionHandler(this));
+			resourceRepositoryImpl.setContentStore(getContentStore());
 			customize(resourceRepositoryImpl, null);
 			list.add(resourceRepositoryImpl);
 
@@ -773,6 +824,33 @@ public class Workspace extends Processor {
 
 	public void close() {
 		cache.remove(getPropertiesFile().getParentFile().getParentFile());
+		jarPool.close();
+		try {
+			journal.close();
+		}
+		catch (IOException e) {
+			// ignore, we stop watching anyway
+		}
+		synchronized (this) {
+			if (contentStore != null) {
+				try {
+					contentStore.close();
+				}
+				catch (IOException e) {
+					// ignore, the lock is released anyway
+				}
+				contentStore = null;
+			}
+		}
+	}
+
+	/**
+	 * Return the journal of the file states that are used to decide if the
+	 * projects in this workspace are stale. A long running host can let the
+	 * journal watch the file system, see {@link FileJournal#watch()}.
+	 */
+	public FileJournal getFileJournal() {
+		return journal;
 	}
 
 	/**
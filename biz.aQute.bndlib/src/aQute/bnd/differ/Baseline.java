@@ -70,9 +70,23 @@ public class Baseline {
 	 * @throws Exception
 	 */
 	public Set<Info> baseline(Jar newer, Jar older, Instructions packageFilters) throws Exception {
+		return baseline(newer, older, differ.tree(older), packageFilters);
+	}
+
+	/**
+	 * Compare a jar to a baseline jar of which the tree was already created,
+	 * for example because it was kept in a cache.
+	 *
+	 * @param newer
+	 * @param older
+	 * @param o the tree of the older jar
+	 * @return null if ok, otherwise a set of suggested versions for all
+	 *         packages (also the ones that were ok).
+	 * @throws Exception
+	 */
+	public Set<Info> baseline(Jar newer, Jar older, Tree o, Instructions packageFilters) throws Exception {
 		Tree n = differ.tree(newer);
 		Parameters nExports = getExports(newer);
-		Tree o = differ.tree(older);
 		Parameters oExports = getExports(older);
 		if (packageFilters == null)
 			packageFilters = new Instructions();
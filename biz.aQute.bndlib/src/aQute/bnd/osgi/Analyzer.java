@@ -26,6 +26,8 @@ import java.net.*;
 import java.text.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.jar.*;
 import java.util.jar.Attributes.Name;
 import java.util.regex.*;
@@ -2227,6 +2229,20 @@ public class Analyzer extends Processor {
 	private boolean analyzeJar(Jar jar, String prefix, boolean okToIncludeDirs) throws Exception {
 		Map<String,Clazz> mismatched = new HashMap<String,Clazz>();
 
+		List<String> classPaths = new ArrayList<String>();
+		for (String path : jar.getResources().keySet()) {
+			if (path.startsWith(prefix) && path.endsWith(".class"))
+				classPaths.add(path);
+		}
+		Clazz[] classes = new Clazz[classPaths.size()];
+		Throwable[] failures = new Throwable[classPaths.size()];
+		for (int i = 0; i < classes.length; i++) {
+			String path = classPaths.get(i);
+			classes[i] = new Clazz(this, path, jar.getResource(path));
+		}
+		parseClasses(classes, failures);
+
+		int index = 0;
 		next: for (String path : jar.getResources().keySet()) {
 			if (path.startsWith(prefix)) {
 
@@ -2244,20 +2260,11 @@ public class Analyzer extends Processor {
 
 				// Check class resources, we need to analyze them
 				if (path.endsWith(".class")) {
-					Resource resource = jar.getResource(path);
-					Clazz clazz;
+					Clazz clazz = classes[index];
+					Throwable e = failures[index];
+					index++;
 
-					try {
-						InputStream in = resource.openInputStream();
-						clazz = new Clazz(this, path, resource);
-						try {
-							clazz.parseClassFile();
-						}
-						finally {
-							in.close();
-						}
-					}
-					catch (Throwable e) {
+					if (e != null) {
 						error("Invalid class file %s (%s)", e, relativePath, e);
 						continue next;
 					}
@@ -2297,6 +2304,93 @@ public class Analyzer extends Processor {
 		return true;
 	}
 
+	/**
+	 * Parse the given classes. Depending on the {@link #PARALLELANALYSIS}
+	 * instruction the classes are parsed on several threads. A parser only
+	 * touches its own Clazz and the (synchronized) descriptor caches, the
+	 * outcome of the class at index i is stored in classes[i] or failures[i].
+	 * The caller merges the results in the resource order so the analysis
+	 * does not depend on the timing of the threads.
+	 */
+	private void parseClasses(final Clazz[] classes, final Throwable[] failures) throws Exception {
+		final ClassAnalysisCache cache = getPlugin(ClassAnalysisCache.class);
+		int threads = Math.min(getAnalysisThreads(), classes.length);
+		if (threads <= 1) {
+			for (int i = 0; i < classes.length; i++)
+				parseClass(classes, failures, i, cache);
+			return;
+		}
+
+		trace("parsing %s classes on %s threads", classes.length, threads);
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Object>> workers = new ArrayList<Callable<Object>>(threads);
+		for (int t = 0; t < threads; t++) {
+			workers.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					int i;
+					while ((i = next.getAndIncrement()) < classes.length)
+						parseClass(classes, failures, i, cache);
+					return null;
+				}
+			});
+		}
+		for (Future<Object> f : executor.invokeAll(workers))
+			f.get();
+	}
+
+	private static void parseClass(Clazz[] classes, Throwable[] failures, int i, ClassAnalysisCache cache) {
+		try {
+			parseClass(classes[i], cache);
+		}
+		catch (Throwable e) {
+			failures[i] = e;
+		}
+	}
+
+	/**
+	 * Parse a class without collector, when a {@link ClassAnalysisCache} is
+	 * available the analysis of an earlier parse of the same bytes is reused.
+	 */
+	private static void parseClass(Clazz clazz, ClassAnalysisCache cache) throws Exception {
+		if (cache == null)
+			clazz.parseClassFile();
+		else
+			cache.parse(clazz);
+	}
+
+	/**
+	 * The number of threads used to parse the classes. The
+	 * {@link #PARALLELANALYSIS} instruction can be set to a number of threads,
+	 * or to true or false. Defaults to the number of processors.
+	 */
+	int getAnalysisThreads() {
+		return getThreads(PARALLELANALYSIS);
+	}
+
+	/**
+	 * The number of threads set by an instruction that can be a number of
+	 * threads, or true or false. Defaults to the number of processors.
+	 */
+	int getThreads(String instruction) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		String threads = getProperty(instruction);
+		if (threads == null)
+			return processors;
+
+		threads = threads.trim();
+		if (threads.isEmpty() || threads.equalsIgnoreCase("true"))
+			return processors;
+		if (threads.equalsIgnoreCase("false"))
+			return 1;
+		try {
+			return Math.max(1, Integer.parseInt(threads));
+		}
+		catch (NumberFormatException e) {
+			error("%s must be a number of threads or true/false, is %s", instruction, threads);
+			return 1;
+		}
+	}
+
 	/**
 	 * Clean up version parameters. Other builders use more fuzzy definitions of
 	 * the version syntax. This method cleans up such a version to match an OSGi
@@ -2614,7 +2708,7 @@ public class Analyzer extends Processor {
 		}
 		if (r != null) {
 			c = new Clazz(this, typeRef.getPath(), r);
-			c.parseClassFile();
+			parseClass(c, getPlugin(ClassAnalysisCache.class));
 			importedClassesCache.put(typeRef, c);
 		}
 		return c;
@@ -22,6 +22,14 @@ public class Annotation {
 		this.policy = policy;
 	}
 
+	/*
+	 * A copy with its own elements
+	 */
+	Annotation(Annotation annotation) {
+		this(annotation.name, annotation.elements == null ? null : new LinkedHashMap<String,Object>(
+				annotation.elements), annotation.member, annotation.policy);
+	}
+
 	public TypeRef getName() {
 		return name;
 	}
@@ -3,6 +3,8 @@ package aQute.bnd.osgi;
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.jar.*;
 import java.util.regex.*;
 import java.util.zip.*;
@@ -136,6 +138,7 @@ public class Builder extends Analyzer {
 		dot.setName(getBsn());
 
 		doDigests(dot);
+		dot.setWriteThreads(getThreads(PARALLELWRITE));
 
 		sign(dot);
 		doSaveManifest(dot);
@@ -1259,6 +1262,10 @@ public class Builder extends Analyzer {
 
 		builders = getSubBuilders();
 
+		int threads = Math.min(getSubThreads(), builders.size());
+		if (threads > 1)
+			return builds(builders, threads);
+
 		for (Builder builder : builders) {
 			try {
 				startBuild(builder);
@@ -1277,6 +1284,77 @@ public class Builder extends Analyzer {
 		return result.toArray(new Jar[result.size()]);
 	}
 
+	/**
+	 * Build the sub builders on several threads. The sub builders only share
+	 * what they read: the properties and plugins of this builder and the jars
+	 * on the classpath. Each sub builder collects its own errors and warnings,
+	 * they are added to this builder in the order of the sub builders after
+	 * all are built, so the outcome does not depend on the timing of the
+	 * threads.
+	 */
+	private Jar[] builds(final List<Builder> builders, int threads) throws Exception {
+		trace("building %s sub bundles on %s threads", builders.size(), threads);
+
+		//
+		// Initialize the lazily created state that the sub builders share
+		// before they start
+		//
+		getPlugins();
+		getClasspath();
+
+		final Jar[] jars = new Jar[builders.size()];
+		for (Builder builder : builders)
+			startBuild(builder);
+
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Object>> workers = new ArrayList<Callable<Object>>(threads);
+		for (int t = 0; t < threads; t++) {
+			workers.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					int i;
+					while ((i = next.getAndIncrement()) < jars.length) {
+						Builder builder = builders.get(i);
+						try {
+							Jar jar = builder.build();
+							jar.setName(builder.getBsn());
+							jars[i] = jar;
+						}
+						catch (Exception e) {
+							builder.error("Sub Building " + builder.getBsn(), e);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Object> f : executor.invokeAll(workers))
+			f.get();
+
+		List<Jar> result = new ArrayList<Jar>();
+		for (int i = 0; i < jars.length; i++) {
+			Builder builder = builders.get(i);
+			if (jars[i] != null) {
+				result.add(jars[i]);
+				doneBuild(builder);
+			}
+			if (builder != this)
+				getInfo(builder, builder.getBsn() + ": ");
+		}
+		return result.toArray(new Jar[result.size()]);
+	}
+
+	/**
+	 * The number of threads used to build the sub bundles. The
+	 * {@link #PARALLELSUB} instruction can be set to a number of threads, or
+	 * to true or false. Defaults to 1 since plugins and macros of older
+	 * workspaces might not expect to be called from several threads.
+	 */
+	int getSubThreads() {
+		if (getProperty(PARALLELSUB) == null)
+			return 1;
+		return getThreads(PARALLELSUB);
+	}
+
 	/**
 	 * Called when we start to build a builder
 	 */
@@ -0,0 +1,309 @@
+package aQute.bnd.osgi;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import aQute.bnd.osgi.Descriptors.PackageRef;
+import aQute.bnd.osgi.Descriptors.TypeRef;
+import aQute.lib.io.*;
+import aQute.libg.cryptography.*;
+
+/**
+ * A persistent cache of the analysis of class files. Parsing a class without a
+ * collector only depends on the bytes of the class, so the outcome (the class
+ * name, super class, interfaces, referred and API packages, annotations, etc.)
+ * is stored in a file named after the SHA-1 of the class bytes. Builds of
+ * other projects, or later builds of the same project, that see the same class
+ * (for example from a repository jar on the -buildpath) then restore the Clazz
+ * from this file instead of parsing it.
+ * <p>
+ * The workspace registers this cache as plugin, the {@link Analyzer} uses it
+ * when it is found. Parsing with a {@link ClassDataCollector} always goes to
+ * the class file.
+ * <p>
+ * The cache holds at most a maximum number of files. A file is touched when it
+ * is used, so when the cache is full the files that were not used for the
+ * longest time are deleted, see {@link #prune()}.
+ */
+public class ClassAnalysisCache {
+	/*
+	 * Must be changed when the parser changes what it records or when the
+	 * format of the cache files changes.
+	 */
+	final static int			VERSION			= 1;
+	final static int			MAX_ENTRIES		= 50000;
+
+	/*
+	 * Prune after this many new files, and only touch a used file when it is
+	 * older than a day, so the cache costs no extra file system operations
+	 * for most classes
+	 */
+	final static int			PRUNE_INTERVAL	= 1000;
+	final static long			TOUCH_INTERVAL	= 24 * 60 * 60 * 1000L;
+
+	final File					dir;
+	final int					maxEntries;
+	private final AtomicInteger	writes			= new AtomicInteger();
+	private final AtomicBoolean	pruning			= new AtomicBoolean();
+
+	public ClassAnalysisCache(File dir) {
+		this(dir, MAX_ENTRIES);
+	}
+
+	public ClassAnalysisCache(File dir, int maxEntries) {
+		this.dir = dir;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Parse the class file of the given Clazz without collector, or restore
+	 * the result of an earlier parse of the same bytes.
+	 *
+	 * @return the referred types, like {@link Clazz#parseClassFile()}
+	 */
+	public Set<TypeRef> parse(Clazz clazz) throws Exception {
+		byte[] data = IO.read(clazz.resource.openInputStream());
+		String sha = SHA1.digest(data).asHex();
+		File file = new File(dir, sha.substring(0, 2) + "/" + sha.substring(2));
+
+		long modified = file.lastModified();
+		if (modified != 0) {
+			try {
+				Set<TypeRef> xref = read(clazz, file);
+				long now = System.currentTimeMillis();
+				if (now - modified > TOUCH_INTERVAL)
+					file.setLastModified(now);
+				return xref;
+			}
+			catch (Exception e) {
+				// Corrupt or written by another version, parse again
+				// and overwrite it
+			}
+		}
+
+		Set<TypeRef> xref = clazz.parseClassFile(ByteBuffer.wrap(data));
+		try {
+			write(clazz, xref, file);
+			if (writes.getAndIncrement() % PRUNE_INTERVAL == 0)
+				prune();
+		}
+		catch (Exception e) {
+			// The cache is an optimization, not being able to write it
+			// must not fail the build
+		}
+		return xref;
+	}
+
+	/**
+	 * Delete the files that were not used for the longest time when the cache
+	 * holds more than its maximum number of files. The cache is pruned to
+	 * three quarters of its maximum so it is not pruned again on the next
+	 * new class. This is called when new files are written, it can also be
+	 * called to clean up the cache.
+	 */
+	public void prune() {
+		if (!pruning.compareAndSet(false, true))
+			return;
+
+		try {
+			File[] subdirs = dir.listFiles();
+			if (subdirs == null)
+				return;
+
+			List<File> files = new ArrayList<File>();
+			for (File subdir : subdirs) {
+				File[] entries = subdir.listFiles();
+				if (entries == null)
+					continue;
+
+				for (File entry : entries) {
+					// skip the files that are being written
+					if (!entry.getName().endsWith(".tmp"))
+						files.add(entry);
+				}
+			}
+			if (files.size() <= maxEntries)
+				return;
+
+			final Map<File,Long> used = new HashMap<File,Long>();
+			for (File file : files)
+				used.put(file, file.lastModified());
+
+			Collections.sort(files, new Comparator<File>() {
+				public int compare(File a, File b) {
+					return used.get(a).compareTo(used.get(b));
+				}
+			});
+
+			int remove = files.size() - maxEntries * 3 / 4;
+			for (int i = 0; i < remove; i++)
+				IO.delete(files.get(i));
+		}
+		finally {
+			pruning.set(false);
+		}
+	}
+
+	private Set<TypeRef> read(Clazz clazz, File file) throws Exception {
+		Analyzer analyzer = clazz.analyzer;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != VERSION)
+				throw new IOException("Invalid version for class cache file " + file);
+
+			TypeRef className = analyzer.getTypeRef(in.readUTF());
+			String zuper = readString(in);
+			TypeRef[] interfaces = null;
+			int n = in.readInt();
+			if (n >= 0) {
+				interfaces = new TypeRef[n];
+				for (int i = 0; i < n; i++)
+					interfaces[i] = analyzer.getTypeRef(in.readUTF());
+			}
+			int accessx = in.readInt();
+			int minor = in.readInt();
+			int major = in.readInt();
+			boolean hasRuntimeAnnotations = in.readBoolean();
+			boolean hasClassAnnotations = in.readBoolean();
+			boolean hasDefaultConstructor = in.readBoolean();
+			String classSignature = readString(in);
+			String sourceFile = readString(in);
+			Set<PackageRef> imports = readPackages(analyzer, in);
+			Set<PackageRef> api = readPackages(analyzer, in);
+			Set<TypeRef> xref = readTypes(analyzer, in);
+			Set<TypeRef> annotations = readTypes(analyzer, in);
+
+			//
+			// Only update the clazz when the whole file could be read
+			//
+
+			clazz.className = className;
+			clazz.zuper = zuper == null ? null : analyzer.getTypeRef(zuper);
+			clazz.interfaces = interfaces;
+			clazz.accessx = accessx;
+			clazz.minor = minor;
+			clazz.major = major;
+			clazz.hasRuntimeAnnotations = hasRuntimeAnnotations;
+			clazz.hasClassAnnotations = hasClassAnnotations;
+			clazz.hasDefaultConstructor = hasDefaultConstructor;
+			clazz.classSignature = classSignature;
+			clazz.sourceFile = sourceFile;
+			clazz.imports.addAll(imports);
+			clazz.api = api;
+			clazz.annotations = annotations;
+			return xref;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void write(Clazz clazz, Set<TypeRef> xref, File file) throws Exception {
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Cannot create class cache directory " + parent);
+
+		//
+		// Write to a temporary file and rename it so concurrent builds
+		// never see a partial file
+		//
+
+		File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(VERSION);
+				out.writeUTF(clazz.className.getBinary());
+				writeString(out, clazz.zuper == null ? null : clazz.zuper.getBinary());
+				if (clazz.interfaces == null)
+					out.writeInt(-1);
+				else {
+					out.writeInt(clazz.interfaces.length);
+					for (TypeRef tr : clazz.interfaces)
+						out.writeUTF(tr.getBinary());
+				}
+				out.writeInt(clazz.accessx);
+				out.writeInt(clazz.minor);
+				out.writeInt(clazz.major);
+				out.writeBoolean(clazz.hasRuntimeAnnotations);
+				out.writeBoolean(clazz.hasClassAnnotations);
+				out.writeBoolean(clazz.hasDefaultConstructor);
+				writeString(out, clazz.classSignature);
+				writeString(out, clazz.sourceFile);
+				writePackages(out, clazz.imports);
+				writePackages(out, clazz.api);
+				writeTypes(out, xref);
+				writeTypes(out, clazz.annotations);
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file) && !file.isFile())
+				throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		if (in.readBoolean())
+			return in.readUTF();
+		return null;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static Set<PackageRef> readPackages(Analyzer analyzer, DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n < 0)
+			return null;
+
+		Set<PackageRef> set = new HashSet<PackageRef>();
+		for (int i = 0; i < n; i++)
+			set.add(analyzer.getPackageRef(in.readUTF()));
+		return set;
+	}
+
+	private static void writePackages(DataOutputStream out, Set<PackageRef> set) throws IOException {
+		if (set == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(set.size());
+		for (PackageRef ref : set)
+			out.writeUTF(ref.getBinary());
+	}
+
+	private static Set<TypeRef> readTypes(Analyzer analyzer, DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n < 0)
+			return null;
+
+		Set<TypeRef> set = new HashSet<TypeRef>();
+		for (int i = 0; i < n; i++)
+			set.add(analyzer.getTypeRef(in.readUTF()));
+		return set;
+	}
+
+	private static void writeTypes(DataOutputStream out, Set<TypeRef> set) throws IOException {
+		if (set == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(set.size());
+		for (TypeRef ref : set)
+			out.writeUTF(ref.getBinary());
+	}
+
+	@Override
+	public String toString() {
+		return "ClassAnalysisCache[" + dir + "]";
+	}
+}
@@ -0,0 +1,287 @@
+package aQute.bnd.osgi;
+
+import java.util.*;
+
+import aQute.bnd.osgi.Clazz.FieldDef;
+import aQute.bnd.osgi.Clazz.MethodDef;
+import aQute.bnd.osgi.Descriptors.PackageRef;
+import aQute.bnd.osgi.Descriptors.TypeRef;
+
+/**
+ * Records the events of parsing a class file with a collector so they can be
+ * replayed to the next collectors without reading and parsing the class file
+ * again. The analyzer, the DS and metatype annotation plugins, the make plugins
+ * and the differ each parse the classes with their own collector, with a
+ * recording the bytes of a class are only parsed once.
+ * <p>
+ * A replay calls the collector in the same order as the parser would,
+ * including stopping after {@link ClassDataCollector#classStart(Clazz)} returns
+ * false and always ending with {@link ClassDataCollector#classEnd()}. Each
+ * collector gets its own copy of the annotations since some collectors add
+ * values to them. The parser sets the signature and constant of the last field
+ * or method after it was reported, so only the name, descriptor and access of
+ * a member are recorded and each replay creates its own member that gets the
+ * signature and constant at the same events as in a parse.
+ */
+class ClassDataRecorder extends ClassDataCollector {
+	private static final int	VERSION					= 0;
+	private static final int	CLASS_START				= 1;
+	private static final int	EXTENDS_CLASS			= 2;
+	private static final int	IMPLEMENTS_INTERFACES	= 3;
+	private static final int	ADD_REFERENCE			= 4;
+	private static final int	ANNOTATION				= 5;
+	private static final int	PARAMETER				= 6;
+	private static final int	METHOD					= 7;
+	private static final int	FIELD					= 8;
+	private static final int	DEPRECATED				= 9;
+	private static final int	ENCLOSING_METHOD		= 10;
+	private static final int	INNER_CLASS				= 11;
+	private static final int	SIGNATURE				= 12;
+	private static final int	CONSTANT				= 13;
+	private static final int	MEMBER_END				= 14;
+	private static final int	REFERENCE_METHOD		= 15;
+	private static final int	REFER_TO				= 16;
+	private static final int	ANNOTATION_DEFAULT		= 17;
+
+	static class Event {
+		final int		type;
+		final int		n;
+		final Object	a;
+		final Object	b;
+		final Object	c;
+
+		Event(int type, int n, Object a, Object b, Object c) {
+			this.type = type;
+			this.n = n;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+	}
+
+	private final List<Event>	events	= new ArrayList<Event>();
+	private Set<TypeRef>		xref;
+	private Set<PackageRef>		api;
+	private Set<PackageRef>		imports;
+
+	/**
+	 * Parse the class and record its events.
+	 *
+	 * @return the recording or null if the class could not be parsed
+	 */
+	static ClassDataRecorder record(Clazz clazz) {
+		ClassDataRecorder recorder = new ClassDataRecorder();
+		try {
+			recorder.xref = clazz.parseClassFile(clazz.resource.openInputStream(), recorder);
+		}
+		catch (Exception e) {
+			return null;
+		}
+		recorder.api = clazz.api == null ? null : new HashSet<PackageRef>(clazz.api);
+		recorder.imports = new HashSet<PackageRef>(clazz.imports);
+		((ArrayList<Event>) recorder.events).trimToSize();
+		return recorder;
+	}
+
+	/**
+	 * Replay the recorded events to a collector. The clazz gets the state it
+	 * would have after parsing it with a collector.
+	 *
+	 * @return the references of the class, like
+	 *         {@link Clazz#parseClassFileWithCollector(ClassDataCollector)}
+	 */
+	Set<TypeRef> replay(Clazz clazz, ClassDataCollector cd) throws Exception {
+		clazz.api = api == null ? null : new HashSet<PackageRef>(api);
+		clazz.imports.addAll(imports);
+
+		boolean started = false;
+		FieldDef last = null;
+		try {
+			for (Event e : events) {
+				switch (e.type) {
+					case VERSION :
+						cd.version(e.n, (Integer) e.a);
+						break;
+
+					case CLASS_START :
+						started = true;
+						if (!cd.classStart(clazz))
+							return null;
+						break;
+
+					case EXTENDS_CLASS :
+						cd.extendsClass((TypeRef) e.a);
+						break;
+
+					case IMPLEMENTS_INTERFACES :
+						cd.implementsInterfaces((TypeRef[]) e.a);
+						break;
+
+					case ADD_REFERENCE :
+						cd.addReference((TypeRef) e.a);
+						break;
+
+					case ANNOTATION :
+						cd.annotation(new Annotation((Annotation) e.a));
+						break;
+
+					case PARAMETER :
+						cd.parameter(e.n);
+						break;
+
+					case METHOD :
+						MethodDef mdef = clazz.new MethodDef(e.n, (String) e.a, (String) e.b);
+						last = mdef;
+						cd.method(mdef);
+						break;
+
+					case FIELD :
+						last = clazz.new FieldDef(e.n, (String) e.a, (String) e.b);
+						cd.field(last);
+						break;
+
+					case DEPRECATED :
+						cd.deprecated();
+						break;
+
+					case ENCLOSING_METHOD :
+						cd.enclosingMethod((TypeRef) e.a, (String) e.b, (String) e.c);
+						break;
+
+					case INNER_CLASS :
+						cd.innerClass((TypeRef) e.a, (TypeRef) e.b, (String) e.c, e.n);
+						break;
+
+					case SIGNATURE :
+						if (last != null)
+							last.signature = (String) e.a;
+						cd.signature((String) e.a);
+						break;
+
+					case CONSTANT :
+						last.constant = e.a;
+						cd.constant(e.a);
+						break;
+
+					case MEMBER_END :
+						last = null;
+						cd.memberEnd();
+						break;
+
+					case REFERENCE_METHOD :
+						cd.referenceMethod(e.n, (TypeRef) e.a, (String) e.b, (String) e.c);
+						break;
+
+					case REFER_TO :
+						cd.referTo((TypeRef) e.a, e.n);
+						break;
+
+					case ANNOTATION_DEFAULT :
+						last.constant = e.a instanceof Annotation ? new Annotation((Annotation) e.a) : e.a;
+						cd.annotationDefault((MethodDef) last);
+						break;
+				}
+			}
+			return xref == null ? null : new HashSet<TypeRef>(xref);
+		}
+		finally {
+			if (started)
+				cd.classEnd();
+		}
+	}
+
+	private void add(int type, int n, Object a, Object b, Object c) {
+		events.add(new Event(type, n, a, b, c));
+	}
+
+	@Override
+	public void version(int minor, int major) {
+		add(VERSION, minor, major, null, null);
+	}
+
+	@Override
+	public boolean classStart(Clazz clazz) {
+		add(CLASS_START, 0, null, null, null);
+		return true;
+	}
+
+	@Override
+	public void extendsClass(TypeRef zuper) {
+		add(EXTENDS_CLASS, 0, zuper, null, null);
+	}
+
+	@Override
+	public void implementsInterfaces(TypeRef[] interfaces) {
+		add(IMPLEMENTS_INTERFACES, 0, interfaces, null, null);
+	}
+
+	@Override
+	public void addReference(TypeRef ref) {
+		add(ADD_REFERENCE, 0, ref, null, null);
+	}
+
+	@Override
+	public void annotation(Annotation annotation) {
+		add(ANNOTATION, 0, annotation, null, null);
+	}
+
+	@Override
+	public void parameter(int p) {
+		add(PARAMETER, p, null, null, null);
+	}
+
+	@Override
+	public void method(MethodDef defined) {
+		add(METHOD, defined.getAccess(), defined.getName(), defined.getDescriptor().toString(), null);
+	}
+
+	@Override
+	public void field(FieldDef defined) {
+		add(FIELD, defined.getAccess(), defined.getName(), defined.getDescriptor().toString(), null);
+	}
+
+	@Override
+	public void deprecated() {
+		add(DEPRECATED, 0, null, null, null);
+	}
+
+	@Override
+	public void enclosingMethod(TypeRef cName, String mName, String mDescriptor) {
+		add(ENCLOSING_METHOD, 0, cName, mName, mDescriptor);
+	}
+
+	@Override
+	public void innerClass(TypeRef innerClass, TypeRef outerClass, String innerName, int innerClassAccessFlags) {
+		add(INNER_CLASS, innerClassAccessFlags, innerClass, outerClass, innerName);
+	}
+
+	@Override
+	public void signature(String signature) {
+		add(SIGNATURE, 0, signature, null, null);
+	}
+
+	@Override
+	public void constant(Object object) {
+		add(CONSTANT, 0, object, null, null);
+	}
+
+	@Override
+	public void memberEnd() {
+		add(MEMBER_END, 0, null, null, null);
+	}
+
+	@Override
+	public void referenceMethod(int access, TypeRef className, String method, String descriptor) {
+		add(REFERENCE_METHOD, access, className, method, descriptor);
+	}
+
+	@Override
+	public void referTo(TypeRef typeRef, int modifiers) {
+		add(REFER_TO, modifiers, typeRef, null, null);
+	}
+
+	@Override
+	public void annotationDefault(MethodDef last) {
+		add(ANNOTATION_DEFAULT, 0, last.getConstant(), null, null);
+	}
+}
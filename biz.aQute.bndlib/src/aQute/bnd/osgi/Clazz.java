@@ -10,6 +10,7 @@ import java.util.regex.*;
 import aQute.bnd.osgi.Descriptors.Descriptor;
 import aQute.bnd.osgi.Descriptors.PackageRef;
 import aQute.bnd.osgi.Descriptors.TypeRef;
+import aQute.lib.io.*;
 import aQute.lib.utf8properties.*;
 import aQute.libg.generics.*;
 
@@ -26,7 +27,7 @@ public class Clazz {
 		}
 
 		public String getName() {
-			return (String) pool[cname];
+			return utf8(cname);
 		}
 
 		public String toString() {
@@ -444,6 +445,8 @@ public class Clazz {
 	TypeRef									className;
 	Object									pool[];
 	int										intPool[];
+	byte									tags[];
+	ByteBuffer								classFile;
 	Set<PackageRef>							imports			= Create.set();
 	String									path;
 	int										minor			= 0;
@@ -466,6 +469,7 @@ public class Clazz {
 	String									classSignature;
 
 	private boolean							detectLdc;
+	private ClassDataRecorder				recording;
 
 	public Clazz(Analyzer analyzer, String path, Resource resource) {
 		this.path = path;
@@ -481,7 +485,19 @@ public class Clazz {
 		return parseClassFile(in, null);
 	}
 
+	/**
+	 * Parse the class file with a collector. The first parse with a collector
+	 * is recorded, later collectors get the recorded events replayed so the
+	 * class file is only read and parsed once.
+	 */
 	public Set<TypeRef> parseClassFileWithCollector(ClassDataCollector cd) throws Exception {
+		if (cd != null) {
+			if (recording == null)
+				recording = ClassDataRecorder.record(this);
+			if (recording != null)
+				return recording.replay(this, cd);
+		}
+
 		InputStream in = resource.openInputStream();
 		try {
 			return parseClassFile(in, cd);
@@ -492,81 +508,113 @@ public class Clazz {
 	}
 
 	public Set<TypeRef> parseClassFile(InputStream in, ClassDataCollector cd) throws Exception {
-		DataInputStream din = new DataInputStream(in);
 		try {
 			this.cd = cd;
-			return parseClassFile(din);
+			long size = resource == null ? -1 : resource.size();
+			byte[] data = size > 0 && size <= MAX_SIZE_HINT ? read(in, (int) size) : IO.read(in);
+			return parseClassFile(ByteBuffer.wrap(data));
 		}
 		finally {
 			cd = null;
-			din.close();
+			in.close();
+		}
+	}
+
+	/**
+	 * Larger sizes reported by a resource are not trusted, the class file is
+	 * then read without a size hint.
+	 */
+	private static final int	MAX_SIZE_HINT	= 16 * 1024 * 1024;
+
+	/**
+	 * Read the class file in a buffer of the expected size, the stream can
+	 * still be longer or shorter than expected.
+	 */
+	private static byte[] read(InputStream in, int size) throws IOException {
+		byte[] data = new byte[size];
+		int length = 0;
+		int n;
+		while ((n = in.read(data, length, data.length - length)) > 0) {
+			length += n;
+			if (length == data.length) {
+				int next = in.read();
+				if (next < 0)
+					return data;
+				data = Arrays.copyOf(data, data.length * 2);
+				data[length++] = (byte) next;
+			}
 		}
+		return Arrays.copyOf(data, length);
 	}
 
-	Set<TypeRef> parseClassFile(DataInputStream in) throws Exception {
+	/**
+	 * Parse the class file in the buffer. The constant pool is not
+	 * materialized, for each entry only its tag and an int are recorded. For
+	 * UTF8 entries this int is the offset in the buffer, their strings are
+	 * only decoded when they are actually used. For class, field/method ref
+	 * and name and type entries it holds the indexes in the pool. See
+	 * {@link #utf8(int)}, {@link #constant(int)}.
+	 */
+	Set<TypeRef> parseClassFile(ByteBuffer in) throws Exception {
 		xref = new HashSet<TypeRef>();
+		classFile = in;
 
 		boolean crawl = cd != null; // Crawl the byte code if we have a
 		// collector
-		int magic = in.readInt();
+		int magic = in.getInt();
 		if (magic != 0xCAFEBABE)
 			throw new IOException("Not a valid class file (no CAFEBABE header)");
 
-		minor = in.readUnsignedShort(); // minor version
-		major = in.readUnsignedShort(); // major version
+		minor = 0xFFFF & in.getShort(); // minor version
+		major = 0xFFFF & in.getShort(); // major version
 		if (cd != null)
 			cd.version(minor, major);
-		int count = in.readUnsignedShort();
+		int count = 0xFFFF & in.getShort();
 		pool = new Object[count];
 		intPool = new int[count];
+		tags = new byte[count];
 
 		process: for (int poolIndex = 1; poolIndex < count; poolIndex++) {
-			byte tag = in.readByte();
+			byte tag = in.get();
+			tags[poolIndex] = tag;
 			switch (tag) {
 				case 0 :
 					break process;
-				case 1 :
-					constantUtf8(in, poolIndex);
-					break;
 
-				case 3 :
-					constantInteger(in, poolIndex);
+				case 1 : // Utf8, keep the offset of the length
+					intPool[poolIndex] = in.position();
+					in.position(in.position() + 2 + (0xFFFF & in.getShort()));
 					break;
 
-				case 4 :
-					constantFloat(in, poolIndex);
+				case 3 : // Integer
+					intPool[poolIndex] = in.getInt();
 					break;
 
 				// For some insane optimization reason are
 				// the long and the double two entries in the
 				// constant pool. See 4.4.5
-				case 5 :
-					constantLong(in, poolIndex);
+				case 5 : // Long
+				case 6 : // Double
+					intPool[poolIndex] = in.position();
+					in.position(in.position() + 8);
 					poolIndex++;
 					break;
 
-				case 6 :
-					constantDouble(in, poolIndex);
-					poolIndex++;
+				case 4 : // Float
+					intPool[poolIndex] = in.position();
+					in.position(in.position() + 4);
 					break;
 
-				case 7 :
-					constantClass(in, poolIndex);
-					break;
-
-				case 8 :
-					constantString(in, poolIndex);
+				case 7 : // Class
+				case 8 : // String
+					intPool[poolIndex] = 0xFFFF & in.getShort();
 					break;
 
 				case 9 : // Field ref
 				case 10 : // Method ref
 				case 11 : // Interface Method ref
-					ref(in, poolIndex);
-					break;
-
-				// Name and Type
-				case 12 :
-					nameAndType(in, poolIndex, tag);
+				case 12 : // Name and Type
+					intPool[poolIndex] = in.getInt();
 					break;
 
 				case 18 : // TODO Invoke dynamic
@@ -575,9 +623,9 @@ public class Clazz {
 					// from the SkipTable. This will also automatically
 					// abort when
 				default :
-					if (tag == 2)
+					if (tag == 2 || SkipTable[tag] < 0)
 						throw new IOException("Invalid tag " + tag);
-					in.skipBytes(SkipTable[tag]);
+					in.position(in.position() + SkipTable[tag]);
 					break;
 			}
 		}
@@ -587,25 +635,17 @@ public class Clazz {
 		// All name& type and class constant records contain descriptors we must
 		// treat
 		// as references, though not API
-		int index = -1;
-		for (Object o : pool) {
-			index++;
-			if (o == null)
-				continue;
+		for (int index = 1; index < count; index++) {
+			switch (tags[index]) {
+				case 9 :
+				case 10 :
+				case 11 :
+					classConstRef(intPool[index] >>> 16);
+					break;
 
-			if (o instanceof Assoc) {
-				Assoc assoc = (Assoc) o;
-				switch (assoc.tag) {
-					case 9 :
-					case 10 :
-					case 11 :
-						classConstRef(assoc.a);
-						break;
-
-					case 12 :
-						referTo(assoc.b, 0); // Descriptor
-						break;
-				}
+				case 12 :
+					referTo(0xFFFF & intPool[index], 0); // Descriptor
+					break;
 			}
 		}
 
@@ -615,14 +655,9 @@ public class Clazz {
 		// is not referenced by fieldrefs, method refs, or other
 		// refs then we need to crawl the byte code.
 		//
-		index = -1;
-		for (Object o : pool) {
-			index++;
-			if (o instanceof ClassConstant) {
-				ClassConstant cc = (ClassConstant) o;
-				if (cc.referred == false)
-					detectLdc = true;
-			}
+		for (int index = 1; index < count; index++) {
+			if (tags[index] == 7 && pool[index] == null)
+				detectLdc = true;
 		}
 
 		/*
@@ -630,12 +665,12 @@ public class Clazz {
 		 * Falkenberg
 		 */
 
-		accessx = in.readUnsignedShort(); // access
+		accessx = 0xFFFF & in.getShort(); // access
 		if (Modifier.isPublic(accessx))
 			api = new HashSet<PackageRef>();
 
-		int this_class = in.readUnsignedShort();
-		className = analyzer.getTypeRef((String) pool[intPool[this_class]]);
+		int this_class = 0xFFFF & in.getShort();
+		className = analyzer.getTypeRef(utf8(intPool[this_class]));
 		referTo(className, Modifier.PUBLIC);
 
 		try {
@@ -645,8 +680,8 @@ public class Clazz {
 					return null;
 			}
 
-			int super_class = in.readUnsignedShort();
-			String superName = (String) pool[intPool[super_class]];
+			int super_class = 0xFFFF & in.getShort();
+			String superName = utf8(intPool[super_class]);
 			if (superName != null) {
 				zuper = analyzer.getTypeRef(superName);
 			}
@@ -657,22 +692,22 @@ public class Clazz {
 					cd.extendsClass(zuper);
 			}
 
-			int interfacesCount = in.readUnsignedShort();
+			int interfacesCount = 0xFFFF & in.getShort();
 			if (interfacesCount > 0) {
 				interfaces = new TypeRef[interfacesCount];
 				for (int i = 0; i < interfacesCount; i++) {
-					interfaces[i] = analyzer.getTypeRef((String) pool[intPool[in.readUnsignedShort()]]);
+					interfaces[i] = analyzer.getTypeRef(utf8(intPool[0xFFFF & in.getShort()]));
 					referTo(interfaces[i], accessx);
 				}
 				if (cd != null)
 					cd.implementsInterfaces(interfaces);
 			}
 
-			int fieldsCount = in.readUnsignedShort();
+			int fieldsCount = 0xFFFF & in.getShort();
 			for (int i = 0; i < fieldsCount; i++) {
-				int access_flags = in.readUnsignedShort(); // skip access flags
-				int name_index = in.readUnsignedShort();
-				int descriptor_index = in.readUnsignedShort();
+				int access_flags = 0xFFFF & in.getShort(); // skip access flags
+				int name_index = 0xFFFF & in.getShort();
+				int descriptor_index = 0xFFFF & in.getShort();
 
 				// Java prior to 1.5 used a weird
 				// static variable to hold the com.X.class
@@ -684,12 +719,11 @@ public class Clazz {
 				// class name for the field type, so bnd
 				// would not see a reference. We detect
 				// this case and add an artificial descriptor
-				String name = pool[name_index].toString(); // name_index
-				if (name.startsWith("class$") || name.startsWith("$class$")) {
+				if (utf8StartsWith(name_index, "class$") || utf8StartsWith(name_index, "$class$")) {
 					crawl = true;
 				}
 				if (cd != null)
-					cd.field(last = new FieldDef(access_flags, name, pool[descriptor_index].toString()));
+					cd.field(last = new FieldDef(access_flags, utf8(name_index), utf8(descriptor_index)));
 
 				referTo(descriptor_index, access_flags);
 				doAttributes(in, ElementType.FIELD, false, access_flags);
@@ -725,23 +759,21 @@ public class Clazz {
 			//
 			// Handle the methods
 			//
-			int methodCount = in.readUnsignedShort();
+			int methodCount = 0xFFFF & in.getShort();
 			for (int i = 0; i < methodCount; i++) {
-				int access_flags = in.readUnsignedShort();
-				int name_index = in.readUnsignedShort();
-				int descriptor_index = in.readUnsignedShort();
-				String name = pool[name_index].toString();
-				String descriptor = pool[descriptor_index].toString();
+				int access_flags = 0xFFFF & in.getShort();
+				int name_index = 0xFFFF & in.getShort();
+				int descriptor_index = 0xFFFF & in.getShort();
 				MethodDef mdef = null;
 				if (cd != null) {
-					mdef = new MethodDef(access_flags, name, descriptor);
+					mdef = new MethodDef(access_flags, utf8(name_index), utf8(descriptor_index));
 					last = mdef;
 					cd.method(mdef);
 				}
 				referTo(descriptor_index, access_flags);
 
-				if ("<init>".equals(name)) {
-					if (Modifier.isPublic(access_flags) && "()V".equals(descriptor)) {
+				if (utf8Equals(name_index, "<init>")) {
+					if (Modifier.isPublic(access_flags) && utf8Equals(descriptor_index, "()V")) {
 						hasDefaultConstructor = true;
 					}
 					doAttributes(in, ElementType.CONSTRUCTOR, crawl, access_flags);
@@ -769,27 +801,13 @@ public class Clazz {
 		}
 	}
 
-	private void constantFloat(DataInputStream in, int poolIndex) throws IOException {
-		if (cd != null)
-			pool[poolIndex] = in.readFloat(); // ALU
-		else
-			in.skipBytes(4);
-	}
-
-	private void constantInteger(DataInputStream in, int poolIndex) throws IOException {
-		intPool[poolIndex] = in.readInt();
-		if (cd != null)
-			pool[poolIndex] = intPool[poolIndex];
-	}
-
 	protected void pool(@SuppressWarnings("unused") Object[] pool, @SuppressWarnings("unused") int[] intPool) {}
 
 	/**
-	 * @param in
-	 * @param poolIndex
-	 * @param tag
-	 * @throws IOException
+	 * @deprecated the constant pool is no longer read from a stream, see
+	 *             {@link #parseClassFile(ByteBuffer)}
 	 */
+	@Deprecated
 	protected void nameAndType(DataInputStream in, int poolIndex, byte tag) throws IOException {
 		int name_index = in.readUnsignedShort();
 		int descriptor_index = in.readUnsignedShort();
@@ -797,32 +815,10 @@ public class Clazz {
 	}
 
 	/**
-	 * @param in
-	 * @param poolIndex
-	 * @param tag
-	 * @throws IOException
-	 */
-	private void ref(DataInputStream in, int poolIndex) throws IOException {
-		int class_index = in.readUnsignedShort();
-		int name_and_type_index = in.readUnsignedShort();
-		pool[poolIndex] = new Assoc((byte) 10, class_index, name_and_type_index);
-	}
-
-	/**
-	 * @param in
-	 * @param poolIndex
-	 * @throws IOException
-	 */
-	private void constantString(DataInputStream in, int poolIndex) throws IOException {
-		int string_index = in.readUnsignedShort();
-		intPool[poolIndex] = string_index;
-	}
-
-	/**
-	 * @param in
-	 * @param poolIndex
-	 * @throws IOException
+	 * @deprecated the constant pool is no longer read from a stream, see
+	 *             {@link #parseClassFile(ByteBuffer)}
 	 */
+	@Deprecated
 	protected void constantClass(DataInputStream in, int poolIndex) throws IOException {
 		int class_index = in.readUnsignedShort();
 		intPool[poolIndex] = class_index;
@@ -831,9 +827,10 @@ public class Clazz {
 	}
 
 	/**
-	 * @param in
-	 * @throws IOException
+	 * @deprecated the constant pool is no longer read from a stream, see
+	 *             {@link #parseClassFile(ByteBuffer)}
 	 */
+	@Deprecated
 	protected void constantDouble(DataInputStream in, int poolIndex) throws IOException {
 		if (cd != null)
 			pool[poolIndex] = in.readDouble();
@@ -842,9 +839,10 @@ public class Clazz {
 	}
 
 	/**
-	 * @param in
-	 * @throws IOException
+	 * @deprecated the constant pool is no longer read from a stream, see
+	 *             {@link #parseClassFile(ByteBuffer)}
 	 */
+	@Deprecated
 	protected void constantLong(DataInputStream in, int poolIndex) throws IOException {
 		if (cd != null) {
 			pool[poolIndex] = in.readLong();
@@ -853,10 +851,10 @@ public class Clazz {
 	}
 
 	/**
-	 * @param in
-	 * @param poolIndex
-	 * @throws IOException
+	 * @deprecated the constant pool is no longer read from a stream, see
+	 *             {@link #parseClassFile(ByteBuffer)}
 	 */
+	@Deprecated
 	protected void constantUtf8(DataInputStream in, int poolIndex) throws IOException {
 		// CONSTANT_Utf8
 
@@ -864,6 +862,93 @@ public class Clazz {
 		pool[poolIndex] = name;
 	}
 
+	/**
+	 * Answer the string of a CONSTANT_Utf8 entry. The modified UTF-8 is only
+	 * decoded the first time the entry is used.
+	 * 
+	 * @param index
+	 *            the index in the constant pool
+	 * @return the string or null if the entry is not a CONSTANT_Utf8
+	 */
+	String utf8(int index) {
+		if (tags[index] != 1)
+			return null;
+
+		String s = (String) pool[index];
+		if (s == null) {
+			int offset = intPool[index];
+			int length = 0xFFFF & classFile.getShort(offset);
+			offset += 2;
+			char[] chars = new char[length];
+			int n = 0;
+			for (int i = offset; i < offset + length; i++) {
+				int c = 0xFF & classFile.get(i);
+				if (c < 0x80) {
+					chars[n++] = (char) c;
+				} else if ((c & 0xE0) == 0xC0) {
+					chars[n++] = (char) (((c & 0x1F) << 6) | (classFile.get(++i) & 0x3F));
+				} else {
+					int c2 = classFile.get(++i) & 0x3F;
+					chars[n++] = (char) (((c & 0x0F) << 12) | (c2 << 6) | (classFile.get(++i) & 0x3F));
+				}
+			}
+			pool[index] = s = new String(chars, 0, n);
+		}
+		return s;
+	}
+
+	/**
+	 * Check if a CONSTANT_Utf8 entry starts with the given ASCII prefix
+	 * without decoding it.
+	 */
+	boolean utf8StartsWith(int index, String prefix) {
+		if (tags[index] != 1)
+			return false;
+
+		int offset = intPool[index];
+		int length = 0xFFFF & classFile.getShort(offset);
+		if (length < prefix.length())
+			return false;
+
+		offset += 2;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (classFile.get(offset + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check if a CONSTANT_Utf8 entry is the given ASCII string without
+	 * decoding it.
+	 */
+	boolean utf8Equals(int index, String s) {
+		return utf8StartsWith(index, s) && (0xFFFF & classFile.getShort(intPool[index])) == s.length();
+	}
+
+	/**
+	 * Answer the value of a loadable constant (Integer, Float, Long, Double
+	 * or String) or a CONSTANT_Utf8 entry. Values are boxed on demand.
+	 */
+	Object constant(int index) {
+		switch (tags[index]) {
+			case 1 :
+				return utf8(index);
+			case 3 :
+				return intPool[index];
+			case 4 :
+				return classFile.getFloat(intPool[index]);
+			case 5 :
+				return classFile.getLong(intPool[index]);
+			case 6 :
+				return classFile.getDouble(intPool[index]);
+			case 8 :
+				return utf8(intPool[index]);
+			default :
+				return null;
+		}
+	}
+
 	/**
 	 * Find a method reference in the pool that points to the given class,
 	 * methodname and descriptor.
@@ -875,23 +960,19 @@ public class Clazz {
 	 */
 	private int findMethodReference(String clazz, String methodname, String descriptor) {
 		for (int i = 1; i < pool.length; i++) {
-			if (pool[i] instanceof Assoc) {
-				Assoc methodref = (Assoc) pool[i];
-				if (methodref.tag == 10) {
-					// Method ref
-					int class_index = methodref.a;
-					int class_name_index = intPool[class_index];
-					if (clazz.equals(pool[class_name_index])) {
-						int name_and_type_index = methodref.b;
-						Assoc name_and_type = (Assoc) pool[name_and_type_index];
-						if (name_and_type.tag == 12) {
-							// Name and Type
-							int name_index = name_and_type.a;
-							int type_index = name_and_type.b;
-							if (methodname.equals(pool[name_index])) {
-								if (descriptor.equals(pool[type_index])) {
-									return i;
-								}
+			if (tags[i] == 9 || tags[i] == 10 || tags[i] == 11) {
+				// Method ref
+				int class_index = intPool[i] >>> 16;
+				int class_name_index = intPool[class_index];
+				if (clazz.equals(utf8(class_name_index))) {
+					int name_and_type_index = 0xFFFF & intPool[i];
+					if (tags[name_and_type_index] == 12) {
+						// Name and Type
+						int name_index = intPool[name_and_type_index] >>> 16;
+						int type_index = 0xFFFF & intPool[name_and_type_index];
+						if (methodname.equals(utf8(name_index))) {
+							if (descriptor.equals(utf8(type_index))) {
+								return i;
 							}
 						}
 					}
@@ -909,8 +990,8 @@ public class Clazz {
 	 * @param access_flags
 	 * @throws Exception
 	 */
-	private void doAttributes(DataInputStream in, ElementType member, boolean crawl, int access_flags) throws Exception {
-		int attributesCount = in.readUnsignedShort();
+	private void doAttributes(ByteBuffer in, ElementType member, boolean crawl, int access_flags) throws Exception {
+		int attributesCount = 0xFFFF & in.getShort();
 		for (int j = 0; j < attributesCount; j++) {
 			// skip name CONSTANT_Utf8 pointer
 			doAttribute(in, member, crawl, access_flags);
@@ -925,10 +1006,10 @@ public class Clazz {
 	 * @param access_flags
 	 * @throws Exception
 	 */
-	private void doAttribute(DataInputStream in, ElementType member, boolean crawl, int access_flags) throws Exception {
-		int attribute_name_index = in.readUnsignedShort();
-		String attributeName = (String) pool[attribute_name_index];
-		long attribute_length = in.readInt();
+	private void doAttribute(ByteBuffer in, ElementType member, boolean crawl, int access_flags) throws Exception {
+		int attribute_name_index = 0xFFFF & in.getShort();
+		String attributeName = utf8(attribute_name_index);
+		long attribute_length = in.getInt();
 		attribute_length &= 0xFFFFFFFF;
 		if ("Deprecated".equals(attributeName)) {
 			if (cd != null)
@@ -969,7 +1050,7 @@ public class Clazz {
 			if (attribute_length > 0x7FFFFFFF) {
 				throw new IllegalArgumentException("Attribute > 2Gb");
 			}
-			in.skipBytes((int) attribute_length);
+			in.position(in.position() + (int) attribute_length);
 		}
 	}
 
@@ -986,22 +1067,21 @@ public class Clazz {
 	 * @param in
 	 * @throws IOException
 	 */
-	private void doEnclosingMethod(DataInputStream in) throws IOException {
-		int cIndex = in.readShort();
-		int mIndex = in.readShort();
+	private void doEnclosingMethod(ByteBuffer in) throws IOException {
+		int cIndex = in.getShort();
+		int mIndex = in.getShort();
 		classConstRef(cIndex);
 
 		if (cd != null) {
 			int nameIndex = intPool[cIndex];
-			TypeRef cName = analyzer.getTypeRef((String) pool[nameIndex]);
+			TypeRef cName = analyzer.getTypeRef(utf8(nameIndex));
 
 			String mName = null;
 			String mDescriptor = null;
 
 			if (mIndex != 0) {
-				Assoc nameAndType = (Assoc) pool[mIndex];
-				mName = (String) pool[nameAndType.a];
-				mDescriptor = (String) pool[nameAndType.b];
+				mName = utf8(intPool[mIndex] >>> 16);
+				mDescriptor = utf8(0xFFFF & intPool[mIndex]);
 			}
 			cd.enclosingMethod(cName, mName, mDescriptor);
 		}
@@ -1024,13 +1104,13 @@ public class Clazz {
 	 * @param in
 	 * @throws Exception
 	 */
-	private void doInnerClasses(DataInputStream in) throws Exception {
-		int number_of_classes = in.readShort();
+	private void doInnerClasses(ByteBuffer in) throws Exception {
+		int number_of_classes = in.getShort();
 		for (int i = 0; i < number_of_classes; i++) {
-			int inner_class_info_index = in.readShort();
-			int outer_class_info_index = in.readShort();
-			int inner_name_index = in.readShort();
-			int inner_class_access_flags = in.readShort() & 0xFFFF;
+			int inner_class_info_index = in.getShort();
+			int outer_class_info_index = in.getShort();
+			int inner_name_index = in.getShort();
+			int inner_class_access_flags = in.getShort() & 0xFFFF;
 
 			if (cd != null) {
 				TypeRef innerClass = null;
@@ -1039,16 +1119,16 @@ public class Clazz {
 
 				if (inner_class_info_index != 0) {
 					int nameIndex = intPool[inner_class_info_index];
-					innerClass = analyzer.getTypeRef((String) pool[nameIndex]);
+					innerClass = analyzer.getTypeRef(utf8(nameIndex));
 				}
 
 				if (outer_class_info_index != 0) {
 					int nameIndex = intPool[outer_class_info_index];
-					outerClass = analyzer.getTypeRef((String) pool[nameIndex]);
+					outerClass = analyzer.getTypeRef(utf8(nameIndex));
 				}
 
 				if (inner_name_index != 0)
-					innerName = (String) pool[inner_name_index];
+					innerName = utf8(inner_name_index);
 
 				cd.innerClass(innerClass, outerClass, innerName, inner_class_access_flags);
 			}
@@ -1070,9 +1150,9 @@ public class Clazz {
 	 * @param access_flags
 	 */
 
-	void doSignature(DataInputStream in, ElementType member, int access_flags) throws IOException {
-		int signature_index = in.readUnsignedShort();
-		String signature = (String) pool[signature_index];
+	void doSignature(ByteBuffer in, ElementType member, int access_flags) throws IOException {
+		int signature_index = 0xFFFF & in.getShort();
+		String signature = utf8(signature_index);
 		try {
 
 			parseDescriptor(signature, access_flags);
@@ -1094,25 +1174,22 @@ public class Clazz {
 	/**
 	 * Handle a constant value call the data collector with it
 	 */
-	void doConstantValue(DataInputStream in) throws IOException {
-		int constantValue_index = in.readUnsignedShort();
+	void doConstantValue(ByteBuffer in) throws IOException {
+		int constantValue_index = 0xFFFF & in.getShort();
 		if (cd == null)
 			return;
 
-		Object object = pool[constantValue_index];
-		if (object == null)
-			object = pool[intPool[constantValue_index]];
+		Object object = constant(constantValue_index);
 
 		last.constant = object;
 		cd.constant(object);
 	}
 
-	void doExceptions(DataInputStream in, int access_flags) throws IOException {
-		int exception_count = in.readUnsignedShort();
+	void doExceptions(ByteBuffer in, int access_flags) throws IOException {
+		int exception_count = 0xFFFF & in.getShort();
 		for (int i = 0; i < exception_count; i++) {
-			int index = in.readUnsignedShort();
-			ClassConstant cc = (ClassConstant) pool[index];
-			TypeRef clazz = analyzer.getTypeRef(cc.getName());
+			int index = 0xFFFF & in.getShort();
+			TypeRef clazz = analyzer.getTypeRef(utf8(intPool[index]));
 			referTo(clazz, access_flags);
 		}
 	}
@@ -1141,19 +1218,20 @@ public class Clazz {
 	 * @param pool
 	 * @throws Exception
 	 */
-	private void doCode(DataInputStream in) throws Exception {
-		/* int max_stack = */in.readUnsignedShort();
-		/* int max_locals = */in.readUnsignedShort();
-		int code_length = in.readInt();
-		byte code[] = new byte[code_length];
-		in.readFully(code);
+	private void doCode(ByteBuffer in) throws Exception {
+		/* int max_stack = */in.getShort();
+		/* int max_locals = */in.getShort();
+		int code_length = in.getInt();
+		ByteBuffer code = in.slice();
+		code.limit(code_length);
 		crawl(code);
-		int exception_table_length = in.readUnsignedShort();
+		in.position(in.position() + code_length);
+		int exception_table_length = 0xFFFF & in.getShort();
 		for (int i = 0; i < exception_table_length; i++) {
-			int start_pc = in.readUnsignedShort();
-			int end_pc = in.readUnsignedShort();
-			int handler_pc = in.readUnsignedShort();
-			int catch_type = in.readUnsignedShort();
+			int start_pc = 0xFFFF & in.getShort();
+			int end_pc = 0xFFFF & in.getShort();
+			int handler_pc = 0xFFFF & in.getShort();
+			int catch_type = 0xFFFF & in.getShort();
 			classConstRef(catch_type);
 		}
 		doAttributes(in, ElementType.METHOD, false, 0);
@@ -1165,7 +1243,10 @@ public class Clazz {
 	 * @param code
 	 */
 	protected void crawl(byte[] code) {
-		ByteBuffer bb = ByteBuffer.wrap(code);
+		crawl(ByteBuffer.wrap(code));
+	}
+
+	private void crawl(ByteBuffer bb) {
 		bb.order(ByteOrder.BIG_ENDIAN);
 		int lastReference = -1;
 
@@ -1229,8 +1310,8 @@ public class Clazz {
 						getMethodDef(0, methodref);
 
 					if ((methodref == forName || methodref == class$) && lastReference != -1
-							&& pool[intPool[lastReference]] instanceof String) {
-						String fqn = (String) pool[intPool[lastReference]];
+							&& tags[lastReference] == 8) {
+						String fqn = utf8(intPool[lastReference]);
 						if (!fqn.equals("class") && fqn.indexOf('.') > 0) {
 							TypeRef clazz = analyzer.getTypeRefFromFQN(fqn);
 							referTo(clazz, 0);
@@ -1289,14 +1370,14 @@ public class Clazz {
 		}
 	}
 
-	private void doSourceFile(DataInputStream in) throws IOException {
-		int sourcefile_index = in.readUnsignedShort();
-		this.sourceFile = pool[sourcefile_index].toString();
+	private void doSourceFile(ByteBuffer in) throws IOException {
+		int sourcefile_index = 0xFFFF & in.getShort();
+		this.sourceFile = utf8(sourcefile_index);
 	}
 
-	private void doParameterAnnotations(DataInputStream in, ElementType member, RetentionPolicy policy, int access_flags)
+	private void doParameterAnnotations(ByteBuffer in, ElementType member, RetentionPolicy policy, int access_flags)
 			throws Exception {
-		int num_parameters = in.readUnsignedByte();
+		int num_parameters = 0xFF & in.get();
 		for (int p = 0; p < num_parameters; p++) {
 			if (cd != null)
 				cd.parameter(p);
@@ -1304,9 +1385,9 @@ public class Clazz {
 		}
 	}
 
-	private void doTypeAnnotations(DataInputStream in, ElementType member, RetentionPolicy policy, int access_flags)
+	private void doTypeAnnotations(ByteBuffer in, ElementType member, RetentionPolicy policy, int access_flags)
 			throws Exception {
-		int num_annotations = in.readUnsignedShort();
+		int num_annotations = 0xFFFF & in.getShort();
 		for (int p = 0; p < num_annotations; p++) {
 
 			// type_annotation {
@@ -1333,7 +1414,7 @@ public class Clazz {
 
 			// Table 4.7.20-A. Interpretation of target_type values (Part 1)
 
-			int target_type = in.readUnsignedByte();
+			int target_type = 0xFF & in.get();
 			switch (target_type) {
 				case 0x00 : // type parameter declaration of generic class or
 							// interface
@@ -1343,7 +1424,7 @@ public class Clazz {
 					// type_parameter_target {
 					// u1 type_parameter_index;
 					// }
-					in.skipBytes(1);
+					in.position(in.position() + 1);
 					break;
 
 				case 0x10 : // type in extends clause of class or interface
@@ -1354,7 +1435,7 @@ public class Clazz {
 					// u2 supertype_index;
 					// }
 
-					in.skipBytes(2);
+					in.position(in.position() + 2);
 					break;
 
 				case 0x11 : // type in bound of type parameter declaration of
@@ -1365,7 +1446,7 @@ public class Clazz {
 					// u1 type_parameter_index;
 					// u1 bound_index;
 					// }
-					in.skipBytes(2);
+					in.position(in.position() + 2);
 					break;
 
 				case 0x13 : // type in field declaration
@@ -1379,14 +1460,14 @@ public class Clazz {
 					// formal_parameter_target {
 					// u1 formal_parameter_index;
 					// }
-					in.skipBytes(1);
+					in.position(in.position() + 1);
 					break;
 
 				case 0x17 : // type in throws clause of method or constructor
 					// throws_target {
 					// u2 throws_type_index;
 					// }
-					in.skipBytes(2);
+					in.position(in.position() + 2);
 					break;
 
 				case 0x40 : // type in local variable declaration
@@ -1398,15 +1479,15 @@ public class Clazz {
 					// u2 index;
 					// } table[table_length];
 					// }
-					int table_length = in.readUnsignedShort();
-					in.skipBytes(table_length * 6);
+					int table_length = 0xFFFF & in.getShort();
+					in.position(in.position() + table_length * 6);
 					break;
 
 				case 0x42 : // type in exception parameter declaration
 					// catch_target {
 					// u2 exception_table_index;
 					// }
-					in.skipBytes(2);
+					in.position(in.position() + 2);
 					break;
 
 				case 0x43 : // type in instanceof expression
@@ -1417,7 +1498,7 @@ public class Clazz {
 					// offset_target {
 					// u2 offset;
 					// }
-					in.skipBytes(2);
+					in.position(in.position() + 2);
 					break;
 
 				case 0x47 : // type in cast expression
@@ -1435,7 +1516,7 @@ public class Clazz {
 					// u2 offset;
 					// u1 type_argument_index;
 					// }
-					in.skipBytes(3);
+					in.position(in.position() + 3);
 					break;
 
 			}
@@ -1451,8 +1532,8 @@ public class Clazz {
 			// } path[path_length];
 			// }
 
-			int path_length = in.readUnsignedByte();
-			in.skipBytes(path_length * 2);
+			int path_length = 0xFF & in.get();
+			in.position(in.position() + path_length * 2);
 
 			//
 			// Rest is identical to the normal annotations
@@ -1460,9 +1541,9 @@ public class Clazz {
 		}
 	}
 
-	private void doAnnotations(DataInputStream in, ElementType member, RetentionPolicy policy, int access_flags)
+	private void doAnnotations(ByteBuffer in, ElementType member, RetentionPolicy policy, int access_flags)
 			throws Exception {
-		int num_annotations = in.readUnsignedShort(); // # of annotations
+		int num_annotations = 0xFFFF & in.getShort(); // # of annotations
 		for (int a = 0; a < num_annotations; a++) {
 			if (cd == null)
 				doAnnotation(in, member, policy, false, access_flags);
@@ -1482,16 +1563,16 @@ public class Clazz {
 	// element_value_pairs[num_element_value_pairs];
 	// }
 
-	private Annotation doAnnotation(DataInputStream in, ElementType member, RetentionPolicy policy, boolean collect,
+	private Annotation doAnnotation(ByteBuffer in, ElementType member, RetentionPolicy policy, boolean collect,
 			int access_flags) throws IOException {
-		int type_index = in.readUnsignedShort();
+		int type_index = 0xFFFF & in.getShort();
 		if (annotations == null)
 			annotations = new HashSet<TypeRef>();
 
-		TypeRef tr = analyzer.getTypeRef(pool[type_index].toString());
+		TypeRef tr = analyzer.getTypeRef(utf8(type_index));
 		annotations.add(tr);
 
-		TypeRef name = analyzer.getTypeRef((String) pool[type_index]);
+		TypeRef name = analyzer.getTypeRef(utf8(type_index));
 		if (policy == RetentionPolicy.RUNTIME) {
 			referTo(type_index, 0);
 			hasRuntimeAnnotations = true;
@@ -1500,11 +1581,11 @@ public class Clazz {
 		} else {
 			hasClassAnnotations = true;
 		}
-		int num_element_value_pairs = in.readUnsignedShort();
+		int num_element_value_pairs = 0xFFFF & in.getShort();
 		Map<String,Object> elements = null;
 		for (int v = 0; v < num_element_value_pairs; v++) {
-			int element_name_index = in.readUnsignedShort();
-			String element = (String) pool[element_name_index];
+			int element_name_index = 0xFFFF & in.getShort();
+			String element = utf8(element_name_index);
 			Object value = doElementValue(in, member, policy, collect, access_flags);
 			if (collect) {
 				if (elements == null)
@@ -1517,43 +1598,43 @@ public class Clazz {
 		return null;
 	}
 
-	private Object doElementValue(DataInputStream in, ElementType member, RetentionPolicy policy, boolean collect,
+	private Object doElementValue(ByteBuffer in, ElementType member, RetentionPolicy policy, boolean collect,
 			int access_flags) throws IOException {
-		char tag = (char) in.readUnsignedByte();
+		char tag = (char) (0xFF & in.get());
 		switch (tag) {
 			case 'B' : // Byte
 			case 'C' : // Character
 			case 'I' : // Integer
 			case 'S' : // Short
-				int const_value_index = in.readUnsignedShort();
+				int const_value_index = 0xFFFF & in.getShort();
 				return intPool[const_value_index];
 
 			case 'D' : // Double
 			case 'F' : // Float
 			case 's' : // String
 			case 'J' : // Long
-				const_value_index = in.readUnsignedShort();
-				return pool[const_value_index];
+				const_value_index = 0xFFFF & in.getShort();
+				return constant(const_value_index);
 
 			case 'Z' : // Boolean
-				const_value_index = in.readUnsignedShort();
-				return pool[const_value_index] == null || pool[const_value_index].equals(0) ? false : true;
+				const_value_index = 0xFFFF & in.getShort();
+				return intPool[const_value_index] != 0;
 
 			case 'e' : // enum constant
-				int type_name_index = in.readUnsignedShort();
+				int type_name_index = 0xFFFF & in.getShort();
 				if (policy == RetentionPolicy.RUNTIME) {
 					referTo(type_name_index, 0);
 					if (api != null && (Modifier.isPublic(access_flags) || Modifier.isProtected(access_flags))) {
-						TypeRef name = analyzer.getTypeRef((String) pool[type_name_index]);
+						TypeRef name = analyzer.getTypeRef(utf8(type_name_index));
 						api.add(name.getPackageRef());
 					}
 				}
-				int const_name_index = in.readUnsignedShort();
-				return pool[const_name_index];
+				int const_name_index = 0xFFFF & in.getShort();
+				return utf8(const_name_index);
 
 			case 'c' : // Class
-				int class_info_index = in.readUnsignedShort();
-				TypeRef name = analyzer.getTypeRef((String) pool[class_info_index]);
+				int class_info_index = 0xFFFF & in.getShort();
+				TypeRef name = analyzer.getTypeRef(utf8(class_info_index));
 				if (policy == RetentionPolicy.RUNTIME) {
 					referTo(class_info_index, 0);
 					if (api != null && (Modifier.isPublic(access_flags) || Modifier.isProtected(access_flags))) {
@@ -1566,7 +1647,7 @@ public class Clazz {
 				return doAnnotation(in, member, policy, collect, access_flags);
 
 			case '[' : // Array
-				int num_values = in.readUnsignedShort();
+				int num_values = 0xFFFF & in.getShort();
 				Object[] result = new Object[num_values];
 				for (int i = 0; i < num_values; i++) {
 					result[i] = doElementValue(in, member, policy, collect, access_flags);
@@ -1605,7 +1686,7 @@ public class Clazz {
 	}
 
 	void referTo(int index, int modifiers) {
-		String descriptor = (String) pool[index];
+		String descriptor = utf8(index);
 		parseDescriptor(descriptor, modifiers);
 	}
 
@@ -1780,6 +1861,8 @@ public class Clazz {
 	public void reset() {
 		pool = null;
 		intPool = null;
+		tags = null;
+		classFile = null;
 		xref = null;
 	}
 
@@ -1871,27 +1954,22 @@ public class Clazz {
 		if (methodRefPoolIndex == 0)
 			return;
 
-		Object o = pool[methodRefPoolIndex];
-		if (o != null && o instanceof Assoc) {
-			Assoc assoc = (Assoc) o;
-			if (assoc.tag == 10) {
-				int string_index = intPool[assoc.a];
-				TypeRef className = analyzer.getTypeRef((String) pool[string_index]);
-				int name_and_type_index = assoc.b;
-				Assoc name_and_type = (Assoc) pool[name_and_type_index];
-				if (name_and_type.tag == 12) {
-					// Name and Type
-					int name_index = name_and_type.a;
-					int type_index = name_and_type.b;
-					String method = (String) pool[name_index];
-					String descriptor = (String) pool[type_index];
-					cd.referenceMethod(access, className, method, descriptor);
-				} else
-					throw new IllegalArgumentException(
-							"Invalid class file (or parsing is wrong), assoc is not type + name (12)");
+		byte tag = tags[methodRefPoolIndex];
+		if (tag == 9 || tag == 10 || tag == 11) {
+			int class_index = intPool[methodRefPoolIndex] >>> 16;
+			int string_index = intPool[class_index];
+			TypeRef className = analyzer.getTypeRef(utf8(string_index));
+			int name_and_type_index = 0xFFFF & intPool[methodRefPoolIndex];
+			if (tags[name_and_type_index] == 12) {
+				// Name and Type
+				int name_index = intPool[name_and_type_index] >>> 16;
+				int type_index = 0xFFFF & intPool[name_and_type_index];
+				String method = utf8(name_index);
+				String descriptor = utf8(type_index);
+				cd.referenceMethod(access, className, method, descriptor);
 			} else
 				throw new IllegalArgumentException(
-						"Invalid class file (or parsing is wrong), Assoc is not method ref! (10)");
+						"Invalid class file (or parsing is wrong), assoc is not type + name (12)");
 		} else
 			throw new IllegalArgumentException("Invalid class file (or parsing is wrong), Not an assoc at a method ref");
 	}
@@ -2059,23 +2137,20 @@ public class Clazz {
 		return new TypeDef(type, true);
 	}
 
+	/**
+	 * Refer to the class of a CONSTANT_Class entry. Once referred, the entry in
+	 * the pool holds the type so it is only processed once.
+	 */
 	private void classConstRef(int lastReference) {
-		Object o = pool[lastReference];
-		if (o == null)
+		if (tags[lastReference] != 7 || pool[lastReference] != null)
 			return;
 
-		if (o instanceof ClassConstant) {
-			ClassConstant cc = (ClassConstant) o;
-			if (cc.referred)
-				return;
-			cc.referred = true;
-			String name = cc.getName();
-			if (name != null) {
-				TypeRef tr = analyzer.getTypeRef(name);
-				referTo(tr, 0);
-			}
+		String name = utf8(intPool[lastReference]);
+		if (name != null) {
+			TypeRef tr = analyzer.getTypeRef(name);
+			pool[lastReference] = tr;
+			referTo(tr, 0);
 		}
-
 	}
 
 	public String getClassSignature() {
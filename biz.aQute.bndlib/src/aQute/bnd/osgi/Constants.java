@@ -93,6 +93,7 @@ public interface Constants {
 	String							CHECK										= "-check";
 	String							CONDUIT										= "-conduit";
 	String							CONTRACT									= "-contract";
+	String							CONTENTSTORE								= "-contentstore";
 	@Deprecated
 	String							CACHEDIR									= "-cachedir";
 	String							CONDITIONALPACKAGE							= "-conditionalpackage";
@@ -145,6 +146,7 @@ public interface Constants {
 	String							SAVEMANIFEST								= "-savemanifest";
 	String							NAMESECTION									= "-namesection";
 	String							NOBUILDINCACHE								= "-nobuildincache";
+	String							NOCLASSCACHE								= "-noclasscache";
 	String							NODEFAULTVERSION							= "-nodefaultversion";
 	String							NOEXTRAHEADERS								= "-noextraheaders";
 	String							NOJUNIT										= "-nojunit";
@@ -161,6 +163,10 @@ public interface Constants {
 	String							PACKAGE_JPM									= "jpm";
 	String							PEDANTIC									= "-pedantic";
 	String							PACKAGEINFOTYPE								= "-packageinfotype";
+	String							PARALLELANALYSIS							= "-parallelanalysis";
+	String							PARALLELWRITE								= "-parallelwrite";
+	String							PARALLELSUB									= "-parallelsub";
+	String							PREFETCH									= "-prefetch";
 	String							PLUGIN										= "-plugin";
 	String							PLUGINPATH									= "-pluginpath";
 	String							PLUGINPATH_URL_ATTR							= "url";
@@ -242,7 +248,8 @@ public interface Constants {
 			NOJUNITOSGI, PREPROCESSMATCHERS, UPTO, INVALIDFILENAMES, FIXUPMESSAGES, PRIVATEPACKAGE, CONDITIONALPACKAGE,
 			NOEE, OUTPUTMASK, TESTUNRESOLVED, RUNJDB, RUNENV, RUNEE, EEPROFILE, RUNREQUIRES, EXPORT, GESTALT,
 			BNDDRIVER, CHECK, DISTRO, METATYPE_ANNOTATIONS, METATYPE_ANNOTATIONS_OPTIONS, PACKAGEINFOTYPE,
-			JAVAC_SOURCE, JAVAC_TARGET, JAVAC_PROFILE, JAVAC, JAVA, JAVA_DEBUG, EXPORTTYPE, RUNREMOTE
+			JAVAC_SOURCE, JAVAC_TARGET, JAVAC_PROFILE, JAVAC, JAVA, JAVA_DEBUG, EXPORTTYPE, RUNREMOTE,
+			PARALLELANALYSIS, NOCLASSCACHE, PARALLELWRITE, CONTENTSTORE, PARALLELSUB, PREFETCH
 
 																				};
 
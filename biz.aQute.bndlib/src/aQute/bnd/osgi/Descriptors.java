@@ -6,6 +6,7 @@ import aQute.bnd.annotation.*;
 import aQute.libg.generics.*;
 
 public class Descriptors {
+	// The caches are guarded by this, class files can be parsed concurrently
 	Map<String,TypeRef>		typeRefCache		= Create.map();
 	Map<String,Descriptor>	descriptorCache		= Create.map();
 	Map<String,PackageRef>	packageCache		= Create.map();
@@ -352,7 +353,7 @@ public class Descriptors {
 
 	}
 
-	public TypeRef getTypeRef(String binaryClassName) {
+	public synchronized TypeRef getTypeRef(String binaryClassName) {
 		assert !binaryClassName.endsWith(".class");
 
 		TypeRef ref = typeRefCache.get(binaryClassName);
@@ -407,7 +408,7 @@ public class Descriptors {
 		return ref;
 	}
 
-	public PackageRef getPackageRef(String binaryPackName) {
+	public synchronized PackageRef getPackageRef(String binaryPackName) {
 		if (binaryPackName.indexOf('.') >= 0) {
 			binaryPackName = binaryPackName.replace('.', '/');
 		}
@@ -426,7 +427,7 @@ public class Descriptors {
 		return ref;
 	}
 
-	public Descriptor getDescriptor(String descriptor) {
+	public synchronized Descriptor getDescriptor(String descriptor) {
 		Descriptor d = descriptorCache.get(descriptor);
 		if (d != null)
 			return d;
@@ -6,6 +6,7 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.*;
 import java.util.regex.*;
 import java.util.zip.*;
@@ -13,7 +14,6 @@ import java.util.zip.*;
 import aQute.bnd.version.*;
 import aQute.lib.base64.Base64;
 import aQute.lib.io.*;
-import aQute.lib.zip.*;
 import aQute.service.reporter.*;
 
 public class Jar implements Closeable {
@@ -42,6 +42,23 @@ public class Jar implements Closeable {
 	Compression								compression	= Compression.DEFLATE;
 	boolean									closed;
 	String[]								algorithms;
+	int										writeThreads	= 1;
+
+	/*
+	 * A shared Jar is used by many builders at the same time, see
+	 * JarPool. It cannot be modified and is only closed by its pool.
+	 */
+	volatile boolean						shared;
+
+	/*
+	 * When a Jar is read from a zip file, the resources and directories maps
+	 * are only filled when the Jar is modified. Until then the index of the zip
+	 * file is used.
+	 */
+	ZipIndex								index;
+	ZipIndex.Source							zipSource;
+	private final Map<String,Resource>		resourcesView	= new ResourcesView();
+	private final Map<String,Map<String,Resource>>	directoriesView	= new DirectoriesView();
 
 	public Jar(String name) {
 		this.name = name;
@@ -53,7 +70,14 @@ public class Jar implements Closeable {
 		if (dirOrFile.isDirectory())
 			FileResource.build(this, dirOrFile, doNotCopy);
 		else if (dirOrFile.isFile()) {
-			zipFile = ZipResource.build(this, dirOrFile);
+			zipFile = ZipResource.open(dirOrFile);
+			index = ZipIndex.read(zipFile, dirOrFile);
+			if (index != null) {
+				zipSource = index.source;
+				manifestFirst = manifestName.equals(index.first);
+				updateModified(index.lastModified, index.lastModifiedReason);
+			} else
+				ZipResource.build(this, zipFile, null);
 		} else {
 			throw new IllegalArgumentException("A Jar can only accept a valid file or directory: " + dirOrFile);
 		}
@@ -101,6 +125,7 @@ public class Jar implements Closeable {
 	}
 
 	public void setName(String name) {
+		checkWrite();
 		this.name = name;
 	}
 
@@ -115,7 +140,8 @@ public class Jar implements Closeable {
 	}
 
 	public boolean putResource(String path, Resource resource, boolean overwrite) {
-		check();
+		checkWrite();
+		inflate();
 		updateModified(resource.lastModified(), path);
 		while (path.startsWith("/"))
 			path = path.substring(1);
@@ -149,8 +175,11 @@ public class Jar implements Closeable {
 
 	public Resource getResource(String path) {
 		check();
-		if (resources == null)
-			return null;
+		ZipIndex index = this.index;
+		if (index != null) {
+			int entry = index.find(path);
+			return entry < 0 ? null : index.getResource(entry);
+		}
 		return resources.get(path);
 	}
 
@@ -165,12 +194,149 @@ public class Jar implements Closeable {
 
 	public Map<String,Map<String,Resource>> getDirectories() {
 		check();
-		return directories;
+		return directoriesView;
 	}
 
 	public Map<String,Resource> getResources() {
 		check();
-		return resources;
+		return resourcesView;
+	}
+
+	/**
+	 * Fill the resources and directories maps from the index of the zip file
+	 * before they are modified.
+	 */
+	private void inflate() {
+		ZipIndex index = this.index;
+		if (index == null)
+			return;
+
+		for (Map.Entry<String,Map<String,Resource>> entry : index.getDirectories().entrySet()) {
+			Map<String,Resource> dir = entry.getValue();
+			directories.put(entry.getKey(), dir == null ? null : new TreeMap<String,Resource>(dir));
+		}
+		resources.putAll(index.getResources());
+		this.index = null;
+	}
+
+	/*
+	 * Maps returned from getResources and getDirectories. They use the index
+	 * while the Jar has not been modified and the maps afterwards.
+	 */
+	private abstract class View<V> extends AbstractMap<String,V> {
+
+		abstract Map<String,V> map();
+
+		abstract Map<String,V> modifiable();
+
+		@Override
+		public int size() {
+			return map().size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map().isEmpty();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return map().containsKey(key);
+		}
+
+		@Override
+		public V get(Object key) {
+			return map().get(key);
+		}
+
+		@Override
+		public V put(String key, V value) {
+			return modifiable().put(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return modifiable().remove(key);
+		}
+
+		@Override
+		public void clear() {
+			modifiable().clear();
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return new AbstractSet<String>() {
+
+				@Override
+				public Iterator<String> iterator() {
+					return map().keySet().iterator();
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+
+				@Override
+				public boolean remove(Object o) {
+					boolean contains = containsKey(o);
+					View.this.remove(o);
+					return contains;
+				}
+
+				@Override
+				public int size() {
+					return View.this.size();
+				}
+			};
+		}
+
+		@Override
+		public Set<Map.Entry<String,V>> entrySet() {
+			return new AbstractSet<Map.Entry<String,V>>() {
+
+				@Override
+				public Iterator<Map.Entry<String,V>> iterator() {
+					return map().entrySet().iterator();
+				}
+
+				@Override
+				public int size() {
+					return View.this.size();
+				}
+			};
+		}
+	}
+
+	private class ResourcesView extends View<Resource> {
+		@Override
+		Map<String,Resource> map() {
+			ZipIndex index = Jar.this.index;
+			return index == null ? resources : index.getResources();
+		}
+
+		@Override
+		Map<String,Resource> modifiable() {
+			checkWrite();
+			inflate();
+			return resources;
+		}
+	}
+
+	private class DirectoriesView extends View<Map<String,Resource>> {
+		@Override
+		Map<String,Map<String,Resource>> map() {
+			ZipIndex index = Jar.this.index;
+			return index == null ? directories : index.getDirectories();
+		}
+
+		@Override
+		Map<String,Map<String,Resource>> modifiable() {
+			checkWrite();
+			inflate();
+			return directories;
+		}
 	}
 
 	public boolean addDirectory(Map<String,Resource> directory, boolean overwrite) {
@@ -188,7 +354,16 @@ public class Jar implements Closeable {
 		return duplicates;
 	}
 
+	/**
+	 * Return the manifest. A shared Jar returns a copy of its manifest so that
+	 * changes to the manifest are not seen by the other users of the Jar.
+	 */
 	public Manifest getManifest() throws Exception {
+		Manifest m = readManifest();
+		return shared && m != null ? new Manifest(m) : m;
+	}
+
+	private Manifest readManifest() throws Exception {
 		check();
 		if (manifest == null) {
 			Resource manifestResource = getResource(manifestName);
@@ -203,17 +378,17 @@ public class Jar implements Closeable {
 
 	public boolean exists(String path) {
 		check();
-		return resources.containsKey(path);
+		return getResources().containsKey(path);
 	}
 
 	public void setManifest(Manifest manifest) {
-		check();
+		checkWrite();
 		manifestFirst = true;
 		this.manifest = manifest;
 	}
 
 	public void setManifest(File file) throws IOException {
-		check();
+		checkWrite();
 		FileInputStream fin = new FileInputStream(file);
 		try {
 			Manifest m = new Manifest(fin);
@@ -225,7 +400,7 @@ public class Jar implements Closeable {
 	}
 	
 	public void setManifestName(String manifestName) {
-		check();
+		checkWrite();
 		if (manifestName == null || manifestName.length() == 0)
 			throw new IllegalArgumentException("Manifest name cannot be null or empty!");
 		this.manifestName = manifestName;
@@ -276,6 +451,7 @@ public class Jar implements Closeable {
 				File f = File.createTempFile(getName(), ".jar");
 				write(f);
 				Jar tmp = new Jar(f);
+				tmp.writeThreads = writeThreads;
 				try {
 					tmp.calcChecksums(algorithms);
 					tmp.write(out);
@@ -291,48 +467,127 @@ public class Jar implements Closeable {
 			return;
 		}
 
-		ZipOutputStream jout = nomanifest || doNotTouchManifest ? new ZipOutputStream(out) : new JarOutputStream(out);
-
-		switch (compression) {
-			case STORE :
-				jout.setMethod(ZipOutputStream.DEFLATED);
-				break;
-
-			default :
-				// default is DEFLATED
-		}
-
+		int method = compression == Compression.STORE ? ZipEntry.STORED : ZipEntry.DEFLATED;
+		ZipWriter zip = new ZipWriter(out, !nomanifest && !doNotTouchManifest);
 		Set<String> done = new HashSet<String>();
-
 		Set<String> directories = new HashSet<String>();
+
 		if (doNotTouchManifest) {
 			Resource r = getResource(manifestName);
 			if (r != null) {
-				writeResource(jout, directories, manifestName, r);
+				writeResource(zip, directories, manifestName, r, method, compress(manifestName, r, method));
 				done.add(manifestName);
 			}
-		} else
-			doManifest(done, jout);
+		} else if (!nomanifest) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			writeManifest(bout);
+			Resource r = new EmbeddedResource(bout.toByteArray(), lastModified);
+			zip.putEntry(manifestName, null, lastModified, ZipWriter.compress(r, method));
+			done.add(manifestName);
+		}
 
-		for (Map.Entry<String,Resource> entry : getResources().entrySet()) {
-			// Skip metainf contents
-			if (!done.contains(entry.getKey()))
-				writeResource(jout, directories, entry.getKey(), entry.getValue());
+		//
+		// The resources are compressed (or copied when they are already
+		// compressed) on other threads when there are more write threads.
+		// The entries are written in order when their turn comes, at most
+		// twice the number of threads resources are compressed or waiting
+		// to be written so the memory use stays bounded. Large resources are
+		// not buffered, they are compressed while they are written. On one
+		// thread only the data of a ZipResource is taken as it is, the other
+		// resources are deflated while they are written.
+		//
+
+		int window = writeThreads > 1 ? 2 * writeThreads : 1;
+		LinkedList<String> paths = new LinkedList<String>();
+		LinkedList<Resource> resources = new LinkedList<Resource>();
+		LinkedList<Future<ZipWriter.Compressed>> compressed = new LinkedList<Future<ZipWriter.Compressed>>();
+		try {
+			for (Map.Entry<String,Resource> entry : getResources().entrySet()) {
+				String path = entry.getKey();
+				Resource resource = entry.getValue();
+				if (done.contains(path) || resource == null)
+					continue;
+
+				paths.add(path);
+				resources.add(resource);
+				compressed.add(compress(path, resource, method));
+				if (paths.size() >= window)
+					writeResource(zip, directories, paths.removeFirst(), resources.removeFirst(), method,
+							compressed.removeFirst());
+			}
+			while (!paths.isEmpty())
+				writeResource(zip, directories, paths.removeFirst(), resources.removeFirst(), method,
+						compressed.removeFirst());
+		}
+		finally {
+			for (Future<ZipWriter.Compressed> f : compressed) {
+				if (f != null)
+					f.cancel(true);
+			}
 		}
-		jout.finish();
+		zip.finish();
 	}
 
-	private void doManifest(Set<String> done, ZipOutputStream jout) throws Exception {
-		check();
-		if (nomanifest)
-			return;
+	/*
+	 * Compress a resource, on another thread when there are more write
+	 * threads. Returns null when the resource is compressed while it is
+	 * written.
+	 */
+	private Future<ZipWriter.Compressed> compress(String path, final Resource resource, final int method)
+			throws Exception {
+		if (path.endsWith(Constants.EMPTY_HEADER) || ZipWriter.isLarge(resource, method))
+			return null;
+
+		if (writeThreads <= 1 && method == ZipEntry.DEFLATED && !(resource instanceof ZipResource))
+			return null;
+
+		FutureTask<ZipWriter.Compressed> task = new FutureTask<ZipWriter.Compressed>(
+				new Callable<ZipWriter.Compressed>() {
+					public ZipWriter.Compressed call() throws Exception {
+						return ZipWriter.compress(resource, method);
+					}
+				});
+		if (writeThreads > 1)
+			Processor.executor.execute(task);
+		else
+			task.run();
+		return task;
+	}
+
+	private void writeResource(ZipWriter zip, Set<String> directories, String path, Resource resource, int method,
+			Future<ZipWriter.Compressed> compressed) throws Exception {
+		try {
+			createDirectories(directories, zip, path);
+			if (path.endsWith(Constants.EMPTY_HEADER))
+				return;
+			long lastModified = resource.lastModified();
+			if (lastModified == 0L) {
+				lastModified = System.currentTimeMillis();
+			}
+			byte[] extra = resource.getExtra() == null ? null : resource.getExtra().getBytes("UTF-8");
+			if (compressed == null)
+				zip.putEntry(path, extra, lastModified, method, resource);
+			else
+				zip.putEntry(path, extra, lastModified, compressed.get());
+		}
+		catch (ExecutionException e) {
+			throw new Exception("Problem writing resource " + path, e.getCause());
+		}
+		catch (Exception e) {
+			throw new Exception("Problem writing resource " + path, e);
+		}
+	}
 
-		JarEntry ze = new JarEntry(manifestName);
-		ZipUtil.setModifiedTime(ze,lastModified);
-		jout.putNextEntry(ze);
-		writeManifest(jout);
-		jout.closeEntry();
-		done.add(ze.getName());
+	private void createDirectories(Set<String> directories, ZipWriter zip, String name) throws Exception {
+		int index = name.lastIndexOf('/');
+		if (index > 0) {
+			String path = name.substring(0, index);
+			if (directories.contains(path))
+				return;
+			createDirectories(directories, zip, path);
+			zip.putDirectory(path + '/');
+			directories.add(path);
+		}
 	}
 
 	/**
@@ -539,46 +794,6 @@ public class Jar implements Closeable {
 			return s;
 	}
 
-	private void writeResource(ZipOutputStream jout, Set<String> directories, String path, Resource resource)
-			throws Exception {
-		if (resource == null)
-			return;
-		try {
-			createDirectories(directories, jout, path);
-			if (path.endsWith(Constants.EMPTY_HEADER))
-				return;
-			ZipEntry ze = new ZipEntry(path);
-			ze.setMethod(ZipEntry.DEFLATED);
-			long lastModified = resource.lastModified();
-			if (lastModified == 0L) {
-				lastModified = System.currentTimeMillis();
-			}
-			ZipUtil.setModifiedTime(ze,lastModified);
-			if (resource.getExtra() != null)
-				ze.setExtra(resource.getExtra().getBytes("UTF-8"));
-			jout.putNextEntry(ze);
-			resource.write(jout);
-			jout.closeEntry();
-		}
-		catch (Exception e) {
-			throw new Exception("Problem writing resource " + path, e);
-		}
-	}
-
-	void createDirectories(Set<String> directories, ZipOutputStream zip, String name) throws IOException {
-		int index = name.lastIndexOf('/');
-		if (index > 0) {
-			String path = name.substring(0, index);
-			if (directories.contains(path))
-				return;
-			createDirectories(directories, zip, path);
-			ZipEntry ze = new ZipEntry(path + '/');
-			zip.putNextEntry(ze);
-			zip.closeEntry();
-			directories.add(path);
-		}
-	}
-
 	public String getName() {
 		return name;
 	}
@@ -616,7 +831,13 @@ public class Jar implements Closeable {
 		return dupl;
 	}
 
+	/**
+	 * Close the Jar. Closing a shared Jar does nothing, it is closed by its
+	 * pool when nobody uses it anymore.
+	 */
 	public void close() {
+		if (shared)
+			return;
 		this.closed = true;
 		if (zipFile != null)
 			try {
@@ -625,6 +846,14 @@ public class Jar implements Closeable {
 			catch (IOException e) {
 				// Ignore
 			}
+		if (zipSource != null)
+			try {
+				zipSource.close();
+			}
+			catch (IOException e) {
+				// Ignore
+			}
+		index = null;
 		resources.clear();
 		directories.clear();
 		manifest = null;
@@ -648,11 +877,12 @@ public class Jar implements Closeable {
 
 	public boolean hasDirectory(String path) {
 		check();
-		return directories.get(path) != null;
+		return getDirectories().get(path) != null;
 	}
 
 	public List<String> getPackages() {
 		check();
+		Map<String,Map<String,Resource>> directories = getDirectories();
 		List<String> list = new ArrayList<String>(directories.size());
 
 		for (Map.Entry<String,Map<String,Resource>> i : directories.entrySet()) {
@@ -685,7 +915,8 @@ public class Jar implements Closeable {
 	}
 
 	public Resource remove(String path) {
-		check();
+		checkWrite();
+		inflate();
 		Resource resource = resources.remove(path);
 		String dir = getDirectory(path);
 		Map<String,Resource> mdir = directories.get(dir);
@@ -700,6 +931,7 @@ public class Jar implements Closeable {
 	 * calculated.
 	 */
 	public void setDoNotTouchManifest() {
+		checkWrite();
 		doNotTouchManifest = true;
 	}
 
@@ -708,7 +940,7 @@ public class Jar implements Closeable {
 	 */
 
 	public void calcChecksums(String algorithms[]) throws Exception {
-		check();
+		checkWrite();
 		if (algorithms == null)
 			algorithms = new String[] {
 					"SHA", "MD5"
@@ -727,7 +959,7 @@ public class Jar implements Closeable {
 
 		byte buffer[] = new byte[BUFFER_SIZE];
 
-		for (Map.Entry<String,Resource> entry : resources.entrySet()) {
+		for (Map.Entry<String,Resource> entry : getResources().entrySet()) {
 
 			// Skip the manifest
 			if (entry.getKey().equals(manifestName))
@@ -773,7 +1005,7 @@ public class Jar implements Closeable {
 	 */
 	public String getBsn() throws Exception {
 		check();
-		Manifest m = getManifest();
+		Manifest m = readManifest();
 		if (m == null)
 			return null;
 
@@ -800,7 +1032,7 @@ public class Jar implements Closeable {
 	 */
 	public String getVersion() throws Exception {
 		check();
-		Manifest m = getManifest();
+		Manifest m = readManifest();
 		if (m == null)
 			return null;
 
@@ -845,7 +1077,7 @@ public class Jar implements Closeable {
 	 * @throws Exception
 	 */
 	public void ensureManifest() throws Exception {
-		if (getManifest() != null)
+		if (readManifest() != null)
 			return;
 		manifest = new Manifest();
 	}
@@ -864,6 +1096,7 @@ public class Jar implements Closeable {
 	}
 
 	public void setCompression(Compression compression) {
+		checkWrite();
 		this.compression = compression;
 	}
 
@@ -876,6 +1109,22 @@ public class Jar implements Closeable {
 			throw new RuntimeException("Already closed " + name);
 	}
 
+	void checkWrite() {
+		check();
+		if (shared)
+			throw new UnsupportedOperationException("Cannot modify the shared jar " + name
+					+ ", copy it into a new jar to modify it");
+	}
+
+	/**
+	 * Answer if this Jar is shared between builders. A shared Jar cannot be
+	 * modified, its modifying methods throw an
+	 * {@link UnsupportedOperationException}.
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
 	/**
 	 * Return a data uri from the JAR. The data must be less than 32k
 	 * 
@@ -909,6 +1158,15 @@ public class Jar implements Closeable {
 	public void setDigestAlgorithms(String[] algorithms) {
 		this.algorithms = algorithms;
 	}
+
+	/**
+	 * Set the number of threads used to compress the resources when the jar
+	 * is written. With more than one thread the resources are compressed in
+	 * parallel, the entries are still written in the same order.
+	 */
+	public void setWriteThreads(int threads) {
+		this.writeThreads = Math.max(1, threads);
+	}
 	
 
 	public byte[] getTimelessDigest() throws Exception {
@@ -0,0 +1,174 @@
+package aQute.bnd.osgi;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A pool of Jars for the files on the classpath of the builders of a
+ * workspace. The projects of a workspace mostly build against the same repo
+ * JARs, with a pool such a JAR is opened once and its directory is held once,
+ * instead of once for each builder.
+ * <p>
+ * The Jars are shared, they cannot be modified and closing them does nothing,
+ * see {@link Jar#isShared()}. A Jar is found by the canonical file, it is only
+ * reused when the last modified time and the length of the file did not
+ * change. Each {@link #acquire(File)} must be matched with a
+ * {@link #release(Jar)}. A Jar that is no longer used stays in the pool until
+ * the memory is needed, it is then dropped by the garbage collector and the
+ * pool closes its file.
+ */
+public class JarPool implements Closeable {
+	private final Map<File,Entry>		entries	= new HashMap<File,Entry>();
+	private final Map<Jar,Entry>		used	= new IdentityHashMap<Jar,Entry>();
+	private final ReferenceQueue<Jar>	queue	= new ReferenceQueue<Jar>();
+
+	/*
+	 * Refers softly to the Jar, and strongly while the Jar is used. Holds on
+	 * to the open files of the Jar so they can be closed when the Jar was
+	 * dropped.
+	 */
+	static class Entry extends SoftReference<Jar> {
+		final File				file;
+		final long				lastModified;
+		final long				length;
+		final ZipFile			zipFile;
+		final ZipIndex.Source	source;
+		Jar						jar;
+		int						count;
+
+		Entry(File file, Jar jar, ReferenceQueue<Jar> queue) {
+			super(jar, queue);
+			this.file = file;
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+			this.zipFile = jar.zipFile;
+			this.source = jar.zipSource;
+		}
+
+		boolean isCurrent() {
+			return lastModified == file.lastModified() && length == file.length();
+		}
+
+		void closeFiles() {
+			try {
+				if (zipFile != null)
+					zipFile.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+			try {
+				if (source != null)
+					source.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Return a shared Jar for a file. A directory is not shared, the pool
+	 * returns a new Jar for it.
+	 *
+	 * @param file the file or directory
+	 * @return a Jar that must be released with {@link #release(Jar)}
+	 */
+	public synchronized Jar acquire(File file) throws IOException {
+		if (!file.isFile())
+			return new Jar(file);
+
+		purge();
+		File canonical = file.getCanonicalFile();
+		Entry entry = entries.get(canonical);
+		Jar jar = null;
+		if (entry != null) {
+			jar = entry.get();
+			if (jar == null || !entry.isCurrent()) {
+				entries.remove(canonical);
+				if (entry.count == 0)
+					dispose(entry);
+				entry = null;
+			}
+		}
+
+		if (entry == null) {
+			jar = new Jar(file);
+			jar.shared = true;
+			entry = new Entry(canonical, jar, queue);
+			entries.put(canonical, entry);
+		}
+
+		entry.jar = jar;
+		entry.count++;
+		used.put(jar, entry);
+		return jar;
+	}
+
+	/**
+	 * Release a Jar returned from {@link #acquire(File)}. A Jar that is not
+	 * shared is closed.
+	 */
+	public synchronized void release(Jar jar) {
+		Entry entry = used.get(jar);
+		if (entry == null) {
+			jar.close();
+			return;
+		}
+
+		if (--entry.count > 0)
+			return;
+
+		used.remove(jar);
+		entry.jar = null;
+		if (entries.get(entry.file) != entry)
+			dispose(entry);
+		purge();
+	}
+
+	/**
+	 * Answer the number of Jars in the pool.
+	 */
+	public synchronized int size() {
+		purge();
+		return entries.size();
+	}
+
+	/**
+	 * Close all Jars in the pool, also the Jars that are still used.
+	 */
+	public synchronized void close() {
+		for (Entry entry : entries.values())
+			dispose(entry);
+		for (Entry entry : used.values())
+			dispose(entry);
+		entries.clear();
+		used.clear();
+	}
+
+	/*
+	 * Remove the entries of the Jars that were dropped by the garbage
+	 * collector and close their files.
+	 */
+	private void purge() {
+		Reference< ? extends Jar> ref;
+		while ((ref = queue.poll()) != null) {
+			Entry entry = (Entry) ref;
+			if (entries.get(entry.file) == entry)
+				entries.remove(entry.file);
+			entry.closeFiles();
+		}
+	}
+
+	private void dispose(Entry entry) {
+		Jar jar = entry.get();
+		if (jar != null) {
+			jar.shared = false;
+			jar.close();
+		}
+		entry.clear();
+		entry.closeFiles();
+	}
+}
@@ -1,6 +1,7 @@
 package aQute.bnd.osgi;
 
 import java.io.*;
+import java.lang.invoke.*;
 import java.lang.reflect.*;
 import java.net.*;
 import java.text.*;
@@ -40,6 +41,23 @@ public class Macro {
 	StringWriter			stdout		= new StringWriter();
 	StringWriter			stderr		= new StringWriter();
 
+	final static Object		BASE		= new Object();
+	final static int		MAX_TEMPLATES	= 1000;
+
+	/*
+	 * The compiled templates of the lines that were processed, see
+	 * compile(String)
+	 */
+	final Map<String,Object[]>	templates	= Collections.synchronizedMap(new LinkedHashMap<String,Object[]>(64,
+													0.75f, true) {
+												private static final long	serialVersionUID	= 1L;
+
+												@Override
+												protected boolean removeEldestEntry(Map.Entry<String,Object[]> eldest) {
+													return size() > MAX_TEMPLATES;
+												}
+											});
+
 	public Macro(Processor domain, Object... targets) {
 		this.domain = domain;
 		this.targets = targets;
@@ -55,22 +73,74 @@ public class Macro {
 	}
 
 	String process(String line, Link link) {
+		Object[] template = compile(line);
+		if (template == null)
+			return line;
+
 		StringBuilder sb = new StringBuilder();
-		process(line, 0, '\u0000', '\u0000', sb, link);
+		expand(template, sb, link);
 		return sb.toString();
 	}
 
-	int process(CharSequence org, int index, char begin, char end, StringBuilder result, Link link) {
-		StringBuilder line = new StringBuilder(org);
+	/*
+	 * Expand a compiled template. A template consists of literal strings,
+	 * BASE for a './' at the start of a word, and macro nodes. The key of a
+	 * macro node is a template itself that is expanded before the macro is
+	 * replaced.
+	 */
+	private void expand(Object[] template, StringBuilder result, Link link) {
+		for (Object node : template) {
+			if (node instanceof String)
+				result.append((String) node);
+			else if (node == BASE) {
+				result.append(domain.getBase().getAbsolutePath());
+				result.append('/');
+			} else {
+				StringBuilder key = new StringBuilder();
+				expand((Object[]) node, key, link);
+				result.append(replace(key.toString(), link));
+			}
+		}
+	}
+
+	/**
+	 * Return the compiled template of a line, or null when the line contains
+	 * nothing to replace. Compiling only depends on the text of the line, so
+	 * the templates are cached by the text and do not have to be invalidated
+	 * when the properties change. The result of an expansion is never cached
+	 * since macros like ${tstamp} or ${rand} are not repeatable.
+	 */
+	Object[] compile(String line) {
+		if (line.indexOf('$') < 0 && line.indexOf("./") < 0 && line.indexOf('\u0000') < 0)
+			return null;
+
+		Object[] template = templates.get(line);
+		if (template == null) {
+			List<Object> nodes = new ArrayList<Object>();
+			compile(line, 0, '\u0000', '\u0000', nodes);
+			template = nodes.toArray();
+			templates.put(line, template);
+		}
+		return template;
+	}
+
+	/*
+	 * Parse the line into nodes. This parses exactly as the macro processor
+	 * always did: a macro that is not terminated is not replaced but its
+	 * content is.
+	 */
+	private static int compile(String line, int index, char begin, char end, List<Object> result) {
 		int nesting = 1;
 
-		StringBuilder variable = new StringBuilder();
+		List<Object> variable = new ArrayList<Object>();
+		StringBuilder literal = new StringBuilder();
 
 		outer: while (index < line.length()) {
 			char c1 = line.charAt(index++);
 			if (c1 == end) {
 				if (--nesting == 0) {
-					result.append(replace(variable.toString(), link));
+					flush(literal, variable);
+					result.add(variable.toArray());
 					return index;
 				}
 			} else if (c1 == begin)
@@ -80,13 +150,14 @@ public class Macro {
 				// as a
 				// literal
 				index++;
-				variable.append('$');
+				literal.append('$');
 				continue outer;
 			} else if (c1 == '$' && index < line.length() - 2) {
 				char c2 = line.charAt(index);
 				char terminator = getTerminator(c2);
 				if (terminator != 0) {
-					index = process(line, index + 1, c2, terminator, variable, link);
+					flush(literal, variable);
+					index = compile(line, index + 1, c2, terminator, variable);
 					continue outer;
 				}
 			} else if (c1 == '.' && index < line.length() && line.charAt(index) == '/') {
@@ -94,17 +165,25 @@ public class Macro {
 				if (index == 1 || Character.isWhitespace(line.charAt(index - 2))) {
 					// make sure it is preceded by whitespace or starts at begin
 					index++;
-					variable.append(domain.getBase().getAbsolutePath());
-					variable.append('/');
+					flush(literal, variable);
+					variable.add(BASE);
 					continue outer;
 				}
 			}
-			variable.append(c1);
+			literal.append(c1);
 		}
-		result.append(variable);
+		flush(literal, variable);
+		result.addAll(variable);
 		return index;
 	}
 
+	private static void flush(StringBuilder literal, List<Object> nodes) {
+		if (literal.length() > 0) {
+			nodes.add(literal.toString());
+			literal.setLength(0);
+		}
+	}
+
 	public static char getTerminator(char c) {
 		switch (c) {
 			case '(' :
@@ -279,19 +358,15 @@ public class Macro {
 			; // System.err.println("Huh? Target should never be null " +
 		// domain);
 		else {
-			String cname = "_" + method.replaceAll("-", "_");
+			String cname = "_" + method.replace('-', '_');
+			Command command = COMMANDS.get(target.getClass()).get(cname);
+			if (command == null)
+				return null;
+
 			try {
-				Method m = target.getClass().getMethod(cname, new Class[] {
-					String[].class
-				});
-				Object result = m.invoke(target, new Object[] {
-					args
-				});
+				Object result = command.invoke(target, args);
 				return result == null ? NULLVALUE : result.toString();
 			}
-			catch (NoSuchMethodException e) {
-				return null;
-			}
 			catch (InvocationTargetException e) {
 				if (e.getCause() instanceof IllegalArgumentException) {
 					domain.error("%s, for cmd: %s, arguments; %s", e.getCause().getMessage(), method,
@@ -311,6 +386,76 @@ public class Macro {
 		return null;
 	}
 
+	/*
+	 * A macro command, a public method _<name>(String[]) of a target. The
+	 * method is looked up once and then called through a method handle. A
+	 * method that is not accessible as a method handle, for example a public
+	 * method of a class that is not public, is called with reflection so it
+	 * fails like it always did.
+	 */
+	static class Command {
+		final static MethodType	TYPE	= MethodType.methodType(Object.class, Object.class, String[].class);
+		final Method			method;
+		final MethodHandle		handle;
+
+		Command(Method method) {
+			MethodHandle handle;
+			try {
+				handle = MethodHandles.publicLookup().unreflect(method);
+				if (Modifier.isStatic(method.getModifiers()))
+					handle = MethodHandles.dropArguments(handle, 0, Object.class);
+				handle = handle.asType(TYPE);
+			}
+			catch (IllegalAccessException e) {
+				handle = null;
+			}
+			this.method = method;
+			this.handle = handle;
+		}
+
+		Object invoke(Object target, String[] args) throws Exception {
+			if (handle == null)
+				return method.invoke(target, new Object[] {
+					args
+				});
+
+			try {
+				return handle.invokeExact(target, args);
+			}
+			catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
+
+	/*
+	 * The macro commands per class, indexed by the method name
+	 */
+	final static ClassValue<Map<String,Command>>	COMMANDS	= new ClassValue<Map<String,Command>>() {
+																	@Override
+																	protected Map<String,Command> computeValue(Class< ? > type) {
+																		return getCommands(type);
+																	}
+																};
+
+	static Map<String,Command> getCommands(Class< ? > type) {
+		Map<String,Command> commands = new HashMap<String,Command>();
+		for (Method m : type.getMethods()) {
+			if (!m.getName().startsWith("_"))
+				continue;
+
+			Class< ? >[] parameters = m.getParameterTypes();
+			if (parameters.length != 1 || parameters[0] != String[].class)
+				continue;
+
+			// Prefer the method over a bridge for a covariant return type
+			Command command = commands.get(m.getName());
+			if (command == null || command.method.isBridge())
+				commands.put(m.getName(), new Command(m));
+		}
+		return commands;
+	}
+
 	/**
 	 * Return a unique list where the duplicates are removed.
 	 * 
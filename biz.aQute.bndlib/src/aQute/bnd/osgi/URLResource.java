@@ -44,7 +44,7 @@ public class URLResource implements Resource {
 			return size;
 
 		try {
-			if (url.getProtocol().equals("file:")) {
+			if (url.getProtocol().equals("file")) {
 				File file = new File(url.getPath());
 				if (file.isFile())
 					return size = file.length();
@@ -0,0 +1,685 @@
+package aQute.bnd.osgi;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+
+import aQute.lib.zip.*;
+
+/**
+ * A compact, read only index of the entries of a zip file. The index is built
+ * from the entries of the {@link ZipFile} in one pass. The entry names are
+ * packed in a single char array in path order, the directories only hold
+ * ranges in an int array. A {@link ZipResource} is only created when an entry
+ * is actually asked for. This allows a {@link Jar} on a large file to be
+ * opened without keeping objects for every entry.
+ * <p>
+ * The index gives up (read returns null) on anything it does not expect, like
+ * duplicate entries, entries that are also a directory, or names that start
+ * with a '/'. The caller must then read the zip file the old way. The offsets
+ * of the local headers are read from the central directory, when that fails
+ * (for example for zip64 archives) the data of the entries cannot be copied
+ * raw.
+ */
+final class ZipIndex {
+	private final static int	ENDSIG		= 0x06054b50;
+	private final static int	ENDHDR		= 22;
+	private final static int	CENSIG		= 0x02014b50;
+	private final static int	CENHDR		= 46;
+
+	final ZipFile				zip;
+	final Source				source;
+	final String				first;
+	final long					lastModified;
+	final String				lastModifiedReason;
+
+	/*
+	 * The names of the entries in path order, name i is
+	 * chars[starts[i]..starts[i+1]>
+	 */
+	private final char[]		chars;
+	private final int[]			starts;
+
+	/*
+	 * The sorted directories, including parents that have no entries of their
+	 * own. The entries of directory d are entries[dirStarts[d]..dirEnds[d]>,
+	 * dirStarts[d] is -1 for a parent only directory.
+	 */
+	private final String[]		dirs;
+	private final int[]			dirStarts;
+	private final int[]			dirEnds;
+	private final int[]			entries;
+
+	/*
+	 * The offsets of the local headers of the entries in path order,
+	 * unsigned, relative to source.base. Null when the central directory could
+	 * not be read, source is then null too.
+	 */
+	private final int[]			offsets;
+
+	private Resource[]			resources;
+
+	/**
+	 * Identifies the zip file the index was read from, the raw data of an
+	 * entry can only be read from the file when it was not changed since. All
+	 * entries read their raw data through one channel on the file, it is
+	 * opened when it is first needed and closed with the Jar.
+	 */
+	static class Source implements Closeable {
+		final File			file;
+		final long			length;
+		final long			lastModified;
+		final long			base;
+		private FileChannel	channel;
+		private boolean		closed;
+
+		Source(File file, long length, long lastModified, long base) {
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.base = base;
+		}
+
+		boolean isValid() {
+			return file.length() == length && file.lastModified() == lastModified;
+		}
+
+		/*
+		 * The channel for positional reads, null when closed
+		 */
+		@SuppressWarnings("resource")
+		synchronized FileChannel getChannel() throws IOException {
+			if (channel == null && !closed)
+				channel = new RandomAccessFile(file, "r").getChannel();
+			return channel;
+		}
+
+		public synchronized void close() throws IOException {
+			closed = true;
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	private ZipIndex(ZipFile zip, Source source, String[] paths, int[] offsets, String first, long lastModified,
+			String lastModifiedReason) {
+		this.zip = zip;
+		this.source = source;
+		this.offsets = offsets;
+		this.first = first;
+		this.lastModified = lastModified;
+		this.lastModifiedReason = lastModifiedReason;
+
+		int length = 0;
+		for (String path : paths)
+			length += path.length();
+
+		chars = new char[length];
+		starts = new int[paths.length + 1];
+		int n = 0;
+		for (int i = 0; i < paths.length; i++) {
+			starts[i] = n;
+			paths[i].getChars(0, paths[i].length(), chars, n);
+			n += paths[i].length();
+		}
+		starts[paths.length] = n;
+
+		//
+		// Count the entries per directory and add the parent directories
+		// like Jar.putResource does. The value is {index, count}, parent
+		// only directories have no value.
+		//
+
+		TreeMap<String,int[]> counts = new TreeMap<String,int[]>();
+		int[][] countOf = new int[paths.length][];
+		String dir = null;
+		int[] count = null;
+		for (int i = 0; i < paths.length; i++) {
+			String path = paths[i];
+
+			// Paths are sorted so the entries of a directory mostly follow
+			// each other
+			int slash = path.lastIndexOf('/');
+			if (dir == null || slash != dir.length() || !path.startsWith(dir)) {
+				dir = slash < 0 ? "" : path.substring(0, slash);
+				count = counts.get(dir);
+			}
+			if (count == null) {
+				counts.put(dir, count = new int[2]);
+				int s = dir.lastIndexOf('/');
+				while (s > 0) {
+					String dd = dir.substring(0, s);
+					if (counts.containsKey(dd))
+						break;
+					counts.put(dd, null);
+					s = dd.lastIndexOf('/');
+				}
+			}
+			count[1]++;
+			countOf[i] = count;
+		}
+
+		dirs = new String[counts.size()];
+		dirStarts = new int[dirs.length];
+		dirEnds = new int[dirs.length];
+		int d = 0;
+		n = 0;
+		for (Map.Entry<String,int[]> e : counts.entrySet()) {
+			dirs[d] = e.getKey();
+			count = e.getValue();
+			if (count == null) {
+				dirStarts[d] = dirEnds[d] = -1;
+			} else {
+				count[0] = d;
+				dirStarts[d] = n;
+				dirEnds[d] = n + count[1];
+				n += count[1];
+			}
+			d++;
+		}
+
+		entries = new int[paths.length];
+		int[] next = dirStarts.clone();
+		for (int i = 0; i < paths.length; i++)
+			entries[next[countOf[i][0]]++] = i;
+	}
+
+	/**
+	 * Read the entries of an opened zip file.
+	 *
+	 * @return the index or null if the zip file must be read with the
+	 *         {@link ZipFile} API
+	 */
+	static ZipIndex read(ZipFile zip, File file) {
+		try {
+			long fileModified = file.lastModified();
+			List<String> names = new ArrayList<String>();
+			List<String> paths = new ArrayList<String>();
+			List<String> directories = new ArrayList<String>();
+			String first = null;
+			long lastModified = 0;
+			String lastModifiedReason = null;
+
+			for (Enumeration< ? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+				ZipEntry entry = e.nextElement();
+				String path = entry.getName();
+				if (path.isEmpty() || path.startsWith("/"))
+					return null;
+
+				names.add(path);
+				if (entry.isDirectory()) {
+					directories.add(path.substring(0, path.length() - 1));
+					continue;
+				}
+
+				if (first == null)
+					first = path;
+				paths.add(path);
+
+				long time = ZipUtil.getModifiedTime(entry);
+				if (time > lastModified) {
+					lastModified = time;
+					lastModifiedReason = path;
+				}
+			}
+
+			String[] sorted = paths.toArray(new String[paths.size()]);
+			Arrays.sort(sorted);
+			for (int i = 1; i < sorted.length; i++) {
+				if (sorted[i].equals(sorted[i - 1]))
+					return null;
+			}
+
+			// ZipFile.getEntry could return the directory entry
+			for (String dir : directories) {
+				if (Arrays.binarySearch(sorted, dir) >= 0)
+					return null;
+			}
+
+			//
+			// The offsets of the local headers are only needed to copy the
+			// raw data of the entries, without them the index still works
+			//
+
+			Source source = null;
+			int[] offsets = null;
+			long[] cen = readOffsets(file, names);
+			if (cen != null) {
+				source = new Source(file, cen[names.size() + 1], fileModified, cen[names.size()]);
+				offsets = new int[sorted.length];
+
+				// paths holds the same strings as names, without the
+				// directories
+				for (int i = 0, p = 0; i < names.size(); i++) {
+					if (p < paths.size() && names.get(i) == paths.get(p)) {
+						offsets[Arrays.binarySearch(sorted, paths.get(p))] = (int) cen[i];
+						p++;
+					}
+				}
+			}
+			return new ZipIndex(zip, source, sorted, offsets, first, lastModified, lastModifiedReason);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Read the offsets of the local headers from the central directory. The
+	 * records are in the same order as the entries of the ZipFile, their
+	 * names must match. The offsets are followed by the position of the zip in
+	 * the file, non zero when there is data in front of it, and the length of
+	 * the file. Returns null when the central directory cannot be read.
+	 */
+	private static long[] readOffsets(File file, List<String> names) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return readOffsets(raf.getChannel(), names);
+			}
+			finally {
+				raf.close();
+			}
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static long[] readOffsets(FileChannel channel, List<String> names) throws Exception {
+		long size = channel.size();
+		if (size < ENDHDR)
+			return null;
+
+		//
+		// The end of central directory record is at the end of the file,
+		// followed by a comment of at most 64k
+		//
+
+		int tailSize = (int) Math.min(size, ENDHDR + 0x100);
+		ByteBuffer tail = readFully(channel, size - tailSize, tailSize);
+		int end = findEnd(tail);
+		if (end < 0 && tailSize < size) {
+			tailSize = (int) Math.min(size, ENDHDR + 0xFFFF);
+			tail = readFully(channel, size - tailSize, tailSize);
+			end = findEnd(tail);
+		}
+		if (end < 0)
+			return null;
+
+		int disk = tail.getShort(end + 4) & 0xFFFF;
+		int cenDisk = tail.getShort(end + 6) & 0xFFFF;
+		int total = tail.getShort(end + 10) & 0xFFFF;
+		long cenSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long cenOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+		// zip64 or multi disk archives are not copied raw
+		if (disk != 0 || cenDisk != 0 || total != names.size() || cenSize == 0xFFFFFFFFL
+				|| cenOffset == 0xFFFFFFFFL)
+			return null;
+
+		// Allow for data in front of the zip, like ZipFile does
+		long cenPosition = size - tailSize + end - cenSize;
+		if (cenPosition < cenOffset || cenSize > Integer.MAX_VALUE)
+			return null;
+
+		ByteBuffer cen = readFully(channel, cenPosition, (int) cenSize);
+		CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
+		decoder.onMalformedInput(CodingErrorAction.REPORT);
+		decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+		long[] offsets = new long[total + 2];
+		int pos = 0;
+		for (int i = 0; i < total; i++) {
+			if (pos + CENHDR > cen.limit() || cen.getInt(pos) != CENSIG)
+				return null;
+
+			int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+			int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+			offsets[i] = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+			int name = pos + CENHDR;
+			pos = name + nameLength + extraLength + commentLength;
+			if (pos > cen.limit())
+				return null;
+
+			if (!names.get(i).equals(decode(decoder, cen, name, nameLength)))
+				return null;
+		}
+		offsets[total] = cenPosition - cenOffset;
+		offsets[total + 1] = size;
+		return offsets;
+	}
+
+	private static int findEnd(ByteBuffer tail) {
+		for (int i = tail.limit() - ENDHDR; i >= 0; i--) {
+			if (tail.getInt(i) == ENDSIG && i + ENDHDR + (tail.getShort(i + 20) & 0xFFFF) <= tail.limit())
+				return i;
+		}
+		return -1;
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(size);
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position + bb.position()) < 0)
+				throw new EOFException();
+		}
+		bb.flip();
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		return bb;
+	}
+
+	private static String decode(CharsetDecoder decoder, ByteBuffer bb, int offset, int length) {
+		char[] cs = new char[length];
+		for (int i = 0; i < length; i++) {
+			byte b = bb.get(offset + i);
+			if (b < 0) {
+				ByteBuffer slice = bb.duplicate();
+				slice.position(offset).limit(offset + length);
+				try {
+					return decoder.decode(slice).toString();
+				}
+				catch (CharacterCodingException e) {
+					return null;
+				}
+			}
+			cs[i] = (char) b;
+		}
+		return new String(cs);
+	}
+
+	int size() {
+		return starts.length - 1;
+	}
+
+	String getPath(int entry) {
+		return new String(chars, starts[entry], starts[entry + 1] - starts[entry]);
+	}
+
+	/**
+	 * Find an entry
+	 *
+	 * @return the entry or -1 if not found
+	 */
+	int find(String path) {
+		int low = 0;
+		int high = size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(mid, path);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private int compare(int entry, String path) {
+		int start = starts[entry];
+		int length = starts[entry + 1] - start;
+		int n = Math.min(length, path.length());
+		for (int i = 0; i < n; i++) {
+			char c = chars[start + i];
+			char d = path.charAt(i);
+			if (c != d)
+				return c - d;
+		}
+		return length - path.length();
+	}
+
+	synchronized Resource getResource(int entry) {
+		if (resources == null)
+			resources = new Resource[size()];
+
+		Resource resource = resources[entry];
+		if (resource == null) {
+			ZipEntry ze = zip.getEntry(getPath(entry));
+			if (ze == null)
+				return null;
+			try {
+				resource = resources[entry] = offsets == null ? new ZipResource(zip, ze) : new ZipResource(zip, ze,
+						source, offsets[entry] & 0xFFFFFFFFL);
+			}
+			catch (UnsupportedEncodingException e) {
+				// UTF-8 is always supported
+				throw new RuntimeException(e);
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * Find a directory
+	 *
+	 * @return the directory or -1 if not found
+	 */
+	int findDirectory(String dir) {
+		int d = Arrays.binarySearch(dirs, dir);
+		return d < 0 ? -1 : d;
+	}
+
+	/**
+	 * The resources of this zip file as a read only map in path order
+	 */
+	Map<String,Resource> getResources() {
+		return new EntryMap(0, size(), null);
+	}
+
+	/**
+	 * The resources of a directory as a read only map in path order
+	 *
+	 * @return the map or null if the directory does not exist or has no
+	 *         entries of its own.
+	 */
+	Map<String,Resource> getDirectory(String dir) {
+		int d = findDirectory(dir);
+		if (d < 0 || dirStarts[d] < 0)
+			return null;
+		return new EntryMap(dirStarts[d], dirEnds[d], entries);
+	}
+
+	/**
+	 * The directories of this zip file as a read only map in path order, the
+	 * value is null for directories that are only parents of other
+	 * directories.
+	 */
+	Map<String,Map<String,Resource>> getDirectories() {
+		return new AbstractMap<String,Map<String,Resource>>() {
+
+			@Override
+			public int size() {
+				return dirs.length;
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return key instanceof String && findDirectory((String) key) >= 0;
+			}
+
+			@Override
+			public Map<String,Resource> get(Object key) {
+				return key instanceof String ? getDirectory((String) key) : null;
+			}
+
+			@Override
+			public Set<String> keySet() {
+				return new AbstractSet<String>() {
+
+					@Override
+					public Iterator<String> iterator() {
+						return Arrays.asList(dirs).iterator();
+					}
+
+					@Override
+					public boolean contains(Object o) {
+						return containsKey(o);
+					}
+
+					@Override
+					public int size() {
+						return dirs.length;
+					}
+				};
+			}
+
+			@Override
+			public Set<Map.Entry<String,Map<String,Resource>>> entrySet() {
+				return new AbstractSet<Map.Entry<String,Map<String,Resource>>>() {
+
+					@Override
+					public Iterator<Map.Entry<String,Map<String,Resource>>> iterator() {
+						return new Iterator<Map.Entry<String,Map<String,Resource>>>() {
+							int	d;
+
+							public boolean hasNext() {
+								return d < dirs.length;
+							}
+
+							public Map.Entry<String,Map<String,Resource>> next() {
+								if (!hasNext())
+									throw new NoSuchElementException();
+								String dir = dirs[d++];
+								return new SimpleImmutableEntry<String,Map<String,Resource>>(dir, getDirectory(dir));
+							}
+
+							public void remove() {
+								throw new UnsupportedOperationException();
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return dirs.length;
+					}
+				};
+			}
+		};
+	}
+
+	/*
+	 * A read only map over a range of entries. If map is null the range is
+	 * over the entries, otherwise over the map that holds the entries.
+	 */
+	private class EntryMap extends AbstractMap<String,Resource> {
+		final int	start;
+		final int	end;
+		final int[]	map;
+
+		EntryMap(int start, int end, int[] map) {
+			this.start = start;
+			this.end = end;
+			this.map = map;
+		}
+
+		int entry(int i) {
+			return map == null ? i : map[i];
+		}
+
+		int find(Object key) {
+			if (!(key instanceof String))
+				return -1;
+			int entry = ZipIndex.this.find((String) key);
+			if (entry < 0)
+				return -1;
+			if (map == null)
+				return entry;
+
+			// the entries of a directory are sorted, like all entries
+			int i = Arrays.binarySearch(map, start, end, entry);
+			return i < 0 ? -1 : entry;
+		}
+
+		@Override
+		public int size() {
+			return end - start;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return find(key) >= 0;
+		}
+
+		@Override
+		public Resource get(Object key) {
+			int entry = find(key);
+			return entry < 0 ? null : getResource(entry);
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return new AbstractSet<String>() {
+
+				@Override
+				public Iterator<String> iterator() {
+					return new RangeIterator<String>() {
+						@Override
+						String get(int entry) {
+							return getPath(entry);
+						}
+					};
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+
+				@Override
+				public int size() {
+					return EntryMap.this.size();
+				}
+			};
+		}
+
+		@Override
+		public Set<Map.Entry<String,Resource>> entrySet() {
+			return new AbstractSet<Map.Entry<String,Resource>>() {
+
+				@Override
+				public Iterator<Map.Entry<String,Resource>> iterator() {
+					return new RangeIterator<Map.Entry<String,Resource>>() {
+						@Override
+						Map.Entry<String,Resource> get(int entry) {
+							return new SimpleImmutableEntry<String,Resource>(getPath(entry), getResource(entry));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return EntryMap.this.size();
+				}
+			};
+		}
+
+		abstract class RangeIterator<T> implements Iterator<T> {
+			int	i	= start;
+
+			abstract T get(int entry);
+
+			public boolean hasNext() {
+				return i < end;
+			}
+
+			public T next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return get(entry(i++));
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package aQute.bnd.osgi;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.regex.*;
 import java.util.zip.*;
@@ -8,10 +10,21 @@ import java.util.zip.*;
 import aQute.lib.zip.*;
 
 public class ZipResource implements Resource {
-	ZipFile		zip;
-	ZipEntry	entry;
-	long		lastModified;
-	String		extra;
+	private final static int	LOCSIG	= 0x04034b50;
+	private final static int	LOCHDR	= 30;
+
+	ZipFile						zip;
+	ZipEntry					entry;
+	long						lastModified;
+	String						extra;
+	ZipIndex.Source				source;
+	long						offset;
+
+	ZipResource(ZipFile zip, ZipEntry entry, ZipIndex.Source source, long offset) throws UnsupportedEncodingException {
+		this(zip, entry);
+		this.source = source;
+		this.offset = offset;
+	}
 
 	ZipResource(ZipFile zip, ZipEntry entry) throws UnsupportedEncodingException {
 		this.zip = zip;
@@ -36,22 +49,14 @@ public class ZipResource implements Resource {
 	}
 
 	public static ZipFile build(Jar jar, File file, Pattern pattern) throws ZipException, IOException {
+		ZipFile zip = open(file);
+		build(jar, zip, pattern);
+		return zip;
+	}
 
+	static ZipFile open(File file) throws ZipException, IOException {
 		try {
-			ZipFile zip = new ZipFile(file);
-			nextEntry: for (Enumeration< ? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
-				ZipEntry entry = e.nextElement();
-				if (pattern != null) {
-					Matcher m = pattern.matcher(entry.getName());
-					if (!m.matches())
-						continue nextEntry;
-				}
-				if (!entry.isDirectory()) {
-
-					jar.putResource(entry.getName(), new ZipResource(zip, entry), true);
-				}
-			}
-			return zip;
+			return new ZipFile(file);
 		}
 		catch (ZipException ze) {
 			throw new ZipException("The JAR/ZIP file (" + file.getAbsolutePath() + ") seems corrupted, error: "
@@ -62,6 +67,21 @@ public class ZipResource implements Resource {
 		}
 	}
 
+	static void build(Jar jar, ZipFile zip, Pattern pattern) throws IOException {
+		nextEntry: for (Enumeration< ? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+			ZipEntry entry = e.nextElement();
+			if (pattern != null) {
+				Matcher m = pattern.matcher(entry.getName());
+				if (!m.matches())
+					continue nextEntry;
+			}
+			if (!entry.isDirectory()) {
+
+				jar.putResource(entry.getName(), new ZipResource(zip, entry), true);
+			}
+		}
+	}
+
 	public void write(OutputStream out) throws Exception {
 		FileResource.copy(this, out);
 	}
@@ -89,4 +109,102 @@ public class ZipResource implements Resource {
 	public long size() {
 		return entry.getSize();
 	}
+
+	/**
+	 * The compression method of the entry, {@link ZipEntry#STORED} or
+	 * {@link ZipEntry#DEFLATED}.
+	 */
+	public int getMethod() {
+		return entry.getMethod();
+	}
+
+	public long getCompressedSize() {
+		return entry.getCompressedSize();
+	}
+
+	public long getCrc() {
+		return entry.getCrc();
+	}
+
+	/**
+	 * Copy the data of the entry as it is stored in the zip file, so
+	 * compressed with {@link #getMethod()}. This allows the entry to be copied
+	 * to another zip file without decompressing and compressing it again.
+	 *
+	 * @return false if nothing was copied because the data cannot be read, for
+	 *         example because the zip file was changed after it was opened.
+	 */
+	public boolean copyCompressedData(OutputStream out) throws IOException {
+		long position = getDataPosition();
+		if (position < 0)
+			return false;
+
+		copyData(position, out);
+		return true;
+	}
+
+	/*
+	 * The position of the compressed data in the zip file, or -1 if it cannot
+	 * be read
+	 */
+	long getDataPosition() throws IOException {
+		long csize = entry.getCompressedSize();
+		if (source == null || csize < 0 || entry.getSize() < 0 || !source.isValid())
+			return -1;
+
+		FileChannel channel = source.getChannel();
+		if (channel == null)
+			return -1;
+
+		long position = source.base + offset;
+		ByteBuffer header = ByteBuffer.allocate(LOCHDR);
+		readFully(channel, header, position);
+		if (get32(header.array(), 0) != LOCSIG || get16(header.array(), 8) != entry.getMethod())
+			return -1;
+
+		byte[] name = entry.getName().getBytes("UTF-8");
+		ByteBuffer localName = ByteBuffer.allocate(get16(header.array(), 26));
+		readFully(channel, localName, position + LOCHDR);
+		if (!Arrays.equals(name, localName.array()))
+			return -1;
+
+		return position + LOCHDR + localName.capacity() + get16(header.array(), 28);
+	}
+
+	/*
+	 * Copy the compressed data at the given position, see getDataPosition
+	 */
+	void copyData(long position, OutputStream out) throws IOException {
+		if (!source.isValid())
+			throw new IOException("The zip file was changed while it was copied " + source.file);
+
+		FileChannel channel = source.getChannel();
+		if (channel == null)
+			throw new IOException("The zip file is closed " + source.file);
+
+		WritableByteChannel target = Channels.newChannel(out);
+		long csize = entry.getCompressedSize();
+		long done = 0;
+		while (done < csize) {
+			long n = channel.transferTo(position + done, csize - done, target);
+			if (n <= 0)
+				throw new EOFException("Unexpected end of " + source.file);
+			done += n;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+
+	private static int get16(byte[] b, int off) {
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+	}
+
+	private static long get32(byte[] b, int off) {
+		return get16(b, off) | ((long) get16(b, off + 2) << 16);
+	}
 }
@@ -0,0 +1,531 @@
+package aQute.bnd.osgi;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Writes a zip file from entries that are already compressed. A
+ * {@link ZipOutputStream} can only compress the data itself, this allows the
+ * entries to be compressed on other threads and then written in order. The
+ * entries are written with their sizes and crc in the local header, so
+ * without data descriptors. Large resources are compressed while they are
+ * written, as a ZipOutputStream would, see
+ * {@link #putEntry(String, byte[], long, int, Resource)}.
+ * <p>
+ * The output is read back the same as the output of a {@link ZipOutputStream}
+ * (or {@link java.util.jar.JarOutputStream}) with the same entries: names in
+ * UTF-8, the DOS time of the entry in the local time zone, and the JAR magic
+ * extra field on the first entry of a jar. Like ZipOutputStream, the zip64
+ * extensions are used when there are too many entries or the file or an
+ * entry gets too large.
+ */
+final class ZipWriter {
+	private final static int	LOCSIG				= 0x04034b50;
+	private final static int	EXTSIG				= 0x08074b50;
+	private final static int	CENSIG				= 0x02014b50;
+	private final static int	ENDSIG				= 0x06054b50;
+	private final static int	ZIP64_ENDSIG		= 0x06064b50;
+	private final static int	ZIP64_LOCSIG		= 0x07064b50;
+	private final static int	EXTID_ZIP64			= 0x0001;
+	private final static int	USE_UTF8			= 0x800;
+	private final static int	DATA_DESCRIPTOR		= 0x8;
+	private final static int	EXTID_EXTT			= 0x5455;
+	private final static int	JAR_MAGIC			= 0xCAFE;
+	private final static long	DOSTIME_BEFORE_1980	= (1 << 21) | (1 << 16);
+
+	/*
+	 * The size of the largest resource whose compressed data is buffered
+	 */
+	private final static long	LARGE				= 1024 * 1024;
+
+	/**
+	 * The result of compressing the data of an entry. The data is either in a
+	 * buffer or it is the raw data of a {@link ZipResource} that is copied
+	 * from its zip file when the entry is written.
+	 */
+	static class Compressed {
+		final int			method;
+		final byte[]		data;
+		final long			length;
+		final long			size;
+		final long			crc;
+		final ZipResource	raw;
+		final long			position;
+
+		Compressed(int method, byte[] data, int length, long size, long crc) {
+			this.method = method;
+			this.data = data;
+			this.length = length;
+			this.size = size;
+			this.crc = crc;
+			this.raw = null;
+			this.position = -1;
+		}
+
+		Compressed(ZipResource raw, long position) {
+			this.method = raw.getMethod();
+			this.data = null;
+			this.length = raw.getCompressedSize();
+			this.size = raw.size();
+			this.crc = raw.getCrc();
+			this.raw = raw;
+			this.position = position;
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			if (raw != null)
+				raw.copyData(position, out);
+			else
+				out.write(data, 0, (int) length);
+		}
+	}
+
+	/*
+	 * Counts the bytes written, to nothing if there is no output. Does not
+	 * close the output.
+	 */
+	private static class Counter extends OutputStream {
+		final OutputStream	out;
+		long				count;
+
+		Counter(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (out != null)
+				out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (out != null)
+				out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/*
+	 * Gives access to the buffer so the data does not have to be copied
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private final static Compressed	EMPTY	= compress(new byte[0], 0, 0);
+
+	private final OutputStream			out;
+	private final Buffer				central	= new Buffer(8192);
+	private final byte[]				header	= new byte[30];
+	private final TimeZone				tz		= TimeZone.getDefault();
+	private final Calendar				calendar	= new GregorianCalendar(tz);
+	private boolean						jar;
+	private long						offset;
+	private int							entries;
+	private long						time	= -1;
+	private long						dostime;
+
+	/**
+	 * @param out the output
+	 * @param jar if the output is a jar, the first entry then gets the JAR
+	 *            magic extra field like {@link java.util.jar.JarOutputStream}
+	 *            does
+	 */
+	ZipWriter(OutputStream out, boolean jar) {
+		this.out = out;
+		this.jar = jar;
+	}
+
+	/**
+	 * Compress the data of a resource. The data of a {@link ZipResource} that
+	 * is already compressed with the given method is copied as is from its zip
+	 * file when the entry is written.
+	 *
+	 * @param method {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+	 */
+	static Compressed compress(Resource resource, int method) throws Exception {
+		if (resource instanceof ZipResource) {
+			ZipResource zr = (ZipResource) resource;
+			if (zr.getMethod() == method) {
+				long position = zr.getDataPosition();
+				if (position >= 0)
+					return new Compressed(zr, position);
+			}
+		}
+
+		long size = resource.size();
+		CRC32 crc = new CRC32();
+		if (method == ZipEntry.STORED) {
+			Buffer buffer = new Buffer(size > 0 && size < Integer.MAX_VALUE ? (int) size : 8192);
+			resource.write(new CheckedOutputStream(buffer, crc));
+			return new Compressed(method, buffer.buffer(), buffer.size(), buffer.size(), crc.getValue());
+		}
+
+		Buffer buffer = new Buffer(size > 0 && size < Integer.MAX_VALUE / 2 ? (int) size / 2 + 64 : 8192);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			DeflaterOutputStream dout = new DeflaterOutputStream(buffer, deflater, 8192);
+			resource.write(new CheckedOutputStream(dout, crc));
+			dout.finish();
+			return new Compressed(ZipEntry.DEFLATED, buffer.buffer(), buffer.size(), deflater.getBytesRead(),
+					crc.getValue());
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Compress the given bytes
+	 */
+	static Compressed compress(byte[] data, int offset, int length) {
+		Buffer buffer = new Buffer(length / 2 + 64);
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			DeflaterOutputStream dout = new DeflaterOutputStream(buffer, deflater, 8192);
+			dout.write(data, offset, length);
+			dout.finish();
+			return new Compressed(ZipEntry.DEFLATED, buffer.buffer(), buffer.size(), length, crc.getValue());
+		}
+		catch (IOException e) {
+			// cannot happen on a byte array
+			throw new RuntimeException(e);
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Write a directory entry with the current time, like
+	 * {@link ZipOutputStream} does for entries without time. The name must
+	 * end with a '/'.
+	 */
+	void putDirectory(String name) throws Exception {
+		put(name, null, System.currentTimeMillis(), EMPTY.method, EMPTY, null);
+	}
+
+	/**
+	 * Write an entry
+	 *
+	 * @param name the name of the entry
+	 * @param extra the extra field or null
+	 * @param time the modification time, as for
+	 *            {@link aQute.lib.zip.ZipUtil#setModifiedTime(ZipEntry, long)}
+	 * @param data the compressed data
+	 */
+	void putEntry(String name, byte[] extra, long time, Compressed data) throws Exception {
+		put(name, extra, time - tz.getOffset(time), data.method, data, null);
+	}
+
+	/**
+	 * Write an entry and compress the resource while it is written, so its
+	 * data is not buffered. A deflated entry gets its crc and sizes in a data
+	 * descriptor after the data, like {@link ZipOutputStream} does. A stored
+	 * entry needs them in the local header, so its resource is written twice.
+	 *
+	 * @param name the name of the entry
+	 * @param extra the extra field or null
+	 * @param time the modification time, as for
+	 *            {@link aQute.lib.zip.ZipUtil#setModifiedTime(ZipEntry, long)}
+	 * @param method {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+	 * @param resource the resource
+	 */
+	void putEntry(String name, byte[] extra, long time, int method, Resource resource) throws Exception {
+		put(name, extra, time - tz.getOffset(time), method, null, resource);
+	}
+
+	/**
+	 * If a resource is too large to buffer its compressed data, it must then
+	 * be written with {@link #putEntry(String, byte[], long, int, Resource)}.
+	 * The raw data of a {@link ZipResource} is never buffered.
+	 */
+	static boolean isLarge(Resource resource, int method) throws Exception {
+		if (resource instanceof ZipResource && ((ZipResource) resource).getMethod() == method)
+			return false;
+
+		long size = resource.size();
+		return size < 0 || size > LARGE;
+	}
+
+	/*
+	 * Write an entry with the time as for ZipEntry.setTime, either from the
+	 * compressed data or from the resource
+	 */
+	private void put(String name, byte[] extra, long time, int method, Compressed data, Resource resource)
+			throws Exception {
+		byte[] nameBytes = name.getBytes("UTF-8");
+		long dos = toDosTime(time);
+
+		if (jar) {
+			jar = false;
+			if (!hasMagic(extra)) {
+				byte[] magic = new byte[4];
+				set16(magic, 0, JAR_MAGIC);
+				extra = concat(magic, extra);
+			}
+		}
+
+		//
+		// Like ZipEntry, times that do not fit DOS times are also stored as
+		// extended timestamp
+		//
+
+		if (dos == DOSTIME_BEFORE_1980 || ((dos >> 25) & 0x7f) + 1980 > 2099) {
+			byte[] extt = new byte[9];
+			set16(extt, 0, EXTID_EXTT);
+			set16(extt, 2, 5);
+			extt[4] = 1;
+			set32(extt, 5, time / 1000);
+			extra = concat(extt, extra);
+		}
+
+		long crc = 0;
+		long length = 0;
+		long size = 0;
+		boolean descriptor = data == null && method == ZipEntry.DEFLATED;
+		if (data != null) {
+			crc = data.crc;
+			length = data.length;
+			size = data.size;
+		} else if (method == ZipEntry.STORED) {
+			Counter counter = new Counter(null);
+			CheckedOutputStream cout = new CheckedOutputStream(counter, new CRC32());
+			resource.write(cout);
+			crc = cout.getChecksum().getValue();
+			length = size = counter.count;
+		}
+
+		//
+		// Known sizes that do not fit are in the zip64 extra field of the
+		// local header, like ZipOutputStream does
+		//
+
+		boolean zip64 = length >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL;
+		byte[] localExtra = extra;
+		if (zip64) {
+			byte[] zip64Extra = new byte[20];
+			set16(zip64Extra, 0, EXTID_ZIP64);
+			set16(zip64Extra, 2, 16);
+			set64(zip64Extra, 4, size);
+			set64(zip64Extra, 12, length);
+			localExtra = concat(zip64Extra, extra);
+		}
+
+		int localExtraLength = localExtra == null ? 0 : localExtra.length;
+		int flag = descriptor ? USE_UTF8 | DATA_DESCRIPTOR : USE_UTF8;
+		int version = zip64 ? 45 : method == ZipEntry.DEFLATED ? 20 : 10;
+
+		set32(header, 0, LOCSIG);
+		set16(header, 4, version);
+		set16(header, 6, flag);
+		set16(header, 8, method);
+		set32(header, 10, dos);
+		set32(header, 14, crc);
+		set32(header, 18, zip64 ? 0xFFFFFFFFL : length);
+		set32(header, 22, zip64 ? 0xFFFFFFFFL : size);
+		set16(header, 26, nameBytes.length);
+		set16(header, 28, localExtraLength);
+		out.write(header, 0, 30);
+		out.write(nameBytes);
+		if (localExtra != null)
+			out.write(localExtra);
+
+		int descriptorLength = 0;
+		if (data != null)
+			data.writeTo(out);
+		else if (method == ZipEntry.STORED) {
+			Counter counter = new Counter(out);
+			CheckedOutputStream cout = new CheckedOutputStream(counter, new CRC32());
+			resource.write(cout);
+			if (counter.count != size || cout.getChecksum().getValue() != crc)
+				throw new ZipException("Resource changed while it was written " + name);
+		} else {
+			Counter counter = new Counter(out);
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				DeflaterOutputStream dout = new DeflaterOutputStream(counter, deflater, 8192);
+				CheckedOutputStream cout = new CheckedOutputStream(dout, new CRC32());
+				resource.write(cout);
+				dout.finish();
+				crc = cout.getChecksum().getValue();
+				length = counter.count;
+				size = deflater.getBytesRead();
+			}
+			finally {
+				deflater.end();
+			}
+
+			byte[] ext;
+			if (length >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL) {
+				ext = new byte[24];
+				set64(ext, 8, length);
+				set64(ext, 16, size);
+			} else {
+				ext = new byte[16];
+				set32(ext, 8, length);
+				set32(ext, 12, size);
+			}
+			set32(ext, 0, EXTSIG);
+			set32(ext, 4, crc);
+			out.write(ext);
+			descriptorLength = ext.length;
+		}
+
+		//
+		// The central directory has the sizes and offset that do not fit in
+		// its zip64 extra field, in this order
+		//
+
+		byte[] cenExtra = new byte[28];
+		int n = 4;
+		if (size >= 0xFFFFFFFFL) {
+			set64(cenExtra, n, size);
+			n += 8;
+		}
+		if (length >= 0xFFFFFFFFL) {
+			set64(cenExtra, n, length);
+			n += 8;
+		}
+		if (offset >= 0xFFFFFFFFL) {
+			set64(cenExtra, n, offset);
+			n += 8;
+		}
+		if (n > 4) {
+			set16(cenExtra, 0, EXTID_ZIP64);
+			set16(cenExtra, 2, n - 4);
+			extra = concat(Arrays.copyOf(cenExtra, n), extra);
+			version = 45;
+		}
+
+		byte[] cen = new byte[46];
+		set32(cen, 0, CENSIG);
+		set16(cen, 4, version);
+		set16(cen, 6, version);
+		set16(cen, 8, flag);
+		set16(cen, 10, method);
+		set32(cen, 12, dos);
+		set32(cen, 16, crc);
+		set32(cen, 20, Math.min(length, 0xFFFFFFFFL));
+		set32(cen, 24, Math.min(size, 0xFFFFFFFFL));
+		set16(cen, 28, nameBytes.length);
+		set16(cen, 30, extra == null ? 0 : extra.length);
+		// comment length, disk number, internal and external attributes
+		// are 0
+		set32(cen, 42, Math.min(offset, 0xFFFFFFFFL));
+		central.write(cen);
+		central.write(nameBytes);
+		if (extra != null)
+			central.write(extra);
+
+		offset += 30 + nameBytes.length + localExtraLength + length + descriptorLength;
+		entries++;
+	}
+
+	/**
+	 * Write the central directory, does not close the output
+	 */
+	void finish() throws IOException {
+		central.writeTo(out);
+		long size = central.size();
+		byte[] end = new byte[22];
+		set32(end, 0, ENDSIG);
+		if (entries >= 0xFFFF || size >= 0xFFFFFFFFL || offset >= 0xFFFFFFFFL) {
+			byte[] zip64 = new byte[56 + 20];
+			set32(zip64, 0, ZIP64_ENDSIG);
+			set64(zip64, 4, 44);
+			set16(zip64, 12, 45);
+			set16(zip64, 14, 45);
+			set64(zip64, 24, entries);
+			set64(zip64, 32, entries);
+			set64(zip64, 40, size);
+			set64(zip64, 48, offset);
+			set32(zip64, 56, ZIP64_LOCSIG);
+			set64(zip64, 64, offset + size);
+			set32(zip64, 72, 1);
+			out.write(zip64);
+
+			set16(end, 8, Math.min(entries, 0xFFFF));
+			set16(end, 10, Math.min(entries, 0xFFFF));
+			set32(end, 12, Math.min(size, 0xFFFFFFFFL));
+			set32(end, 16, Math.min(offset, 0xFFFFFFFFL));
+		} else {
+			set16(end, 8, entries);
+			set16(end, 10, entries);
+			set32(end, 12, size);
+			set32(end, 16, offset);
+		}
+		out.write(end);
+		out.flush();
+	}
+
+	/*
+	 * The DOS time of a time in the local time zone, as ZipEntry.setTime
+	 * calculates it
+	 */
+	private long toDosTime(long time) {
+		if (time != this.time) {
+			calendar.setTimeInMillis(time);
+			int year = calendar.get(Calendar.YEAR);
+			if (year < 1980)
+				dostime = DOSTIME_BEFORE_1980;
+			else
+				dostime = ((year - 1980L) << 25) | ((calendar.get(Calendar.MONTH) + 1L) << 21)
+						| (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+						| (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+			this.time = time;
+		}
+		return dostime;
+	}
+
+	private static boolean hasMagic(byte[] extra) {
+		if (extra == null)
+			return false;
+		for (int i = 0; i + 4 <= extra.length; i += 4 + get16(extra, i + 2)) {
+			if (get16(extra, i) == JAR_MAGIC)
+				return true;
+		}
+		return false;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		if (b == null)
+			return a;
+		byte[] result = new byte[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static int get16(byte[] b, int off) {
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+	}
+
+	private static void set16(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+	}
+
+	private static void set32(byte[] b, int off, long value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+		b[off + 2] = (byte) (value >> 16);
+		b[off + 3] = (byte) (value >> 24);
+	}
+
+	private static void set64(byte[] b, int off, long value) {
+		set32(b, off, value);
+		set32(b, off + 4, value >> 32);
+	}
+}
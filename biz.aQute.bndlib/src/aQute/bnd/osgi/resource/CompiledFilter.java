@@ -0,0 +1,814 @@
+package aQute.bnd.osgi.resource;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.osgi.framework.*;
+import org.osgi.resource.*;
+
+/**
+ * An LDAP filter that is parsed once into a tree with a node type per
+ * operator. The value of an item is converted to a Version, a Long or a Double
+ * only once, the first time it is compared to an attribute of that type,
+ * instead of on every match.
+ * <p>
+ * Compiled filters are interned in a bounded cache, so the repositories and
+ * the resolver share a single instance for the same filter string. A compiled
+ * filter is immutable and can be used from several threads.
+ * <p>
+ * The syntax and the matching are the same as for the filters of
+ * {@link FrameworkUtil#createFilter(String)}.
+ */
+public class CompiledFilter {
+	final static int										MAX_FILTERS	= 10000;
+
+	private final static ConcurrentMap<String,CompiledFilter>	filters		= new ConcurrentHashMap<String,CompiledFilter>();
+
+	/*
+	 * Marks a value that cannot be converted to the type of the attribute
+	 */
+	final static Object										INVALID		= new Object();
+
+	private final Node										root;
+	private final String									normalized;
+
+	private CompiledFilter(String filter) throws InvalidSyntaxException {
+		this.root = new Parser(filter).parse();
+		StringBuilder sb = new StringBuilder();
+		root.toString(sb);
+		this.normalized = sb.toString();
+	}
+
+	/**
+	 * Compile a filter, or get the compiled filter from the cache when the
+	 * same filter string was compiled before.
+	 *
+	 * @param filter the filter string
+	 * @return the compiled filter
+	 * @throws InvalidSyntaxException if the filter string is not a valid filter
+	 */
+	public static CompiledFilter compile(String filter) throws InvalidSyntaxException {
+		CompiledFilter compiled = filters.get(filter);
+		if (compiled == null) {
+			compiled = new CompiledFilter(filter);
+			if (filters.size() >= MAX_FILTERS)
+				filters.clear();
+			CompiledFilter previous = filters.putIfAbsent(filter, compiled);
+			if (previous != null)
+				compiled = previous;
+		}
+		return compiled;
+	}
+
+	/**
+	 * Match a map of attributes, the attribute names are case sensitive like
+	 * in {@link Filter#matches(Map)}.
+	 */
+	public boolean matches(Map<String, ? > map) {
+		return root.eval(map, false);
+	}
+
+	/**
+	 * Match the attributes of a capability. An attribute is found by its name
+	 * ignoring case when there is no attribute with the exact name, as in
+	 * {@link Filter#match(java.util.Dictionary)}.
+	 */
+	public boolean matches(Capability capability) {
+		return root.eval(capability.getAttributes(), true);
+	}
+
+	/**
+	 * Return the normalized filter string.
+	 */
+	@Override
+	public String toString() {
+		return normalized;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof CompiledFilter && normalized.equals(((CompiledFilter) obj).normalized);
+	}
+
+	@Override
+	public int hashCode() {
+		return normalized.hashCode();
+	}
+
+	/*
+	 * A node of the filter tree
+	 */
+	static abstract class Node {
+		abstract boolean eval(Map<String, ? > map, boolean ignoreCase);
+
+		abstract void toString(StringBuilder sb);
+	}
+
+	static class And extends Node {
+		final Node[]	operands;
+
+		And(Node[] operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		boolean eval(Map<String, ? > map, boolean ignoreCase) {
+			for (Node operand : operands) {
+				if (!operand.eval(map, ignoreCase))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append("(&");
+			for (Node operand : operands)
+				operand.toString(sb);
+			sb.append(")");
+		}
+	}
+
+	static class Or extends Node {
+		final Node[]	operands;
+
+		Or(Node[] operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		boolean eval(Map<String, ? > map, boolean ignoreCase) {
+			for (Node operand : operands) {
+				if (operand.eval(map, ignoreCase))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append("(|");
+			for (Node operand : operands)
+				operand.toString(sb);
+			sb.append(")");
+		}
+	}
+
+	static class Not extends Node {
+		final Node	operand;
+
+		Not(Node operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		boolean eval(Map<String, ? > map, boolean ignoreCase) {
+			return !operand.eval(map, ignoreCase);
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append("(!");
+			operand.toString(sb);
+			sb.append(")");
+		}
+	}
+
+	/*
+	 * A node on the value of an attribute
+	 */
+	static abstract class Attribute extends Node {
+		final String	key;
+
+		Attribute(String key) {
+			this.key = key;
+		}
+
+		@Override
+		boolean eval(Map<String, ? > map, boolean ignoreCase) {
+			Object value = map.get(key);
+			if (value == null && ignoreCase) {
+				for (Map.Entry<String, ? > entry : map.entrySet()) {
+					if (key.equalsIgnoreCase(entry.getKey())) {
+						value = entry.getValue();
+						break;
+					}
+				}
+			}
+			return value != null && match(value);
+		}
+
+		abstract boolean match(Object value);
+	}
+
+	static class Present extends Attribute {
+		Present(String key) {
+			super(key);
+		}
+
+		@Override
+		boolean match(Object value) {
+			return true;
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append("(").append(key).append("=*)");
+		}
+	}
+
+	/*
+	 * An item that compares the value of an attribute to the value in the
+	 * filter. The subclasses implement the operators.
+	 */
+	static abstract class Item extends Attribute {
+		final String	value;
+		final String	trimmed;
+		private Object	version;
+		private Object	number;
+		private Object	decimal;
+
+		Item(String key, String value) {
+			super(key);
+			this.value = value;
+			this.trimmed = value.trim();
+		}
+
+		/*
+		 * Match the sign of attribute.compareTo(value)
+		 */
+		abstract boolean matchSign(int sign);
+
+		abstract boolean matchString(String s);
+
+		abstract String operator();
+
+		@Override
+		boolean match(Object attribute) {
+			if (attribute instanceof String)
+				return matchString((String) attribute);
+
+			if (attribute instanceof Version) {
+				Version v = getVersion();
+				return v != null && matchSign(((Version) attribute).compareTo(v));
+			}
+
+			if (attribute.getClass().isArray()) {
+				int length = Array.getLength(attribute);
+				for (int i = 0; i < length; i++) {
+					Object element = Array.get(attribute, i);
+					if (element != null && match(element))
+						return true;
+				}
+				return false;
+			}
+
+			if (attribute instanceof Collection) {
+				for (Object element : (Collection< ? >) attribute) {
+					if (element != null && match(element))
+						return true;
+				}
+				return false;
+			}
+
+			if (attribute instanceof Integer)
+				return matchLong(((Integer) attribute).longValue(), Integer.MIN_VALUE, Integer.MAX_VALUE);
+			if (attribute instanceof Long)
+				return matchLong(((Long) attribute).longValue(), Long.MIN_VALUE, Long.MAX_VALUE);
+			if (attribute instanceof Byte)
+				return matchLong(((Byte) attribute).longValue(), Byte.MIN_VALUE, Byte.MAX_VALUE);
+			if (attribute instanceof Short)
+				return matchLong(((Short) attribute).longValue(), Short.MIN_VALUE, Short.MAX_VALUE);
+
+			if (attribute instanceof Character) {
+				if (value.length() == 0)
+					return false;
+				return matchCharacter(((Character) attribute).charValue(), value.charAt(0));
+			}
+
+			if (attribute instanceof Float) {
+				try {
+					return matchSign(Float.compare(((Float) attribute).floatValue(), Float.parseFloat(trimmed)));
+				}
+				catch (NumberFormatException e) {
+					return false;
+				}
+			}
+
+			if (attribute instanceof Double) {
+				Double d = getDouble();
+				return d != null && matchSign(Double.compare(((Double) attribute).doubleValue(), d.doubleValue()));
+			}
+
+			if (attribute instanceof Boolean)
+				return attribute.equals(Boolean.valueOf(trimmed));
+
+			Object other = valueOf(attribute.getClass(), trimmed);
+			if (other == null)
+				return false;
+
+			try {
+				if (attribute instanceof Comparable) {
+					@SuppressWarnings("unchecked")
+					Comparable<Object> comparable = (Comparable<Object>) attribute;
+					return matchSign(comparable.compareTo(other));
+				}
+				return attribute.equals(other);
+			}
+			catch (Exception e) {
+				return false;
+			}
+		}
+
+		boolean matchLong(long attribute, long min, long max) {
+			Long l = getLong();
+			if (l == null)
+				return false;
+
+			long other = l.longValue();
+			if (other < min || other > max)
+				return false;
+
+			return matchSign(attribute < other ? -1 : (attribute == other ? 0 : 1));
+		}
+
+		boolean matchCharacter(char attribute, char other) {
+			return matchSign(attribute < other ? -1 : (attribute == other ? 0 : 1));
+		}
+
+		Version getVersion() {
+			Object v = version;
+			if (v == null) {
+				try {
+					v = Version.parseVersion(trimmed);
+				}
+				catch (IllegalArgumentException e) {
+					v = INVALID;
+				}
+				version = v;
+			}
+			return v == INVALID ? null : (Version) v;
+		}
+
+		Long getLong() {
+			Object v = number;
+			if (v == null) {
+				try {
+					v = Long.valueOf(trimmed);
+				}
+				catch (NumberFormatException e) {
+					v = INVALID;
+				}
+				number = v;
+			}
+			return v == INVALID ? null : (Long) v;
+		}
+
+		Double getDouble() {
+			Object v = decimal;
+			if (v == null) {
+				try {
+					v = Double.valueOf(trimmed);
+				}
+				catch (NumberFormatException e) {
+					v = INVALID;
+				}
+				decimal = v;
+			}
+			return v == INVALID ? null : (Double) v;
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append("(").append(key).append(operator());
+			escape(sb, value);
+			sb.append(")");
+		}
+	}
+
+	static class Equal extends Item {
+		Equal(String key, String value) {
+			super(key, value);
+		}
+
+		@Override
+		boolean matchSign(int sign) {
+			return sign == 0;
+		}
+
+		@Override
+		boolean matchString(String s) {
+			return s.equals(value);
+		}
+
+		@Override
+		String operator() {
+			return "=";
+		}
+	}
+
+	static class GreaterEqual extends Item {
+		GreaterEqual(String key, String value) {
+			super(key, value);
+		}
+
+		@Override
+		boolean matchSign(int sign) {
+			return sign >= 0;
+		}
+
+		@Override
+		boolean matchString(String s) {
+			return s.compareTo(value) >= 0;
+		}
+
+		@Override
+		String operator() {
+			return ">=";
+		}
+	}
+
+	static class LessEqual extends Item {
+		LessEqual(String key, String value) {
+			super(key, value);
+		}
+
+		@Override
+		boolean matchSign(int sign) {
+			return sign <= 0;
+		}
+
+		@Override
+		boolean matchString(String s) {
+			return s.compareTo(value) <= 0;
+		}
+
+		@Override
+		String operator() {
+			return "<=";
+		}
+	}
+
+	/*
+	 * The whitespace is removed from the value of an approximate item
+	 */
+	static class Approximate extends Item {
+		Approximate(String key, String value) {
+			super(key, approximate(value));
+		}
+
+		@Override
+		boolean matchSign(int sign) {
+			return sign == 0;
+		}
+
+		@Override
+		boolean matchString(String s) {
+			return approximate(s).equalsIgnoreCase(value);
+		}
+
+		@Override
+		boolean matchCharacter(char attribute, char other) {
+			return attribute == other || Character.toUpperCase(attribute) == Character.toUpperCase(other)
+					|| Character.toLowerCase(attribute) == Character.toLowerCase(other);
+		}
+
+		@Override
+		String operator() {
+			return "~=";
+		}
+
+		static String approximate(String s) {
+			StringBuilder sb = null;
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (Character.isWhitespace(c)) {
+					if (sb == null)
+						sb = new StringBuilder(s.substring(0, i));
+				} else if (sb != null)
+					sb.append(c);
+			}
+			return sb == null ? s : sb.toString();
+		}
+	}
+
+	/*
+	 * An equality item with wildcards, only strings can match. The pieces
+	 * are the strings between the wildcards, a wildcard is a null piece.
+	 */
+	static class Substring extends Attribute {
+		final String[]	pieces;
+
+		Substring(String key, String[] pieces) {
+			super(key);
+			this.pieces = pieces;
+		}
+
+		@Override
+		boolean match(Object attribute) {
+			if (attribute instanceof String)
+				return matchString((String) attribute);
+
+			if (attribute.getClass().isArray()) {
+				if (attribute.getClass().getComponentType().isPrimitive())
+					return false;
+				for (Object element : (Object[]) attribute) {
+					if (element != null && match(element))
+						return true;
+				}
+				return false;
+			}
+
+			if (attribute instanceof Collection) {
+				for (Object element : (Collection< ? >) attribute) {
+					if (element != null && match(element))
+						return true;
+				}
+			}
+			return false;
+		}
+
+		boolean matchString(String s) {
+			int pos = 0;
+			for (int i = 0, size = pieces.length; i < size; i++) {
+				String piece = pieces[i];
+				if (i + 1 < size) {
+					if (piece == null) {
+						String next = pieces[i + 1];
+						if (next == null)
+							continue;
+
+						int index = s.indexOf(next, pos);
+						if (index == -1)
+							return false;
+
+						pos = index + next.length();
+						if (i + 2 < size)
+							i++;
+					} else {
+						int len = piece.length();
+						if (!s.regionMatches(pos, piece, 0, len))
+							return false;
+						pos += len;
+					}
+				} else {
+					if (piece == null)
+						return true;
+					return s.endsWith(piece);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append("(").append(key).append("=");
+			for (String piece : pieces) {
+				if (piece == null)
+					sb.append("*");
+				else
+					escape(sb, piece);
+			}
+			sb.append(")");
+		}
+	}
+
+	/*
+	 * Return an instance of a type for a string, through a static valueOf
+	 * method or a constructor taking the string
+	 */
+	static Object valueOf(Class< ? > type, String value) {
+		try {
+			Method method = type.getMethod("valueOf", String.class);
+			if (Modifier.isStatic(method.getModifiers()) && type.isAssignableFrom(method.getReturnType())) {
+				try {
+					return method.invoke(null, value);
+				}
+				catch (Exception e) {
+					return null;
+				}
+			}
+		}
+		catch (NoSuchMethodException e) {
+			// try the constructor
+		}
+		catch (SecurityException e) {
+			return null;
+		}
+
+		try {
+			return type.getConstructor(String.class).newInstance(value);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	static void escape(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '\\' :
+				case '(' :
+				case ')' :
+				case '*' :
+					sb.append('\\');
+					break;
+			}
+			sb.append(c);
+		}
+	}
+
+	/*
+	 * Parses the filter syntax of RFC 1960
+	 */
+	static class Parser {
+		final String	filter;
+		final char[]	chars;
+		int				pos;
+
+		Parser(String filter) {
+			this.filter = filter;
+			this.chars = filter.toCharArray();
+		}
+
+		Node parse() throws InvalidSyntaxException {
+			Node node;
+			try {
+				node = parseFilter();
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				throw new InvalidSyntaxException("Filter ended abruptly", filter);
+			}
+
+			if (pos != chars.length)
+				throw new InvalidSyntaxException("Extraneous trailing characters: " + filter.substring(pos), filter);
+			return node;
+		}
+
+		private Node parseFilter() throws InvalidSyntaxException {
+			ws();
+			if (chars[pos] != '(')
+				throw new InvalidSyntaxException("Missing '(': " + filter.substring(pos), filter);
+			pos++;
+
+			Node node = parseOperation();
+
+			ws();
+			if (chars[pos] != ')')
+				throw new InvalidSyntaxException("Missing ')': " + filter.substring(pos), filter);
+			pos++;
+			ws();
+			return node;
+		}
+
+		private Node parseOperation() throws InvalidSyntaxException {
+			ws();
+			switch (chars[pos]) {
+				case '&' :
+					pos++;
+					return new And(parseOperands());
+				case '|' :
+					pos++;
+					return new Or(parseOperands());
+				case '!' :
+					pos++;
+					ws();
+					if (chars[pos] != '(')
+						throw new InvalidSyntaxException("Missing '(': " + filter.substring(pos), filter);
+					return new Not(parseFilter());
+				default :
+					return parseItem();
+			}
+		}
+
+		private Node[] parseOperands() throws InvalidSyntaxException {
+			ws();
+			if (chars[pos] != '(')
+				throw new InvalidSyntaxException("Missing '(': " + filter.substring(pos), filter);
+
+			List<Node> operands = new ArrayList<Node>();
+			while (chars[pos] == '(')
+				operands.add(parseFilter());
+			return operands.toArray(new Node[operands.size()]);
+		}
+
+		private Node parseItem() throws InvalidSyntaxException {
+			String key = parseKey();
+			ws();
+			switch (chars[pos]) {
+				case '~' :
+					if (chars[pos + 1] == '=') {
+						pos += 2;
+						return new Approximate(key, parseValue());
+					}
+					break;
+				case '>' :
+					if (chars[pos + 1] == '=') {
+						pos += 2;
+						return new GreaterEqual(key, parseValue());
+					}
+					break;
+				case '<' :
+					if (chars[pos + 1] == '=') {
+						pos += 2;
+						return new LessEqual(key, parseValue());
+					}
+					break;
+				case '=' :
+					if (chars[pos + 1] == '*') {
+						int start = pos;
+						pos += 2;
+						ws();
+						if (chars[pos] == ')')
+							return new Present(key);
+						pos = start;
+					}
+					pos++;
+					List<String> pieces = parsePieces();
+					if (pieces.size() == 0)
+						return new Equal(key, "");
+					if (pieces.size() == 1 && pieces.get(0) != null)
+						return new Equal(key, pieces.get(0));
+					return new Substring(key, pieces.toArray(new String[pieces.size()]));
+			}
+			throw new InvalidSyntaxException("Invalid operator: " + filter.substring(pos), filter);
+		}
+
+		private String parseKey() throws InvalidSyntaxException {
+			ws();
+			int begin = pos;
+			int end = pos;
+			char c = chars[pos];
+			while (c != '~' && c != '<' && c != '>' && c != '=' && c != '(' && c != ')') {
+				pos++;
+				if (!Character.isWhitespace(c))
+					end = pos;
+				c = chars[pos];
+			}
+			if (end == begin)
+				throw new InvalidSyntaxException("Missing attr: " + filter.substring(pos), filter);
+			return new String(chars, begin, end - begin);
+		}
+
+		private String parseValue() throws InvalidSyntaxException {
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				char c = chars[pos];
+				switch (c) {
+					case ')' :
+						if (sb.length() == 0)
+							throw new InvalidSyntaxException("Missing value: " + filter.substring(pos), filter);
+						return sb.toString();
+					case '(' :
+						throw new InvalidSyntaxException("Invalid value: " + filter.substring(pos), filter);
+					case '\\' :
+						pos++;
+						c = chars[pos];
+						//$FALL-THROUGH$
+					default :
+						pos++;
+						sb.append(c);
+						break;
+				}
+			}
+		}
+
+		private List<String> parsePieces() throws InvalidSyntaxException {
+			StringBuilder sb = new StringBuilder();
+			List<String> pieces = new ArrayList<String>();
+			while (true) {
+				char c = chars[pos];
+				switch (c) {
+					case ')' :
+						if (sb.length() > 0)
+							pieces.add(sb.toString());
+						return pieces;
+					case '(' :
+						throw new InvalidSyntaxException("Invalid value: " + filter.substring(pos), filter);
+					case '*' :
+						if (sb.length() > 0)
+							pieces.add(sb.toString());
+						sb.setLength(0);
+						pieces.add(null);
+						pos++;
+						break;
+					case '\\' :
+						pos++;
+						c = chars[pos];
+						//$FALL-THROUGH$
+					default :
+						pos++;
+						sb.append(c);
+						break;
+				}
+			}
+		}
+
+		private void ws() {
+			while (pos < chars.length && Character.isWhitespace(chars[pos]))
+				pos++;
+		}
+	}
+}
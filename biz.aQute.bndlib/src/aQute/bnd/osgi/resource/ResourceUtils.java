@@ -6,6 +6,7 @@ import java.lang.reflect.Proxy;
 import java.net.*;
 import java.util.*;
 
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.namespace.*;
 import org.osgi.namespace.contract.*;
 import org.osgi.namespace.extender.*;
@@ -146,6 +147,21 @@ public class ResourceUtils {
 		return null;
 	}
 
+	/**
+	 * Return the compiled filter directive of a requirement
+	 * 
+	 * @param requirement the requirement
+	 * @return the compiled filter, or null when the requirement has no filter
+	 * @throws InvalidSyntaxException if the filter is not valid
+	 */
+	public static CompiledFilter getFilter(Requirement requirement) throws InvalidSyntaxException {
+		String filter = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+		if (filter == null)
+			return null;
+
+		return CompiledFilter.compile(filter);
+	}
+
 	public static String getVersionAttributeForNamespace(String ns) {
 		String name;
 
@@ -17,6 +17,7 @@ import aQute.lib.collections.*;
 import aQute.lib.hex.*;
 import aQute.lib.io.*;
 import aQute.lib.json.*;
+import aQute.libg.cafs.*;
 import aQute.libg.cryptography.*;
 import aQute.libg.reporter.*;
 import aQute.service.reporter.*;
@@ -58,6 +59,7 @@ public class ResourceRepositoryImpl implements ResourceRepository {
 	private File									hosting;
 	private Reporter								reporter						= new ReporterAdapter(System.out);
 	private Executor								executor;
+	private CAFS									contentStore;
 	private File									indexFile;
 	private URLConnectionHandler					connector						= new DefaultURLConnectionHandler();
 	final MultiMap<File,DownloadListener>			queues							= new MultiMap<File,RepositoryPlugin.DownloadListener>();
@@ -342,6 +344,9 @@ public class ResourceRepositoryImpl implements ResourceRepository {
 	}
 
 	void download(ResourceDescriptor rds, File path) throws Exception {
+		if (export(rds, path))
+			return;
+
 		reporter.trace("starting download %s", path);
 		Exception exception = new Exception();
 		event(TYPE.START_DOWNLOAD, rds, null);
@@ -351,6 +356,7 @@ public class ResourceRepositoryImpl implements ResourceRepository {
 				event(TYPE.END_DOWNLOAD, rds, null);
 				reporter.trace("succesful download %s", path);
 				failures.remove(rds.url);
+				store(path);
 				return;
 			}
 			catch (FileNotFoundException e) {
@@ -371,6 +377,39 @@ public class ResourceRepositoryImpl implements ResourceRepository {
 		throw exception;
 	}
 
+	/*
+	 * Get the file from the content store when another cache or workspace
+	 * already downloaded it. The file then shares its disk space with the
+	 * content store.
+	 */
+	private boolean export(ResourceDescriptor rds, File path) {
+		if (contentStore == null)
+			return false;
+
+		try {
+			if (contentStore.export(new SHA1(rds.id), path, true)) {
+				reporter.trace("from content store %s", path);
+				return true;
+			}
+		}
+		catch (Exception e) {
+			reporter.trace("cannot export %s from content store %s", path, e);
+		}
+		return false;
+	}
+
+	private void store(File path) {
+		if (contentStore == null)
+			return;
+
+		try {
+			contentStore.store(path);
+		}
+		catch (Exception e) {
+			reporter.trace("cannot store %s in content store %s", path, e);
+		}
+	}
+
 	void download0(URI url, File path, byte[] sha) throws Exception {
 		path.getParentFile().mkdirs();
 		File tmp = IO.createTempFile(path.getParentFile(), "tmp", ".jar");
@@ -521,6 +560,17 @@ public class ResourceRepositoryImpl implements ResourceRepository {
 		this.connector = connector;
 	}
 
+	/**
+	 * Set the content store that is shared with other caches. Files that are
+	 * in the content store are not downloaded again and downloaded files are
+	 * added to it.
+	 * 
+	 * @param contentStore the content store or null
+	 */
+	public void setContentStore(CAFS contentStore) {
+		this.contentStore = contentStore;
+	}
+
 	public SortedSet<ResourceDescriptor> find(String repoId, String bsn, VersionRange range) throws Exception {
 		TreeSet<ResourceDescriptor> result = new TreeSet<ResourceDescriptor>(RESOURCE_DESCRIPTOR_COMPARATOR);
 
@@ -3,11 +3,14 @@ package aQute.remote.agent;
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 import org.osgi.framework.*;
 import org.osgi.framework.dto.*;
+import org.osgi.framework.wiring.*;
 
 import aQute.lib.converter.*;
+import aQute.lib.io.*;
 import aQute.libg.shacache.*;
 import aQute.remote.api.*;
 import aQute.remote.api.Event.Type;
@@ -27,6 +30,14 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 
 	private static final long[]								EMPTY				= new long[0];
 
+	//
+	// How long a request for a delta waits for the answer until the
+	// supervisor answered one. An older supervisor does not answer a request
+	// for a method it does not know.
+	//
+
+	private static final long								DELTA_TIMEOUT		= 5000;
+
 	//
 	// Known keys in the framework properties since we cannot
 	// iterate over framework properties
@@ -54,6 +65,8 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 	private static Map<String,AgentDispatcher>				instances			= new HashMap<String,AgentDispatcher>();
 	private Redirector										redirector			= new NullRedirector();
 	private Link<Agent,Supervisor>							link;
+	private volatile boolean								noDelta;
+	private volatile boolean								hasDelta;
 
 	/**
 	 * An agent server is based on a context and takes a name and cache
@@ -147,7 +160,7 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 	}
 
 	@Override
-	public String update(Map<String,String> bundles) {
+	public synchronized String update(Map<String,String> bundles) {
 
 		Formatter out = new Formatter();
 		if (bundles == null) {
@@ -168,6 +181,7 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 		affected.addAll(changed.keySet());
 
 		Set<Bundle> toBeStarted = new HashSet<Bundle>();
+		List<Bundle> toBeRefreshed = new ArrayList<Bundle>();
 
 		for (String location : affected) {
 			Bundle b = getBundle(location);
@@ -200,6 +214,7 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 				b.uninstall();
 				installed.remove(location);
 				toBeStarted.remove(b);
+				toBeRefreshed.add(b);
 			}
 			catch (Exception e) {
 				printStack(e);
@@ -233,7 +248,7 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 			String sha = e.getValue();
 
 			try {
-				InputStream in = cache.getStream(sha, source);
+				InputStream in = cache.getStream(sha, getDeltaSource(installed.get(location)), source);
 				if (in == null) {
 					out.format("Cannot find file for sha %s to update %s", sha, location);
 					continue;
@@ -247,8 +262,11 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 
 				if (bundle.getState() == Bundle.UNINSTALLED)
 					context.installBundle(location, in);
-				else
+				else {
 					bundle.update(in);
+					toBeRefreshed.add(bundle);
+				}
+				installed.put(location, sha);
 
 			}
 			catch (Exception e1) {
@@ -257,6 +275,22 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 			}
 		}
 
+		//
+		// The old revisions of the updated and uninstalled bundles are
+		// replaced in one refresh, before the bundles are started again
+		//
+
+		if (!toBeRefreshed.isEmpty()) {
+			try {
+				if (!refresh(toBeRefreshed))
+					out.format("Timed out refreshing %s", toBeRefreshed);
+			}
+			catch (Exception e) {
+				printStack(e);
+				out.format("Trying to refresh %s: %s", toBeRefreshed, e);
+			}
+		}
+
 		for (Bundle b : toBeStarted) {
 			try {
 				b.start();
@@ -275,6 +309,103 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 		return result;
 	}
 
+	/*
+	 * Refresh the given bundles and wait until the framework has finished.
+	 * Frameworks before R4.3 are not refreshed.
+	 */
+	private boolean refresh(List<Bundle> bundles) throws InterruptedException {
+		FrameworkWiring wiring;
+		try {
+			wiring = context.getBundle(0).adapt(FrameworkWiring.class);
+		}
+		catch (LinkageError e) {
+			return true;
+		}
+		if (wiring == null)
+			return true;
+
+		final CountDownLatch refreshed = new CountDownLatch(1);
+		wiring.refreshBundles(bundles, new FrameworkListener() {
+			public void frameworkEvent(FrameworkEvent event) {
+				refreshed.countDown();
+			}
+		});
+		return refreshed.await(60, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * A source that reconstructs a file from the version that is installed
+	 * now and the difference with it, see Delta
+	 */
+	private ShaSource getDeltaSource(final String base) {
+		return new ShaSource() {
+
+			@Override
+			public boolean isFast() {
+				return false;
+			}
+
+			@Override
+			public InputStream get(String sha) throws Exception {
+				if (base == null)
+					return null;
+
+				File file = cache.getFile(base);
+				if (file == null)
+					return null;
+
+				if (noDelta)
+					return null;
+
+				byte[] data = IO.read(file);
+				byte[] delta = getDelta(sha, Delta.getDigests(data));
+				if (delta == null || delta.length == 0)
+					return null;
+
+				return new ByteArrayInputStream(Delta.apply(data, delta));
+			}
+		};
+	}
+
+	/*
+	 * Get a delta from the supervisor, or null to get the whole file. An
+	 * older supervisor fails or does not answer, the link then returns null.
+	 * It does not get a delta later either, so it is not asked again.
+	 */
+	private byte[] getDelta(final String sha, final List<String> digests) {
+		final Supervisor supervisor = remote;
+		try {
+			byte[] delta;
+			if (hasDelta)
+				delta = supervisor.getDelta(sha, digests);
+			else {
+				FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						return supervisor.getDelta(sha, digests);
+					}
+				});
+				Thread thread = new Thread(task, "getDelta " + sha);
+				thread.setDaemon(true);
+				thread.start();
+				try {
+					delta = task.get(DELTA_TIMEOUT, TimeUnit.MILLISECONDS);
+				}
+				finally {
+					task.cancel(true);
+				}
+			}
+			if (delta != null) {
+				hasDelta = true;
+				return delta;
+			}
+		}
+		catch (Exception e) {
+			// failed or did not answer in time
+		}
+		noDelta = true;
+		return null;
+	}
+
 	private Bundle getBundle(String location) {
 		try {
 			Bundle bundle = context.getBundle(location);
@@ -470,6 +601,8 @@ public class AgentServer implements Agent, Closeable, FrameworkListener {
 
 	public void setRemote(Supervisor supervisor) {
 		this.remote = supervisor;
+		this.noDelta = false;
+		this.hasDelta = false;
 		this.source = new ShaSource() {
 
 			@Override
@@ -1,5 +1,7 @@
 package aQute.remote.api;
 
+import java.util.*;
+
 /**
  * A Supervisor handles the initiating side of a session with a remote agent.
  * The methods defined in this interface are intended to be called by the remote
@@ -45,4 +47,24 @@ public interface Supervisor {
 	 * @return the contents of that file or null if no such file exists.
 	 */
 	byte[] getFile(String sha) throws Exception;
+
+	/**
+	 * Return the contents of the file that has the given SHA-1 as the
+	 * difference with an older version of that file that the agent already
+	 * has. The agent calls this method before {@link #getFile(String)} when it
+	 * updates a bundle. The agent verifies the reconstructed file against the
+	 * SHA-1 and falls back to {@link #getFile(String)} when it does not match.
+	 * A supervisor that fails, returns null, or does not answer the first
+	 * request in time is not asked for a delta again.
+	 * 
+	 * @param sha
+	 *            the SHA-1
+	 * @param digests
+	 *            the digests of the segments of the older version, see
+	 *            {@link aQute.remote.util.Delta#getDigests(byte[])}
+	 * @return the delta, see
+	 *         {@link aQute.remote.util.Delta#create(byte[], java.util.List)},
+	 *         or empty if no such file exists.
+	 */
+	byte[] getDelta(String sha, List<String> digests) throws Exception;
 }
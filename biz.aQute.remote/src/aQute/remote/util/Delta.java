@@ -0,0 +1,167 @@
+package aQute.remote.util;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import aQute.lib.hex.*;
+
+/**
+ * Transfers a new version of a JAR as the difference with an older version on
+ * the other side. A JAR is split in segments, one for each entry starting at
+ * its local header, and one for the central directory. The side that has the
+ * old version sends the digests of its segments, the side with the new version
+ * returns a delta that refers to the segments that are the same and contains
+ * the others. When an entry did not change its segment is the same, so
+ * rebuilding a bundle after changing a few classes transfers little more than
+ * these classes and the central directory. The result is the exact same file,
+ * so it can be verified against the SHA-1 of the new version.
+ * <p>
+ * Files that are not a JAR are a single segment.
+ */
+public class Delta {
+	private static final int	LOCAL_HEADER		= 0x04034b50;
+	private static final int	CENTRAL_HEADER		= 0x02014b50;
+	private static final int	END_OF_CENTRAL_DIR	= 0x06054b50;
+
+	/**
+	 * Return the digests of the segments of a file.
+	 *
+	 * @param data the old version of the file
+	 * @return the SHA-1 of each segment
+	 */
+	public static List<String> getDigests(byte[] data) throws Exception {
+		return getDigests(data, getSegments(data));
+	}
+
+	private static List<String> getDigests(byte[] data, int[] segments) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		List<String> digests = new ArrayList<String>(segments.length - 1);
+		for (int i = 0; i < segments.length - 1; i++) {
+			md.update(data, segments[i], segments[i + 1] - segments[i]);
+			digests.add(Hex.toHexString(md.digest()));
+		}
+		return digests;
+	}
+
+	/**
+	 * Create the delta of a new version of a file with an old version.
+	 *
+	 * @param data the new version of the file
+	 * @param digests the digests of the segments of the old version, see
+	 *            {@link #getDigests(byte[])}
+	 * @return the delta
+	 */
+	public static byte[] create(byte[] data, List<String> digests) throws Exception {
+		Map<String,Integer> index = new HashMap<String,Integer>();
+		if (digests != null) {
+			for (int i = digests.size() - 1; i >= 0; i--)
+				index.put(digests.get(i), i);
+		}
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		int[] segments = getSegments(data);
+		List<String> target = getDigests(data, segments);
+		out.writeInt(target.size());
+		for (int i = 0; i < target.size(); i++) {
+			Integer n = index.get(target.get(i));
+			if (n != null) {
+				out.writeBoolean(true);
+				out.writeInt(n);
+			} else {
+				int length = segments[i + 1] - segments[i];
+				out.writeBoolean(false);
+				out.writeInt(length);
+				out.write(data, segments[i], length);
+			}
+		}
+		out.flush();
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Reconstruct the new version of a file from the old version and a delta.
+	 *
+	 * @param base the old version of the file
+	 * @param delta the delta created with the digests of the old version
+	 * @return the new version of the file
+	 */
+	public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+		int[] segments = getSegments(base);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(base.length);
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			if (in.readBoolean()) {
+				int n = in.readInt();
+				if (n < 0 || n >= segments.length - 1)
+					throw new IOException("Delta refers to a segment that does not exist " + n);
+				out.write(base, segments[n], segments[n + 1] - segments[n]);
+			} else {
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				out.write(data);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/*
+	 * The offsets where the segments start, followed by the length of the
+	 * data. The local headers are found through the central directory since
+	 * the sizes in the local headers are absent when the entries were
+	 * streamed.
+	 */
+	static int[] getSegments(byte[] data) {
+		int[] whole = new int[] {
+				0, data.length
+		};
+
+		int end = -1;
+		for (int p = data.length - 22; p >= 0 && p >= data.length - 22 - 0xFFFF; p--) {
+			if (getInt(data, p) == END_OF_CENTRAL_DIR) {
+				end = p;
+				break;
+			}
+		}
+		if (end < 0)
+			return whole;
+
+		int entries = getShort(data, end + 10);
+		int directory = getInt(data, end + 16);
+		if (directory < 0 || directory > end)
+			return whole;
+
+		SortedSet<Integer> offsets = new TreeSet<Integer>();
+		offsets.add(0);
+		offsets.add(directory);
+		offsets.add(data.length);
+		int p = directory;
+		for (int i = 0; i < entries; i++) {
+			if (p < 0 || p + 46 > end || getInt(data, p) != CENTRAL_HEADER)
+				return whole;
+
+			int offset = getInt(data, p + 42);
+			if (offset < 0 || offset + 30 > directory || getInt(data, offset) != LOCAL_HEADER)
+				return whole;
+
+			offsets.add(offset);
+			p += 46 + getShort(data, p + 28) + getShort(data, p + 30) + getShort(data, p + 32);
+		}
+
+		int[] segments = new int[offsets.size()];
+		int i = 0;
+		for (int offset : offsets)
+			segments[i++] = offset;
+		return segments;
+	}
+
+	private static int getShort(byte[] data, int p) {
+		return (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8;
+	}
+
+	private static int getInt(byte[] data, int p) {
+		return getShort(data, p) | getShort(data, p + 2) << 16;
+	}
+}
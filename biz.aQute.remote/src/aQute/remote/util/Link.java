@@ -51,12 +51,21 @@ public class Link<L, R> extends Thread implements Closeable {
 		setDaemon(true);
 		this.remoteClass = remoteType;
 		this.local = local == null ? (L) this : local;
-		this.in = new DataInputStream(in);
-		this.out = new DataOutputStream(out);
+
+		//
+		// A message is a number of small writes and reads, without buffers
+		// each of them is a system call, and the small packets run into
+		// delayed acknowledgements. A message is flushed as a whole. When the
+		// link is transferred, the buffers travel with the streams.
+		//
+
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
 	}
 
 	public Link(Class<R> type, L local, Socket socket) throws IOException {
 		this(type, local, socket.getInputStream(), socket.getOutputStream());
+		socket.setTcpNoDelay(true);
 	}
 
 	public void open() {
@@ -158,6 +167,17 @@ public class Link<L, R> extends Thread implements Closeable {
 					args.add(data);
 				}
 
+				//
+				// A response only wakes up the waiting caller, it is handled
+				// here so it cannot get stuck behind commands that are
+				// waiting for it in the executor
+				//
+
+				if (cmd.isEmpty()) {
+					response(id, args.get(0));
+					continue;
+				}
+
 				Runnable r = new Runnable() {
 					public void run() {
 						try {
@@ -315,6 +335,20 @@ public class Link<L, R> extends Thread implements Closeable {
 
 			Method m = getMethod(cmd, args.size());
 			if (m == null) {
+
+				//
+				// Answer so a newer peer does not wait for the timeout when
+				// it calls a method that this side does not have
+				//
+
+				try {
+					send(-id, null, new Object[] {
+						"No such method " + cmd
+					});
+				}
+				catch (Exception e) {
+					terminate(e);
+				}
 				return;
 			}
 
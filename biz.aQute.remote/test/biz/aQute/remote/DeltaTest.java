@@ -0,0 +1,271 @@
+package biz.aQute.remote;
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+
+import junit.framework.*;
+
+import org.osgi.framework.*;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.*;
+import org.osgi.framework.wiring.*;
+
+import aQute.lib.io.*;
+import aQute.libg.cryptography.*;
+import aQute.remote.agent.*;
+import aQute.remote.api.*;
+import aQute.remote.util.*;
+
+public class DeltaTest extends TestCase {
+	private File		tmp;
+	private Framework	framework;
+
+	/*
+	 * Serves files and counts the bytes it sent
+	 */
+	static class TestSupervisor implements Supervisor {
+		final Map<String,byte[]>	files	= new HashMap<String,byte[]>();
+		int							fileBytes;
+		int							deltaBytes;
+		int							deltaCalls;
+		boolean						deltas	= true;
+		boolean						answers	= true;
+
+		String add(byte[] data) throws Exception {
+			String sha = SHA1.digest(data).asHex();
+			files.put(sha, data);
+			return sha;
+		}
+
+		public void event(Event e) throws Exception {}
+
+		public boolean stdout(String out) throws Exception {
+			return true;
+		}
+
+		public boolean stderr(String out) throws Exception {
+			return true;
+		}
+
+		public byte[] getFile(String sha) throws Exception {
+			byte[] data = files.get(sha);
+			fileBytes += data.length;
+			return data;
+		}
+
+		public byte[] getDelta(String sha, List<String> digests) throws Exception {
+			deltaCalls++;
+			if (!deltas)
+				throw new RuntimeException("No such method getDelta");
+
+			if (!answers) {
+				// like a link to an older supervisor, it times out after 5
+				// minutes
+				Thread.sleep(300000);
+				return null;
+			}
+
+			byte[] delta = Delta.create(files.get(sha), digests);
+			deltaBytes += delta.length;
+			return delta;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		tmp = IO.getFile("generated/tmp/delta");
+		IO.delete(tmp);
+		tmp.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (framework != null) {
+			framework.stop();
+			framework.waitForStop(10000);
+		}
+		IO.delete(tmp);
+	}
+
+	/*
+	 * A bundle with 100 resources, the changed resources get different content
+	 */
+	static byte[] create(String bsn, String exports, String imports, int... changed) throws Exception {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		manifest.getMainAttributes().putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+		manifest.getMainAttributes().putValue(Constants.BUNDLE_SYMBOLICNAME, bsn);
+		if (exports != null)
+			manifest.getMainAttributes().putValue(Constants.EXPORT_PACKAGE, exports);
+		if (imports != null)
+			manifest.getMainAttributes().putValue(Constants.IMPORT_PACKAGE, imports);
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		JarOutputStream jout = new JarOutputStream(bout, manifest);
+		Random random = new Random(1);
+		for (int i = 0; i < 100; i++) {
+			byte[] data = new byte[1000];
+			random.nextBytes(data);
+			if (Arrays.binarySearch(changed, i) >= 0)
+				data[0]++;
+
+			JarEntry entry = new JarEntry("p/r" + i);
+			entry.setTime(1000000000000L);
+			jout.putNextEntry(entry);
+			jout.write(data);
+			jout.closeEntry();
+		}
+		jout.close();
+		return bout.toByteArray();
+	}
+
+	public void testDelta() throws Exception {
+		byte[] v1 = create("test", null, null);
+		byte[] v2 = create("test", null, null, 10, 20);
+
+		List<String> digests = Delta.getDigests(v1);
+		assertEquals(102, digests.size());
+
+		byte[] delta = Delta.create(v2, digests);
+		assertTrue(delta.length < v2.length / 10);
+		assertTrue(Arrays.equals(v2, Delta.apply(v1, delta)));
+
+		// another bundle
+		byte[] other = create("other", "p", null);
+		assertTrue(Arrays.equals(other, Delta.apply(v1, Delta.create(other, digests))));
+		assertTrue(Arrays.equals(v1, Delta.apply(other, Delta.create(v1, Delta.getDigests(other)))));
+
+		// not a jar
+		byte[] text = "not a jar".getBytes("UTF-8");
+		assertEquals(1, Delta.getDigests(text).size());
+		assertTrue(Arrays.equals(text, Delta.apply(v1, Delta.create(text, digests))));
+		assertTrue(Arrays.equals(v2, Delta.apply(text, Delta.create(v2, Delta.getDigests(text)))));
+	}
+
+	/**
+	 * An update of a bundle must only transfer the changed entries and refresh
+	 * the bundles that use it
+	 */
+	public void testUpdate() throws Exception {
+		BundleContext context = startFramework();
+		FrameworkWiring wiring = framework.adapt(FrameworkWiring.class);
+
+		TestSupervisor supervisor = new TestSupervisor();
+		AgentServer agent = new AgentServer("test", context, new File(tmp, "cache"));
+		agent.setRemote(supervisor);
+
+		byte[] a1 = create("a", "p", null);
+		byte[] b1 = create("b", null, "p");
+		Map<String,String> bundles = new HashMap<String,String>();
+		bundles.put("a", supervisor.add(a1));
+		bundles.put("b", supervisor.add(b1));
+		assertNull(agent.update(bundles));
+		assertEquals(a1.length + b1.length, supervisor.fileBytes);
+		assertEquals(0, supervisor.deltaBytes);
+		Bundle a = context.getBundle("a");
+		Bundle b = context.getBundle("b");
+		assertEquals(Bundle.ACTIVE, a.getState());
+		assertEquals(Bundle.ACTIVE, b.getState());
+
+		//
+		// b uses the package of a, so a must be refreshed after the update
+		//
+
+		byte[] a2 = create("a", "p", null, 5);
+		bundles.put("a", supervisor.add(a2));
+		assertNull(agent.update(bundles));
+		assertEquals(a1.length + b1.length, supervisor.fileBytes);
+		assertTrue(supervisor.deltaBytes < a2.length / 10);
+		assertEquals(Bundle.ACTIVE, a.getState());
+		assertEquals(Bundle.ACTIVE, b.getState());
+		assertTrue(wiring.getRemovalPendingBundles().isEmpty());
+		assertTrue(Arrays.equals(getEntry(a2, "p/r5"), IO.read(a.getEntry("p/r5"))));
+		assertTrue(Arrays.equals(getEntry(a2, "p/r5"), IO.read(b.getResource("p/r5"))));
+
+		// nothing changed
+		int deltaBytes = supervisor.deltaBytes;
+		assertNull(agent.update(bundles));
+		assertEquals(deltaBytes, supervisor.deltaBytes);
+
+		// a supervisor without deltas
+		supervisor.deltas = false;
+		byte[] a3 = create("a", "p", null, 7);
+		bundles.put("a", supervisor.add(a3));
+		assertNull(agent.update(bundles));
+		assertEquals(a1.length + b1.length + a3.length, supervisor.fileBytes);
+		assertTrue(wiring.getRemovalPendingBundles().isEmpty());
+		assertTrue(Arrays.equals(getEntry(a3, "p/r7"), IO.read(b.getResource("p/r7"))));
+
+		// and it is not asked again
+		int deltaCalls = supervisor.deltaCalls;
+		byte[] a4 = create("a", "p", null, 9);
+		bundles.put("a", supervisor.add(a4));
+		assertNull(agent.update(bundles));
+		assertEquals(deltaCalls, supervisor.deltaCalls);
+		assertEquals(a1.length + b1.length + a3.length + a4.length, supervisor.fileBytes);
+
+		// uninstalled bundles are refreshed too
+		bundles.remove("a");
+		agent.update(bundles);
+		assertEquals(Bundle.UNINSTALLED, a.getState());
+		assertTrue(wiring.getRemovalPendingBundles().isEmpty());
+	}
+
+	/**
+	 * An older supervisor that does not answer a request for a delta must not
+	 * hold up an update for the time out of the link, and it is not asked
+	 * again
+	 */
+	public void testNoAnswer() throws Exception {
+		BundleContext context = startFramework();
+		TestSupervisor supervisor = new TestSupervisor();
+		supervisor.answers = false;
+		AgentServer agent = new AgentServer("test", context, new File(tmp, "cache"));
+		agent.setRemote(supervisor);
+
+		byte[] a1 = create("a", null, null);
+		Map<String,String> bundles = new HashMap<String,String>();
+		bundles.put("a", supervisor.add(a1));
+		assertNull(agent.update(bundles));
+
+		byte[] a2 = create("a", null, null, 5);
+		bundles.put("a", supervisor.add(a2));
+		long start = System.currentTimeMillis();
+		assertNull(agent.update(bundles));
+		assertTrue(System.currentTimeMillis() - start < 60000);
+		assertEquals(1, supervisor.deltaCalls);
+		assertEquals(a1.length + a2.length, supervisor.fileBytes);
+		assertTrue(Arrays.equals(getEntry(a2, "p/r5"), IO.read(context.getBundle("a").getEntry("p/r5"))));
+
+		byte[] a3 = create("a", null, null, 7);
+		bundles.put("a", supervisor.add(a3));
+		assertNull(agent.update(bundles));
+		assertEquals(1, supervisor.deltaCalls);
+		assertEquals(a1.length + a2.length + a3.length, supervisor.fileBytes);
+	}
+
+	private BundleContext startFramework() throws Exception {
+		Map<String,Object> configuration = new HashMap<String,Object>();
+		configuration.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+		configuration.put(Constants.FRAMEWORK_STORAGE, new File(tmp, "fwstorage").getAbsolutePath());
+		framework = new org.apache.felix.framework.FrameworkFactory().newFramework(configuration);
+		framework.init();
+		framework.start();
+		return framework.getBundleContext();
+	}
+
+	static byte[] getEntry(byte[] jar, String path) throws Exception {
+		JarInputStream jin = new JarInputStream(new ByteArrayInputStream(jar));
+		try {
+			for (JarEntry entry = jin.getNextJarEntry(); entry != null; entry = jin.getNextJarEntry()) {
+				if (entry.getName().equals(path))
+					return IO.read(jin);
+			}
+			return null;
+		}
+		finally {
+			jin.close();
+		}
+	}
+}
@@ -2,6 +2,8 @@ package biz.aQute.remote;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
 import junit.framework.*;
@@ -35,6 +37,8 @@ public class LinkTest extends TestCase {
 	interface Remote {
 		int foo();
 
+		int callback();
+
 		void abort() throws IOException;
 	}
 
@@ -52,7 +56,6 @@ public class LinkTest extends TestCase {
 		}
 
 		public int bar() {
-			System.out.println("bar");
 			return 42;
 		}
 
@@ -81,6 +84,10 @@ public class LinkTest extends TestCase {
 			return -42;
 		}
 
+		public int callback() {
+			return link.getRemote().bar();
+		}
+
 		@Override
 		public void close() throws IOException {
 			System.out.println("remote closed");
@@ -137,6 +144,46 @@ public class LinkTest extends TestCase {
 		normalClose();
 	}
 
+	/**
+	 * Many small calls must not wait for the network
+	 */
+	public void testManyCalls() throws Exception {
+		localImpl.link.open();
+		remoteImpl.link.open();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++)
+			assertEquals(-42, localImpl.link.getRemote().foo());
+		long time = (System.nanoTime() - start) / 1000000;
+		System.out.println("1000 calls " + time + " ms");
+		assertTrue(time < 10000);
+	}
+
+	/**
+	 * Calls that call back must not block each other, even when there are
+	 * more of them than threads to execute them
+	 */
+	public void testConcurrentCallbacks() throws Exception {
+		localImpl.link.open();
+		remoteImpl.link.open();
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 16; i++)
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return localImpl.link.getRemote().callback();
+					}
+				}));
+			for (Future<Integer> result : results)
+				assertEquals(Integer.valueOf(42), result.get(10, TimeUnit.SECONDS));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
 	private void normalClose() throws InterruptedException {
 		Thread.sleep(100);
 
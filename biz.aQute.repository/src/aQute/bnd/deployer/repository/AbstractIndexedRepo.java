@@ -20,9 +20,13 @@ import aQute.bnd.deployer.repository.providers.*;
 import aQute.bnd.osgi.*;
 import aQute.bnd.service.*;
 import aQute.bnd.service.ResourceHandle.Location;
+import aQute.bnd.service.repository.RepositoryDigest;
 import aQute.bnd.service.url.*;
 import aQute.bnd.version.*;
 import aQute.lib.filter.*;
+import aQute.lib.io.*;
+import aQute.libg.cryptography.Digester;
+import aQute.libg.cryptography.SHA1;
 import aQute.libg.glob.*;
 import aQute.libg.gzip.*;
 import aQute.service.reporter.*;
@@ -37,7 +41,7 @@ import aQute.service.reporter.*;
  * @author Neil Bartlett
  */
 @SuppressWarnings("synthetic-access")
-public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, RemoteRepositoryPlugin, IndexProvider, Repository, Refreshable {
+public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, RemoteRepositoryPlugin, IndexProvider, Repository, Refreshable, RepositoryDigest {
 
 	public static final String									PROP_NAME						= "name";
 	public static final String									PROP_REPO_TYPE					= "type";
@@ -47,6 +51,7 @@ public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, Rem
 	public static final String									REPO_TYPE_R5					= R5RepoContentProvider.NAME;
 	public static final String									REPO_TYPE_OBR					= ObrContentProvider.NAME;
 	public static final String									REPO_INDEX_SHA_EXTENSION		= ".sha";
+	public static final String									REPO_INDEX_SNAPSHOT_EXTENSION	= ".snapshot";
 	public static final String									PROP_CACHE_TIMEOUT				= "timeout";
 	public static final String									PROP_ONLINE						= "online";
 	
@@ -76,6 +81,7 @@ public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, Rem
 
 	private final CapabilityIndex							capabilityIndex					= new CapabilityIndex();
 	private final VersionedResourceIndex					identityMap						= new VersionedResourceIndex();
+	private final SortedSet<String>							contentDigests					= new TreeSet<String>();
 	private int cacheTimeoutSeconds = DEFAULT_CACHE_TIMEOUT;
 	private boolean online = true;
 
@@ -93,6 +99,7 @@ public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, Rem
 	private synchronized void clear() {
 		identityMap.clear();
 		capabilityIndex.clear();
+		contentDigests.clear();
 	}
 
 	/**
@@ -161,6 +168,7 @@ public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, Rem
 				public void processResource(Resource resource) {
 					identityMap.put(resource);
 					capabilityIndex.addResource(resource);
+					contentDigests.add(getContentDigest(resource));
 				}
 
 				public void processReferral(URI parentUri, Referral referral, int maxDepth, int currentDepth) {
@@ -201,8 +209,12 @@ public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, Rem
 					}
 					indexHandle.setReporter(reporter);
 					File indexFile = indexHandle.request();
-					InputStream indexStream = GZipUtils.detectCompression(new FileInputStream(indexFile));
-					readIndex(indexFile.getName(), indexLocation, indexStream, allContentProviders.values(), processor, logService);
+					if (indexHandle.cachedFile != null)
+						readCachedIndex(indexHandle, indexFile, indexLocation, processor);
+					else {
+						InputStream indexStream = GZipUtils.detectCompression(new FileInputStream(indexFile));
+						readIndex(indexFile.getName(), indexLocation, indexStream, allContentProviders.values(), processor, logService);
+					}
 				}
 				catch (Exception e) {
 					error("Unable to read index at URL '%s': %s", indexLocation, e);
@@ -213,6 +225,70 @@ public abstract class AbstractIndexedRepo implements RegistryPlugin, Plugin, Rem
 		}
 	}
 
+	/**
+	 * Read a downloaded index. The parsed index is kept in a snapshot next to
+	 * the cached download, the index is only parsed again when the snapshot
+	 * is for another download, i.e. when the SHA-256 of the download changed.
+	 */
+	private void readCachedIndex(CachingUriResourceHandle indexHandle, File indexFile, URI indexLocation, IRepositoryIndexProcessor processor) throws Exception {
+		File snapshotFile = new File(indexFile.getAbsolutePath() + REPO_INDEX_SNAPSHOT_EXTENSION);
+		String sha = indexHandle.getCachedSHA();
+		if (IndexSnapshot.read(snapshotFile, sha, indexLocation, processor))
+			return;
+
+		IndexSnapshot snapshot = new IndexSnapshot(processor);
+		InputStream indexStream = GZipUtils.detectCompression(new FileInputStream(indexFile));
+		readIndex(indexFile.getName(), indexLocation, indexStream, allContentProviders.values(), snapshot, logService);
+
+		if (sha != null) {
+			try {
+				snapshot.write(snapshotFile, sha, indexLocation);
+			}
+			catch (Exception e) {
+				// The snapshot is only an optimization
+				IO.delete(snapshotFile);
+				logService.log(LogService.LOG_DEBUG, String.format("Cannot write index snapshot %s: %s", snapshotFile, e));
+			}
+		}
+	}
+
+	/**
+	 * Return a SHA-1 of the content digests of the resources in the indexes.
+	 * The content digest of a resource is the SHA-256 of its content, or its
+	 * identity and version when the index has no SHA-256 for it. The digests
+	 * are sorted, so the digest does not depend on the order of the resources
+	 * in the indexes.
+	 */
+	public byte[] getDigest() {
+		try {
+			init();
+			Digester<SHA1> digester = SHA1.getDigester();
+			synchronized (this) {
+				for (String digest : contentDigests) {
+					digester.write(digest.getBytes("UTF-8"));
+					digester.write('\n');
+				}
+			}
+			return digester.digest().digest();
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String getContentDigest(Resource resource) {
+		try {
+			String sha = getContentSha(resource);
+			if (sha != null)
+				return sha;
+
+			return getResourceIdentity(resource) + ";" + getResourceVersion(resource);
+		}
+		catch (IllegalArgumentException e) {
+			return String.valueOf(resource.getCapabilities(null));
+		}
+	}
+
 	public final List<URI> getIndexLocations() throws Exception {
 		init();
 		return Collections.unmodifiableList(indexLocations);
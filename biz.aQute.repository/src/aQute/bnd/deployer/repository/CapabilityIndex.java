@@ -1,14 +1,116 @@
 package aQute.bnd.deployer.repository;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.osgi.framework.*;
 import org.osgi.resource.*;
 
+import aQute.bnd.osgi.resource.*;
 
+/**
+ * Finds the capabilities that match a requirement. The capabilities are held
+ * per namespace and, within a namespace, are also indexed on the value of the
+ * primary attribute of the namespace (osgi.wiring.package for packages,
+ * osgi.identity for identities, objectClass for services, etc.). When the
+ * filter of a requirement requires a single value for this attribute, only the
+ * capabilities with this value (and those without a usable value) are matched
+ * against the filter instead of all capabilities in the namespace. The
+ * capabilities are returned in the order they were added.
+ * <p>
+ * Filters are compiled once, see {@link CompiledFilter}, and cached with the
+ * value they require.
+ */
 public class CapabilityIndex {
+	final static String							SERVICE_NAMESPACE	= "osgi.service";
+	final static String							OBJECTCLASS			= "objectClass";
+	final static int							MAX_FILTERS			= 10000;
 
-	private final Map<String,List<Capability>>	capabilityMap	= new HashMap<String,List<Capability>>();
+	private final Map<String,Index>				capabilityMap		= new HashMap<String,Index>();
+	private final ConcurrentMap<String,Matcher>	filters				= new ConcurrentHashMap<String,Matcher>();
+
+	/*
+	 * The capabilities of a namespace. The positions of the capabilities in
+	 * the list are indexed by the value of the key attribute.
+	 */
+	static class Index {
+		final String					key;
+		final List<Capability>			capabilities	= new ArrayList<Capability>();
+		final Map<String,Positions>		values			= new HashMap<String,Positions>();
+		final Positions					unkeyed			= new Positions();
+
+		Index(String namespace) {
+			this.key = getKeyAttribute(namespace);
+		}
+
+		void add(Capability cap) {
+			int position = capabilities.size();
+			capabilities.add(cap);
+
+			Object value = cap.getAttributes().get(key);
+			if (value instanceof String)
+				add((String) value, position);
+			else if (isStrings(value)) {
+				for (Object v : (Collection< ? >) value)
+					add((String) v, position);
+			} else
+				unkeyed.add(position);
+		}
+
+		private static boolean isStrings(Object value) {
+			if (!(value instanceof Collection) || ((Collection< ? >) value).isEmpty())
+				return false;
+
+			for (Object v : (Collection< ? >) value) {
+				if (!(v instanceof String))
+					return false;
+			}
+			return true;
+		}
+
+		private void add(String value, int position) {
+			value = value.trim();
+			Positions positions = values.get(value);
+			if (positions == null) {
+				positions = new Positions();
+				values.put(value, positions);
+			}
+			positions.add(position);
+		}
+	}
+
+	/*
+	 * Ascending positions in the list of capabilities of a namespace
+	 */
+	static class Positions {
+		int[]	positions	= new int[2];
+		int		size;
+
+		void add(int position) {
+			// a multi valued attribute can have the same value twice
+			if (size > 0 && positions[size - 1] == position)
+				return;
+
+			if (size == positions.length)
+				positions = Arrays.copyOf(positions, size * 2);
+			positions[size++] = position;
+		}
+	}
+
+	/*
+	 * A parsed filter and the value that it requires for the key attribute
+	 * of its namespace, or null if it does not require a single value
+	 */
+	static class Matcher {
+		final static Matcher	INVALID	= new Matcher(null, null);
+		final CompiledFilter	filter;
+		final String			value;
+
+		Matcher(CompiledFilter filter, String value) {
+			this.filter = filter;
+			this.value = value;
+		}
+	}
 
 	public void clear() {
 		capabilityMap.clear();
@@ -23,39 +125,174 @@ public class CapabilityIndex {
 			addCapability(cap);
 		}
 	}
-	
+
 	public void addCapability(Capability cap) {
-		List<Capability> list = capabilityMap.get(cap.getNamespace());
-		if (list == null) {
-			list = new LinkedList<Capability>();
-			capabilityMap.put(cap.getNamespace(), list);
+		Index index = capabilityMap.get(cap.getNamespace());
+		if (index == null) {
+			index = new Index(cap.getNamespace());
+			capabilityMap.put(cap.getNamespace(), index);
 		}
-		list.add(cap);
+		index.add(cap);
 	}
 
 	public void appendMatchingCapabilities(Requirement requirement, Collection< ? super Capability> capabilities) {
-		List<Capability> caps = capabilityMap.get(requirement.getNamespace());
-		if (caps == null || caps.isEmpty())
+		Index index = capabilityMap.get(requirement.getNamespace());
+		if (index == null || index.capabilities.isEmpty())
 			return;
 
-		try {
-			String filterStr = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
-			Filter filter = filterStr != null ? FrameworkUtil.createFilter(filterStr) : null;
+		String filterStr = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+		if (filterStr == null) {
+			capabilities.addAll(index.capabilities);
+			return;
+		}
 
-			for (Capability cap : caps) {
-				boolean match;
-				if (filter == null)
-					match = true;
-				else
-					match = filter.match(new MapToDictionaryAdapter(cap.getAttributes()));
+		Matcher matcher = getMatcher(index.key, filterStr);
+		if (matcher == Matcher.INVALID) {
+			// Assume no matches
+			return;
+		}
 
-				if (match)
-					capabilities.add(cap);
+		if (matcher.value == null) {
+			for (Capability cap : index.capabilities)
+				match(matcher.filter, cap, capabilities);
+			return;
+		}
+
+		//
+		// Merge the capabilities with the required value and the
+		// capabilities without a value for the key, in the order they were
+		// added
+		//
+
+		Positions keyed = index.values.get(matcher.value);
+		Positions unkeyed = index.unkeyed;
+		int k = 0, u = 0;
+		int ks = keyed == null ? 0 : keyed.size;
+		while (k < ks || u < unkeyed.size) {
+			int position;
+			if (u == unkeyed.size || (k < ks && keyed.positions[k] < unkeyed.positions[u]))
+				position = keyed.positions[k++];
+			else
+				position = unkeyed.positions[u++];
+
+			match(matcher.filter, index.capabilities.get(position), capabilities);
+		}
+	}
+
+	private static void match(CompiledFilter filter, Capability cap, Collection< ? super Capability> capabilities) {
+		if (filter.matches(cap))
+			capabilities.add(cap);
+	}
+
+	private Matcher getMatcher(String key, String filterStr) {
+		Matcher matcher = filters.get(filterStr);
+		if (matcher == null) {
+			try {
+				matcher = new Matcher(CompiledFilter.compile(filterStr), getRequiredValue(key, filterStr));
+			}
+			catch (InvalidSyntaxException e) {
+				matcher = Matcher.INVALID;
 			}
+			if (filters.size() >= MAX_FILTERS)
+				filters.clear();
+			filters.put(filterStr, matcher);
 		}
-		catch (InvalidSyntaxException e) {
-			// Assume no matches
+		return matcher;
+	}
+
+	/**
+	 * Return the attribute that capabilities in a namespace are indexed on
+	 */
+	static String getKeyAttribute(String namespace) {
+		if (SERVICE_NAMESPACE.equals(namespace))
+			return OBJECTCLASS;
+		return namespace;
+	}
+
+	/**
+	 * Return the value that the filter requires for the key, or null when the
+	 * filter does not require a single value. This is the case for a filter
+	 * (key=value), or a conjunction with (key=value) as one of its operands,
+	 * where the value has no wildcards. The value is trimmed, like the values
+	 * in the index.
+	 */
+	static String getRequiredValue(String key, String filter) {
+		filter = filter.trim();
+		if (filter.startsWith("(&")) {
+			int n = 2;
+			while (n < filter.length() && filter.charAt(n) == '(') {
+				int end = getEnd(filter, n);
+				if (end < 0)
+					return null;
+
+				String value = getSimpleValue(key, filter.substring(n, end + 1));
+				if (value != null)
+					return value;
+
+				n = end + 1;
+				while (n < filter.length() && Character.isWhitespace(filter.charAt(n)))
+					n++;
+			}
+			return null;
+		}
+		return getSimpleValue(key, filter);
+	}
+
+	/*
+	 * Return the value of a simple (key=value) item, the value is unescaped
+	 */
+	private static String getSimpleValue(String key, String item) {
+		if (!item.startsWith("(") || !item.endsWith(")"))
+			return null;
+
+		int eq = item.indexOf('=');
+		if (eq < 0)
+			return null;
+
+		String attr = item.substring(1, eq).trim();
+		if (!attr.equalsIgnoreCase(key))
+			return null;
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = eq + 1; i < item.length() - 1; i++) {
+			char c = item.charAt(i);
+			switch (c) {
+				case '*' :
+				case '(' :
+				case ')' :
+					// substring or presence, or not a simple item
+					return null;
+
+				case '\\' :
+					if (++i == item.length() - 1)
+						return null;
+					c = item.charAt(i);
+					break;
+			}
+			sb.append(c);
 		}
+		return sb.toString().trim();
 	}
 
+	/*
+	 * Return the index of the parenthesis that closes the one at start
+	 */
+	private static int getEnd(String filter, int start) {
+		int nesting = 0;
+		for (int i = start; i < filter.length(); i++) {
+			switch (filter.charAt(i)) {
+				case '\\' :
+					i++;
+					break;
+				case '(' :
+					nesting++;
+					break;
+				case ')' :
+					if (--nesting == 0)
+						return i;
+					break;
+			}
+		}
+		return -1;
+	}
 }
@@ -0,0 +1,409 @@
+package aQute.bnd.deployer.repository;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.*;
+import java.util.Map.Entry;
+
+import org.osgi.framework.Version;
+import org.osgi.resource.*;
+
+import aQute.bnd.deployer.repository.api.*;
+import aQute.bnd.osgi.resource.*;
+import aQute.lib.io.*;
+
+/**
+ * A binary snapshot of a parsed index. It records the resources and referrals
+ * that are passed to the processor while an index is parsed and writes them to
+ * a file, so that a next time they can be read from this file instead of
+ * parsing the index again. The file is memory mapped when read.
+ * <p>
+ * The file starts with the SHA-256 of the index and the location of the index,
+ * a snapshot is only read when both are the same. Then follows a table with
+ * all strings, each string is stored (and created when read) once, and the
+ * resources and referrals in the order they were processed. The attributes
+ * keep their type: String, Long, Double, Version, URI or a list of these.
+ */
+class IndexSnapshot implements IRepositoryIndexProcessor {
+	final static int						MAGIC		= 0x424e4453;
+	final static int						FORMAT		= 1;
+
+	final static byte						RESOURCE	= 1;
+	final static byte						REFERRAL	= 2;
+
+	final static byte						TYPE_STRING		= 1;
+	final static byte						TYPE_LONG		= 2;
+	final static byte						TYPE_DOUBLE		= 3;
+	final static byte						TYPE_VERSION	= 4;
+	final static byte						TYPE_URI		= 5;
+	final static byte						TYPE_LIST		= 6;
+
+	private final IRepositoryIndexProcessor	processor;
+	private final List<Object>				entries		= new ArrayList<Object>();
+
+	/*
+	 * A processed referral
+	 */
+	static class ReferralEntry {
+		URI			parentUri;
+		Referral	referral;
+		int			maxDepth;
+		int			currentDepth;
+	}
+
+	/**
+	 * @param processor the processor that the resources and referrals are
+	 *            passed on to while they are recorded
+	 */
+	IndexSnapshot(IRepositoryIndexProcessor processor) {
+		this.processor = processor;
+	}
+
+	public void processResource(Resource resource) {
+		entries.add(resource);
+		processor.processResource(resource);
+	}
+
+	public void processReferral(URI parentUri, Referral referral, int maxDepth, int currentDepth) {
+		ReferralEntry entry = new ReferralEntry();
+		entry.parentUri = parentUri;
+		entry.referral = referral;
+		entry.maxDepth = maxDepth;
+		entry.currentDepth = currentDepth;
+		entries.add(entry);
+		processor.processReferral(parentUri, referral, maxDepth, currentDepth);
+	}
+
+	/**
+	 * Write the recorded resources and referrals. The file is first written
+	 * under a temporary name, so that it is complete or absent.
+	 *
+	 * @param file the snapshot file
+	 * @param sha the SHA-256 of the index
+	 * @param location the location of the index
+	 * @throws IllegalArgumentException when an attribute has a type that
+	 *             cannot be stored
+	 */
+	void write(File file, String sha, URI location) throws IOException {
+		Map<String,Integer> strings = new LinkedHashMap<String,Integer>();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bout);
+
+		body.writeInt(entries.size());
+		for (Object entry : entries) {
+			if (entry instanceof Resource) {
+				Resource resource = (Resource) entry;
+				body.writeByte(RESOURCE);
+				List<Capability> capabilities = resource.getCapabilities(null);
+				body.writeInt(capabilities.size());
+				for (Capability capability : capabilities)
+					writeCapReq(body, strings, capability.getNamespace(), capability.getAttributes(),
+							capability.getDirectives());
+
+				List<Requirement> requirements = resource.getRequirements(null);
+				body.writeInt(requirements.size());
+				for (Requirement requirement : requirements)
+					writeCapReq(body, strings, requirement.getNamespace(), requirement.getAttributes(),
+							requirement.getDirectives());
+			} else {
+				ReferralEntry referral = (ReferralEntry) entry;
+				body.writeByte(REFERRAL);
+				body.writeInt(index(strings, referral.parentUri == null ? null : referral.parentUri.toString()));
+				body.writeInt(index(strings, referral.referral.getUrl()));
+				body.writeInt(referral.referral.getDepth());
+				body.writeInt(referral.maxDepth);
+				body.writeInt(referral.currentDepth);
+			}
+		}
+		body.flush();
+
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			writeString(out, sha);
+			writeString(out, location.toString());
+			out.writeInt(strings.size());
+			for (String s : strings.keySet())
+				writeString(out, s);
+			bout.writeTo(out);
+		}
+		finally {
+			out.close();
+		}
+
+		IO.delete(file);
+		if (!tmp.renameTo(file)) {
+			IO.delete(tmp);
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * Pass the resources and referrals of a snapshot to a processor. Nothing
+	 * is passed when the snapshot cannot be used.
+	 *
+	 * @param file the snapshot file
+	 * @param sha the SHA-256 of the index
+	 * @param location the location of the index
+	 * @param processor the processor
+	 * @return true if the snapshot was used, false when it is absent, invalid
+	 *         or for another version of the index
+	 */
+	static boolean read(File file, String sha, URI location, IRepositoryIndexProcessor processor) {
+		if (sha == null || !file.isFile())
+			return false;
+
+		List<Object> entries;
+		try {
+			entries = read(file, sha, location.toString());
+		}
+		catch (Exception e) {
+			// corrupt, the index is parsed and the snapshot written again
+			return false;
+		}
+		if (entries == null)
+			return false;
+
+		for (Object entry : entries) {
+			if (entry instanceof Resource)
+				processor.processResource((Resource) entry);
+			else {
+				ReferralEntry referral = (ReferralEntry) entry;
+				processor.processReferral(referral.parentUri, referral.referral, referral.maxDepth,
+						referral.currentDepth);
+			}
+		}
+		return true;
+	}
+
+	private static List<Object> read(File file, String sha, String location) throws Exception {
+		ByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			raf.close();
+		}
+
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT)
+			return null;
+		if (!sha.equalsIgnoreCase(readString(buffer)) || !location.equals(readString(buffer)))
+			return null;
+
+		String[] strings = new String[count(buffer)];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = readString(buffer);
+
+		Reader reader = new Reader(buffer, strings);
+		int size = count(buffer);
+		List<Object> entries = new ArrayList<Object>(size);
+		for (int i = 0; i < size; i++) {
+			switch (buffer.get()) {
+				case RESOURCE :
+					ResourceBuilder rb = new ResourceBuilder();
+					for (int c = buffer.getInt(); c > 0; c--)
+						rb.addCapability(reader.readCapReq());
+					for (int r = buffer.getInt(); r > 0; r--)
+						rb.addRequirement(reader.readCapReq());
+					entries.add(rb.build());
+					break;
+
+				case REFERRAL :
+					ReferralEntry referral = new ReferralEntry();
+					String parentUri = reader.string(buffer.getInt());
+					referral.parentUri = parentUri == null ? null : reader.uri(parentUri);
+					String url = reader.string(buffer.getInt());
+					referral.referral = new Referral(url, buffer.getInt());
+					referral.maxDepth = buffer.getInt();
+					referral.currentDepth = buffer.getInt();
+					entries.add(referral);
+					break;
+
+				default :
+					throw new IOException("Invalid snapshot " + file);
+			}
+		}
+		return entries;
+	}
+
+	/*
+	 * Reads capabilities and requirements, the versions and URIs are created
+	 * once per string
+	 */
+	private static class Reader {
+		final ByteBuffer			buffer;
+		final String[]				strings;
+		final Map<String,Version>	versions	= new HashMap<String,Version>();
+		final Map<String,URI>		uris		= new HashMap<String,URI>();
+
+		Reader(ByteBuffer buffer, String[] strings) {
+			this.buffer = buffer;
+			this.strings = strings;
+		}
+
+		CapReqBuilder readCapReq() throws Exception {
+			CapReqBuilder builder = new CapReqBuilder(string(buffer.getInt()));
+			for (int a = buffer.getInt(); a > 0; a--) {
+				String name = string(buffer.getInt());
+				builder.addAttribute(name, readValue(buffer.get()));
+			}
+			for (int d = buffer.getInt(); d > 0; d--) {
+				String name = string(buffer.getInt());
+				builder.addDirective(name, string(buffer.getInt()));
+			}
+			return builder;
+		}
+
+		Object readValue(byte type) throws Exception {
+			switch (type) {
+				case TYPE_STRING :
+					return string(buffer.getInt());
+				case TYPE_LONG :
+					return buffer.getLong();
+				case TYPE_DOUBLE :
+					return buffer.getDouble();
+				case TYPE_VERSION :
+					return version(string(buffer.getInt()));
+				case TYPE_URI :
+					return uri(string(buffer.getInt()));
+				case TYPE_LIST :
+					byte elementType = buffer.get();
+					List<Object> list = new LinkedList<Object>();
+					for (int n = buffer.getInt(); n > 0; n--)
+						list.add(readValue(elementType));
+					return list;
+				default :
+					throw new IOException("Invalid attribute type " + type);
+			}
+		}
+
+		String string(int index) {
+			return index < 0 ? null : strings[index];
+		}
+
+		Version version(String s) {
+			Version version = versions.get(s);
+			if (version == null) {
+				version = Version.parseVersion(s);
+				versions.put(s, version);
+			}
+			return version;
+		}
+
+		URI uri(String s) throws URISyntaxException {
+			URI uri = uris.get(s);
+			if (uri == null) {
+				uri = new URI(s);
+				uris.put(s, uri);
+			}
+			return uri;
+		}
+	}
+
+	private static void writeCapReq(DataOutputStream out, Map<String,Integer> strings, String namespace,
+			Map<String,Object> attributes, Map<String,String> directives) throws IOException {
+		out.writeInt(index(strings, namespace));
+		out.writeInt(attributes.size());
+		for (Entry<String,Object> entry : attributes.entrySet()) {
+			out.writeInt(index(strings, entry.getKey()));
+			writeValue(out, strings, entry.getValue(), true);
+		}
+		out.writeInt(directives.size());
+		for (Entry<String,String> entry : directives.entrySet()) {
+			out.writeInt(index(strings, entry.getKey()));
+			out.writeInt(index(strings, entry.getValue()));
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Map<String,Integer> strings, Object value, boolean typed)
+			throws IOException {
+		byte type = getType(value);
+		if (typed)
+			out.writeByte(type);
+
+		switch (type) {
+			case TYPE_STRING :
+			case TYPE_VERSION :
+			case TYPE_URI :
+				out.writeInt(index(strings, value.toString()));
+				break;
+			case TYPE_LONG :
+				out.writeLong((Long) value);
+				break;
+			case TYPE_DOUBLE :
+				out.writeDouble((Double) value);
+				break;
+			case TYPE_LIST :
+				List< ? > list = (List< ? >) value;
+				byte elementType = list.isEmpty() ? TYPE_STRING : getType(list.get(0));
+				if (elementType == TYPE_LIST)
+					throw new IllegalArgumentException("Nested list attribute " + value);
+				out.writeByte(elementType);
+				out.writeInt(list.size());
+				for (Object element : list) {
+					if (getType(element) != elementType)
+						throw new IllegalArgumentException("Mixed list attribute " + value);
+					writeValue(out, strings, element, false);
+				}
+				break;
+		}
+	}
+
+	private static byte getType(Object value) {
+		if (value instanceof String)
+			return TYPE_STRING;
+		if (value instanceof Long)
+			return TYPE_LONG;
+		if (value instanceof Double)
+			return TYPE_DOUBLE;
+		if (value instanceof Version)
+			return TYPE_VERSION;
+		if (value instanceof URI)
+			return TYPE_URI;
+		if (value instanceof List)
+			return TYPE_LIST;
+		throw new IllegalArgumentException("Cannot store attribute value " + value + " of type "
+				+ (value == null ? null : value.getClass()));
+	}
+
+	private static int index(Map<String,Integer> strings, String s) {
+		if (s == null)
+			return -1;
+
+		Integer index = strings.get(s);
+		if (index == null) {
+			index = strings.size();
+			strings.put(s, index);
+		}
+		return index;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/*
+	 * Read a count or length, which cannot be more than the remaining bytes
+	 */
+	private static int count(ByteBuffer buffer) throws IOException {
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining())
+			throw new IOException("Invalid snapshot");
+		return count;
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[count(buffer)];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
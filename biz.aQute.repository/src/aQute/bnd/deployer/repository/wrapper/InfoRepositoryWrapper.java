@@ -18,7 +18,6 @@ import aQute.bnd.service.repository.*;
 import aQute.bnd.service.repository.SearchableRepository.ResourceDescriptor;
 import aQute.bnd.version.Version;
 import aQute.lib.collections.*;
-import aQute.lib.filter.Filter;
 import aQute.lib.hex.*;
 import aQute.lib.persistentmap.*;
 
@@ -154,18 +153,22 @@ public class InfoRepositoryWrapper implements Repository {
 		init();
 
 		nextReq: for (Requirement req : requirements) {
-			String f = req.getDirectives().get("filter");
-			if (f == null)
+			CompiledFilter filter;
+			try {
+				filter = ResourceUtils.getFilter(req);
+			}
+			catch (InvalidSyntaxException e) {
+				continue nextReq;
+			}
+			if (filter == null)
 				continue nextReq;
-
-			Filter filter = new Filter(f);
 
 			for (PersistentResource presource : persistent.values()) {
 				Resource resource = presource.getResource();
 				List<Capability> provided = resource.getCapabilities(req.getNamespace());
 				if (provided != null)
 					for (Capability cap : provided) {
-						if (filter.matchMap(cap.getAttributes())) {
+						if (filter.matches(cap.getAttributes())) {
 							List<Capability> l = result.get(req);
 							if (l == null)
 								result.put(req, l = new ArrayList<Capability>());
@@ -1596,6 +1596,21 @@ public class Repository implements Plugin, RepositoryPlugin, Closeable, Refresha
 	@Override
 	public void setRegistry(Registry registry) {
 		this.registry = registry;
+
+		//
+		// Share the downloads with the other caches of the workspace. When
+		// this plugin has its own copy of the content store class, for
+		// example in OSGi, it works without
+		//
+		Workspace workspace = registry.getPlugin(Workspace.class);
+		if (cache != null && workspace != null) {
+			try {
+				cache.setContentStore(workspace.getContentStore());
+			}
+			catch (LinkageError e) {
+				reporter.trace("cannot use the content store %s", e);
+			}
+		}
 	}
 
 	private void init() throws Exception {
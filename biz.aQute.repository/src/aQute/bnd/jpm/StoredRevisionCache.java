@@ -12,6 +12,8 @@ import aQute.lib.hex.*;
 import aQute.lib.io.*;
 import aQute.lib.json.*;
 import aQute.lib.settings.*;
+import aQute.libg.cafs.*;
+import aQute.libg.cryptography.*;
 import aQute.rest.urlclient.*;
 import aQute.service.library.Library.Program;
 import aQute.service.library.Library.RevisionRef;
@@ -32,6 +34,7 @@ public class StoredRevisionCache {
 	private static final JSONCodec	codec		= new JSONCodec();
 	File							refresh;
 	final URLClient					urlc;
+	private CAFS					contentStore;
 
 	public StoredRevisionCache(File root, Settings settings) throws Exception {
 		this.root = root;
@@ -93,6 +96,16 @@ public class StoredRevisionCache {
 		if (errors.containsKey(file))
 			throw errors.get(file);
 
+		if (contentStore != null) {
+			try {
+				if (contentStore.export(new SHA1(sha), file, true))
+					return;
+			}
+			catch (Exception e) {
+				// download it instead
+			}
+		}
+
 		if (urls.isEmpty())
 			throw new Exception("No URLs to download " + file);
 
@@ -121,6 +134,7 @@ public class StoredRevisionCache {
 					if (modified > 0)
 						file.setLastModified(modified);
 				}
+				store(file);
 				return;
 			}
 			catch (Exception e) {
@@ -134,6 +148,29 @@ public class StoredRevisionCache {
 		}
 	}
 
+	private void store(File file) {
+		if (contentStore == null)
+			return;
+
+		try {
+			contentStore.store(file);
+		}
+		catch (Exception e) {
+			// the content store is only an optimization
+		}
+	}
+
+	/**
+	 * Set the content store that is shared with other caches. Files that are
+	 * in the content store are not downloaded again and downloaded files are
+	 * added to it.
+	 * 
+	 * @param contentStore the content store or null
+	 */
+	public void setContentStore(CAFS contentStore) {
+		this.contentStore = contentStore;
+	}
+
 	/*
 	 * Download an URI into a temporary file while calculating SHA & MD5. The
 	 * connection uses the normal protections
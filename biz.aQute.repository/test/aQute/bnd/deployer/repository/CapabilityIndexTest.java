@@ -0,0 +1,176 @@
+package aQute.bnd.deployer.repository;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.osgi.framework.*;
+import org.osgi.resource.*;
+
+import aQute.bnd.osgi.resource.*;
+
+public class CapabilityIndexTest extends TestCase {
+
+	public static void testRequiredValue() {
+		assertEquals("a.b", CapabilityIndex.getRequiredValue("osgi.wiring.package", "(osgi.wiring.package=a.b)"));
+		assertEquals("a.b", CapabilityIndex.getRequiredValue("osgi.wiring.package",
+				"(&(version>=1.0)(osgi.wiring.package=a.b)(!(version>=2.0)))"));
+		assertEquals("a(b)", CapabilityIndex.getRequiredValue("osgi.identity", "(osgi.identity=a\\(b\\))"));
+		assertEquals("a", CapabilityIndex.getRequiredValue("objectClass", "(objectclass=a)"));
+
+		assertNull(CapabilityIndex.getRequiredValue("osgi.wiring.package", "(osgi.wiring.package=a.*)"));
+		assertNull(CapabilityIndex.getRequiredValue("osgi.wiring.package", "(osgi.wiring.package=*)"));
+		assertNull(CapabilityIndex.getRequiredValue("osgi.wiring.package", "(osgi.wiring.package~=a)"));
+		assertNull(CapabilityIndex.getRequiredValue("osgi.wiring.package", "(osgi.wiring.package>=a)"));
+		assertNull(CapabilityIndex.getRequiredValue("osgi.wiring.package",
+				"(|(osgi.wiring.package=a)(osgi.wiring.package=b))"));
+		assertNull(CapabilityIndex.getRequiredValue("osgi.wiring.package", "(!(osgi.wiring.package=a))"));
+		assertNull(CapabilityIndex.getRequiredValue("osgi.wiring.package", "(&(!(osgi.wiring.package=a)))"));
+	}
+
+	/**
+	 * The index must find the same capabilities, in the same order, as
+	 * matching all capabilities
+	 */
+	public static void testSameAsFullMatch() throws Exception {
+		List<Capability> caps = new ArrayList<Capability>();
+		for (int i = 0; i < 200; i++) {
+			caps.add(new CapReqBuilder("osgi.wiring.package").addAttribute("osgi.wiring.package", "p" + (i % 20))
+					.addAttribute("version", new Version(i % 3, 0, 0)).buildSyntheticCapability());
+			if (i % 17 == 0)
+				caps.add(new CapReqBuilder("osgi.wiring.package").addAttribute("osgi.wiring.package", " p1 ")
+						.buildSyntheticCapability());
+			if (i % 23 == 0)
+				caps.add(new CapReqBuilder("osgi.wiring.package").addAttribute("version", new Version(1, 0, 0))
+						.buildSyntheticCapability());
+			if (i % 11 == 0)
+				caps.add(new CapReqBuilder("osgi.service").addAttribute("objectClass",
+						Arrays.asList("s" + (i % 3), "s" + (i % 5))).buildSyntheticCapability());
+		}
+
+		CapabilityIndex index = new CapabilityIndex();
+		for (Capability cap : caps)
+			index.addCapability(cap);
+
+		String[][] requirements = {
+				{
+						"osgi.wiring.package", "(osgi.wiring.package=p1)"
+				}, {
+						"osgi.wiring.package", "(&(osgi.wiring.package=p1)(version>=1.0.0))"
+				}, {
+						"osgi.wiring.package", "(osgi.wiring.package=p1*)"
+				}, {
+						"osgi.wiring.package", "(|(osgi.wiring.package=p1)(osgi.wiring.package=p2))"
+				}, {
+						"osgi.wiring.package", "(version>=2.0.0)"
+				}, {
+						"osgi.wiring.package", "(osgi.wiring.package=nothere)"
+				}, {
+						"osgi.wiring.package", null
+				}, {
+						"osgi.wiring.package", "(osgi.wiring.package=p1"
+				}, {
+						"osgi.service", "(objectClass=s2)"
+				}, {
+						"osgi.service", "(&(objectClass=s0)(objectClass=s1))"
+				}, {
+						"osgi.identity", "(osgi.identity=x)"
+				}
+		};
+
+		for (String[] r : requirements) {
+			CapReqBuilder builder = new CapReqBuilder(r[0]);
+			if (r[1] != null)
+				builder.addDirective("filter", r[1]);
+			Requirement requirement = builder.buildSyntheticRequirement();
+
+			List<Capability> found = new ArrayList<Capability>();
+			index.appendMatchingCapabilities(requirement, found);
+			assertEquals(r[1], match(caps, r[0], r[1]), found);
+		}
+	}
+
+	/**
+	 * A capability that counts how often the index matches a filter against
+	 * it
+	 */
+	static class CountingCapability implements Capability {
+		final Capability	capability;
+		int					examined;
+
+		CountingCapability(Capability capability) {
+			this.capability = capability;
+		}
+
+		public String getNamespace() {
+			return capability.getNamespace();
+		}
+
+		public Map<String,String> getDirectives() {
+			return capability.getDirectives();
+		}
+
+		public Map<String,Object> getAttributes() {
+			examined++;
+			return capability.getAttributes();
+		}
+
+		public Resource getResource() {
+			return capability.getResource();
+		}
+	}
+
+	/**
+	 * Look up packages in a large index, only the capabilities with the
+	 * required package and those without a package are examined
+	 */
+	public static void testLargeIndex() throws Exception {
+		List<CountingCapability> caps = new ArrayList<CountingCapability>();
+		CapabilityIndex index = new CapabilityIndex();
+		for (int i = 0; i < 5000; i++) {
+			CapReqBuilder builder = new CapReqBuilder("osgi.wiring.package");
+			if (i % 1000 != 0)
+				builder.addAttribute("osgi.wiring.package", "p" + i);
+			CountingCapability cap = new CountingCapability(builder.addAttribute("version", new Version(1, 0, 0))
+					.buildSyntheticCapability());
+			caps.add(cap);
+			index.addCapability(cap);
+		}
+		List<Capability> all = new ArrayList<Capability>(caps);
+
+		for (int i = 1; i < 5000; i += 50) {
+			Requirement requirement = CapReqBuilder.createPackageRequirement("p" + i, "[1,2)")
+					.buildSyntheticRequirement();
+			List<Capability> expected = match(all, "osgi.wiring.package", requirement.getDirectives().get("filter"));
+			for (CountingCapability cap : caps)
+				cap.examined = 0;
+
+			List<Capability> found = new ArrayList<Capability>();
+			index.appendMatchingCapabilities(requirement, found);
+			assertEquals(expected, found);
+			assertEquals(1, found.size());
+
+			int examined = 0;
+			for (CountingCapability cap : caps)
+				examined += cap.examined;
+			assertEquals(6, examined);
+		}
+	}
+
+	private static List<Capability> match(List<Capability> caps, String namespace, String filter) throws Exception {
+		List<Capability> result = new ArrayList<Capability>();
+		Filter f;
+		try {
+			f = filter == null ? null : FrameworkUtil.createFilter(filter);
+		}
+		catch (InvalidSyntaxException e) {
+			return result;
+		}
+		for (Capability cap : caps) {
+			if (cap.getNamespace().equals(namespace)
+					&& (f == null || f.match(new MapToDictionaryAdapter(cap.getAttributes()))))
+				result.add(cap);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,191 @@
+package aQute.bnd.deployer.repository;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.osgi.resource.*;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.deployer.repository.api.*;
+import aQute.bnd.deployer.repository.providers.*;
+import aQute.bnd.osgi.*;
+import aQute.lib.io.*;
+
+public class IndexSnapshotTest extends TestCase {
+
+	static final String	INDEX	= "<repository xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' name='test'>"
+										+ "<referral url='http://localhost:18083/other.xml' depth='2'/>"
+										+ "<resource>"
+										+ "<capability namespace='osgi.identity'>"
+										+ "<attribute name='osgi.identity' value='a'/>"
+										+ "<attribute name='version' type='Version' value='1.2.3.q'/>"
+										+ "<attribute name='size' type='Long' value='42'/>"
+										+ "<attribute name='ratio' type='Double' value='0.5'/>"
+										+ "<attribute name='longs' type='List&lt;Long&gt;' value='1,2,3'/>"
+										+ "<attribute name='versions' type='List&lt;Version&gt;' value='1.0,2.0'/>"
+										+ "<attribute name='strings' type='List&lt;String&gt;' value='x,y'/>"
+										+ "<directive name='singleton' value='true'/>"
+										+ "</capability>"
+										+ "<capability namespace='osgi.content'>"
+										+ "<attribute name='osgi.content' value='abcd'/>"
+										+ "<attribute name='url' value='a.jar'/>"
+										+ "</capability>"
+										+ "<requirement namespace='osgi.wiring.package'>"
+										+ "<directive name='filter' value='(osgi.wiring.package=p)'/>"
+										+ "</requirement>"
+										+ "</resource>"
+										+ "</repository>";
+
+	File				tmp;
+
+	@Override
+	public void setUp() {
+		tmp = IO.getFile("tmp");
+		IO.delete(tmp);
+		tmp.mkdirs();
+	}
+
+	@Override
+	public void tearDown() {
+		IO.delete(tmp);
+	}
+
+	static class Collector implements IRepositoryIndexProcessor {
+		final List<Resource>	resources	= new ArrayList<Resource>();
+		final List<String>		referrals	= new ArrayList<String>();
+
+		public void processResource(Resource resource) {
+			resources.add(resource);
+		}
+
+		public void processReferral(URI parentUri, Referral referral, int maxDepth, int currentDepth) {
+			referrals.add(parentUri + " " + referral.getUrl() + " " + referral.getDepth() + " " + maxDepth + " "
+					+ currentDepth);
+		}
+	}
+
+	/**
+	 * A snapshot must give the same resources and referrals as parsing the
+	 * index, with the same attribute types
+	 */
+	public void testSnapshot() throws Exception {
+		assertSnapshot(new ByteArrayInputStream(INDEX.getBytes("UTF-8")), 1);
+		assertSnapshot(new FileInputStream(IO.getFile("testdata/big_index.xml")), 0);
+	}
+
+	private void assertSnapshot(InputStream in, int referrals) throws Exception {
+		URI location = new URI("http://localhost:18083/index.xml");
+		File file = new File(tmp, "index.xml.snapshot");
+
+		Collector parsed = new Collector();
+		IndexSnapshot snapshot = new IndexSnapshot(parsed);
+		new R5RepoContentProvider().parseIndex(in, location, snapshot, new NullLogService());
+		snapshot.write(file, "1234", location);
+		assertTrue(parsed.resources.size() > 0);
+		assertEquals(referrals, parsed.referrals.size());
+
+		Collector read = new Collector();
+		assertTrue(IndexSnapshot.read(file, "1234", location, read));
+		assertEquals(parsed.referrals, read.referrals);
+		assertEquals(parsed.resources.size(), read.resources.size());
+		for (int i = 0; i < parsed.resources.size(); i++) {
+			assertCapReqs(parsed.resources.get(i).getCapabilities(null), read.resources.get(i).getCapabilities(null));
+			assertCapReqs(parsed.resources.get(i).getRequirements(null), read.resources.get(i).getRequirements(null));
+			for (Capability cap : read.resources.get(i).getCapabilities(null))
+				assertSame(read.resources.get(i), cap.getResource());
+		}
+	}
+
+	private static void assertCapReqs(List< ? extends Object> expected, List< ? extends Object> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.get(i) instanceof Capability) {
+				Capability e = (Capability) expected.get(i);
+				Capability a = (Capability) actual.get(i);
+				assertEquals(e.getNamespace(), a.getNamespace());
+				assertEquals(e.getAttributes(), a.getAttributes());
+				assertEquals(e.getDirectives(), a.getDirectives());
+				for (Map.Entry<String,Object> entry : e.getAttributes().entrySet())
+					assertEquals(entry.getValue().getClass(), a.getAttributes().get(entry.getKey()).getClass());
+			} else {
+				Requirement e = (Requirement) expected.get(i);
+				Requirement a = (Requirement) actual.get(i);
+				assertEquals(e.getNamespace(), a.getNamespace());
+				assertEquals(e.getAttributes(), a.getAttributes());
+				assertEquals(e.getDirectives(), a.getDirectives());
+			}
+		}
+	}
+
+	/**
+	 * A snapshot for another SHA or location, or a corrupt snapshot, must not
+	 * be used
+	 */
+	public void testUnusableSnapshot() throws Exception {
+		URI location = new URI("http://localhost:18083/index.xml");
+		File file = new File(tmp, "index.xml.snapshot");
+
+		IndexSnapshot snapshot = new IndexSnapshot(new Collector());
+		new R5RepoContentProvider().parseIndex(new ByteArrayInputStream(INDEX.getBytes("UTF-8")), location, snapshot,
+				new NullLogService());
+		snapshot.write(file, "1234", location);
+
+		Collector read = new Collector();
+		assertFalse(IndexSnapshot.read(file, "5678", location, read));
+		assertFalse(IndexSnapshot.read(file, "1234", new URI("http://localhost:18083/other.xml"), read));
+		assertFalse(IndexSnapshot.read(file, null, location, read));
+		assertFalse(IndexSnapshot.read(new File(tmp, "missing"), "1234", location, read));
+
+		byte[] bytes = IO.read(file);
+		IO.store(Arrays.copyOf(bytes, bytes.length - 10), file);
+		assertFalse(IndexSnapshot.read(file, "1234", location, read));
+
+		assertEquals(0, read.resources.size());
+		assertEquals(0, read.referrals.size());
+	}
+
+	/**
+	 * A downloaded index is read from its snapshot as long as the SHA of the
+	 * download is the same
+	 */
+	public void testCachedIndex() throws Exception {
+		String base = "http://localhost:18083/repo";
+		File dir = new File(tmp, URLEncoder.encode(base, "UTF-8"));
+		dir.mkdirs();
+		File cached = new File(dir, "index.xml");
+		IO.copy(IO.getFile("testdata/index1.xml"), cached);
+
+		assertEquals(Arrays.asList("org.example.c", "org.example.f"), list(base + "/index.xml"));
+		File snapshot = new File(cached.getAbsolutePath() + AbstractIndexedRepo.REPO_INDEX_SNAPSHOT_EXTENSION);
+		assertTrue(snapshot.isFile());
+
+		// the SHA file is still the same, the snapshot is used
+		IO.copy(IO.getFile("testdata/minir5.xml"), cached);
+		assertEquals(Arrays.asList("org.example.c", "org.example.f"), list(base + "/index.xml"));
+
+		// the download changed
+		IO.delete(new File(cached.getAbsolutePath() + AbstractIndexedRepo.REPO_INDEX_SHA_EXTENSION));
+		assertEquals(Arrays.asList("dummybundle", "org.example.f"), list(base + "/index.xml"));
+		assertTrue(snapshot.isFile());
+	}
+
+	private List<String> list(String location) throws Exception {
+		Processor reporter = new Processor();
+		FixedIndexedRepo repo = new FixedIndexedRepo();
+		Map<String,String> props = new HashMap<String,String>();
+		props.put("name", "cached");
+		props.put("locations", location);
+		props.put(FixedIndexedRepo.PROP_CACHE, tmp.getAbsolutePath());
+		props.put(AbstractIndexedRepo.PROP_CACHE_TIMEOUT, "3600");
+		repo.setProperties(props);
+		repo.setReporter(reporter);
+
+		List<String> bsns = repo.list(null);
+		Collections.sort(bsns);
+		assertEquals(0, reporter.getErrors().size());
+		return bsns;
+	}
+}
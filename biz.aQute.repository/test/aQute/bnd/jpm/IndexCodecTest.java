@@ -0,0 +1,104 @@
+package aQute.bnd.jpm;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import junit.framework.*;
+import aQute.bnd.resource.repository.ResourceDescriptorImpl;
+import aQute.bnd.resource.repository.ResourceRepositoryImpl.FileLayout;
+import aQute.bnd.version.*;
+import aQute.lib.converter.*;
+import aQute.lib.io.*;
+import aQute.lib.json.*;
+import aQute.service.library.Library.RevisionRef;
+
+/**
+ * Encode and decode the JSON files of the jpm index and the resource
+ * repository
+ */
+public class IndexCodecTest extends TestCase {
+	static final JSONCodec	codec	= new JSONCodec();
+
+	static Index.Repo getRepo(int copies) throws Exception {
+		Index.Repo repo = codec.dec().from(IO.getFile("testdata/ws/cnf/jpm4j.json")).get(
+				new TypeReference<Index.Repo>() {});
+		List<RevisionRef> refs = new ArrayList<RevisionRef>();
+		for (int i = 0; i < copies; i++)
+			refs.addAll(repo.revisionRefs);
+		repo.revisionRefs = refs;
+		return repo;
+	}
+
+	static FileLayout getFileLayout(int size) throws Exception {
+		FileLayout layout = new FileLayout();
+		for (int i = 0; i < size; i++) {
+			ResourceDescriptorImpl rd = new ResourceDescriptorImpl();
+			rd.bsn = "com.example.bundle" + i;
+			rd.version = new Version(1, i % 10, i);
+			rd.description = "The \"description\" of bundle " + i;
+			rd.id = new byte[20];
+			rd.id[0] = (byte) i;
+			rd.sha256 = new byte[32];
+			rd.url = new URI("http://example.com/repo/com.example.bundle" + i + ".jar");
+			rd.repositories.add("main");
+			rd.included = true;
+			layout.descriptors.add(rd);
+		}
+		return layout;
+	}
+
+	static byte[] encode(Object o) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		codec.enc().to(bout).put(o);
+		return bout.toByteArray();
+	}
+
+	public void testRoundTrip() throws Exception {
+		byte[] repo = encode(getRepo(3));
+		Index.Repo read = codec.dec().from(repo).get(new TypeReference<Index.Repo>() {});
+		assertEquals(3 * getRepo(1).revisionRefs.size(), read.revisionRefs.size());
+		assertTrue(Arrays.equals(repo, encode(read)));
+
+		byte[] layout = encode(getFileLayout(10));
+		FileLayout fl = codec.dec().from(layout).get(FileLayout.class);
+		assertEquals(10, fl.descriptors.size());
+		assertEquals("com.example.bundle3", fl.descriptors.get(3).bsn);
+		assertTrue(Arrays.equals(layout, encode(fl)));
+	}
+
+	/**
+	 * Compare decoding through the buffered stream decoder with decoding
+	 * through a reader, which is read a character at a time
+	 */
+	public void testThroughput() throws Exception {
+		Index.Repo repo = getRepo(100);
+		FileLayout layout = getFileLayout(1000);
+		byte[] repoBytes = encode(repo);
+		byte[] layoutBytes = encode(layout);
+
+		int rounds = 10;
+		long[] times = new long[3];
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			codec.dec().from(new ByteArrayInputStream(repoBytes)).get(new TypeReference<Index.Repo>() {});
+			codec.dec().from(new ByteArrayInputStream(layoutBytes)).get(FileLayout.class);
+			times[0] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			codec.dec().from(new InputStreamReader(new ByteArrayInputStream(repoBytes), "UTF-8")).get(
+					new TypeReference<Index.Repo>() {});
+			codec.dec().from(new InputStreamReader(new ByteArrayInputStream(layoutBytes), "UTF-8")).get(
+					FileLayout.class);
+			times[1] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			encode(repo);
+			encode(layout);
+			times[2] += System.nanoTime() - start;
+		}
+		System.out.printf("jpm index %d bytes, file layout %d bytes: decode %d ms, decode per character %d ms,"
+				+ " encode %d ms%n", repoBytes.length, layoutBytes.length, times[0] / rounds / 1000000, times[1]
+				/ rounds / 1000000, times[2] / rounds / 1000000);
+	}
+}
@@ -20,6 +20,7 @@ import org.osgi.service.resolver.*;
 import aQute.bnd.build.model.*;
 import aQute.bnd.deployer.repository.*;
 import aQute.bnd.header.*;
+import aQute.bnd.osgi.Processor;
 import aQute.bnd.osgi.resource.*;
 import aQute.bnd.service.resolve.hook.*;
 import aQute.lib.utf8properties.*;
@@ -51,6 +52,7 @@ public class GenericResolveContext extends ResolveContext {
 
 	protected final List<Requirement>				failed						= new ArrayList<Requirement>();
 	protected final Map<CacheKey,List<Capability>>	providerCache				= new HashMap<CacheKey,List<Capability>>();
+	private final Map<CacheKey,List<Collection<Capability>>>	repositoryProviders	= new HashMap<CacheKey,List<Collection<Capability>>>();
 	protected final Set<Resource>					optionalRoots				= new HashSet<Resource>();
 	protected final ConcurrentMap<Resource,Integer>	resourcePriorities			= new ConcurrentHashMap<Resource,Integer>();
 
@@ -65,6 +67,7 @@ public class GenericResolveContext extends ResolveContext {
 	protected Resource								systemResource;
 	protected Resource								inputResource;
 	protected Set<Resource>							blacklistedResources		= new HashSet<Resource>();
+	private final boolean							singleRequirementHook		= overridesSingleRequirementHook(getClass());
 
 	public GenericResolveContext(LogService log) {
 		this(Collections.<Capability> emptyList(), Collections.<Requirement> emptyList(), log);
@@ -156,9 +159,7 @@ public class GenericResolveContext extends ResolveContext {
 			// root resource,
 			// then we are done already, no need to look for providers from the
 			// repos.
-			boolean optional = Namespace.RESOLUTION_OPTIONAL.equals(requirement.getDirectives().get(
-					Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE));
-			if (optional && !optionalRoots.contains(requirement.getResource())) {
+			if (!isRepositoryRequirement(requirement)) {
 
 				result = new ArrayList<Capability>(firstStageResult);
 				Collections.sort(result, capabilityComparator);
@@ -168,13 +169,12 @@ public class GenericResolveContext extends ResolveContext {
 				// Second stage results: repository contents; may be reordered.
 				ArrayList<Capability> secondStageResult = new ArrayList<Capability>();
 
-				// Iterate over the repos
+				// Iterate over the answers of the repos, in the order of the
+				// repos
 				int order = 0;
 				ArrayList<Capability> repoCapabilities = new ArrayList<Capability>();
-				for (Repository repo : repositories) {
+				for (Collection<Capability> capabilities : findRepositoryProviders(requirement, cacheKey)) {
 					repoCapabilities.clear();
-					Map<Requirement,Collection<Capability>> providers = findProviders(repo, requirement);
-					Collection<Capability> capabilities = providers.get(requirement);
 					if (capabilities != null && !capabilities.isEmpty()) {
 						repoCapabilities.ensureCapacity(capabilities.size());
 						for (Capability capability : capabilities) {
@@ -208,9 +208,138 @@ public class GenericResolveContext extends ResolveContext {
 
 	}
 
+	/*
+	 * Optional requirements are only looked up in the repositories when they
+	 * come from an optional root
+	 */
+	private boolean isRepositoryRequirement(Requirement requirement) {
+		boolean optional = Namespace.RESOLUTION_OPTIONAL.equals(requirement.getDirectives().get(
+				Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE));
+		return !optional || optionalRoots.contains(requirement.getResource());
+	}
+
+	/*
+	 * Return the capabilities that each repository provides for the
+	 * requirement, in the order of the repositories. The repositories are asked
+	 * for the requirement together with the other requirements of its resource
+	 * that the resolver will ask for next. The answers for these other
+	 * requirements are kept until the resolver asks for them.
+	 */
+	private List<Collection<Capability>> findRepositoryProviders(Requirement requirement, CacheKey cacheKey) {
+		List<Collection<Capability>> found = repositoryProviders.remove(cacheKey);
+		if (found != null)
+			return found;
+
+		Map<CacheKey,Requirement> batch = new LinkedHashMap<CacheKey,Requirement>();
+		batch.put(cacheKey, requirement);
+		Resource resource = requirement.getResource();
+		if (resource != null) {
+			for (Requirement other : resource.getRequirements(null)) {
+				CacheKey key = getCacheKey(other);
+				if (batch.containsKey(key) || providerCache.containsKey(key) || repositoryProviders.containsKey(key))
+					continue;
+				if (isEffective(other) && isRepositoryRequirement(other))
+					batch.put(key, other);
+			}
+		}
+
+		List<Map<Requirement,Collection<Capability>>> answers = findProviders(repositories, batch.values());
+		for (Entry<CacheKey,Requirement> entry : batch.entrySet()) {
+			List<Collection<Capability>> providers = new ArrayList<Collection<Capability>>(answers.size());
+			for (Map<Requirement,Collection<Capability>> answer : answers)
+				providers.add(answer.get(entry.getValue()));
+
+			if (found == null)
+				found = providers;
+			else
+				repositoryProviders.put(entry.getKey(), providers);
+		}
+		return found;
+	}
+
+	/*
+	 * Ask each repository for the providers of the requirements. When there is
+	 * more than one repository, the repositories are asked concurrently so that
+	 * the latency of remote repositories does not add up. The answers are in
+	 * the order of the repositories.
+	 */
+	private List<Map<Requirement,Collection<Capability>>> findProviders(List<Repository> repos,
+			final Collection<Requirement> requirements) {
+		List<Map<Requirement,Collection<Capability>>> answers = new ArrayList<Map<Requirement,Collection<Capability>>>(
+				repos.size());
+		if (repos.isEmpty())
+			return answers;
+
+		List<FutureTask<Map<Requirement,Collection<Capability>>>> tasks = new ArrayList<FutureTask<Map<Requirement,Collection<Capability>>>>(
+				repos.size() - 1);
+		for (final Repository repo : repos.subList(1, repos.size())) {
+			FutureTask<Map<Requirement,Collection<Capability>>> task = new FutureTask<Map<Requirement,Collection<Capability>>>(
+					new Callable<Map<Requirement,Collection<Capability>>>() {
+						public Map<Requirement,Collection<Capability>> call() throws Exception {
+							return findRepositoryProviders(repo, requirements);
+						}
+					});
+			Processor.getExecutor().execute(task);
+			tasks.add(task);
+		}
+
+		answers.add(findRepositoryProviders(repos.get(0), requirements));
+		for (FutureTask<Map<Requirement,Collection<Capability>>> task : tasks) {
+			try {
+				answers.add(task.get());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new RuntimeException(cause);
+			}
+		}
+		return answers;
+	}
+
+	/*
+	 * Ask a repository for the providers of the requirements. A subclass that
+	 * overrides findProviders(Repository, Requirement) is asked for each
+	 * requirement through that method.
+	 */
+	private Map<Requirement,Collection<Capability>> findRepositoryProviders(Repository repo,
+			Collection<Requirement> requirements) {
+		if (!singleRequirementHook)
+			return findProviders(repo, requirements);
+
+		Map<Requirement,Collection<Capability>> map = new HashMap<Requirement,Collection<Capability>>();
+		for (Requirement requirement : requirements) {
+			Collection<Capability> caps = findProviders(repo, requirement).get(requirement);
+			if (caps != null)
+				map.put(requirement, caps);
+		}
+		return map;
+	}
+
+	private static boolean overridesSingleRequirementHook(Class< ? > type) {
+		for (; type != GenericResolveContext.class; type = type.getSuperclass()) {
+			try {
+				type.getDeclaredMethod("findProviders", Repository.class, Requirement.class);
+				return true;
+			}
+			catch (NoSuchMethodException e) {
+				// look in the super class
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Return any capabilities from the given repo. This method will filter the
-	 * blacklist.
+	 * blacklist. A subclass that overrides this method is asked for each
+	 * requirement, the requirements are then not looked up in batches.
 	 * 
 	 * @param repo
 	 *            The repo to fetch requirements from
@@ -220,17 +349,37 @@ public class GenericResolveContext extends ResolveContext {
 	 *         that are skipped.
 	 */
 	protected Map<Requirement,Collection<Capability>> findProviders(Repository repo, Requirement requirement) {
-		Map<Requirement,Collection<Capability>> map = repo.findProviders(Collections.singleton(requirement));
+		return findProviders(repo, Collections.singleton(requirement));
+	}
+
+	/**
+	 * Return any capabilities from the given repo for a number of
+	 * requirements. This method will filter the blacklist. It can be called
+	 * concurrently for different repos.
+	 * 
+	 * @param repo
+	 *            The repo to fetch requirements from
+	 * @param requirements
+	 *            the requirements
+	 * @return the caps for each of the asked requirements minus the
+	 *         capabilities that are skipped.
+	 */
+	protected Map<Requirement,Collection<Capability>> findProviders(Repository repo,
+			Collection< ? extends Requirement> requirements) {
+		Map<Requirement,Collection<Capability>> map = repo.findProviders(requirements);
 		if (map.isEmpty())
 			return map;
 
-		Collection<Capability> caps = map.get(requirement);
+		for (Collection<Capability> caps : map.values()) {
+			if (caps == null)
+				continue;
 
-		for (Iterator<Capability> c = caps.iterator(); c.hasNext();) {
-			Capability capability = c.next();
+			for (Iterator<Capability> c = caps.iterator(); c.hasNext();) {
+				Capability capability = c.next();
 
-			if (blacklistedResources.contains(capability.getResource()))
-				c.remove();
+				if (blacklistedResources.contains(capability.getResource()))
+					c.remove();
+			}
 		}
 		return map;
 	}
@@ -247,14 +396,12 @@ public class GenericResolveContext extends ResolveContext {
 		boolean match = false;
 		if (isCorrectEffectiveness(requirement, selfCap)) {
 			try {
-				String filterStr = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
-				org.osgi.framework.Filter filter = filterStr != null ? org.osgi.framework.FrameworkUtil
-						.createFilter(filterStr) : null;
+				CompiledFilter filter = ResourceUtils.getFilter(requirement);
 
 				if (filter == null)
 					match = true;
 				else
-					match = filter.match(new MapToDictionaryAdapter(selfCap.getAttributes()));
+					match = filter.matches(selfCap);
 			}
 			catch (InvalidSyntaxException e) {
 				log.log(LogService.LOG_ERROR, "Invalid filter directive on requirement: " + requirement, e);
@@ -785,20 +932,22 @@ public class GenericResolveContext extends ResolveContext {
 				for (Requirement requirement : requirements) {
 					Resource resource = requirement.getResource();
 					List<Capability> result = new ArrayList<Capability>();
-					for (Resource found : resources) {
-						String filterStr = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
-						try {
-							org.osgi.framework.Filter filter = filterStr != null ? org.osgi.framework.FrameworkUtil
-									.createFilter(filterStr) : null;
-
+					CompiledFilter filter;
+					try {
+						filter = ResourceUtils.getFilter(requirement);
+					}
+					catch (InvalidSyntaxException e) {
+						filter = null;
+					}
+					if (filter != null) {
+						for (Resource found : resources) {
 							List<Capability> caps = found.getCapabilities(requirement.getNamespace());
 							for (Capability c : caps) {
-								if (filter != null && filter.matches(c.getAttributes())) {
+								if (filter.matches(c.getAttributes())) {
 									result.add(c);
 								}
 							}
 						}
-						catch (InvalidSyntaxException e) {}
 					}
 					if (result.size() > 0) {
 						if (reqMap == null) {
@@ -17,7 +17,6 @@ import java.util.concurrent.TimeoutException;
 
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.resource.Capability;
-import org.osgi.resource.Namespace;
 import org.osgi.resource.Requirement;
 import org.osgi.resource.Resource;
 import org.osgi.resource.Wire;
@@ -28,9 +27,12 @@ import org.osgi.service.resolver.Resolver;
 
 import aQute.bnd.build.model.BndEditModel;
 import aQute.bnd.osgi.Processor;
+import aQute.bnd.osgi.resource.CompiledFilter;
+import aQute.bnd.osgi.resource.ResourceUtils;
 import aQute.bnd.service.Registry;
 import aQute.libg.tuple.Pair;
 import biz.aQute.resolve.internal.BndrunResolveContext;
+import biz.aQute.resolve.internal.ResolutionCache;
 
 public class ResolveProcess {
 
@@ -53,6 +55,14 @@ public class ResolveProcess {
 			Collection<ResolutionCallback> callbacks, LogService log) throws ResolutionException {
 		BndrunResolveContext rc = new BndrunResolveContext(properties, plugins, log);
 		rc.addCallbacks(callbacks);
+
+		ResolutionCache cache = ResolutionCache.getCache(properties, rc, log);
+		if (cache != null) {
+			Map<Resource,List<Wire>> cached = cache.get();
+			if (cached != null)
+				return cached;
+		}
+
 		// 1. Resolve initial requirements
 		try {
 			Map<Resource,List<Wire>> wirings = resolver.resolve(rc);
@@ -70,20 +80,23 @@ public class ResolveProcess {
 			final List<Resource> resources = new ArrayList<Resource>();
 			for (Resource r : rc.getMandatoryResources()) {
 				reqs: for (Requirement req : r.getRequirements(null)) {
+					CompiledFilter filter;
+					try {
+						filter = ResourceUtils.getFilter(req);
+					}
+					catch (InvalidSyntaxException e) {
+						continue;
+					}
+					if (filter == null)
+						continue;
+
 					for (Resource found : wirings.keySet()) {
-						String filterStr = req.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
-						try {
-							org.osgi.framework.Filter filter = filterStr != null ? org.osgi.framework.FrameworkUtil
-									.createFilter(filterStr) : null;
-
-							for (Capability c : found.getCapabilities(req.getNamespace())) {
-								if (filter != null && filter.matches(c.getAttributes())) {
-									resources.add(found);
-									continue reqs;
-								}
+						for (Capability c : found.getCapabilities(req.getNamespace())) {
+							if (filter.matches(c.getAttributes())) {
+								resources.add(found);
+								continue reqs;
 							}
 						}
-						catch (InvalidSyntaxException e) {}
 					}
 				}
 			}
@@ -127,6 +140,9 @@ public class ResolveProcess {
 			Map<Resource,List<Wire>> result = invertWirings(wirings);
 			removeFrameworkAndInputResources(result, rc2);
 
+			if (cache != null)
+				cache.put(result);
+
 			return result;
 		}
 		catch (ResolutionException re) {
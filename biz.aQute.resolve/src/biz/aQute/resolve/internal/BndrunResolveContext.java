@@ -21,7 +21,10 @@ import aQute.bnd.osgi.*;
 import aQute.bnd.osgi.Constants;
 import aQute.bnd.osgi.resource.*;
 import aQute.bnd.service.*;
+import aQute.bnd.service.repository.RepositoryDigest;
 import aQute.bnd.service.resolve.hook.*;
+import aQute.lib.hex.*;
+import aQute.libg.cryptography.SHA1;
 import aQute.libg.filters.*;
 import aQute.libg.filters.Filter;
 import biz.aQute.resolve.*;
@@ -40,6 +43,7 @@ public class BndrunResolveContext extends GenericResolveContext {
 
 	public static final String			RUN_EFFECTIVE_INSTRUCTION	= "-resolve.effective";
 	public static final String			PROP_RESOLVE_PREFERENCES	= "-resolve.preferences";
+	public static final String			PROP_RESOLVE_CACHE			= "-resolve.cache";
 
 	private Registry					registry;
 
@@ -175,6 +179,47 @@ public class BndrunResolveContext extends GenericResolveContext {
 		return false;
 	}
 
+	/**
+	 * Return a digest of the inputs of the resolution: the instructions that
+	 * are used for resolving and the digests of the repositories. The digest
+	 * is null when the result of the resolution does not only depend on these
+	 * inputs, i.e. when a repository has no digest or when resolver hooks or
+	 * callbacks can change the candidates.
+	 */
+	public String getInputDigest() throws Exception {
+		init();
+
+		if (!callbacks.isEmpty() || !registry.getPlugins(ResolverHook.class).isEmpty())
+			return null;
+
+		StringBuilder sb = new StringBuilder();
+		for (String key : new String[] {
+				Constants.RUNREQUIRES, Constants.RUNSYSTEMPACKAGES, Constants.RUNSYSTEMCAPABILITIES,
+				Constants.RUNREPOS, Constants.RUNBLACKLIST, Constants.DISTRO, Constants.RUNPATH, Constants.TESTPATH
+		}) {
+			sb.append(key).append('=').append(properties.mergeProperties(key)).append('\n');
+		}
+		for (String key : new String[] {
+				Constants.RUNEE, Constants.RUNFW, Constants.TESTCASES, Constants.NOJUNITOSGI,
+				RUN_EFFECTIVE_INSTRUCTION, PROP_RESOLVE_PREFERENCES
+		}) {
+			sb.append(key).append('=').append(properties.getProperty(key)).append('\n');
+		}
+
+		for (Repository repository : repositories) {
+			if (!(repository instanceof RepositoryDigest))
+				return null;
+
+			byte[] digest = ((RepositoryDigest) repository).getDigest();
+			if (digest == null)
+				return null;
+
+			sb.append(repository).append('=').append(Hex.toHexString(digest)).append('\n');
+		}
+
+		return SHA1.digest(sb.toString().getBytes("UTF-8")).asHex();
+	}
+
 	private void loadEE() {
 		EE tmp = EE.parse(properties.getProperty(Constants.RUNEE));
 		ee = (tmp != null) ? tmp : EE.JavaSE_1_6;
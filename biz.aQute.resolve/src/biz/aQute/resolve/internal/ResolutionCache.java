@@ -0,0 +1,362 @@
+package biz.aQute.resolve.internal;
+
+import java.io.*;
+import java.util.*;
+
+import org.osgi.framework.namespace.*;
+import org.osgi.resource.*;
+import org.osgi.resource.Resource;
+import org.osgi.service.log.*;
+import org.osgi.service.repository.*;
+
+import aQute.bnd.build.*;
+import aQute.bnd.osgi.*;
+import aQute.bnd.util.dto.*;
+import aQute.lib.io.*;
+import aQute.lib.json.*;
+import aQute.libg.cryptography.*;
+import biz.aQute.resolve.*;
+
+/**
+ * A persistent cache of the required resources of a bndrun. The result of a
+ * resolution is kept in the workspace cache, one file per bndrun, together with
+ * the digest of the inputs of the resolution, see
+ * {@link BndrunResolveContext#getInputDigest()}. As long as the digest is the
+ * same, the resources and wires are taken from the repositories again instead
+ * of running the resolver.
+ * <p>
+ * The cache is not used for a bndrun outside a workspace, when the inputs
+ * have no digest, or when the {@code -resolve.cache} instruction is false.
+ */
+public class ResolutionCache {
+	final static int			VERSION		= 1;
+	final static String			CACHE_DIR	= "resolve";
+	final static JSONCodec		codec		= new JSONCodec();
+
+	final static String			SYSTEM		= "system";
+	final static String			INPUT		= "input";
+	final static String			REPOSITORY	= "repository";
+
+	private final File			file;
+	private final String		digest;
+	private final GenericResolveContext	context;
+	private final LogService	log;
+
+	public static class ResolutionDTO extends DTO {
+		public int					version;
+		public String				digest;
+		public List<ResourceDTO>	resources	= new ArrayList<ResourceDTO>();
+		public List<WireDTO>		wires		= new ArrayList<WireDTO>();
+	}
+
+	public static class ResourceDTO extends DTO {
+		public String	kind;
+		public String	identity;
+		public String	version;
+		public String	type;
+		public String	sha;
+	}
+
+	/*
+	 * A wire refers to its requirer and provider in the resources, and to
+	 * the position of its requirement and capability in the requirements and
+	 * capabilities of the namespace of these resources. The position of the
+	 * capability is -1 when it is a capability that the context added to the
+	 * provider, like the packages of the execution environment.
+	 */
+	public static class WireDTO extends DTO {
+		public int		requirer;
+		public int		provider;
+		public String	namespace;
+		public int		requirement;
+		public int		capability;
+		public String	key;
+	}
+
+	ResolutionCache(File file, String digest, GenericResolveContext context, LogService log) {
+		this.file = file;
+		this.digest = digest;
+		this.context = context;
+		this.log = log;
+	}
+
+	/**
+	 * Return the cache for a bndrun, or null when the resolution of this
+	 * bndrun cannot be cached
+	 *
+	 * @param properties the bndrun
+	 * @param context the context for resolving the bndrun
+	 * @param log the log
+	 */
+	public static ResolutionCache getCache(Processor properties, BndrunResolveContext context, LogService log) {
+		if (!Processor.isTrue(properties.getProperty(BndrunResolveContext.PROP_RESOLVE_CACHE, "true")))
+			return null;
+
+		try {
+			File file = getCacheFile(properties);
+			if (file == null)
+				return null;
+
+			String digest = context.getInputDigest();
+			if (digest == null)
+				return null;
+
+			return new ResolutionCache(file, digest, context, log);
+		}
+		catch (Exception e) {
+			log.log(LogService.LOG_DEBUG, "Cannot cache the resolution of " + properties, e);
+			return null;
+		}
+	}
+
+	/*
+	 * The cache file is in the workspace cache and named after the bndrun file
+	 */
+	static File getCacheFile(Processor properties) throws Exception {
+		File bndrun = null;
+		Workspace workspace = null;
+		for (Processor p = properties; p != null; p = p.getParent()) {
+			if (bndrun == null)
+				bndrun = p.getPropertiesFile();
+			if (p instanceof Project) {
+				workspace = ((Project) p).getWorkspace();
+				break;
+			}
+			if (p instanceof Workspace) {
+				workspace = (Workspace) p;
+				break;
+			}
+		}
+		if (bndrun == null || workspace == null)
+			return null;
+
+		String name = SHA1.digest(bndrun.getAbsolutePath().getBytes("UTF-8")).asHex();
+		return new File(workspace.getCache(CACHE_DIR), name + ".json");
+	}
+
+	/**
+	 * Return the cached resolution, or null when there is no resolution for
+	 * the same inputs or its resources cannot be found anymore
+	 */
+	public Map<Resource,List<Wire>> get() {
+		if (!file.isFile())
+			return null;
+
+		try {
+			ResolutionDTO dto = codec.dec().from(file).get(ResolutionDTO.class);
+			if (dto.version != VERSION || !digest.equals(dto.digest))
+				return null;
+
+			Resource[] resources = new Resource[dto.resources.size()];
+			for (int i = 0; i < resources.length; i++) {
+				resources[i] = getResource(dto.resources.get(i));
+				if (resources[i] == null)
+					return null;
+			}
+
+			Map<Resource,List<Wire>> result = new HashMap<Resource,List<Wire>>();
+			for (WireDTO w : dto.wires) {
+				Wire wire = getWire(w, resources);
+				if (wire == null)
+					return null;
+
+				List<Wire> incoming = result.get(wire.getProvider());
+				if (incoming == null) {
+					incoming = new LinkedList<Wire>();
+					result.put(wire.getProvider(), incoming);
+				}
+				incoming.add(wire);
+			}
+			return result;
+		}
+		catch (Exception e) {
+			log.log(LogService.LOG_DEBUG, "Cannot read the cached resolution " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store a resolution. The resolution is not stored when one of its
+	 * resources or wires cannot be found again from the context.
+	 */
+	public void put(Map<Resource,List<Wire>> resolution) {
+		try {
+			ResolutionDTO dto = new ResolutionDTO();
+			dto.version = VERSION;
+			dto.digest = digest;
+
+			Map<Resource,Integer> indexes = new HashMap<Resource,Integer>();
+			for (List<Wire> wires : resolution.values()) {
+				for (Wire wire : wires) {
+					WireDTO w = new WireDTO();
+					w.requirer = index(dto, indexes, wire.getRequirer());
+					w.provider = index(dto, indexes, wire.getProvider());
+					if (w.requirer < 0 || w.provider < 0)
+						return;
+
+					w.namespace = wire.getRequirement().getNamespace();
+					w.requirement = wire.getRequirer().getRequirements(w.namespace).indexOf(wire.getRequirement());
+					if (w.requirement < 0)
+						return;
+
+					w.capability = wire.getProvider().getCapabilities(w.namespace).indexOf(wire.getCapability());
+					w.key = getKey(wire.getCapability());
+					dto.wires.add(w);
+				}
+			}
+
+			File tmp = new File(file.getAbsolutePath() + ".tmp");
+			file.getParentFile().mkdirs();
+			codec.enc().to(tmp).put(dto);
+			IO.rename(tmp, file);
+		}
+		catch (Exception e) {
+			IO.delete(file);
+			log.log(LogService.LOG_DEBUG, "Cannot cache the resolution in " + file, e);
+		}
+	}
+
+	private int index(ResolutionDTO dto, Map<Resource,Integer> indexes, Resource resource) {
+		Integer index = indexes.get(resource);
+		if (index != null)
+			return index;
+
+		ResourceDTO r = new ResourceDTO();
+		if (GenericResolveContext.resourceIdentityEquals(resource, context.getInputResource()))
+			r.kind = INPUT;
+		else if (GenericResolveContext.resourceIdentityEquals(resource, context.getSystemResource()))
+			r.kind = SYSTEM;
+		else {
+			List<Capability> identities = resource.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE);
+			if (identities.isEmpty())
+				return -1;
+
+			Map<String,Object> attributes = identities.get(0).getAttributes();
+			r.kind = REPOSITORY;
+			r.identity = toString(attributes.get(IdentityNamespace.IDENTITY_NAMESPACE));
+			r.version = toString(attributes.get(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+			r.type = toString(attributes.get(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE));
+			r.sha = getSHA(resource);
+			if (r.identity == null || r.version == null)
+				return -1;
+		}
+
+		index = dto.resources.size();
+		dto.resources.add(r);
+		indexes.put(resource, index);
+		return index;
+	}
+
+	private Resource getResource(ResourceDTO r) {
+		if (INPUT.equals(r.kind))
+			return context.getInputResource();
+
+		if (SYSTEM.equals(r.kind))
+			return context.getSystemResource();
+
+		Requirement requirement = GenericResolveContext.createIdentityRequirement(r.identity, "[" + r.version + ","
+				+ r.version + "]");
+		for (Repository repository : context.getRepositories()) {
+			Collection<Capability> capabilities = repository.findProviders(Collections.singleton(requirement)).get(
+					requirement);
+			if (capabilities == null)
+				continue;
+
+			for (Capability capability : capabilities) {
+				Resource resource = capability.getResource();
+				if (equals(r.type, toString(capability.getAttributes().get(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE)))
+						&& equals(r.sha, getSHA(resource)))
+					return resource;
+			}
+		}
+		return null;
+	}
+
+	private Wire getWire(WireDTO w, Resource[] resources) {
+		if (w.requirer < 0 || w.requirer >= resources.length || w.provider < 0 || w.provider >= resources.length)
+			return null;
+
+		Resource requirer = resources[w.requirer];
+		Resource provider = resources[w.provider];
+
+		List<Requirement> requirements = requirer.getRequirements(w.namespace);
+		if (w.requirement < 0 || w.requirement >= requirements.size())
+			return null;
+		Requirement requirement = requirements.get(w.requirement);
+
+		Capability capability = null;
+		List<Capability> capabilities = provider.getCapabilities(w.namespace);
+		if (w.capability >= 0 && w.capability < capabilities.size())
+			capability = capabilities.get(w.capability);
+		else {
+			for (Capability c : context.findProviders(requirement)) {
+				if (c.getResource() == provider && w.key.equals(getKey(c))) {
+					capability = c;
+					break;
+				}
+			}
+		}
+		if (capability == null || !w.key.equals(getKey(capability)))
+			return null;
+
+		return new CachedWire(capability, requirement, provider, requirer);
+	}
+
+	/*
+	 * Identifies a capability within the capabilities of a namespace
+	 */
+	private static String getKey(Capability capability) {
+		return capability.getNamespace() + new TreeMap<String,Object>(capability.getAttributes())
+				+ new TreeMap<String,String>(capability.getDirectives());
+	}
+
+	private static String getSHA(Resource resource) {
+		List<Capability> contents = resource.getCapabilities(ContentNamespace.CONTENT_NAMESPACE);
+		if (contents.isEmpty())
+			return null;
+		return toString(contents.get(0).getAttributes().get(ContentNamespace.CONTENT_NAMESPACE));
+	}
+
+	private static String toString(Object o) {
+		return o == null ? null : o.toString();
+	}
+
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	static class CachedWire implements Wire {
+		private final Capability	capability;
+		private final Requirement	requirement;
+		private final Resource		provider;
+		private final Resource		requirer;
+
+		CachedWire(Capability capability, Requirement requirement, Resource provider, Resource requirer) {
+			this.capability = capability;
+			this.requirement = requirement;
+			this.provider = provider;
+			this.requirer = requirer;
+		}
+
+		public Capability getCapability() {
+			return capability;
+		}
+
+		public Requirement getRequirement() {
+			return requirement;
+		}
+
+		public Resource getProvider() {
+			return provider;
+		}
+
+		public Resource getRequirer() {
+			return requirer;
+		}
+
+		@Override
+		public String toString() {
+			return requirement + " -> " + capability;
+		}
+	}
+}
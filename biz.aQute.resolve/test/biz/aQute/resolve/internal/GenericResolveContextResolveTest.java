@@ -3,6 +3,7 @@ package biz.aQute.resolve.internal;
 import static test.lib.Utils.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import junit.framework.*;
 
@@ -138,6 +139,129 @@ public class GenericResolveContextResolveTest extends TestCase {
 		assertEquals(expectedResourceNames, resourceNames);
 	}
 
+	/*
+	 * A repository that counts the times it is asked. With a latch it only
+	 * answers when the other repositories on the latch are asked at the same
+	 * time, or when they are not asked in time.
+	 */
+	static class CountingRepository implements Repository {
+		final Repository		repository;
+		final CountDownLatch	latch;
+		final Set<Resource>		resources	= Collections.synchronizedSet(new HashSet<Resource>());
+		int						calls;
+		volatile boolean		together;
+
+		CountingRepository(Repository repository, CountDownLatch latch) {
+			this.repository = repository;
+			this.latch = latch;
+		}
+
+		public Map<Requirement,Collection<Capability>> findProviders(Collection< ? extends Requirement> requirements) {
+			synchronized (this) {
+				calls++;
+			}
+			if (latch != null) {
+				latch.countDown();
+				try {
+					together = latch.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			Map<Requirement,Collection<Capability>> result = repository.findProviders(requirements);
+			for (Collection<Capability> capabilities : result.values())
+				for (Capability capability : capabilities)
+					resources.add(capability.getResource());
+			return result;
+		}
+	}
+
+	/**
+	 * The repositories are asked concurrently, but the providers must still be
+	 * in the order of the repositories
+	 */
+	public static void testConcurrentRepositories() {
+		CountDownLatch latch = new CountDownLatch(2);
+		CountingRepository first = new CountingRepository(createRepo(IO.getFile("testdata/repo6/index.xml")), latch);
+		CountingRepository second = new CountingRepository(createRepo(IO.getFile("testdata/repo6/index.xml")), latch);
+
+		GenericResolveContext context = new GenericResolveContext(Collections.<Capability> emptyList(),
+				Collections.<Requirement> emptyList(), log);
+		context.addRepository(first);
+		context.addRepository(second);
+
+		List<Capability> providers = context.findProviders(new CapReqBuilder("osgi.service").addDirective("filter",
+				"(objectClass=org.osgi.service.log.LogService)").buildSyntheticRequirement());
+		assertTrue(first.together);
+		assertTrue(second.together);
+
+		assertEquals(4, providers.size());
+		Set<String> seen = new HashSet<String>();
+		for (Capability cap : providers) {
+			String name = cap.getResource().getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE).get(0)
+					.getAttributes().get(IdentityNamespace.IDENTITY_NAMESPACE).toString();
+			if (seen.add(name))
+				assertTrue(name, first.resources.contains(cap.getResource()));
+			else
+				assertTrue(name, second.resources.contains(cap.getResource()));
+		}
+	}
+
+	/**
+	 * The requirements of a resource are looked up in the repositories
+	 * together, each lookup is only done once during a resolve
+	 */
+	public static void testBatchedLookups() throws Exception {
+		Repository repository = createRepo(IO.getFile("testdata/repo3.index.xml"));
+		GenericResolveContext grc = new GenericResolveContext(log);
+		Resource framework = grc.getFrameworkResource(Arrays.asList(repository), "org.apache.felix.framework", null);
+
+		List<Requirement> systemRequirements = new ArrayList<Requirement>(framework.getRequirements(null));
+		List<Capability> systemCapabilities = new ArrayList<Capability>(framework.getCapabilities(null));
+		systemCapabilities.addAll(GenericResolveContext.getEECapabilities(EE.JavaSE_1_7));
+
+		final int[] asked = new int[1];
+		GenericResolveContext context = new GenericResolveContext(systemCapabilities, systemRequirements, log) {
+			@Override
+			public List<Capability> findProviders(Requirement requirement) {
+				asked[0]++;
+				return super.findProviders(requirement);
+			}
+		};
+		CountingRepository counting = new CountingRepository(repository, null);
+		context.addRepository(counting);
+		context.addInputRequirement(GenericResolveContext.createBundleRequirement("org.apache.felix.gogo.shell", "[0,1)"));
+
+		Map<Resource,List<Wire>> resolved = new BndResolver(new ResolverLogger(4)).resolve(context);
+		assertNotNull(getResource(resolved.keySet(), "org.apache.felix.gogo.runtime", "0.10"));
+		assertTrue(counting.calls + " " + asked[0], counting.calls < asked[0]);
+	}
+
+	/**
+	 * A subclass that overrides the hook for a single requirement is still
+	 * asked for the providers in the repositories
+	 */
+	public static void testSingleRequirementHook() {
+		final List<Requirement> asked = new ArrayList<Requirement>();
+		GenericResolveContext context = new GenericResolveContext(Collections.<Capability> emptyList(),
+				Collections.<Requirement> emptyList(), log) {
+			@Override
+			protected Map<Requirement,Collection<Capability>> findProviders(Repository repo, Requirement requirement) {
+				asked.add(requirement);
+				Map<Requirement,Collection<Capability>> map = super.findProviders(repo, requirement);
+				map.get(requirement).clear();
+				return map;
+			}
+		};
+		context.addRepository(createRepo(IO.getFile("testdata/repo6/index.xml")));
+
+		Requirement requirement = new CapReqBuilder("osgi.service").addDirective("filter",
+				"(objectClass=org.osgi.service.log.LogService)").buildSyntheticRequirement();
+		assertTrue(context.findProviders(requirement).isEmpty());
+		assertEquals(Collections.singletonList(requirement), asked);
+	}
+
 	private static Resource getResource(Set<Resource> resources, String bsn, String versionString) {
 		for (Resource resource : resources) {
 			List<Capability> identities = resource.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE);
@@ -0,0 +1,150 @@
+package biz.aQute.resolve.internal;
+
+import static test.lib.Utils.*;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.osgi.resource.*;
+import org.osgi.resource.Resource;
+import org.osgi.service.log.*;
+import org.osgi.service.resolver.*;
+
+import test.lib.*;
+import aQute.bnd.build.*;
+import aQute.bnd.osgi.Constants;
+import aQute.lib.io.*;
+import biz.aQute.resolve.*;
+
+public class ResolutionCacheTest extends TestCase {
+
+	private static final LogService	log	= new NullLogService();
+
+	File							tmp;
+	Workspace						ws;
+
+	/*
+	 * Counts the resolutions that were not taken from the cache
+	 */
+	static class CountingResolver implements Resolver {
+		final Resolver	resolver	= new BndResolver(new ResolverLogger(4));
+		int				count;
+
+		public Map<Resource,List<Wire>> resolve(ResolveContext context) throws ResolutionException {
+			count++;
+			return resolver.resolve(context);
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		tmp = IO.getFile("tmp/resolutioncache");
+		IO.delete(tmp);
+		File cnf = new File(tmp, "ws/cnf");
+		cnf.mkdirs();
+		IO.store("", new File(cnf, "build.bnd"));
+		ws = new Workspace(new File(tmp, "ws"));
+		ws.getPlugins().add(createRepo(IO.getFile("testdata/repo3.index.xml")));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ws.close();
+		IO.delete(tmp);
+	}
+
+	private Run getRun() throws Exception {
+		File bndrun = new File(tmp, "test.bndrun");
+		IO.store("-runfw: org.apache.felix.framework\n"
+				+ "-runrequires: osgi.identity;filter:='(osgi.identity=org.apache.felix.gogo.shell)'\n", bndrun);
+		return new Run(ws, tmp, bndrun);
+	}
+
+	private static Set<String> resolve(Run run, Resolver resolver) throws Exception {
+		Map<Resource,List<Wire>> result = new ResolveProcess().resolveRequired(run, run.getWorkspace(), resolver,
+				Collections.<ResolutionCallback> emptyList(), log);
+		Set<String> identities = new TreeSet<String>();
+		for (Map.Entry<Resource,List<Wire>> entry : result.entrySet()) {
+			identities.add(GenericResolveContext.getResourceIdentity(entry.getKey()) + ";"
+					+ GenericResolveContext.getResourceVersion(entry.getKey()));
+			for (Wire wire : entry.getValue()) {
+				assertSame(entry.getKey(), wire.getProvider());
+				assertTrue(wire.getRequirer().getRequirements(null).contains(wire.getRequirement()));
+				assertTrue(wire.getProvider().getCapabilities(null).contains(wire.getCapability()));
+			}
+		}
+		return identities;
+	}
+
+	/**
+	 * A second resolution of the same bndrun must come from the cache and give
+	 * the same resources
+	 */
+	public void testCached() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		Set<String> first = resolve(getRun(), resolver);
+		assertTrue(first.toString(), first.contains("org.apache.felix.gogo.runtime;0.10.0"));
+		assertEquals(2, resolver.count);
+
+		File cache = ws.getCache(ResolutionCache.CACHE_DIR);
+		assertEquals(1, cache.list().length);
+
+		assertEquals(first, resolve(getRun(), resolver));
+		assertEquals(2, resolver.count);
+	}
+
+	/**
+	 * Different inputs must be resolved again
+	 */
+	public void testChangedInputs() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		Set<String> first = resolve(getRun(), resolver);
+		assertEquals(2, resolver.count);
+
+		Run run = getRun();
+		run.setProperty(Constants.RUNREQUIRES, "osgi.identity;filter:='(osgi.identity=org.apache.felix.gogo.runtime)'");
+		Set<String> second = resolve(run, resolver);
+		assertEquals(4, resolver.count);
+		assertFalse(first.equals(second));
+
+		run = getRun();
+		run.setProperty(BndrunResolveContext.PROP_RESOLVE_CACHE, "false");
+		assertEquals(first, resolve(run, resolver));
+		assertEquals(6, resolver.count);
+	}
+
+	/**
+	 * A cache for other inputs or a corrupt cache must not be used
+	 */
+	public void testUnusableCache() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		Set<String> first = resolve(getRun(), resolver);
+
+		File file = ResolutionCache.getCacheFile(getRun());
+		String json = IO.collect(file);
+		IO.store(json.replaceAll("\"digest\":\"[0-9A-Fa-f]+\"", "\"digest\":\"0000\""), file);
+		assertEquals(first, resolve(getRun(), resolver));
+		assertEquals(4, resolver.count);
+
+		IO.store(json.substring(0, json.length() / 2), file);
+		assertEquals(first, resolve(getRun(), resolver));
+		assertEquals(6, resolver.count);
+
+		assertEquals(first, resolve(getRun(), resolver));
+		assertEquals(6, resolver.count);
+	}
+
+	/**
+	 * The digest of the inputs depends on the content of the repositories
+	 */
+	public void testRepositoryDigest() throws Exception {
+		String digest = new BndrunResolveContext(getRun(), ws, log).getInputDigest();
+		assertNotNull(digest);
+		assertEquals(digest, new BndrunResolveContext(getRun(), ws, log).getInputDigest());
+
+		ws.getPlugins().add(createRepo(IO.getFile("testdata/repo1.index.xml")));
+		assertFalse(digest.equals(new BndrunResolveContext(getRun(), ws, log).getInputDigest()));
+	}
+}
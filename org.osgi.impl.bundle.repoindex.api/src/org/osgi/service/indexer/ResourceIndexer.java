@@ -84,6 +84,26 @@ public interface ResourceIndexer {
 	/** Name of the configuration variable for the verbose mode */
 	public static final String VERBOSE = "verbose";
 
+	/**
+	 * Name of the configuration variable for the number of threads that
+	 * analyze the input files concurrently. The resources are always written
+	 * in the same order. The default is 1. Additional analyzers must be thread
+	 * safe when more than one thread is used.
+	 */
+	public static final String THREADS = "threads";
+
+	/**
+	 * Name of the configuration variable for the path of a previous index
+	 * (compressed or not) of the files. The resources of the files that did
+	 * not change since the previous index was generated are taken from it
+	 * instead of analyzing the files again, the files that are not in the
+	 * previous index or changed are analyzed. A file has not changed when it
+	 * has the same URL and size, and it was not modified after the previous
+	 * index was generated or has the same SHA-256. The previous index must
+	 * have been generated with the same analyzers.
+	 */
+	public static final String PREVIOUS_INDEX = "previous.index";
+
 	/**
 	 * Index a set of input files and write the Repository XML representation to
 	 * the stream
@@ -142,6 +142,15 @@ public class CommandLineOptions {
 	@Option(name = "--noincrement", handler = BooleanOptionHandler.class, usage = "Increment override")
 	boolean incrementOverride = DEFAULT_NOINCREMENT;
 
+	/*
+	 * Incremental
+	 */
+
+	public static final boolean DEFAULT_INCREMENTAL = false;
+
+	@Option(name = "--incremental", handler = BooleanOptionHandler.class, usage = "Reuse the resources of the existing output file for the files that did not change")
+	boolean incremental = DEFAULT_INCREMENTAL;
+
 	/*
 	 * File List
 	 */
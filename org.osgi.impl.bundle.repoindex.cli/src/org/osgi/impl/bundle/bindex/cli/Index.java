@@ -76,10 +76,27 @@ public class Index {
 				printCopyright(System.err);
 			}
 
+			// The previous index is moved aside, it is read while the new
+			// index is written
+			File previousFile = null;
+			if (config.containsKey(ResourceIndexer.PREVIOUS_INDEX)) {
+				config.remove(ResourceIndexer.PREVIOUS_INDEX);
+				if (outputFile.isFile()) {
+					previousFile = new File(outputFile.getPath() + ".previous");
+					previousFile.delete();
+					if (outputFile.renameTo(previousFile))
+						config.put(ResourceIndexer.PREVIOUS_INDEX, previousFile.getPath());
+					else
+						previousFile = null;
+				}
+			}
+
 			FileOutputStream fos = null;
 			try {
 				fos = new FileOutputStream(outputFile);
 				index.index(fileList, fos, config);
+				if (previousFile != null)
+					previousFile.delete();
 			} catch (Exception e) {
 				e.printStackTrace();
 			} finally {
@@ -174,6 +191,10 @@ public class Index {
 			config.put(RepoIndex.REPOSITORY_INCREMENT_OVERRIDE, "");
 		}
 
+		if (commandLineOptions.incremental) {
+			config.put(ResourceIndexer.PREVIOUS_INDEX, output.getPath());
+		}
+
 		if (commandLineOptions.fileList.isEmpty()) {
 			fileList.clear();
 		} else {
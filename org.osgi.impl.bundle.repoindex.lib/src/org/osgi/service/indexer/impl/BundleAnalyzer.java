@@ -157,37 +157,67 @@ public class BundleAnalyzer implements ResourceAnalyzer {
 	}
 
 	private String calculateSHA(Resource resource) throws IOException, NoSuchAlgorithmException {
-		MessageDigest digest = MessageDigest.getInstance(SHA_256);
-		byte[] buf = new byte[1024];
-
 		InputStream stream = null;
 		try {
 			stream = resource.getStream();
-			while (true) {
-				int bytesRead = stream.read(buf, 0, 1024);
-				if (bytesRead < 0)
-					break;
-
-				digest.update(buf, 0, bytesRead);
-			}
+			return calculateSHA(stream);
 		} finally {
 			if (stream != null)
 				stream.close();
 		}
+	}
+
+	/**
+	 * Calculate the SHA-256 of a stream, as it appears in the index
+	 * 
+	 * @param stream
+	 *            the stream, it is not closed
+	 * @return the SHA-256 in hex
+	 */
+	static String calculateSHA(InputStream stream) throws IOException, NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance(SHA_256);
+		byte[] buf = new byte[1024];
+
+		while (true) {
+			int bytesRead = stream.read(buf, 0, 1024);
+			if (bytesRead < 0)
+				break;
+
+			digest.update(buf, 0, bytesRead);
+		}
 
 		return Hex.toHexString(digest.digest());
 	}
 
 	private String calculateLocation(Resource resource) throws IOException {
-		String location = resource.getLocation();
+		GeneratorState state = getStateLocal();
+		String urlTemplate = state == null ? null : state.getUrlTemplate();
+		String bsn = (urlTemplate == null || urlTemplate.indexOf("%s") == -1) ? "" : Util.getSymbolicName(resource).getName();
+		Version version = (urlTemplate == null || urlTemplate.indexOf("%v") == -1) ? Version.emptyVersion : Util.getVersion(resource);
+		return calculateLocation(state, resource.getLocation(), bsn, version);
+	}
 
+	/**
+	 * Calculate the URL of a resource in the index
+	 * 
+	 * @param state
+	 *            the generator state, can be null
+	 * @param location
+	 *            the location of the resource
+	 * @param bsn
+	 *            the symbolic name, only used when the URL template contains
+	 *            %s
+	 * @param version
+	 *            the version, only used when the URL template contains %v
+	 * @return the URL of the resource
+	 */
+	static String calculateLocation(GeneratorState state, String location, String bsn, Version version) throws IOException {
 		File path = new File(location);
 		String fileName = path.getName();
 		String dir = path.getAbsoluteFile().getParentFile().toURI().toURL().toString();
 
 		String result = location;
 
-		GeneratorState state = getStateLocal();
 		if (state != null) {
 			String rootUrl = state.getRootUrl().toString();
 			if (!rootUrl.endsWith("/"))
@@ -202,8 +232,6 @@ public class BundleAnalyzer implements ResourceAnalyzer {
 
 			String urlTemplate = state.getUrlTemplate();
 			if (urlTemplate != null) {
-				String bsn = (urlTemplate.indexOf("%s") == -1) ? "" : Util.getSymbolicName(resource).getName();
-				Version version = (urlTemplate.indexOf("%v") == -1) ? Version.emptyVersion : Util.getVersion(resource);
 				urlTemplate = urlTemplate.replaceAll("%s", "%1\\$s").replaceAll("%f", "%2\\$s").replaceAll("%p", "%3\\$s").replaceAll("%v", "%4\\$s");
 				result = String.format(urlTemplate, bsn, fileName, dir, version);
 			} else {
@@ -0,0 +1,229 @@
+package org.osgi.service.indexer.impl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.osgi.framework.Version;
+import org.osgi.service.indexer.Namespaces;
+import org.osgi.service.indexer.impl.util.Tag;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The resources of an index that was generated before. The resource of a file
+ * is taken from the previous index instead of analyzing the file again when the
+ * file has not changed: it has the same URL and size as the resource in the
+ * previous index, and it was not modified after the previous index was
+ * generated or it still has the same SHA-256.
+ */
+class PreviousIndex {
+	/**
+	 * the margin for the resolution of the last modified time of files, a file
+	 * modified less than this before the previous index was generated is
+	 * checked with its SHA-256
+	 */
+	static final long MODIFIED_MARGIN = 2000;
+
+	/** the resources by the URL of their content */
+	private final Map<String, Entry> byUrl = new HashMap<String, Entry>();
+
+	/** the resources by the SHA-256 of their content */
+	private final Map<String, List<Entry>> bySha = new HashMap<String, List<Entry>>();
+
+	/** the time the previous index was generated, -1 when unknown */
+	private final long increment;
+
+	/**
+	 * A resource of the previous index
+	 */
+	static class Entry {
+		Tag resource;
+		String sha;
+		String url;
+		long size;
+		String bsn;
+		String version;
+	}
+
+	/**
+	 * Read a previous index, compressed or not
+	 *
+	 * @param file
+	 *            the index file
+	 */
+	PreviousIndex(File file) throws Exception {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			in.mark(2);
+			int b1 = in.read();
+			int b2 = in.read();
+			in.reset();
+			if (b1 == 0x1f && b2 == 0x8b)
+				in = new GZIPInputStream(in);
+
+			Reader reader = new Reader();
+			SAXParserFactory.newInstance().newSAXParser().parse(in, reader);
+
+			long increment = -1;
+			if (reader.increment != null) {
+				try {
+					increment = Long.parseLong(reader.increment.trim());
+				} catch (NumberFormatException e) {
+					// overridden, the SHA-256 of every file is checked
+				}
+			}
+			this.increment = increment;
+
+			for (Tag resource : reader.resources)
+				add(resource);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the resource of a file from the previous index
+	 *
+	 * @param file
+	 *            the file
+	 * @param state
+	 *            the generator state of the new index
+	 * @return the resource, or null when the file must be analyzed
+	 */
+	Tag get(File file, GeneratorState state) throws Exception {
+		String location = file.getPath().replace(File.separatorChar, '/');
+		String urlTemplate = state.getUrlTemplate();
+
+		if (urlTemplate == null || (urlTemplate.indexOf("%s") == -1 && urlTemplate.indexOf("%v") == -1)) {
+			Entry entry = byUrl.get(BundleAnalyzer.calculateLocation(state, location, "", Version.emptyVersion));
+			if (entry == null || entry.size != file.length())
+				return null;
+
+			long lastModified = file.lastModified();
+			if (lastModified != 0 && lastModified < increment - MODIFIED_MARGIN)
+				return entry.resource;
+
+			return entry.sha.equals(calculateSHA(file)) ? entry.resource : null;
+		}
+
+		//
+		// The URL depends on the symbolic name and version of the file, these
+		// are the same as in the previous index when the content is the same
+		//
+
+		List<Entry> entries = bySha.get(calculateSHA(file));
+		if (entries == null)
+			return null;
+
+		for (Entry entry : entries) {
+			if (entry.size != file.length() || entry.bsn == null || entry.version == null)
+				continue;
+
+			String url = BundleAnalyzer.calculateLocation(state, location, entry.bsn, Version.parseVersion(entry.version));
+			if (url.equals(entry.url))
+				return entry.resource;
+		}
+		return null;
+	}
+
+	private void add(Tag resource) {
+		Entry entry = new Entry();
+		entry.resource = resource;
+
+		for (Object o : resource.getContents(Schema.ELEM_CAPABILITY)) {
+			Tag capability = (Tag) o;
+			String namespace = capability.getAttribute(Schema.ATTR_NAMESPACE);
+			if (Namespaces.NS_CONTENT.equals(namespace) && entry.url == null) {
+				Map<String, String> attributes = getAttributes(capability);
+				entry.sha = attributes.get(Namespaces.NS_CONTENT);
+				entry.url = attributes.get(Namespaces.ATTR_CONTENT_URL);
+				String size = attributes.get(Namespaces.ATTR_CONTENT_SIZE);
+				try {
+					entry.size = size == null ? 0L : Long.parseLong(size.trim());
+				} catch (NumberFormatException e) {
+					entry.size = -1L;
+				}
+			} else if (Namespaces.NS_IDENTITY.equals(namespace) && entry.bsn == null) {
+				Map<String, String> attributes = getAttributes(capability);
+				entry.bsn = attributes.get(Namespaces.NS_IDENTITY);
+				entry.version = attributes.get(Namespaces.ATTR_VERSION);
+			}
+		}
+
+		if (entry.sha == null || entry.url == null)
+			return;
+
+		byUrl.put(entry.url, entry);
+		List<Entry> entries = bySha.get(entry.sha);
+		if (entries == null) {
+			entries = new ArrayList<Entry>(1);
+			bySha.put(entry.sha, entries);
+		}
+		entries.add(entry);
+	}
+
+	private static Map<String, String> getAttributes(Tag capability) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		for (Object o : capability.getContents(Schema.ELEM_ATTRIBUTE)) {
+			Tag attribute = (Tag) o;
+			attributes.put(attribute.getAttribute(Schema.ATTR_NAME), attribute.getAttribute(Schema.ATTR_VALUE));
+		}
+		return attributes;
+	}
+
+	private static String calculateSHA(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			return BundleAnalyzer.calculateSHA(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the resource elements of an index into tags
+	 */
+	private static class Reader extends DefaultHandler {
+		final List<Tag> resources = new ArrayList<Tag>();
+		final LinkedList<Tag> open = new LinkedList<Tag>();
+		String increment;
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (open.isEmpty()) {
+				if (Schema.ELEM_REPOSITORY.equals(qName))
+					increment = attributes.getValue(Schema.ATTR_INCREMENT);
+				if (!Schema.ELEM_RESOURCE.equals(qName))
+					return;
+			}
+
+			Tag tag = new Tag(qName);
+			for (int i = 0; i < attributes.getLength(); i++)
+				tag.addAttribute(attributes.getQName(i), attributes.getValue(i));
+
+			if (!open.isEmpty())
+				open.getLast().addContent(tag);
+			open.addLast(tag);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (open.isEmpty())
+				return;
+
+			Tag tag = open.removeLast();
+			if (open.isEmpty())
+				resources.add(tag);
+		}
+	}
+}
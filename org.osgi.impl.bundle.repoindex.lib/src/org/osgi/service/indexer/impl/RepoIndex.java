@@ -7,6 +7,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -19,6 +20,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
@@ -180,14 +186,7 @@ public class RepoIndex implements ResourceIndexer {
 			repoTag.addAttribute(Schema.ATTR_XML_NAMESPACE, Schema.NAMESPACE);
 
 			repoTag.printOpen(indent, pw, false);
-			for (File file : filesToIndex) {
-				try {
-					Tag resourceTag = generateResource(file, config);
-					resourceTag.print(indent.next(), pw);
-				} catch (Exception e) {
-					log(LogService.LOG_WARNING, MessageFormat.format("Could not index {0}, skipped ({1}).", file, e.getMessage()), null);
-				}
-			}
+			generateResources(filesToIndex, config, indent.next(), pw);
 			repoTag.printClose(indent, pw);
 		} finally {
 			if (pw != null) {
@@ -218,14 +217,121 @@ public class RepoIndex implements ResourceIndexer {
 		else
 			pw = new PrintWriter(out);
 
-		for (File file : files) {
+		generateResources(files, config, Indent.PRETTY, pw);
+	}
+
+	/**
+	 * Generate and print the resources of the files, in the order of the
+	 * files. With more than one thread configured the files are analyzed
+	 * concurrently, at most a few files ahead of the file that is printed.
+	 * When a previous index is configured the resources of the files that did
+	 * not change are taken from it.
+	 */
+	private void generateResources(Set<File> files, final Map<String, String> config, Indent indent, PrintWriter pw) throws InterruptedException {
+		final PreviousIndex previous = readPreviousIndex(config);
+		int threads = getThreads(config);
+		if (threads <= 1 || files.size() <= 1) {
+			for (File file : files) {
+				try {
+					Tag resourceTag = getResource(file, config, previous);
+					resourceTag.print(indent, pw);
+				} catch (Exception e) {
+					log(LogService.LOG_WARNING, MessageFormat.format("Could not index {0}, skipped ({1}).", file, e.getMessage()), null);
+				}
+			}
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			LinkedList<Pair<File, Future<Tag>>> window = new LinkedList<Pair<File, Future<Tag>>>();
+			for (final File file : files) {
+				Future<Tag> future = executor.submit(new Callable<Tag>() {
+					public Tag call() throws Exception {
+						return getResource(file, config, previous);
+					}
+				});
+				window.add(Pair.create(file, future));
+				if (window.size() >= threads * 2)
+					print(window.removeFirst(), indent, pw);
+			}
+			while (!window.isEmpty())
+				print(window.removeFirst(), indent, pw);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void print(Pair<File, Future<Tag>> entry, Indent indent, PrintWriter pw) throws InterruptedException {
+		try {
+			entry.getSecond().get().print(indent, pw);
+		} catch (ExecutionException e) {
+			log(LogService.LOG_WARNING, MessageFormat.format("Could not index {0}, skipped ({1}).", entry.getFirst(), e.getCause().getMessage()), null);
+		}
+	}
+
+	private int getThreads(Map<String, String> config) {
+		String threads = config == null ? null : config.get(ResourceIndexer.THREADS);
+		if (threads == null)
+			return 1;
+
+		try {
+			return Integer.parseInt(threads.trim());
+		} catch (NumberFormatException e) {
+			log(LogService.LOG_WARNING, MessageFormat.format("Invalid number of threads {0}, indexing on one thread.", threads), null);
+			return 1;
+		}
+	}
+
+	private PreviousIndex readPreviousIndex(Map<String, String> config) {
+		String previousIndex = config == null ? null : config.get(ResourceIndexer.PREVIOUS_INDEX);
+		if (previousIndex == null)
+			return null;
+
+		// without a previous index all files are analyzed
+		File file = new File(previousIndex);
+		if (!file.isFile())
+			return null;
+
+		try {
+			return new PreviousIndex(file);
+		} catch (Exception e) {
+			log(LogService.LOG_WARNING, MessageFormat.format("Could not read previous index {0}, indexing all files ({1}).", file, e.getMessage()), null);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the resource of a file from the previous index, or generate it when
+	 * the file is not in the previous index or has changed
+	 */
+	private Tag getResource(File file, Map<String, String> config, PreviousIndex previous) throws Exception {
+		if (previous != null) {
 			try {
-				Tag resourceTag = generateResource(file, config);
-				resourceTag.print(Indent.PRETTY, pw);
+				Tag resourceTag = previous.get(file, getGeneratorState(config));
+				if (resourceTag != null)
+					return resourceTag;
 			} catch (Exception e) {
-				log(LogService.LOG_WARNING, MessageFormat.format("Could not index {0}, skipped ({1}).", file, e.getMessage()), null);
+				// the file is analyzed, which reports the problem
 			}
 		}
+		return generateResource(file, config);
+	}
+
+	private GeneratorState getGeneratorState(Map<String, String> config) throws MalformedURLException {
+		URL rootURL;
+		String rootURLStr = config.get(ResourceIndexer.ROOT_URL);
+		if (rootURLStr != null) {
+			File rootDir = new File(rootURLStr);
+			if (rootDir.isDirectory())
+				rootURL = rootDir.toURI().toURL();
+			else
+				rootURL = new URL(rootURLStr);
+		} else
+			rootURL = new File(System.getProperty("user.dir")).toURI().toURL();
+
+		String urlTemplate = config.get(ResourceIndexer.URL_TEMPLATE);
+		return new GeneratorState(rootURL, urlTemplate);
 	}
 
 	private Tag generateResource(File file, Map<String, String> config) throws Exception {
@@ -237,37 +343,28 @@ public class RepoIndex implements ResourceIndexer {
 		try {
 			// Read config settings and save in thread local state
 			if (config != null) {
-				URL rootURL;
-				String rootURLStr = config.get(ResourceIndexer.ROOT_URL);
-				if (rootURLStr != null) {
-					File rootDir = new File(rootURLStr);
-					if (rootDir.isDirectory())
-						rootURL = rootDir.toURI().toURL();
-					else
-						rootURL = new URL(rootURLStr);
-				} else
-					rootURL = new File(System.getProperty("user.dir")).toURI().toURL();
-
-				String urlTemplate = config.get(ResourceIndexer.URL_TEMPLATE);
-				bundleAnalyzer.setStateLocal(new GeneratorState(rootURL, urlTemplate));
+				bundleAnalyzer.setStateLocal(getGeneratorState(config));
 			} else {
 				bundleAnalyzer.setStateLocal(null);
 			}
 
-			// Iterate over the analyzers
+			// Iterate over the analyzers, outside the lock so that files can
+			// be analyzed concurrently
+			List<Pair<ResourceAnalyzer, Filter>> analyzers;
+			synchronized (this.analyzers) {
+				analyzers = new ArrayList<Pair<ResourceAnalyzer, Filter>>(this.analyzers);
+			}
 			try {
-				synchronized (analyzers) {
-					for (Pair<ResourceAnalyzer, Filter> entry : analyzers) {
-						ResourceAnalyzer analyzer = entry.getFirst();
-						Filter filter = entry.getSecond();
-
-						if (filter == null || filter.match(resource.getProperties())) {
-							try {
-								analyzer.analyzeResource(resource, caps, reqs);
-							} catch (Exception e) {
-								log(LogService.LOG_ERROR,
-										MessageFormat.format("Error calling analyzer \"{0}\" on resource {1}.", analyzer.getClass().getName(), resource.getLocation()), e);
-							}
+				for (Pair<ResourceAnalyzer, Filter> entry : analyzers) {
+					ResourceAnalyzer analyzer = entry.getFirst();
+					Filter filter = entry.getSecond();
+
+					if (filter == null || filter.match(resource.getProperties())) {
+						try {
+							analyzer.analyzeResource(resource, caps, reqs);
+						} catch (Exception e) {
+							log(LogService.LOG_ERROR,
+									MessageFormat.format("Error calling analyzer \"{0}\" on resource {1}.", analyzer.getClass().getName(), resource.getLocation()), e);
 						}
 					}
 				}
@@ -11,7 +11,10 @@ import static org.mockito.Mockito.verify;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -161,6 +164,142 @@ public class TestIndexer extends TestCase {
 		assertEquals(expected, Utils.decompress(out.toByteArray()));
 	}
 
+	public void testFullIndexThreads() throws Exception {
+		RepoIndex indexer = new RepoIndex();
+
+		Set<File> files = new LinkedHashSet<File>();
+		for (File file : new File("testdata").listFiles()) {
+			if (file.getName().endsWith(".jar"))
+				files.add(file);
+		}
+		assertTrue(files.size() > 10);
+
+		Map<String, String> config = new HashMap<String, String>();
+		config.put(RepoIndex.REPOSITORY_INCREMENT_OVERRIDE, "0");
+		config.put(ResourceIndexer.PRETTY, "true");
+		config.put(ResourceIndexer.COMPRESSED, "false");
+		config.put(ResourceIndexer.ROOT_URL, new File("testdata").getAbsoluteFile().toURI().toString());
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		indexer.index(files, expected, config);
+
+		config.put(ResourceIndexer.THREADS, "4");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		indexer.index(files, out, config);
+		assertEquals(expected.toString("UTF-8"), out.toString("UTF-8"));
+
+		StringWriter expectedFragment = new StringWriter();
+		config.remove(ResourceIndexer.THREADS);
+		indexer.indexFragment(files, expectedFragment, config);
+
+		StringWriter fragment = new StringWriter();
+		config.put(ResourceIndexer.THREADS, "4");
+		indexer.indexFragment(files, fragment, config);
+		assertEquals(expectedFragment.toString(), fragment.toString());
+	}
+
+	public void testIncrementalIndex() throws Exception {
+		assertIncrementalIndex(null, false);
+		assertIncrementalIndex("%s/%v/%f", true);
+	}
+
+	private void assertIncrementalIndex(String urlTemplate, boolean compressed) throws Exception {
+		File dir = File.createTempFile("repoindex", "");
+		dir.delete();
+		dir.mkdirs();
+		File previous = new File(dir.getParentFile(), dir.getName() + ".xml");
+		try {
+			final List<String> analyzed = Collections.synchronizedList(new ArrayList<String>());
+			RepoIndex indexer = new RepoIndex();
+			indexer.addAnalyzer(new ResourceAnalyzer() {
+				public void analyzeResource(Resource resource, List<Capability> capabilities, List<Requirement> requirements) throws Exception {
+					analyzed.add(new File(resource.getLocation()).getName());
+				}
+			}, null);
+
+			long old = System.currentTimeMillis() - 60000;
+			File a = copy("testdata/01-bsn+version.jar", dir, "a.jar", old);
+			File b = copy("testdata/03-export.jar", dir, "b.jar", old);
+			File c = copy("testdata/05-import.jar", dir, "c.jar", old);
+			File e = copy("testdata/15-scr.jar", dir, "e.jar", old);
+
+			Map<String, String> config = new HashMap<String, String>();
+			config.put(ResourceIndexer.PRETTY, "true");
+			config.put(ResourceIndexer.COMPRESSED, Boolean.toString(compressed));
+			config.put(ResourceIndexer.ROOT_URL, dir.getAbsoluteFile().toURI().toString());
+			if (urlTemplate != null)
+				config.put(ResourceIndexer.URL_TEMPLATE, urlTemplate);
+
+			FileOutputStream out = new FileOutputStream(previous);
+			try {
+				indexer.index(Collections.singleton(dir), out, config);
+			} finally {
+				out.close();
+			}
+
+			// a did not change, b was touched but has the same content, c
+			// was removed, d is new and e has a different content
+			b.setLastModified(System.currentTimeMillis());
+			c.delete();
+			File d = copy("testdata/06-requirebundle.jar", dir, "d.jar", old);
+			copy("testdata/02-localization.jar", dir, "e.jar", System.currentTimeMillis());
+
+			Set<File> files = new LinkedHashSet<File>();
+			files.add(dir);
+			config.put(RepoIndex.REPOSITORY_INCREMENT_OVERRIDE, "0");
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			indexer.index(files, expected, config);
+
+			analyzed.clear();
+			config.put(ResourceIndexer.PREVIOUS_INDEX, previous.getPath());
+			ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+			indexer.index(files, incremental, config);
+
+			assertEquals(Arrays.asList(d.getName(), e.getName()), analyzed);
+			assertEquals(decode(expected.toByteArray(), compressed), decode(incremental.toByteArray(), compressed));
+			assertTrue(decode(incremental.toByteArray(), compressed).indexOf(a.getName()) > 0);
+			assertTrue(decode(incremental.toByteArray(), compressed).indexOf(c.getName()) < 0);
+
+			// a previous index that does not exist indexes all files
+			analyzed.clear();
+			config.put(ResourceIndexer.PREVIOUS_INDEX, new File(dir, "missing.xml").getPath());
+			incremental = new ByteArrayOutputStream();
+			indexer.index(files, incremental, config);
+			assertEquals(4, analyzed.size());
+			assertEquals(decode(expected.toByteArray(), compressed), decode(incremental.toByteArray(), compressed));
+		} finally {
+			previous.delete();
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	private static File copy(String from, File dir, String name, long lastModified) throws Exception {
+		File to = new File(dir, name);
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileOutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[4096];
+				int size;
+				while ((size = in.read(buffer)) > 0)
+					out.write(buffer, 0, size);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		to.setLastModified(lastModified);
+		return to;
+	}
+
+	private static String decode(byte[] bytes, boolean compressed) throws Exception {
+		return compressed ? Utils.decompress(bytes) : new String(bytes, "UTF-8");
+	}
+
 	public void testFullIndexPrettyCompressedPermutations() throws Exception {
 		Boolean pretties[] = { null, Boolean.FALSE, Boolean.TRUE };
 		Boolean compressions[] = { null, Boolean.FALSE, Boolean.TRUE };